@@ -1,24 +1,96 @@
 // Main.java
-// This is the entry point for the Dark Sky project application. It loads the necessary OpenCV library
-// and initializes the Dashboard window for user authentication.
+// This is the entry point for the Dark Sky project application. It shows the Dashboard window straight away
+// and starts the station (OpenCV, camera, SQM-LE, storage, metrics) in parallel behind it, or runs the station
+// without a window when started with --headless (or -Ddarksky.mode=headless, or when there is no display).
+// With --collector it runs only the collector that several stations send their timelines to, and with
+// --collector-sim it checks uploads against a scratch collector with a few simulated stations.
 
 package com.darksky;
 
+// Importing the logger so the last messages are written out before a --startup-only exit
+import com.darksky.logging.EventLog;
+// Importing the staged startup that initializes everything in parallel
+import com.darksky.services.Startup;
+// Importing the headless runner for stations without a display
+import com.darksky.services.StationDaemon;
+// Importing the simulated stations that check the collector's upload cursor
+import com.darksky.timeline.CollectorSimulation;
+// Importing the collector that several stations send their timelines to
+import com.darksky.timeline.TimelineCollector;
 // Importing the Dashboard window class from the UI package to display the Dashboard interface
 import com.darksky.ui.DashboardWindow;
-// Importing the Core class from OpenCV to load necessary native libraries
-import org.opencv.core.Core;
+// Importing the future that completes when every startup stage has finished
+import java.util.concurrent.CompletableFuture;
+// Importing the check for a display, which doesn't start the AWT toolkit
+import java.awt.GraphicsEnvironment;
+// Importing the Swing helper used to build windows on the event dispatch thread
+import javax.swing.SwingUtilities;
 
 public class Main {
 
     // Main method to start the Dark Sky application
     // @param args Command line arguments passed when running the program
-    public static void main(String[] args) {
+    public static void main(String[] args) throws Exception {
 
-        // Loading the OpenCV library required for image processing functionalities
-        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+        if (hasArg(args, "--collector-sim")) {
+            // Checking resends and restarts against a collector on 127.0.0.1, then exiting
+            String report = CollectorSimulation.run(3, 1000);
+            System.out.println(report);
+            EventLog.flush(2000);
+            System.exit(report.startsWith("passed") ? 0 : 1);
+        }
 
-        // Creating a new instance of the Dashboard window
-        new DashboardWindow();
+        if (hasArg(args, "--collector")) {
+            // Running only the collector for several stations: no camera, no SQM-LE, no window
+            TimelineCollector.fromProperties().start();
+            Thread.currentThread().join();
+        }
+
+        if (isHeadless(args)) {
+            // Running capture and SQM logging without a window; the "ui" control command can attach the dashboard later
+            new StationDaemon(Main::attachDashboard).run();
+            System.exit(0);
+        }
+
+        // Starting the camera, SQM-LE, storage and metrics in the background while the window is built
+        Startup startup = new Startup();
+        SwingUtilities.invokeLater(() -> new DashboardWindow(startup));
+        CompletableFuture<Void> started = startup.start();
+
+        if (hasArg(args, "--startup-only")) {
+            // Used to record a CDS archive: wait until everything has started and the window is up, then exit
+            started.join();
+            SwingUtilities.invokeAndWait(() -> { });
+            EventLog.flush(2000);
+            System.exit(0);
+        }
+    }
+
+    // Opens the dashboard on top of the running headless station
+    // Throws IllegalStateException if the JVM has no display to open it on
+    private static void attachDashboard() {
+        if (GraphicsEnvironment.isHeadless()) {
+            throw new IllegalStateException("no display available");
+        }
+        SwingUtilities.invokeLater(() -> new DashboardWindow(true));
+    }
+
+    // Works out whether to run without a window
+    // @param args Command line arguments, "--headless" asks for headless mode
+    // @return true if there is no display or headless mode was asked for
+    private static boolean isHeadless(String[] args) {
+        return hasArg(args, "--headless")
+                || System.getProperty("darksky.mode", "").equalsIgnoreCase("headless")
+                || GraphicsEnvironment.isHeadless();
+    }
+
+    // @return true if the argument was given on the command line
+    private static boolean hasArg(String[] args, String wanted) {
+        for (String arg : args) {
+            if (arg.equals(wanted)) {
+                return true;
+            }
+        }
+        return false;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,152 @@
+package com.darksky.analysis;
+
+import org.opencv.core.Mat;
+import org.opencv.imgcodecs.Imgcodecs;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * File Header Comment:
+ * This class times the frame analysis on a real frame, to check that it keeps up with the capture rate.
+ */
+
+/**
+ * Class Header Comment:
+ * AnalysisBenchmark analyses the same frame over and over with 1, 2, 4 ... workers up to the number of cores,
+ * each worker with its own FrameAnalyzer and its own copy of the frame, as in FrameAnalysisStage. Every
+ * worker first does two frames that are not timed, so the working images are set up and the code is compiled.
+ * For each worker count it reports frames per second and the mean time per frame, which is what one worker
+ * adds after each capture; the stage keeps up as long as frames per second times the capture interval stays
+ * above one. Used by the control socket's "quality bench" command.
+ */
+public final class AnalysisBenchmark {
+
+    private static final int WARM_UP = 2;  // Untimed frames per worker
+
+    private AnalysisBenchmark() {
+    }
+
+    /**
+     * @param image          The frame to analyse.
+     * @param frames         Timed frames per worker count.
+     * @param captureMillis  The capture interval, to say whether the analysis keeps up.
+     * @return One line per worker count.
+     */
+    public static String run(Path image, int frames, long captureMillis) throws IOException {
+        Mat frame = Imgcodecs.imread(image.toString(), Imgcodecs.IMREAD_UNCHANGED);
+        if (frame == null || frame.empty()) {
+            throw new IOException("could not read " + image);
+        }
+        StringBuilder report = new StringBuilder(String.format(Locale.ROOT, "%s, %dx%d, %d channel(s), %d frames per run",
+                image.getFileName(), frame.width(), frame.height(), frame.channels(), frames));
+        try {
+            int cores = Runtime.getRuntime().availableProcessors();
+            for (int threads = 1; threads <= cores; threads *= 2) {
+                report.append('\n').append(runWith(frame, frames, threads, captureMillis));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            report.append("\ninterrupted");
+        } finally {
+            frame.release();
+        }
+        return report.toString();
+    }
+
+    private static String runWith(Mat frame, int frames, int threads, long captureMillis) throws InterruptedException {
+        SkyReference sky = SkyReference.fromProperties();
+        AtomicInteger next = new AtomicInteger();
+        long[] busyNanos = new long[threads];
+        CountDownLatch warmedUp = new CountDownLatch(threads);
+        CountDownLatch go = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int worker = t;
+            Thread thread = new Thread(() -> {
+                Mat copy = frame.clone();
+                try (FrameAnalyzer analyzer = new FrameAnalyzer(sky)) {
+                    for (int i = 0; i < WARM_UP; i++) {
+                        analyzer.analyze(copy, 0, "");
+                    }
+                    warmedUp.countDown();
+                    go.await();
+                    while (next.getAndIncrement() < frames) {
+                        long start = System.nanoTime();
+                        analyzer.analyze(copy, 0, "");
+                        busyNanos[worker] += System.nanoTime() - start;
+                    }
+                } catch (InterruptedException e) {
+                    // Benchmark interrupted
+                } finally {
+                    copy.release();
+                }
+            }, "darksky-analysis-bench-" + (t + 1));
+            workers.add(thread);
+            thread.start();
+        }
+
+        warmedUp.await();
+        long start = System.nanoTime();
+        go.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        long busy = 0;
+        for (long nanos : busyNanos) {
+            busy += nanos;
+        }
+        double perSecond = frames * 1e9 / Math.max(1, elapsed);
+        double millisPerFrame = busy / 1e6 / Math.max(1, frames);
+        return String.format(Locale.ROOT, "%2d worker(s): %6.1f frames/s, %7.1f ms per frame%s", threads, perSecond, millisPerFrame,
+                perSecond * captureMillis / 1000.0 >= 1 ? "" : " (slower than the capture interval)");
+    }
+
+    /**
+     * @param reportsDir The folder holding the yyyy-MM-dd day folders.
+     * @return The newest image file in the newest yyyy-MM-dd folder that has one, or null if there is none.
+     */
+    public static Path latestFrame(Path reportsDir) throws IOException {
+        if (!Files.isDirectory(reportsDir)) {
+            return null;
+        }
+        List<Path> days = new ArrayList<>();
+        try (DirectoryStream<Path> folders = Files.newDirectoryStream(reportsDir, Files::isDirectory)) {
+            for (Path folder : folders) {
+                try {
+                    LocalDate.parse(folder.getFileName().toString());
+                    days.add(folder);
+                } catch (DateTimeParseException e) {
+                    // Not a day folder (Exports, Calibration)
+                }
+            }
+        }
+        days.sort(Comparator.comparing(Path::getFileName).reversed());
+        for (Path day : days) {
+            Path newest = null;
+            try (DirectoryStream<Path> images = Files.newDirectoryStream(day, "*.{png,jpg,tiff}")) {
+                for (Path image : images) {
+                    if (newest == null || image.getFileName().compareTo(newest.getFileName()) > 0) {
+                        newest = image;  // The names are times, so the largest is the newest
+                    }
+                }
+            }
+            if (newest != null) {
+                return newest;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,164 @@
+package com.darksky.analysis;
+
+import com.darksky.logging.EventLog;
+import com.darksky.metrics.Counter;
+import com.darksky.metrics.LatencyHistogram;
+import com.darksky.metrics.Metrics;
+import com.darksky.utils.FrameListener;
+import org.opencv.core.Mat;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * File Header Comment:
+ * This class analyses every frame AutoCapture saves, on worker threads of its own, and puts the results in
+ * the quality index.
+ */
+
+/**
+ * Class Header Comment:
+ * FrameAnalysisStage is a FrameListener. On the capture thread it only copies the frame (AutoCapture reuses
+ * its Mat) and queues it; -Ddarksky.analysis.threads workers (default half the cores, 0 turns analysis off)
+ * each run their own FrameAnalyzer and add the result to the QualityIndex. The queue holds at most
+ * -Ddarksky.analysis.queue frames (default 4): if the workers fall that far behind, new frames are counted as
+ * dropped and not copied, so a slow analysis never holds up the capture or piles up full-size frames.
+ * The workers share one SkyReference for the cloud cover.
+ * <p>
+ * Metrics: analysis.copy is what the capture thread pays per frame, analysis.wait the time a frame spends in
+ * the queue and analysis.frame the analysis itself; each frame's own cost is also kept in its index entry.
+ */
+public class FrameAnalysisStage implements FrameListener {
+
+    private static final LatencyHistogram COPY_TIME = Metrics.histogram("analysis.copy", "Copying a frame for analysis, on the capture thread");
+    private static final LatencyHistogram WAIT_TIME = Metrics.histogram("analysis.wait", "Time a frame waits for an analysis worker");
+    private static final LatencyHistogram ANALYSIS_TIME = Metrics.histogram("analysis.frame", "Analysing one frame (background, noise, stars, FWHM, cloud)");
+    private static final Counter FRAMES_ANALYSED = Metrics.counter("analysis.frames", "Frames analysed");
+    private static final Counter FRAMES_DROPPED = Metrics.counter("analysis.dropped", "Frames not analysed because the workers were behind");
+    private static final Counter FAILURES = Metrics.counter("analysis.failures", "Frames whose analysis failed");
+
+    /**
+     * A copied frame waiting for a worker.
+     */
+    private static final class Job {
+        final Mat frame;
+        final long time;
+        final String file;
+        final long queuedAt;
+
+        Job(Mat frame, long time, String file) {
+            this.frame = frame;
+            this.time = time;
+            this.file = file;
+            this.queuedAt = System.nanoTime();
+        }
+    }
+
+    private final QualityIndex index;
+    private final SkyReference sky;
+    private final int threads;
+    private final BlockingQueue<Job> queue;
+    private final List<Thread> workers = new ArrayList<>();  // Guarded by this
+
+    /**
+     * @param index   Where the results go.
+     * @param sky     The clear-sky reference the workers share.
+     * @param threads Worker threads.
+     * @param queued  Frames that may wait for a worker.
+     */
+    public FrameAnalysisStage(QualityIndex index, SkyReference sky, int threads, int queued) {
+        this.index = index;
+        this.sky = sky;
+        this.threads = threads;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queued));
+    }
+
+    /**
+     * @return A stage feeding the station's quality index, set up from the darksky.analysis.* system
+     *         properties, or null if analysis is turned off.
+     */
+    public static FrameAnalysisStage fromProperties() {
+        int threads = Integer.getInteger("darksky.analysis.threads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+        if (threads <= 0) {
+            return null;
+        }
+        return new FrameAnalysisStage(QualityIndex.get(), SkyReference.fromProperties(), threads, Integer.getInteger("darksky.analysis.queue", 4));
+    }
+
+    public synchronized void start() {
+        if (!workers.isEmpty()) {
+            return;
+        }
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(this::runWorker, "darksky-analysis-" + (i + 1));
+            worker.setDaemon(true);
+            worker.setPriority(Thread.NORM_PRIORITY - 1);  // Below capture and the UI
+            worker.start();
+            workers.add(worker);
+        }
+        EventLog.info("FrameAnalysisStage", "analysis.started", "threads", threads);
+    }
+
+    /**
+     * Stops the workers. Frames still queued are not analysed.
+     */
+    public synchronized void stop() {
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+        workers.clear();
+        Job job;
+        while ((job = queue.poll()) != null) {
+            job.frame.release();
+        }
+        index.close();
+    }
+
+    /**
+     * Copies the frame and queues it, or drops it if the queue is full. Called by AutoCapture on the capture
+     * thread.
+     */
+    @Override
+    public void frameCaptured(Mat frame, Path file) {
+        if (queue.remainingCapacity() == 0) {
+            FRAMES_DROPPED.increment();  // Not worth copying a frame that can't be queued
+            return;
+        }
+        long start = System.nanoTime();
+        Job job = new Job(frame.clone(), System.currentTimeMillis(), file.getFileName().toString());
+        COPY_TIME.recordSince(start);
+        if (!queue.offer(job)) {
+            job.frame.release();
+            FRAMES_DROPPED.increment();
+        }
+    }
+
+    private void runWorker() {
+        FrameAnalyzer analyzer = new FrameAnalyzer(sky);
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Job job = queue.take();
+                WAIT_TIME.recordSince(job.queuedAt);
+                long start = System.nanoTime();
+                try {
+                    FrameQuality quality = analyzer.analyze(job.frame, job.time, job.file);
+                    ANALYSIS_TIME.recordSince(start);
+                    FRAMES_ANALYSED.increment();
+                    index.add(quality);
+                } catch (RuntimeException e) {
+                    FAILURES.increment();
+                    EventLog.warn("FrameAnalysisStage", "analysis.failed", "file", job.file, e);
+                } finally {
+                    job.frame.release();
+                }
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        } finally {
+            analyzer.close();
+        }
+    }
+}
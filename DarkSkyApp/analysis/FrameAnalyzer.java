@@ -0,0 +1,213 @@
+package com.darksky.analysis;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.Arrays;
+
+/**
+ * File Header Comment:
+ * This class works out how good a frame is: how bright and noisy the sky is, how many stars show, how sharp
+ * they are and how much of the sky is clouded over.
+ */
+
+/**
+ * Class Header Comment:
+ * FrameAnalyzer works on a grey 32-bit float copy of the frame, scaled to 0-1 (colour frames are converted to
+ * grey; raw Bayer frames are used as they are, which is close enough for counting stars):
+ * <ol>
+ *   <li>Background: the frame is shrunk to one pixel per MESH x MESH cell, median filtered and stretched back,
+ *       which follows the light dome and vignetting but not the stars. The background level is its mean.</li>
+ *   <li>Noise: the standard deviation of the frame minus that background, with everything above 3 sigma left
+ *       out and worked out again, CLIP_PASSES times, so the stars don't count.</li>
+ *   <li>Stars: pixels more than -Ddarksky.analysis.sigma (default 5) noise above the background, grouped by
+ *       connectedComponentsWithStats. Groups of a single pixel (hot pixels), large ones (the moon, lights) and
+ *       long thin ones (trails) are not stars.</li>
+ *   <li>FWHM: from the second moments of up to MAX_MEASURED stars, spread evenly over the list, leaving out
+ *       saturated ones, assuming a round Gaussian profile.</li>
+ *   <li>Cloud cover: stars per grid cell, compared with the clear sky by the SkyReference.</li>
+ * </ol>
+ * All the working images are kept between frames, so once the first frame has set them up an analysis only
+ * allocates a few small headers. An analyzer is not thread safe: each worker has its own, and they share one
+ * SkyReference. Call close() to free the native memory.
+ */
+public final class FrameAnalyzer implements AutoCloseable {
+
+    private static final int MESH = 32;  // Pixels per background cell
+    private static final int CLIP_PASSES = 3;
+    private static final double CLIP_SIGMA = 3;
+    private static final int MIN_AREA = 2;  // Pixels
+    private static final int MAX_AREA = 400;
+    private static final int MAX_ELONGATION = 3;  // Longest side / shortest side of a star's box
+    private static final int MAX_MEASURED = 300;
+    private static final int PAD = 2;  // Pixels around a star's box, for the wings of its profile
+    private static final float SATURATED = 0.95f;
+    private static final double FWHM_PER_SIGMA = 2 * Math.sqrt(2 * Math.log(2));
+    private static final int STAT_COLUMNS = 5;  // Left, top, width, height, area
+
+    private final SkyReference sky;
+    private final double sigma = Double.parseDouble(System.getProperty("darksky.analysis.sigma", "5"));
+
+    // Working images, reused for every frame
+    private final Mat gray = new Mat();
+    private final Mat image = new Mat();
+    private final Mat meshImage = new Mat();
+    private final Mat smoothMesh = new Mat();
+    private final Mat backgroundMap = new Mat();
+    private final Mat residual = new Mat();
+    private final Mat floatMask = new Mat();
+    private final Mat mask = new Mat();
+    private final Mat labels = new Mat();
+    private final Mat stats = new Mat();
+    private final Mat centroids = new Mat();
+    private final MatOfDouble mean = new MatOfDouble();
+    private final MatOfDouble stdDev = new MatOfDouble();
+    private int[] statValues = new int[256 * STAT_COLUMNS];
+    private float[] patch = new float[256];
+    private final int[] cellCounts;
+
+    /**
+     * @param sky The clear-sky reference for the cloud cover, shared with the other analyzers of the station.
+     */
+    public FrameAnalyzer(SkyReference sky) {
+        this.sky = sky;
+        this.cellCounts = new int[sky.getGrid() * sky.getGrid()];
+    }
+
+    /**
+     * Analyses one frame. The frame is not changed.
+     *
+     * @param frame 8 or 16 bit, grey, raw Bayer or BGR.
+     * @param time  When it was saved.
+     * @param file  Its file name, kept in the result.
+     */
+    public FrameQuality analyze(Mat frame, long time, String file) {
+        long start = System.nanoTime();
+        Mat source = frame;
+        if (frame.channels() > 1) {
+            Imgproc.cvtColor(frame, gray, Imgproc.COLOR_BGR2GRAY);
+            source = gray;
+        }
+        double range = frame.depth() == CvType.CV_16U ? 65535.0 : 255.0;
+        source.convertTo(image, CvType.CV_32F, 1 / range);
+        int rows = image.rows();
+        int cols = image.cols();
+
+        // Background map, and the frame with it taken away
+        Imgproc.resize(image, meshImage, new Size(Math.max(1, cols / MESH), Math.max(1, rows / MESH)), 0, 0, Imgproc.INTER_AREA);
+        Imgproc.medianBlur(meshImage, smoothMesh, 3);
+        Imgproc.resize(smoothMesh, backgroundMap, image.size(), 0, 0, Imgproc.INTER_LINEAR);
+        Core.subtract(image, backgroundMap, residual);
+        float background = (float) Core.mean(smoothMesh).val[0];
+
+        // Noise, clipping the stars out
+        Core.meanStdDev(residual, mean, stdDev);
+        double offset = mean.toArray()[0];
+        double noise = stdDev.toArray()[0];
+        for (int pass = 0; pass < CLIP_PASSES && noise > 0; pass++) {
+            Imgproc.threshold(residual, floatMask, offset + CLIP_SIGMA * noise, 1, Imgproc.THRESH_BINARY_INV);
+            floatMask.convertTo(mask, CvType.CV_8U);
+            Core.meanStdDev(residual, mean, stdDev, mask);
+            offset = mean.toArray()[0];
+            noise = stdDev.toArray()[0];
+        }
+
+        // Stars
+        Imgproc.threshold(residual, floatMask, offset + sigma * noise, 255, Imgproc.THRESH_BINARY);
+        floatMask.convertTo(mask, CvType.CV_8U);
+        int labelCount = Imgproc.connectedComponentsWithStats(mask, labels, stats, centroids);
+        if (statValues.length < labelCount * STAT_COLUMNS) {
+            statValues = new int[labelCount * STAT_COLUMNS * 2];
+        }
+        stats.get(0, 0, statValues);
+
+        int grid = sky.getGrid();
+        Arrays.fill(cellCounts, 0);
+        int stars = 0;
+        int measured = 0;
+        double fwhmSum = 0;
+        int step = Math.max(1, (labelCount - 1) / MAX_MEASURED);  // Measure an even sample when there are many
+        for (int label = 1; label < labelCount; label++) {  // Label 0 is the background
+            int at = label * STAT_COLUMNS;
+            int left = statValues[at + Imgproc.CC_STAT_LEFT];
+            int top = statValues[at + Imgproc.CC_STAT_TOP];
+            int width = statValues[at + Imgproc.CC_STAT_WIDTH];
+            int height = statValues[at + Imgproc.CC_STAT_HEIGHT];
+            int area = statValues[at + Imgproc.CC_STAT_AREA];
+            if (area < MIN_AREA || area > MAX_AREA || width > MAX_ELONGATION * height || height > MAX_ELONGATION * width) {
+                continue;
+            }
+            stars++;
+            int centreX = left + width / 2;
+            int centreY = top + height / 2;
+            cellCounts[(centreY * grid / rows) * grid + centreX * grid / cols]++;
+            if (label % step == 0 && measured < MAX_MEASURED) {
+                double fwhm = measureFwhm(left, top, width, height, rows, cols, background);
+                if (!Double.isNaN(fwhm)) {
+                    fwhmSum += fwhm;
+                    measured++;
+                }
+            }
+        }
+
+        float cloudCover = sky.cloudCover(cellCounts);
+        int micros = (int) ((System.nanoTime() - start) / 1000);
+        return new FrameQuality(time, file, background, (float) noise, stars,
+                measured == 0 ? Float.NaN : (float) (fwhmSum / measured), cloudCover, micros);
+    }
+
+    /**
+     * Works out one star's FWHM from the second moments of the background-free pixels in its box.
+     *
+     * @return The FWHM in pixels, or NaN if the star is saturated or has no signal.
+     */
+    private double measureFwhm(int left, int top, int width, int height, int rows, int cols, float background) {
+        int x0 = Math.max(0, left - PAD);
+        int y0 = Math.max(0, top - PAD);
+        int x1 = Math.min(cols, left + width + PAD);
+        int y1 = Math.min(rows, top + height + PAD);
+        int w = x1 - x0;
+        int h = y1 - y0;
+        if (patch.length < w * h) {
+            patch = new float[w * h * 2];
+        }
+        Mat window = residual.submat(y0, y1, x0, x1);
+        window.get(0, 0, patch);
+        window.release();
+
+        double sum = 0, sumX = 0, sumY = 0, sumXX = 0, sumYY = 0;
+        float peak = 0;
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                float value = patch[y * w + x];
+                if (value <= 0) {
+                    continue;
+                }
+                peak = Math.max(peak, value);
+                sum += value;
+                sumX += value * x;
+                sumY += value * y;
+                sumXX += value * x * x;
+                sumYY += value * y * y;
+            }
+        }
+        if (sum <= 0 || peak + background >= SATURATED) {
+            return Double.NaN;  // A flat-topped profile would read too wide
+        }
+        double meanX = sumX / sum;
+        double meanY = sumY / sum;
+        double variance = (sumXX / sum - meanX * meanX + sumYY / sum - meanY * meanY) / 2;
+        return variance > 0 ? FWHM_PER_SIGMA * Math.sqrt(variance) : Double.NaN;
+    }
+
+    @Override
+    public void close() {
+        for (Mat mat : new Mat[]{gray, image, meshImage, smoothMesh, backgroundMap, residual, floatMask, mask, labels, stats, centroids, mean, stdDev}) {
+            mat.release();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.darksky.analysis;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.Locale;
+
+/**
+ * File Header Comment:
+ * This class holds the quality figures of one saved frame, as worked out by FrameAnalyzer.
+ */
+
+/**
+ * Class Header Comment:
+ * FrameQuality is one entry in the quality index. Levels are fractions of the camera's full range (0-1), so
+ * 8-bit and 16-bit frames can be compared:
+ * <pre>
+ *   background    Sky level with the stars taken out
+ *   noise         Standard deviation of the sky around that level
+ *   stars         Point sources found at FrameAnalyzer's threshold
+ *   fwhm          Mean full width at half maximum of the measured stars, in pixels (NaN with no stars)
+ *   cloudCover    Share of the sky showing far fewer stars than on the clearest frame seen (NaN until known)
+ *   micros        How long the analysis took
+ * </pre>
+ * On disk every entry is SIZE bytes, with the file name padded to NAME_BYTES, so a day's index can be binary
+ * searched by time (see QualityFile).
+ */
+public final class FrameQuality {
+
+    static final int SIZE = 64;  // Bytes per entry on disk
+    static final int NAME_BYTES = 32;
+
+    /**
+     * Best frames first: clear before cloudy, then more stars, then sharper stars.
+     */
+    public static final Comparator<FrameQuality> BEST_FIRST = Comparator
+            .comparingDouble((FrameQuality quality) -> Float.isNaN(quality.cloudCover) ? 1 : quality.cloudCover)
+            .thenComparing(Comparator.comparingInt(FrameQuality::getStars).reversed())
+            .thenComparingDouble(quality -> Float.isNaN(quality.fwhm) ? Float.MAX_VALUE : quality.fwhm);
+
+    private final long time;
+    private final String file;
+    private final float background;
+    private final float noise;
+    private final int stars;
+    private final float fwhm;
+    private final float cloudCover;
+    private final int micros;
+
+    public FrameQuality(long time, String file, float background, float noise, int stars, float fwhm, float cloudCover, int micros) {
+        this.time = time;
+        this.file = file;
+        this.background = background;
+        this.noise = noise;
+        this.stars = stars;
+        this.fwhm = fwhm;
+        this.cloudCover = cloudCover;
+        this.micros = micros;
+    }
+
+    void writeTo(ByteBuffer out) {
+        byte[] name = file.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(name.length, NAME_BYTES);
+        out.putLong(time).put(name, 0, length);
+        for (int i = length; i < NAME_BYTES; i++) {
+            out.put((byte) 0);
+        }
+        out.putFloat(background).putFloat(noise).putInt(stars).putFloat(fwhm).putFloat(cloudCover).putInt(micros);
+    }
+
+    static FrameQuality readFrom(ByteBuffer in) {
+        long time = in.getLong();
+        byte[] name = new byte[NAME_BYTES];
+        in.get(name);
+        int length = 0;
+        while (length < NAME_BYTES && name[length] != 0) {
+            length++;
+        }
+        return new FrameQuality(time, new String(name, 0, length, StandardCharsets.UTF_8),
+                in.getFloat(), in.getFloat(), in.getInt(), in.getFloat(), in.getFloat(), in.getInt());
+    }
+
+    /**
+     * @return When the frame was saved, in milliseconds since the epoch.
+     */
+    public long getTime() {
+        return time;
+    }
+
+    public Instant getInstant() {
+        return Instant.ofEpochMilli(time);
+    }
+
+    /**
+     * @return The image file's name in its day folder, e.g. 2024-05-01_23-10-00.png.
+     */
+    public String getFile() {
+        return file;
+    }
+
+    public float getBackground() {
+        return background;
+    }
+
+    public float getNoise() {
+        return noise;
+    }
+
+    public int getStars() {
+        return stars;
+    }
+
+    public float getFwhm() {
+        return fwhm;
+    }
+
+    public float getCloudCover() {
+        return cloudCover;
+    }
+
+    public int getMicros() {
+        return micros;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "%s %s background %.4f noise %.4f, %d stars, FWHM %.2f px, cloud %s (%.1f ms)",
+                getInstant(), file, background, noise, stars, fwhm,
+                Float.isNaN(cloudCover) ? "?" : Math.round(cloudCover * 100) + "%", micros / 1000.0);
+    }
+}
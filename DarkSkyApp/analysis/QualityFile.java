@@ -0,0 +1,78 @@
+package com.darksky.analysis;
+
+import com.darksky.utils.SortedRecordFile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * File Header Comment:
+ * This class reads and writes one day of the frame quality index (quality.idx in the day's report folder).
+ */
+
+/**
+ * Class Header Comment:
+ * QualityFile is a SortedRecordFile with the "DSFQ" header and FrameQuality entries. The workers finish frames a
+ * little out of order, so entries are inserted in their place by time rather than appended; the index stays
+ * sorted without ever rewriting more than the tail.
+ */
+final class QualityFile implements AutoCloseable {
+
+    private static final int MAGIC = 0x44534651;  // "DSFQ"
+    private static final int VERSION = 1;
+    static final String FILE_NAME = "quality.idx";
+
+    private final SortedRecordFile file;
+
+    private QualityFile(SortedRecordFile file) {
+        this.file = file;
+    }
+
+    /**
+     * Opens a day's index for writing, creating it if needed.
+     */
+    static QualityFile openForWrite(Path path) throws IOException {
+        return new QualityFile(SortedRecordFile.openForWrite(path, MAGIC, VERSION, FrameQuality.SIZE, "frame quality index"));
+    }
+
+    /**
+     * Opens a day's index for reading only.
+     *
+     * @return The file, or null if no frame of that day was analysed.
+     */
+    static QualityFile openForRead(Path path) throws IOException {
+        SortedRecordFile file = SortedRecordFile.openForRead(path, MAGIC, VERSION, FrameQuality.SIZE, "frame quality index");
+        return file != null ? new QualityFile(file) : null;
+    }
+
+    /**
+     * Adds an entry in its place by time.
+     *
+     * @param entry The entry, FrameQuality.SIZE bytes.
+     */
+    void insert(ByteBuffer entry, long time) throws IOException {
+        file.insert(entry, time);
+    }
+
+    long getCount() {
+        return file.getCount();
+    }
+
+    Path getPath() {
+        return file.getPath();
+    }
+
+    /**
+     * Reads the entries with from &lt;= time &lt; to.
+     */
+    List<FrameQuality> read(long from, long to) throws IOException {
+        return file.read(from, to, FrameQuality::readFrom);
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
@@ -0,0 +1,230 @@
+package com.darksky.analysis;
+
+import com.darksky.logging.EventLog;
+import com.darksky.metrics.Counter;
+import com.darksky.metrics.LatencyHistogram;
+import com.darksky.metrics.Metrics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * File Header Comment:
+ * This class keeps the quality figures of every analysed frame, so the good frames of a night can be found
+ * without opening thousands of images one by one.
+ */
+
+/**
+ * Class Header Comment:
+ * QualityIndex writes one FrameQuality per frame to quality.idx in the frame's day folder (64 bytes each, in
+ * time order, see QualityFile) and answers:
+ * <pre>
+ *   read(from, to)          Every analysed frame in the range, in time order
+ *   best(from, to, limit)   The best frames of the range (FrameQuality.BEST_FIRST)
+ *   summary(from, to)       Counts and averages over the range, with the analysis cost
+ * </pre>
+ * The entry keeps the image's file name; once ArchiveCompactor has packed an old day the same frame is found
+ * in its frames.pack by time.
+ */
+public class QualityIndex {
+
+    private static final QualityIndex INSTANCE = new QualityIndex(Paths.get(System.getProperty("user.home"), "Documents", "DarkSky Reports"));
+
+    private static final LatencyHistogram WRITE_TIME = Metrics.histogram("analysis.index.write", "Adding one frame to the quality index");
+    private static final LatencyHistogram QUERY_TIME = Metrics.histogram("analysis.index.query", "Reading a time range from the quality index");
+    private static final Counter WRITE_ERRORS = Metrics.counter("analysis.index.errors", "Frame qualities that could not be written");
+
+    private final Path reportsDir;
+    private final ByteBuffer entryBuffer = ByteBuffer.allocate(FrameQuality.SIZE);  // Guarded by this
+    private QualityFile today;  // Guarded by this
+    private LocalDate todayDate;
+    private boolean writeFailed;  // Log the first failure only, until a write works again
+
+    /**
+     * Makes an index kept under another reports folder. The station itself uses {@link #get()}.
+     *
+     * @param reportsDir The folder holding the yyyy-MM-dd day folders.
+     */
+    public QualityIndex(Path reportsDir) {
+        this.reportsDir = reportsDir;
+    }
+
+    public static QualityIndex get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Adds a frame's quality to the index of its day. Called by the analysis workers.
+     */
+    public synchronized void add(FrameQuality quality) {
+        long start = System.nanoTime();
+        try {
+            QualityFile file = fileFor(quality.getTime());
+            entryBuffer.clear();
+            quality.writeTo(entryBuffer);
+            file.insert(entryBuffer.flip(), quality.getTime());
+            WRITE_TIME.recordSince(start);
+            writeFailed = false;
+        } catch (IOException e) {
+            WRITE_ERRORS.increment();
+            if (!writeFailed) {
+                EventLog.error("QualityIndex", "analysis.index.write.failed", "file", quality.getFile(), e);
+                writeFailed = true;
+            }
+        }
+    }
+
+    /**
+     * Replaces a whole day's index, for reprocessing an old day. The new index is written under a temporary
+     * name and moved into place, so a reader sees either the old index or the new one. Not meant for the day
+     * AutoCapture is still adding to.
+     *
+     * @param frames The day's frames, in any order.
+     */
+    public synchronized void replaceDay(LocalDate date, List<FrameQuality> frames) throws IOException {
+        if (date.equals(todayDate)) {
+            closeToday();
+        }
+        List<FrameQuality> sorted = new ArrayList<>(frames);
+        sorted.sort(Comparator.comparingLong(FrameQuality::getTime));
+        Path target = pathFor(date);
+        Path temporary = target.resolveSibling(QualityFile.FILE_NAME + ".tmp");
+        Files.deleteIfExists(temporary);
+        try (QualityFile file = QualityFile.openForWrite(temporary)) {
+            for (FrameQuality quality : sorted) {
+                entryBuffer.clear();
+                quality.writeTo(entryBuffer);
+                file.insert(entryBuffer.flip(), quality.getTime());  // In time order, so always at the end
+            }
+        }
+        Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Returns the file for the day of the given time, keeping the current day's file open.
+     */
+    private QualityFile fileFor(long time) throws IOException {
+        LocalDate date = dateOf(time);
+        if (date.equals(todayDate)) {
+            return today;
+        }
+        closeToday();
+        today = QualityFile.openForWrite(pathFor(date));
+        todayDate = date;
+        EventLog.info("QualityIndex", "analysis.index.opened", "path", today.getPath(), "frames", today.getCount());
+        return today;
+    }
+
+    /**
+     * Closes the open day's file. The next frame opens it again.
+     */
+    public synchronized void close() {
+        closeToday();
+    }
+
+    private void closeToday() {
+        if (today != null) {
+            try {
+                today.close();
+            } catch (IOException e) {
+                EventLog.warn("QualityIndex", "analysis.index.close.failed", e);
+            }
+            today = null;
+            todayDate = null;
+        }
+    }
+
+    // ---- Queries ----
+
+    /**
+     * Reads the frames with from &lt;= time &lt; to.
+     *
+     * @return The frames in time order.
+     */
+    public List<FrameQuality> read(Instant from, Instant to) throws IOException {
+        long start = System.nanoTime();
+        List<FrameQuality> frames = new ArrayList<>();
+        long fromMillis = from.toEpochMilli();
+        long toMillis = to.toEpochMilli();
+        for (LocalDate date = dateOf(fromMillis); !date.isAfter(dateOf(toMillis - 1)); date = date.plusDays(1)) {
+            synchronized (this) {
+                if (date.equals(todayDate)) {
+                    frames.addAll(today.read(fromMillis, toMillis));  // The open file, under the write lock
+                    continue;
+                }
+            }
+            try (QualityFile file = QualityFile.openForRead(pathFor(date))) {
+                if (file != null) {
+                    frames.addAll(file.read(fromMillis, toMillis));
+                }
+            }
+        }
+        QUERY_TIME.recordSince(start);
+        return frames;
+    }
+
+    /**
+     * @param limit The most frames to return.
+     * @return The best frames in the range that show any stars, best first.
+     */
+    public List<FrameQuality> best(Instant from, Instant to, int limit) throws IOException {
+        List<FrameQuality> frames = new ArrayList<>();
+        for (FrameQuality frame : read(from, to)) {
+            if (frame.getStars() > 0) {
+                frames.add(frame);
+            }
+        }
+        frames.sort(FrameQuality.BEST_FIRST);
+        return frames.size() > limit ? new ArrayList<>(frames.subList(0, limit)) : frames;
+    }
+
+    /**
+     * @return One line: frames analysed, how many were clear, mean stars and FWHM, and the analysis cost.
+     */
+    public String summary(Instant from, Instant to) throws IOException {
+        List<FrameQuality> frames = read(from, to);
+        if (frames.isEmpty()) {
+            return "no frames analysed";
+        }
+        int clear = 0;
+        long stars = 0;
+        double fwhm = 0;
+        int measured = 0;
+        long micros = 0;
+        int slowest = 0;
+        for (FrameQuality frame : frames) {
+            if (frame.getCloudCover() < 0.25f) {
+                clear++;
+            }
+            stars += frame.getStars();
+            if (!Float.isNaN(frame.getFwhm())) {
+                fwhm += frame.getFwhm();
+                measured++;
+            }
+            micros += frame.getMicros();
+            slowest = Math.max(slowest, frame.getMicros());
+        }
+        return String.format(Locale.ROOT, "%d frames, %d clear (cloud < 25%%), %.0f stars and FWHM %.2f px on average; analysis %.1f ms per frame, slowest %.1f ms",
+                frames.size(), clear, (double) stars / frames.size(), measured == 0 ? Double.NaN : fwhm / measured,
+                micros / 1000.0 / frames.size(), slowest / 1000.0);
+    }
+
+    private Path pathFor(LocalDate date) {
+        return reportsDir.resolve(date.toString()).resolve(QualityFile.FILE_NAME);
+    }
+
+    private static LocalDate dateOf(long time) {
+        return Instant.ofEpochMilli(time).atZone(ZoneId.systemDefault()).toLocalDate();
+    }
+}
@@ -0,0 +1,69 @@
+package com.darksky.analysis;
+
+/**
+ * File Header Comment:
+ * This class remembers how many stars each part of the sky shows when it is clear, so a frame's star counts
+ * can be turned into a cloud-cover estimate.
+ */
+
+/**
+ * Class Header Comment:
+ * SkyReference splits the frame into a grid of cells and keeps, per cell, the most stars seen in it on any
+ * frame so far. A cell is sky once it has shown at least MIN_STARS; cells that never do (the corners outside
+ * an all-sky lens, a roof, trees) are left out. A frame's cloud cover is then the share of sky cells showing
+ * less than a quarter of their clear-sky count. The reference starts empty and grows towards the clearest
+ * night since the station started, so the first frames of a cloudy start read too clear; with no stars at
+ * all (daylight, a covered camera) the whole sky reads as cloud, so look at the background level too.
+ * It is shared by all the analysis workers.
+ */
+public final class SkyReference {
+
+    static final int MIN_STARS = 3;
+    private static final float CLEAR_SHARE = 0.25f;
+
+    private final int grid;
+    private final int[] clearCounts;  // Guarded by this
+
+    /**
+     * @param grid Cells across and down, e.g. 8 for 64 cells.
+     */
+    public SkyReference(int grid) {
+        if (grid < 1) {
+            throw new IllegalArgumentException("grid must be at least 1");
+        }
+        this.grid = grid;
+        this.clearCounts = new int[grid * grid];
+    }
+
+    /**
+     * Makes a reference with -Ddarksky.analysis.grid cells across (default 8).
+     */
+    public static SkyReference fromProperties() {
+        return new SkyReference(Integer.getInteger("darksky.analysis.grid", 8));
+    }
+
+    int getGrid() {
+        return grid;
+    }
+
+    /**
+     * Learns from a frame's star counts and returns its cloud cover.
+     *
+     * @param counts Stars per cell, row by row, grid * grid long.
+     * @return 0 (clear) to 1 (overcast), or NaN if no cell has shown enough stars yet.
+     */
+    synchronized float cloudCover(int[] counts) {
+        int sky = 0;
+        int cloudy = 0;
+        for (int cell = 0; cell < clearCounts.length; cell++) {
+            clearCounts[cell] = Math.max(clearCounts[cell], counts[cell]);
+            if (clearCounts[cell] >= MIN_STARS) {
+                sky++;
+                if (counts[cell] < clearCounts[cell] * CLEAR_SHARE) {
+                    cloudy++;
+                }
+            }
+        }
+        return sky == 0 ? Float.NaN : (float) cloudy / sky;
+    }
+}
@@ -0,0 +1,344 @@
+package com.darksky.archive;
+
+import com.darksky.controllers.SQMExcelLogger;
+import com.darksky.logging.EventLog;
+import com.darksky.metrics.Counter;
+import com.darksky.metrics.LatencyHistogram;
+import com.darksky.metrics.Metrics;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * File Header Comment:
+ * This class shrinks old day folders under DarkSky Reports, which otherwise grow forever: one image file per
+ * frame plus an Excel workbook that is rewritten on every reading.
+ */
+
+/**
+ * Class Header Comment:
+ * ArchiveCompactor looks at the day folders older than -Ddarksky.archive.ageDays (default 7, 0 turns it off)
+ * every few hours, oldest first, and for each:
+ * <ul>
+ *   <li>packs the frames into one frames.pack (see FramePack), which keeps random access by time;</li>
+ *   <li>converts SQM-Measurements-With-Graph.xlsx into the sqm.cols column file (see SqmColumns).</li>
+ * </ul>
+ * New files are written next to the originals under a .tmp name, read back and checked, then renamed into
+ * place; only then are the originals deleted. A folder interrupted half way is simply done again: frames
+ * already in the pack are merged with the ones still loose. -Ddarksky.archive.keepWorkbooks=true keeps the
+ * workbooks (for their chart) after conversion.
+ * <p>
+ * It runs on its own low-priority thread rather than the shared scheduler, because one night can take a
+ * while at the speed it is allowed: -Ddarksky.archive.bytesPerSecond (default 4 MB/s of reads plus writes)
+ * and -Ddarksky.archive.cpuShare (default 0.25 of a core), and it waits while AutoCapture or the SQM logger
+ * is writing (see IoThrottle).
+ */
+public class ArchiveCompactor {
+
+    private static final int CHUNK = 256 * 1024;  // Bytes per throttled read or write
+
+    private static final LatencyHistogram DAY_TIME = Metrics.histogram("archive.day", "Compacting one day folder, throttle waits included");
+    private static final Counter FRAMES_PACKED = Metrics.counter("archive.frames.packed", "Frames moved into a frame pack");
+    private static final Counter BYTES_BEFORE = Metrics.counter("archive.bytes.before", "Size of the files compaction replaced");
+    private static final Counter BYTES_AFTER = Metrics.counter("archive.bytes.after", "Size of the files compaction wrote");
+    private static final Counter FAILURES = Metrics.counter("archive.failures", "Day folders that could not be compacted");
+
+    private final Path reportsDir;
+    private final int ageDays;
+    private final long checkMillis;
+    private final boolean keepWorkbooks;
+    private final IoThrottle throttle;
+    private Thread thread;
+
+    /**
+     * @param reportsDir    The DarkSky Reports folder.
+     * @param ageDays       Days a folder must be old before it is compacted.
+     * @param checkMillis   Time between looks for folders to compact.
+     * @param keepWorkbooks Keep the Excel workbooks after converting them.
+     * @param throttle      The disk and CPU budget.
+     */
+    ArchiveCompactor(Path reportsDir, int ageDays, long checkMillis, boolean keepWorkbooks, IoThrottle throttle) {
+        this.reportsDir = reportsDir;
+        this.ageDays = ageDays;
+        this.checkMillis = checkMillis;
+        this.keepWorkbooks = keepWorkbooks;
+        this.throttle = throttle;
+    }
+
+    /**
+     * @param busy true while live capture or logging is writing; compaction waits for it.
+     * @return A compactor set up from the darksky.archive.* system properties, or null if it is turned off.
+     */
+    public static ArchiveCompactor fromProperties(BooleanSupplier busy) {
+        int ageDays = Integer.getInteger("darksky.archive.ageDays", 7);
+        if (ageDays <= 0) {
+            return null;
+        }
+        IoThrottle throttle = new IoThrottle(Long.getLong("darksky.archive.bytesPerSecond", 4L * 1024 * 1024),
+                Double.parseDouble(System.getProperty("darksky.archive.cpuShare", "0.25")), busy);
+        return new ArchiveCompactor(SQMExcelLogger.reportsDir(), ageDays,
+                Long.getLong("darksky.archive.checkHours", 6) * 3_600_000L, Boolean.getBoolean("darksky.archive.keepWorkbooks"), throttle);
+    }
+
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        thread = new Thread(this::runLoop, "darksky-archive");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    public synchronized void stop() {
+        if (thread != null) {
+            thread.interrupt();  // Stops between chunks; the .tmp files of the folder in progress are redone next time
+            thread = null;
+        }
+    }
+
+    private void runLoop() {
+        try {
+            Thread.sleep(60_000);  // Let the station finish starting first
+            while (!Thread.currentThread().isInterrupted()) {
+                compactAll();
+                Thread.sleep(checkMillis);
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        }
+    }
+
+    /**
+     * Compacts every day folder that is old enough, oldest first.
+     */
+    void compactAll() throws InterruptedException {
+        LocalDate cutoff = LocalDate.now().minusDays(ageDays);
+        for (Path day : dayFolders()) {
+            if (!LocalDate.parse(day.getFileName().toString()).isBefore(cutoff)) {
+                break;
+            }
+            long start = System.nanoTime();
+            try {
+                long before = packFrames(day) + convertWorkbook(day);
+                if (before > 0) {
+                    DAY_TIME.recordSince(start);
+                }
+            } catch (IOException | RuntimeException e) {
+                FAILURES.increment();
+                EventLog.error("ArchiveCompactor", "archive.day.failed", "day", day.getFileName(), e);
+            }
+        }
+    }
+
+    private List<Path> dayFolders() {
+        List<Path> days = new ArrayList<>();
+        if (!Files.isDirectory(reportsDir)) {
+            return days;
+        }
+        try (DirectoryStream<Path> folders = Files.newDirectoryStream(reportsDir, Files::isDirectory)) {
+            for (Path folder : folders) {
+                try {
+                    LocalDate.parse(folder.getFileName().toString());
+                    days.add(folder);
+                } catch (DateTimeParseException e) {
+                    // Not a day folder
+                }
+            }
+        } catch (IOException e) {
+            EventLog.warn("ArchiveCompactor", "archive.list.failed", "dir", reportsDir, e);
+        }
+        days.sort(Comparator.comparing(Path::getFileName));
+        return days;
+    }
+
+    // ---- Frames ----
+
+    /**
+     * Packs the day's loose frames, together with any pack already there.
+     *
+     * @return Bytes of loose frames replaced, 0 if there were none.
+     */
+    long packFrames(Path day) throws IOException, InterruptedException {
+        List<ArchivedFrame> loose = ArchivedFrame.listLoose(day);
+        if (loose.isEmpty()) {
+            return 0;
+        }
+
+        Path packPath = day.resolve(FramePack.FILE_NAME);
+        Path tmpPath = day.resolve(FramePack.FILE_NAME + ".tmp");
+        long looseBytes = 0;
+        try (FramePack existing = FramePack.open(day)) {
+            for (ArchivedFrame frame : loose) {
+                looseBytes += Files.size(frame.file);
+            }
+            List<ArchivedFrame> sources = ArchivedFrame.merge(existing, loose);  // A loose copy of a packed frame is left out
+            writePack(tmpPath, sources, existing);
+        }
+        verifyPack(tmpPath);
+        Files.move(tmpPath, packPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        for (ArchivedFrame frame : loose) {
+            Files.delete(frame.file);
+        }
+        long packBytes = Files.size(packPath);
+        FRAMES_PACKED.add(loose.size());
+        BYTES_BEFORE.add(looseBytes);
+        BYTES_AFTER.add(packBytes);
+        EventLog.info("ArchiveCompactor", "archive.frames.packed", "day", day.getFileName(), "frames", loose.size());
+        return looseBytes;
+    }
+
+    private void writePack(Path tmpPath, List<ArchivedFrame> sources, FramePack existing) throws IOException, InterruptedException {
+        try (FileChannel out = FileChannel.open(tmpPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            write(out, ByteBuffer.allocate(FramePack.HEADER_SIZE).putInt(FramePack.MAGIC).putInt(FramePack.VERSION).flip());
+            ByteBuffer index = ByteBuffer.allocate(sources.size() * FramePack.ENTRY_SIZE);
+            for (ArchivedFrame source : sources) {
+                byte[] bytes = source.entry != null ? readThrottled(existing, source.entry) : readThrottled(source.file);
+                CRC32 crc = new CRC32();
+                crc.update(bytes);
+                byte[] stored = bytes;
+                int method = FramePack.STORED;
+                if (FramePack.FORMATS[source.format].equals("tiff")) {
+                    byte[] deflated = deflate(bytes);
+                    if (deflated.length < bytes.length * 9L / 10) {  // Only worth it if it saves a tenth
+                        stored = deflated;
+                        method = FramePack.DEFLATED;
+                    }
+                }
+                long offset = out.position();
+                write(out, ByteBuffer.wrap(stored));
+                new FramePack.Entry(source.time, offset, stored.length, bytes.length, (int) crc.getValue(), method, source.format).writeTo(index);
+            }
+            long indexOffset = out.position();
+            write(out, index.flip());
+            write(out, ByteBuffer.allocate(FramePack.FOOTER_SIZE).putLong(indexOffset).putInt(sources.size()).putInt(FramePack.MAGIC).flip());
+            out.force(true);  // On disk before the originals go
+        }
+    }
+
+    /**
+     * Reads the new pack back and checks every frame against its CRC.
+     */
+    private void verifyPack(Path tmpPath) throws IOException, InterruptedException {
+        try (FramePack pack = FramePack.openFile(tmpPath)) {
+            for (FramePack.Entry entry : pack.getEntries()) {
+                readThrottled(pack, entry);
+            }
+        }
+    }
+
+    private byte[] readThrottled(Path file) throws IOException, InterruptedException {
+        long size = Files.size(file);
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] bytes = new byte[(int) size];
+            int n = 0;
+            while (n < bytes.length) {
+                int wanted = Math.min(CHUNK, bytes.length - n);
+                throttle.acquire(wanted);
+                int read = in.read(bytes, n, wanted);
+                if (read < 0) {
+                    throw new IOException("file shrank while packing: " + file);
+                }
+                n += read;
+            }
+            return bytes;
+        }
+    }
+
+    private byte[] readThrottled(FramePack pack, FramePack.Entry entry) throws IOException, InterruptedException {
+        throttle.acquire(entry.storedLength);
+        return pack.read(entry);
+    }
+
+    private void write(FileChannel out, ByteBuffer buffer) throws IOException, InterruptedException {
+        while (buffer.hasRemaining()) {
+            ByteBuffer chunk = buffer.slice();
+            chunk.limit(Math.min(CHUNK, chunk.remaining()));
+            throttle.acquire(chunk.remaining());
+            int written = out.write(chunk);
+            buffer.position(buffer.position() + written);
+        }
+    }
+
+    private byte[] deflate(byte[] bytes) throws InterruptedException {
+        long start = System.nanoTime();
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            byte[] out = new byte[bytes.length + 64];
+            int n = 0;
+            while (!deflater.finished() && n < out.length) {
+                n += deflater.deflate(out, n, out.length - n);
+            }
+            throttle.pace(System.nanoTime() - start);
+            return deflater.finished() ? Arrays.copyOf(out, n) : bytes;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    // ---- Workbook ----
+
+    /**
+     * Converts the day's workbook into a column file.
+     *
+     * @return Size of the workbook converted, 0 if there was none.
+     */
+    long convertWorkbook(Path day) throws IOException, InterruptedException {
+        Path workbookPath = day.resolve(SQMExcelLogger.WORKBOOK_NAME);
+        Path columnsPath = day.resolve(SqmColumns.FILE_NAME);
+        if (!Files.exists(workbookPath) || (keepWorkbooks && Files.exists(columnsPath))) {
+            return 0;
+        }
+        long workbookBytes = Files.size(workbookPath);
+        throttle.acquire(workbookBytes);
+        long start = System.nanoTime();
+        SqmColumns columns;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(workbookPath)); Workbook workbook = new XSSFWorkbook(in)) {
+            columns = SqmColumns.fromSheet(workbook.getSheet(SQMExcelLogger.SHEET_NAME));
+        }
+        throttle.pace(System.nanoTime() - start);  // Opening a workbook is CPU heavy
+
+        Path tmpPath = day.resolve(SqmColumns.FILE_NAME + ".tmp");
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmpPath))) {
+            columns.write(out);
+        }
+        throttle.acquire(Files.size(tmpPath));
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(tmpPath))) {
+            SqmColumns check = SqmColumns.read(in);
+            if (check.getRowCount() != columns.getRowCount()) {
+                throw new IOException("column file check failed for " + day.getFileName());
+            }
+        }
+        Files.move(tmpPath, columnsPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (!keepWorkbooks) {
+            Files.delete(workbookPath);
+            BYTES_BEFORE.add(workbookBytes);
+        }
+        BYTES_AFTER.add(Files.size(columnsPath));
+        EventLog.info("ArchiveCompactor", "archive.workbook.converted", "day", day.getFileName(), "rows", columns.getRowCount());
+        return workbookBytes;
+    }
+}
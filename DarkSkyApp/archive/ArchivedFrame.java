@@ -0,0 +1,129 @@
+package com.darksky.archive;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * File Header Comment:
+ * This class is one saved frame of a day folder, wherever it is kept: as a loose image file or inside the
+ * day's frames.pack.
+ */
+
+/**
+ * Class Header Comment:
+ * ArchivedFrame knows how AutoCapture names its frames (yyyy-MM-dd_HH-mm-ss.png, .jpg or .tiff, in local time)
+ * and lists a day's frames, so ArchiveCompactor and the Reprocessor agree on what a day holds. A loose file that
+ * is also in the pack, left by an interrupted compaction, is the same frame and is listed once.
+ */
+public final class ArchivedFrame {
+
+    private static final Pattern FRAME_NAME = Pattern.compile("(\\d{4}-\\d{2}-\\d{2}_\\d{2}-\\d{2}-\\d{2})\\.(png|jpg|tiff)");
+    private static final DateTimeFormatter FRAME_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd_HH-mm-ss");
+
+    final long time;
+    final int format;
+    final Path file;
+    final FramePack.Entry entry;
+
+    private ArchivedFrame(long time, int format, Path file, FramePack.Entry entry) {
+        this.time = time;
+        this.format = format;
+        this.file = file;
+        this.entry = entry;
+    }
+
+    /**
+     * @return When the frame was taken, in milliseconds since the epoch.
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * @return The loose file, or null if the frame is in the pack.
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * @return The pack entry, or null if the frame is a loose file.
+     */
+    public FramePack.Entry getEntry() {
+        return entry;
+    }
+
+    /**
+     * @return The frame's file name as AutoCapture saved it.
+     */
+    public String getName() {
+        if (file != null) {
+            return file.getFileName().toString();
+        }
+        return FRAME_TIME.format(LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault())) + "." + FramePack.FORMATS[format];
+    }
+
+    /**
+     * @param day The day's report folder.
+     * @return The loose frame files in it, in no particular order.
+     */
+    public static List<ArchivedFrame> listLoose(Path day) throws IOException {
+        List<ArchivedFrame> loose = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(day)) {
+            for (Path file : files) {
+                Matcher name = FRAME_NAME.matcher(file.getFileName().toString());
+                if (name.matches()) {
+                    long time = LocalDateTime.parse(name.group(1), FRAME_TIME).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+                    loose.add(new ArchivedFrame(time, Arrays.asList(FramePack.FORMATS).indexOf(name.group(2)), file, null));
+                }
+            }
+        }
+        return loose;
+    }
+
+    /**
+     * @param day  The day's report folder.
+     * @param pack The day's pack, or null if it has none.
+     * @return Every frame of the day once, in time order.
+     */
+    public static List<ArchivedFrame> list(Path day, FramePack pack) throws IOException {
+        return merge(pack, listLoose(day));
+    }
+
+    /**
+     * @param pack  A day's pack, or null.
+     * @param loose The day's loose frames.
+     * @return The frames in the pack and the loose frames that are not, in time order.
+     */
+    static List<ArchivedFrame> merge(FramePack pack, List<ArchivedFrame> loose) {
+        List<ArchivedFrame> frames = new ArrayList<>();
+        Set<Long> packed = new HashSet<>();
+        if (pack != null) {
+            for (FramePack.Entry entry : pack.getEntries()) {
+                frames.add(new ArchivedFrame(entry.time, entry.format, null, entry));
+                packed.add(entry.time * FramePack.FORMATS.length + entry.format);
+            }
+        }
+        for (ArchivedFrame frame : loose) {
+            if (!packed.contains(frame.time * FramePack.FORMATS.length + frame.format)) {
+                frames.add(frame);  // Not packed yet (otherwise a copy left by an interrupted compaction)
+            }
+        }
+        frames.sort(Comparator.comparingLong((ArchivedFrame frame) -> frame.time).thenComparingInt(frame -> frame.format));
+        return frames;
+    }
+}
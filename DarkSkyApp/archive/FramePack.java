@@ -0,0 +1,245 @@
+package com.darksky.archive;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * File Header Comment:
+ * This class reads a night's frames after ArchiveCompactor has packed them into one frames.pack file.
+ */
+
+/**
+ * Class Header Comment:
+ * FramePack is a single file holding every frame of a day, in time order, with an index at the end:
+ * <pre>
+ *   "DSFP" version
+ *   frame data, one after the other
+ *   index: one 32 byte entry per frame (time, offset, stored length, length, CRC-32, method, format)
+ *   footer: index offset, frame count, "DSFP"
+ * </pre>
+ * PNG and JPG are already compressed and are stored as they are; TIFF is deflated when that saves space.
+ * Opening a pack reads only the footer and the index, so any frame can then be read with one positional
+ * read, found by time with a binary search. The bytes returned are the original image file, ready for
+ * Imgcodecs.imdecode or to be written back out.
+ */
+public final class FramePack implements AutoCloseable {
+
+    static final int MAGIC = 0x44534650;  // "DSFP"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 8;
+    static final int ENTRY_SIZE = 32;
+    static final int FOOTER_SIZE = 16;
+    static final String FILE_NAME = "frames.pack";
+
+    static final int STORED = 0;
+    static final int DEFLATED = 1;
+    static final String[] FORMATS = {"png", "jpg", "tiff"};
+
+    /**
+     * One frame in the pack.
+     */
+    public static final class Entry {
+        final long time;
+        final long offset;
+        final int storedLength;
+        final int length;
+        final int crc;
+        final int method;
+        final int format;
+
+        Entry(long time, long offset, int storedLength, int length, int crc, int method, int format) {
+            this.time = time;
+            this.offset = offset;
+            this.storedLength = storedLength;
+            this.length = length;
+            this.crc = crc;
+            this.method = method;
+            this.format = format;
+        }
+
+        void writeTo(ByteBuffer out) {
+            out.putLong(time).putLong(offset).putInt(storedLength).putInt(length).putInt(crc)
+                    .put((byte) method).put((byte) format).putShort((short) 0);
+        }
+
+        static Entry readFrom(ByteBuffer in) {
+            Entry entry = new Entry(in.getLong(), in.getLong(), in.getInt(), in.getInt(), in.getInt(), in.get(), in.get());
+            in.getShort();
+            return entry;
+        }
+
+        /**
+         * @return When the frame was taken, in milliseconds since the epoch (from its original file name).
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * @return "png", "jpg" or "tiff".
+         */
+        public String getFormat() {
+            return FORMATS[format];
+        }
+
+        /**
+         * @return Size of the original image file in bytes.
+         */
+        public int getLength() {
+            return length;
+        }
+    }
+
+    private final Path path;
+    private final FileChannel channel;
+    private final List<Entry> entries;
+
+    private FramePack(Path path, FileChannel channel, List<Entry> entries) {
+        this.path = path;
+        this.channel = channel;
+        this.entries = entries;
+    }
+
+    /**
+     * Opens a pack and reads its index.
+     *
+     * @param dayFolder The day's report folder.
+     * @return The pack, or null if the day has not been packed.
+     */
+    public static FramePack open(Path dayFolder) throws IOException {
+        Path path = dayFolder.resolve(FILE_NAME);
+        if (!path.toFile().exists()) {
+            return null;
+        }
+        return openFile(path);
+    }
+
+    static FramePack openFile(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (size < HEADER_SIZE + FOOTER_SIZE) {
+                throw new IOException("frame pack too short: " + path);
+            }
+            ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+            readFully(channel, footer, size - FOOTER_SIZE, path);
+            footer.flip();
+            long indexOffset = footer.getLong();
+            int count = footer.getInt();
+            if (footer.getInt() != MAGIC || count < 0 || indexOffset + (long) count * ENTRY_SIZE != size - FOOTER_SIZE) {
+                throw new IOException("frame pack is damaged or incomplete: " + path);
+            }
+            ByteBuffer index = ByteBuffer.allocate(count * ENTRY_SIZE);
+            readFully(channel, index, indexOffset, path);
+            index.flip();
+            List<Entry> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                entries.add(Entry.readFrom(index));
+            }
+            return new FramePack(path, channel, Collections.unmodifiableList(entries));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return Every frame, oldest first.
+     */
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Finds the frame taken closest to the given time.
+     *
+     * @return The entry, or null if the pack is empty.
+     */
+    public Entry nearest(long time) {
+        if (entries.isEmpty()) {
+            return null;
+        }
+        int low = 0;
+        int high = entries.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (entries.get(middle).time < time) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        if (low == entries.size()) {
+            return entries.get(low - 1);
+        }
+        if (low > 0 && time - entries.get(low - 1).time <= entries.get(low).time - time) {
+            return entries.get(low - 1);
+        }
+        return entries.get(low);
+    }
+
+    /**
+     * Reads one frame and checks it against its CRC.
+     *
+     * @return The original image file bytes.
+     */
+    public byte[] read(Entry entry) throws IOException {
+        ByteBuffer stored = ByteBuffer.allocate(entry.storedLength);
+        readFully(channel, stored, entry.offset, path);
+        byte[] bytes;
+        if (entry.method == DEFLATED) {
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(stored.array());
+                bytes = new byte[entry.length];
+                int n = 0;
+                while (n < bytes.length && !inflater.finished()) {
+                    int inflated = inflater.inflate(bytes, n, bytes.length - n);
+                    if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    n += inflated;
+                }
+                if (n != bytes.length) {
+                    throw new IOException("frame at " + entry.time + " is damaged in " + path);
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("frame at " + entry.time + " is damaged in " + path, e);
+            } finally {
+                inflater.end();
+            }
+        } else {
+            bytes = stored.array();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        if ((int) crc.getValue() != entry.crc) {
+            throw new IOException("frame at " + entry.time + " fails its CRC in " + path);
+        }
+        return bytes;
+    }
+
+    static void readFully(FileChannel channel, ByteBuffer buffer, long position, Path path) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("file ended early: " + path);
+            }
+            position += read;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,83 @@
+package com.darksky.archive;
+
+import com.darksky.metrics.Counter;
+import com.darksky.metrics.Metrics;
+
+import java.util.function.BooleanSupplier;
+
+/**
+ * File Header Comment:
+ * This class limits how much disk and CPU the archive compaction uses, so it can run during a night of
+ * capturing on the same disk without anyone noticing.
+ */
+
+/**
+ * Class Header Comment:
+ * IoThrottle combines three brakes, all applied on the compaction thread:
+ * <ul>
+ *   <li>a token bucket on bytes read plus written, refilled at bytesPerSecond with at most one second saved up;</li>
+ *   <li>a CPU duty cycle: after a piece of work that took t, it sleeps t * (1 - share) / share;</li>
+ *   <li>a busy check: while AutoCapture or the SQM logger is writing, it waits for them to finish.</li>
+ * </ul>
+ */
+final class IoThrottle {
+
+    private static final long BUSY_POLL_MS = 50;
+
+    private static final Counter WAIT_MILLIS = Metrics.counter("archive.throttle.wait.ms", "Time archive compaction spent held back by the throttle");
+
+    private final long bytesPerSecond;
+    private final double cpuShare;
+    private final BooleanSupplier busy;
+    private double tokens;  // Bytes that may be moved right now
+    private long lastRefill = System.nanoTime();
+
+    /**
+     * @param bytesPerSecond Disk budget, read and write together.
+     * @param cpuShare       Share of one core to use, more than 0 and up to 1.
+     * @param busy           true while live capture or logging is writing.
+     */
+    IoThrottle(long bytesPerSecond, double cpuShare, BooleanSupplier busy) {
+        this.bytesPerSecond = Math.max(1, bytesPerSecond);
+        this.cpuShare = Math.min(1, Math.max(0.01, cpuShare));
+        this.busy = busy;
+    }
+
+    /**
+     * Waits until the given number of bytes may be read or written.
+     */
+    void acquire(long bytes) throws InterruptedException {
+        waitWhileBusy();
+        long now = System.nanoTime();
+        tokens = Math.min(bytesPerSecond, tokens + (now - lastRefill) * bytesPerSecond / 1e9);
+        lastRefill = now;
+        tokens -= bytes;
+        if (tokens < 0) {
+            sleep((long) (-tokens * 1000 / bytesPerSecond));  // Pay the debt back before carrying on
+        }
+    }
+
+    /**
+     * Sleeps long enough after a piece of CPU work to keep to the CPU share.
+     *
+     * @param workNanos How long the work took.
+     */
+    void pace(long workNanos) throws InterruptedException {
+        if (cpuShare < 1) {
+            sleep((long) (workNanos * (1 - cpuShare) / cpuShare / 1_000_000));
+        }
+    }
+
+    private void waitWhileBusy() throws InterruptedException {
+        while (busy.getAsBoolean()) {
+            sleep(BUSY_POLL_MS);
+        }
+    }
+
+    private static void sleep(long millis) throws InterruptedException {
+        if (millis > 0) {
+            WAIT_MILLIS.add(millis);
+            Thread.sleep(millis);
+        }
+    }
+}
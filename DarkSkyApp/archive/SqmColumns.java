@@ -0,0 +1,252 @@
+package com.darksky.archive;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellType;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalTime;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * File Header Comment:
+ * This class holds a night's SQM readings in the compact column file (sqm.cols) that ArchiveCompactor
+ * writes in place of the day's Excel workbook.
+ */
+
+/**
+ * Class Header Comment:
+ * SqmColumns keeps each column of the workbook as one array: the time as seconds of the day, and sky
+ * brightness, frequency, period counts, period and temperature as floats (NaN where the workbook had no
+ * number). On disk each column is deflated on its own, the times as varint deltas, so a night of readings
+ * takes a few kilobytes. Rows are in time order, so {@link #indexOf(int)} finds a time with a binary search.
+ * ReportExport also uses it for a day of readings in memory, whichever file they were read from.
+ * <pre>
+ *   "DSQC" version rows columns
+ *   per column: name, stored length, deflated data
+ * </pre>
+ */
+public final class SqmColumns {
+
+    static final int MAGIC = 0x44535143;  // "DSQC"
+    static final int VERSION = 1;
+    static final String FILE_NAME = "sqm.cols";
+
+    public static final String[] COLUMNS = {"Sky Brightness (mag/arcsec²)", "Frequency (Hz)", "Period (counts)", "Period (s)", "Temperature (°C)"};
+
+    private final int[] seconds;
+    private final float[][] values;  // [column][row]
+
+    /**
+     * @param seconds Time of each row as seconds since midnight, in time order.
+     * @param values  One array per entry of COLUMNS, each as long as seconds.
+     */
+    public SqmColumns(int[] seconds, float[][] values) {
+        this.seconds = seconds;
+        this.values = values;
+    }
+
+    public int getRowCount() {
+        return seconds.length;
+    }
+
+    /**
+     * @return Time of the row as seconds since midnight.
+     */
+    public int getSeconds(int row) {
+        return seconds[row];
+    }
+
+    /**
+     * @param column An index into COLUMNS.
+     */
+    public float getValue(int column, int row) {
+        return values[column][row];
+    }
+
+    /**
+     * @return The first row at or after the given second of the day (getRowCount() if none).
+     */
+    public int indexOf(int secondOfDay) {
+        int low = 0;
+        int high = seconds.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (seconds[middle] < secondOfDay) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    void write(OutputStream target) throws IOException {
+        DataOutputStream out = new DataOutputStream(target);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(seconds.length);
+        out.writeInt(1 + COLUMNS.length);
+
+        ByteBuffer times = ByteBuffer.allocate(seconds.length * 5);
+        int previous = 0;
+        for (int second : seconds) {
+            int delta = second - previous;
+            putVarint(times, (delta << 1) ^ (delta >> 31));  // Zigzag, in case the clock stepped back
+            previous = second;
+        }
+        writeColumn(out, "Timestamp", times.array(), times.position());
+        for (int column = 0; column < COLUMNS.length; column++) {
+            ByteBuffer floats = ByteBuffer.allocate(seconds.length * Float.BYTES);
+            for (float value : values[column]) {
+                floats.putFloat(value);
+            }
+            writeColumn(out, COLUMNS[column], floats.array(), floats.position());
+        }
+        out.flush();
+    }
+
+    /**
+     * Reads a day's column file.
+     *
+     * @param dayFolder The day's report folder.
+     * @return The readings, or null if the day's workbook has not been converted.
+     */
+    public static SqmColumns open(Path dayFolder) throws IOException {
+        Path path = dayFolder.resolve(FILE_NAME);
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(path))) {
+            return read(in);
+        }
+    }
+
+    /**
+     * Reads a column file.
+     */
+    public static SqmColumns read(InputStream source) throws IOException {
+        DataInputStream in = new DataInputStream(source);
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("not an SQM column file");
+        }
+        int rows = in.readInt();
+        int columns = in.readInt();
+        if (rows < 0 || columns != 1 + COLUMNS.length) {
+            throw new IOException("unexpected SQM column file layout");
+        }
+        ByteBuffer times = ByteBuffer.wrap(readColumn(in));
+        int[] seconds = new int[rows];
+        int previous = 0;
+        for (int row = 0; row < rows; row++) {
+            int zigzag = getVarint(times);
+            previous += (zigzag >>> 1) ^ -(zigzag & 1);
+            seconds[row] = previous;
+        }
+        float[][] values = new float[COLUMNS.length][rows];
+        for (int column = 0; column < COLUMNS.length; column++) {
+            ByteBuffer floats = ByteBuffer.wrap(readColumn(in));
+            for (int row = 0; row < rows; row++) {
+                values[column][row] = floats.getFloat();
+            }
+        }
+        return new SqmColumns(seconds, values);
+    }
+
+    /**
+     * Reads the Measurements sheet written by SQMExcelLogger: a header row, then the time as HH:mm:ss, the raw
+     * "r", the brightness as a number, and the rest as the device sent them ("0000022921Hz", "039.4C", ...).
+     */
+    public static SqmColumns fromSheet(Sheet sheet) {
+        int rows = sheet == null ? 0 : Math.max(0, sheet.getLastRowNum());
+        int[] seconds = new int[rows];
+        float[][] values = new float[COLUMNS.length][rows];
+        int kept = 0;
+        for (int r = 1; r <= rows; r++) {
+            Row row = sheet.getRow(r);
+            if (row == null || row.getCell(0) == null) {
+                continue;
+            }
+            try {
+                seconds[kept] = LocalTime.parse(row.getCell(0).getStringCellValue().trim()).toSecondOfDay();
+            } catch (DateTimeParseException | IllegalStateException e) {
+                continue;  // Not a reading row
+            }
+            for (int column = 0; column < COLUMNS.length; column++) {
+                values[column][kept] = number(row.getCell(column + 2));
+            }
+            kept++;
+        }
+        for (int column = 0; column < values.length; column++) {
+            values[column] = Arrays.copyOf(values[column], kept);
+        }
+        return new SqmColumns(Arrays.copyOf(seconds, kept), values);
+    }
+
+    private static float number(Cell cell) {
+        if (cell == null) {
+            return Float.NaN;
+        }
+        if (cell.getCellType() == CellType.NUMERIC) {
+            return (float) cell.getNumericCellValue();
+        }
+        String text = cell.getStringCellValue().trim().replaceAll("[^0-9.+-]", "");
+        try {
+            return Float.parseFloat(text);
+        } catch (NumberFormatException e) {
+            return Float.NaN;
+        }
+    }
+
+    private static void writeColumn(DataOutputStream out, String name, byte[] data, int length) throws IOException {
+        ByteArrayOutputStream deflated = new ByteArrayOutputStream(length / 4 + 16);
+        try (DeflaterOutputStream deflater = new DeflaterOutputStream(deflated)) {
+            deflater.write(data, 0, length);
+        }
+        out.writeUTF(name);
+        out.writeInt(deflated.size());
+        deflated.writeTo(out);
+    }
+
+    private static byte[] readColumn(DataInputStream in) throws IOException {
+        in.readUTF();
+        byte[] deflated = new byte[in.readInt()];
+        in.readFully(deflated);
+        try (InflaterInputStream inflater = new InflaterInputStream(new ByteArrayInputStream(deflated))) {
+            return inflater.readAllBytes();
+        }
+    }
+
+    private static void putVarint(ByteBuffer out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    private static int getVarint(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.darksky.calibration;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+import org.opencv.imgcodecs.Imgcodecs;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Locale;
+
+/**
+ * File Header Comment:
+ * This class times the calibration kernel on a real frame, to check that it keeps up with the capture rate at
+ * full resolution.
+ */
+
+/**
+ * Class Header Comment:
+ * CalibrationBenchmark calibrates the same frame over and over with a dark and a flat of its size, with 1, 2,
+ * 4 ... kernel threads up to the number of cores. The masters are flat fields of constant value, which cost
+ * the same as real ones. A fresh copy of the frame is calibrated each time, so the numbers include no
+ * shortcuts for pixels already clipped. Used by the control socket's "calibrate bench" command.
+ */
+public final class CalibrationBenchmark {
+
+    private static final int WARM_UP = 3;  // Untimed frames per thread count
+
+    private CalibrationBenchmark() {
+    }
+
+    /**
+     * @param image         The frame to calibrate.
+     * @param frames        Timed frames per thread count.
+     * @param captureMillis The capture interval, to say whether calibration keeps up.
+     * @return One line per thread count.
+     */
+    public static String run(Path image, int frames, long captureMillis) throws IOException {
+        Mat original = Imgcodecs.imread(image.toString(), Imgcodecs.IMREAD_UNCHANGED);
+        if (original == null || original.empty()) {
+            throw new IOException("could not read " + image);
+        }
+        int type = CvType.makeType(CvType.CV_32F, original.channels());
+        Mat dark = new Mat(original.rows(), original.cols(), type, Scalar.all(original.depth() == CvType.CV_16U ? 256 : 1));
+        Mat flat = new Mat(original.rows(), original.cols(), type, Scalar.all(0.9));
+        Mat frame = new Mat();
+        StringBuilder report = new StringBuilder(String.format(Locale.ROOT, "%s, %dx%d, %d channel(s), %d frames per run",
+                image.getFileName(), original.width(), original.height(), original.channels(), frames));
+        try {
+            int cores = Runtime.getRuntime().availableProcessors();
+            for (int threads = 1; threads <= cores; threads *= 2) {
+                try (CalibrationKernel kernel = new CalibrationKernel(threads)) {
+                    kernel.setMasters(dark, flat);
+                    original.copyTo(frame);
+                    for (int i = 0; i < WARM_UP; i++) {
+                        kernel.apply(frame);
+                    }
+                    long busy = 0;
+                    for (int i = 0; i < frames; i++) {
+                        original.copyTo(frame);  // Same Mat, so the kernel keeps its strips, as with AutoCapture
+                        long start = System.nanoTime();
+                        if (!kernel.apply(frame)) {
+                            return report.append("\ninterrupted").toString();
+                        }
+                        busy += System.nanoTime() - start;
+                    }
+                    double millisPerFrame = busy / 1e6 / Math.max(1, frames);
+                    report.append(String.format(Locale.ROOT, "%n%2d thread(s): %7.2f ms per frame, %6.1f frames/s, %.1f%% of the capture interval",
+                            threads, millisPerFrame, 1000 / Math.max(millisPerFrame, 1e-3), millisPerFrame * 100 / Math.max(1, captureMillis)));
+                }
+            }
+        } finally {
+            original.release();
+            dark.release();
+            flat.release();
+            frame.release();
+        }
+        return report.toString();
+    }
+}
@@ -0,0 +1,212 @@
+package com.darksky.calibration;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * File Header Comment:
+ * This class takes the dark off a frame and applies the flat, in place, fast enough to keep up with full
+ * resolution capture.
+ */
+
+/**
+ * Class Header Comment:
+ * CalibrationKernel does calibrated = (frame - dark) * gain, where gain is 1 / flat worked out once when the
+ * masters are set, so the per-frame work is a subtract and a multiply. The pixel loops are OpenCV's own
+ * (Core.subtract, Core.multiply, convertTo), which are vectorised with the CPU's SIMD instructions. On top of
+ * that the frame is cut into strips of TILE_ROWS rows, small enough for a strip's float copy to stay in the
+ * CPU cache between the four passes, and the strips are shared out to the worker threads, each taking the
+ * next strip until none are left.
+ * <p>
+ * No pixel memory is allocated per frame: the masters' strips and one float strip per worker are made by
+ * setMasters, and the frame's strips are only made again when the frame's memory moves (AutoCapture reuses
+ * one Mat, so normally never). Values below 0 or above the frame's range are clipped when converting back.
+ */
+final class CalibrationKernel implements AutoCloseable {
+
+    static final int TILE_ROWS = 32;
+    private static final float MIN_FLAT = 0.05f;  // A flat below this is dust or the edge of the lens: don't boost it 20x or more
+
+    private final int threads;
+    private final ExecutorService pool;
+    private final List<Callable<Void>> tasks = new ArrayList<>();
+    private final AtomicInteger nextTile = new AtomicInteger();
+
+    private Mat dark;  // 32-bit float, or null
+    private Mat gain;  // 32-bit float, or null
+    private int rows;
+    private int cols;
+    private int channels;
+    private Mat[] darkTiles;
+    private Mat[] gainTiles;
+    private Mat[] workTiles;  // Per worker: a full strip and, if the last strip is shorter, a short one
+    private Mat[] frameTiles;
+    private long frameAddress;  // Where the frame's pixels were when frameTiles was made
+    private int frameType;
+    private Mat frameTarget;  // Guards against a new Mat that happens to reuse the old pixels' address
+
+    /**
+     * @param threads Worker threads, at least 1.
+     */
+    CalibrationKernel(int threads) {
+        this.threads = Math.max(1, threads);
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.pool = Executors.newFixedThreadPool(this.threads, r -> {
+            Thread thread = new Thread(r, "darksky-calibration-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int worker = 0; worker < this.threads; worker++) {
+            int index = worker;
+            tasks.add(() -> {
+                runTiles(index);
+                return null;
+            });
+        }
+    }
+
+    int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Sets the masters for the next frames. Either may be null. Both must have the frames' size and channels.
+     * The kernel keeps its own copies, so the caller may release them.
+     */
+    void setMasters(Mat darkMaster, Mat flatMaster) {
+        releaseMasters();
+        Mat shape = darkMaster != null ? darkMaster : flatMaster;
+        if (shape == null) {
+            return;
+        }
+        rows = shape.rows();
+        cols = shape.cols();
+        channels = shape.channels();
+        int tileCount = (rows + TILE_ROWS - 1) / TILE_ROWS;
+        if (darkMaster != null) {
+            dark = darkMaster.clone();
+            darkTiles = tiles(dark, tileCount);
+        }
+        if (flatMaster != null) {
+            gain = new Mat();
+            Core.max(flatMaster, new Scalar(MIN_FLAT, MIN_FLAT, MIN_FLAT, MIN_FLAT), gain);
+            Core.divide(1.0, gain, gain);
+            gainTiles = tiles(gain, tileCount);
+        }
+        int type = CvType.makeType(CvType.CV_32F, channels);
+        int lastRows = rows - (tileCount - 1) * TILE_ROWS;
+        workTiles = new Mat[threads * 2];
+        for (int worker = 0; worker < threads; worker++) {
+            workTiles[worker * 2] = new Mat(TILE_ROWS, cols, type);
+            workTiles[worker * 2 + 1] = workTiles[worker * 2].submat(0, lastRows, 0, cols);
+        }
+    }
+
+    private Mat[] tiles(Mat image, int tileCount) {
+        Mat[] tiles = new Mat[tileCount];
+        for (int tile = 0; tile < tileCount; tile++) {
+            tiles[tile] = image.submat(tile * TILE_ROWS, Math.min(rows, (tile + 1) * TILE_ROWS), 0, cols);
+        }
+        return tiles;
+    }
+
+    /**
+     * @return true if a master is set and the frame has its size and channels.
+     */
+    boolean fits(Mat frame) {
+        return (dark != null || gain != null) && frame.rows() == rows && frame.cols() == cols && frame.channels() == channels;
+    }
+
+    /**
+     * Calibrates a frame in place. Call fits() first.
+     *
+     * @return false if interrupted; the frame may then be half done.
+     */
+    boolean apply(Mat frame) {
+        if (frame != frameTarget || frame.dataAddr() != frameAddress || frame.type() != frameType) {
+            releaseFrameTiles();
+            frameTiles = tiles(frame, (rows + TILE_ROWS - 1) / TILE_ROWS);
+            frameTarget = frame;
+            frameAddress = frame.dataAddr();
+            frameType = frame.type();
+        }
+        nextTile.set(0);
+        try {
+            for (Future<Void> done : pool.invokeAll(tasks)) {
+                done.get();
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("calibration failed", e.getCause());
+        }
+    }
+
+    private void runTiles(int worker) {
+        int depth = CvType.depth(frameType);
+        int tile;
+        while ((tile = nextTile.getAndIncrement()) < frameTiles.length) {
+            Mat in = frameTiles[tile];
+            Mat work = workTiles[worker * 2 + (in.rows() == TILE_ROWS ? 0 : 1)];
+            in.convertTo(work, CvType.CV_32F);
+            if (darkTiles != null) {
+                Core.subtract(work, darkTiles[tile], work);
+            }
+            if (gainTiles != null) {
+                Core.multiply(work, gainTiles[tile], work, 1);
+            }
+            work.convertTo(in, depth);  // Rounds and clips to the frame's range
+        }
+    }
+
+    private void releaseFrameTiles() {
+        if (frameTiles != null) {
+            for (Mat tile : frameTiles) {
+                tile.release();
+            }
+            frameTiles = null;
+        }
+        frameTarget = null;
+    }
+
+    private void releaseMasters() {
+        releaseFrameTiles();
+        for (Mat[] tiles : new Mat[][]{darkTiles, gainTiles, workTiles}) {
+            if (tiles != null) {
+                for (Mat tile : tiles) {
+                    tile.release();
+                }
+            }
+        }
+        darkTiles = null;
+        gainTiles = null;
+        workTiles = null;
+        if (dark != null) {
+            dark.release();
+            dark = null;
+        }
+        if (gain != null) {
+            gain.release();
+            gain = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        pool.shutdownNow();
+        releaseMasters();
+    }
+}
@@ -0,0 +1,97 @@
+package com.darksky.calibration;
+
+import com.darksky.utils.CameraControls;
+
+import java.util.Locale;
+
+/**
+ * File Header Comment:
+ * This class is the set of camera settings a master dark or flat belongs to.
+ */
+
+/**
+ * Class Header Comment:
+ * CalibrationKey is exposure, gain and sensor temperature, the three things a dark frame depends on. The
+ * temperature is kept to a tenth of a degree; how close a master has to be to a frame is decided by
+ * CalibrationLibrary, not here. Sources that don't report their settings give a key of exposure 0, gain 0
+ * and no temperature, which only matches masters made from such a source.
+ */
+public final class CalibrationKey {
+
+    private final long exposureMicros;
+    private final int gain;
+    private final double temperature;  // NaN if unknown
+
+    public CalibrationKey(long exposureMicros, int gain, double temperature) {
+        this.exposureMicros = exposureMicros;
+        this.gain = gain;
+        this.temperature = Double.isNaN(temperature) ? Double.NaN : Math.round(temperature * 10) / 10.0;
+    }
+
+    public static CalibrationKey of(CameraControls controls) {
+        return new CalibrationKey(controls.getExposureMicros(), controls.getGain(), controls.getTemperature());
+    }
+
+    public long getExposureMicros() {
+        return exposureMicros;
+    }
+
+    public int getGain() {
+        return gain;
+    }
+
+    public double getTemperature() {
+        return temperature;
+    }
+
+    /**
+     * @return How many times longer the longer of the two exposures is (1 for the same), or infinity if only
+     *         one of them is known.
+     */
+    double exposureRatio(CalibrationKey other) {
+        if (exposureMicros == other.exposureMicros) {
+            return 1;
+        }
+        if (exposureMicros == 0 || other.exposureMicros == 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return (double) Math.max(exposureMicros, other.exposureMicros) / Math.min(exposureMicros, other.exposureMicros);
+    }
+
+    /**
+     * @return The temperature difference in °C, or 0 if either temperature is unknown.
+     */
+    double temperatureDifference(CalibrationKey other) {
+        if (Double.isNaN(temperature) || Double.isNaN(other.temperature)) {
+            return 0;
+        }
+        return Math.abs(temperature - other.temperature);
+    }
+
+    /**
+     * @return The key as it appears in a master's file name, e.g. "e100000_g250_t-5.5".
+     */
+    String toFileName() {
+        return "e" + exposureMicros + "_g" + gain + "_t" + (Double.isNaN(temperature) ? "na" : String.format(Locale.ROOT, "%.1f", temperature));
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof CalibrationKey)) {
+            return false;
+        }
+        CalibrationKey key = (CalibrationKey) other;
+        return exposureMicros == key.exposureMicros && gain == key.gain && Double.compare(temperature, key.temperature) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(exposureMicros) * 31 * 31 + gain * 31 + Double.hashCode(temperature);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "%.3f s, gain %d, %s", exposureMicros / 1e6, gain,
+                Double.isNaN(temperature) ? "temperature unknown" : String.format(Locale.ROOT, "%.1f °C", temperature));
+    }
+}
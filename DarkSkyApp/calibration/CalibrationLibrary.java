@@ -0,0 +1,168 @@
+package com.darksky.calibration;
+
+import com.darksky.logging.EventLog;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgcodecs.Imgcodecs;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * File Header Comment:
+ * This class keeps the master darks and flats in the Calibration folder under DarkSky Reports and picks the
+ * ones that fit a frame.
+ */
+
+/**
+ * Class Header Comment:
+ * CalibrationLibrary lists the folder once and keeps the list up to date as masters are added, so finding a
+ * master for a frame is a walk over a short list, not a disk read. The pixels are only read when a master is
+ * first used (see Calibrator). Which master fits:
+ * <ul>
+ *   <li>dark: same gain, exposure within -Ddarksky.calibration.exposureTolerance (default 0.1, i.e. 10%) and
+ *       sensor temperature within -Ddarksky.calibration.temperatureTolerance (default 3 °C); the closest of
+ *       those, newest first on a tie;</li>
+ *   <li>flat: same gain, the newest. A flat belongs to the optics (vignetting, dust), not to the exposure or
+ *       temperature, and is redone when those change.</li>
+ * </ul>
+ */
+public final class CalibrationLibrary {
+
+    private final Path folder;
+    private final double exposureTolerance;
+    private final double temperatureTolerance;
+    private final List<MasterFrame> masters = new ArrayList<>();  // Guarded by this
+    private volatile int version;  // Goes up whenever a master is added
+
+    /**
+     * @param folder               Where the masters are kept.
+     * @param exposureTolerance    How far a dark's exposure may be off, as a fraction.
+     * @param temperatureTolerance How far a dark's temperature may be off, in °C.
+     */
+    public CalibrationLibrary(Path folder, double exposureTolerance, double temperatureTolerance) {
+        this.folder = folder;
+        this.exposureTolerance = exposureTolerance;
+        this.temperatureTolerance = temperatureTolerance;
+        scan();
+    }
+
+    private synchronized void scan() {
+        masters.clear();
+        if (!Files.isDirectory(folder)) {
+            return;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(folder, "*" + MasterFrame.EXTENSION)) {
+            for (Path file : files) {
+                MasterFrame master = MasterFrame.parse(file);
+                if (master != null) {
+                    masters.add(master);
+                }
+            }
+        } catch (IOException e) {
+            EventLog.warn("CalibrationLibrary", "calibration.list.failed", "folder", folder, e);
+        }
+        masters.sort(Comparator.comparing(MasterFrame::getCreated));
+        version++;
+    }
+
+    public Path getFolder() {
+        return folder;
+    }
+
+    int getVersion() {
+        return version;
+    }
+
+    /**
+     * @return All masters, oldest first.
+     */
+    public synchronized List<MasterFrame> list() {
+        return new ArrayList<>(masters);
+    }
+
+    /**
+     * @return The dark that fits the key best, or null if none is close enough.
+     */
+    public synchronized MasterFrame findDark(CalibrationKey key) {
+        MasterFrame best = null;
+        double bestScore = Double.MAX_VALUE;
+        for (MasterFrame master : masters) {
+            if (master.getKind() != MasterFrame.Kind.DARK || master.getKey().getGain() != key.getGain()) {
+                continue;
+            }
+            double exposureOff = master.getKey().exposureRatio(key) - 1;
+            double temperatureOff = master.getKey().temperatureDifference(key);
+            if (exposureOff > exposureTolerance || temperatureOff > temperatureTolerance) {
+                continue;
+            }
+            double score = exposureOff / Math.max(exposureTolerance, 1e-9) + temperatureOff / Math.max(temperatureTolerance, 1e-9);
+            if (score <= bestScore) {  // The list is oldest first, so a tie goes to the newer one
+                best = master;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return The newest flat with the key's gain, or null if there is none.
+     */
+    public synchronized MasterFrame findFlat(CalibrationKey key) {
+        MasterFrame best = null;
+        for (MasterFrame master : masters) {
+            if (master.getKind() == MasterFrame.Kind.FLAT && master.getKey().getGain() == key.getGain()) {
+                best = master;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Reads a master's pixels.
+     *
+     * @return A 32-bit float Mat; the caller releases it.
+     */
+    Mat load(MasterFrame master) throws IOException {
+        Mat pixels = Imgcodecs.imread(master.getPath().toString(), Imgcodecs.IMREAD_UNCHANGED);
+        if (pixels == null || pixels.empty() || pixels.depth() != CvType.CV_32F) {
+            if (pixels != null) {
+                pixels.release();
+            }
+            throw new IOException("not a 32-bit float master: " + master.getPath());
+        }
+        return pixels;
+    }
+
+    /**
+     * Writes a new master and adds it to the list. It is written under a temporary name first, so a master that
+     * is half written is never picked.
+     *
+     * @param pixels 32-bit float, the frame's size and channels.
+     * @param frames How many frames it was made from.
+     */
+    MasterFrame save(MasterFrame.Kind kind, CalibrationKey key, Mat pixels, int frames) throws IOException {
+        Files.createDirectories(folder);
+        LocalDateTime created = LocalDateTime.now().withNano(0);
+        Path target = folder.resolve(MasterFrame.fileName(kind, key, created));
+        Path temporary = folder.resolve("tmp_" + target.getFileName());  // Keeps the .tiff extension for the encoder
+        if (!Imgcodecs.imwrite(temporary.toString(), pixels)) {
+            throw new IOException("could not write " + temporary);
+        }
+        Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        MasterFrame master = new MasterFrame(kind, key, created, target, frames);
+        synchronized (this) {
+            masters.add(master);
+            version++;
+        }
+        EventLog.info("CalibrationLibrary", "calibration.master.saved", "master", master);
+        return master;
+    }
+}
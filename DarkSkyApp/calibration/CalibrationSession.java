@@ -0,0 +1,171 @@
+package com.darksky.calibration;
+
+import com.darksky.utils.CameraControls;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+
+/**
+ * File Header Comment:
+ * This class stacks the frames of a calibration session into a master dark or flat.
+ */
+
+/**
+ * Class Header Comment:
+ * CalibrationSession adds each frame, as 32-bit float, to a running sum, so a session of any length holds two
+ * frames in memory. The first frame fixes the settings; later frames with another gain, or an exposure more
+ * than the library's tolerance away, are skipped (turn auto exposure off for good darks). The master is the
+ * mean. For a flat each frame first has the matching dark taken off, if there is one, and is scaled to a mean
+ * of 1, because twilight or a panel changes brightness during the session; the finished flat is then
+ * normalised per Bayer colour (per channel for colour frames), so it corrects vignetting without changing the
+ * colour balance.
+ */
+final class CalibrationSession {
+
+    private final MasterFrame.Kind kind;
+    private final int wanted;
+    private final double exposureTolerance;
+    private final Mat sum = new Mat();
+    private final Mat work = new Mat();
+    private Mat dark;  // For a flat: the dark taken off each frame, or null
+    private CalibrationKey key;  // Settings of the first frame
+    private double temperatureSum;
+    private int count;
+    private int skipped;
+
+    CalibrationSession(MasterFrame.Kind kind, int wanted, double exposureTolerance) {
+        this.kind = kind;
+        this.wanted = wanted;
+        this.exposureTolerance = exposureTolerance;
+    }
+
+    MasterFrame.Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * @return The settings of the first frame, or null before it.
+     */
+    CalibrationKey getKey() {
+        return key;
+    }
+
+    /**
+     * Gives a flat session the dark to take off its frames. Must be the frames' size and channels.
+     */
+    void setDark(Mat dark) {
+        this.dark = dark;
+    }
+
+    /**
+     * Adds a frame. Called on the capture thread.
+     *
+     * @return true once the session has all its frames.
+     */
+    boolean add(Mat frame, CameraControls controls) {
+        CalibrationKey frameKey = CalibrationKey.of(controls);
+        if (count == 0) {
+            key = frameKey;
+        } else if (frameKey.getGain() != key.getGain() || key.exposureRatio(frameKey) - 1 > exposureTolerance
+                || frame.rows() != sum.rows() || frame.cols() != sum.cols() || frame.channels() != sum.channels()) {
+            skipped++;
+            return false;
+        }
+        frame.convertTo(work, CvType.CV_32F);
+        if (kind == MasterFrame.Kind.FLAT) {
+            if (dark != null) {
+                Core.subtract(work, dark, work);
+            }
+            work.convertTo(work, CvType.CV_32F, 1 / Math.max(meanOfChannels(Core.mean(work), work.channels()), 1e-6));
+        }
+        if (count == 0) {
+            work.copyTo(sum);
+        } else {
+            Core.add(sum, work, sum);
+        }
+        count++;
+        if (!Double.isNaN(frameKey.getTemperature())) {
+            temperatureSum += frameKey.getTemperature();
+        }
+        return count >= wanted;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    int getWanted() {
+        return wanted;
+    }
+
+    int getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * @return The key the master is saved under: the first frame's settings with the mean temperature.
+     */
+    CalibrationKey getMasterKey() {
+        double temperature = Double.isNaN(key.getTemperature()) ? Double.NaN : temperatureSum / count;
+        return new CalibrationKey(key.getExposureMicros(), key.getGain(), temperature);
+    }
+
+    /**
+     * Makes the master from the frames added. Frees the session's buffers.
+     *
+     * @return 32-bit float; the caller releases it.
+     */
+    Mat finish() {
+        Mat master = new Mat();
+        sum.convertTo(master, CvType.CV_32F, 1.0 / count);
+        sum.release();
+        work.release();
+        if (kind == MasterFrame.Kind.FLAT) {
+            normalise(master);
+        }
+        return master;
+    }
+
+    /**
+     * Divides a flat by its mean per Bayer colour (one-channel frames) or per channel (colour frames).
+     */
+    private static void normalise(Mat flat) {
+        int rows = flat.rows();
+        int cols = flat.cols();
+        Mat means;
+        if (flat.channels() == 1 && rows % 2 == 0 && cols % 2 == 0 && flat.isContinuous()) {
+            // Two rows side by side, with even and odd columns as two channels: the left half holds the
+            // first row's two colours, the right half the second row's
+            Mat pairs = flat.reshape(2, rows / 2);
+            Scalar top = Core.mean(pairs.submat(0, rows / 2, 0, cols / 2));
+            Scalar bottom = Core.mean(pairs.submat(0, rows / 2, cols / 2, cols));
+            Mat pattern = new Mat(2, 2, CvType.CV_32F);
+            pattern.put(0, 0, top.val[0], top.val[1]);
+            pattern.put(1, 0, bottom.val[0], bottom.val[1]);
+            means = new Mat();
+            Core.repeat(pattern, rows / 2, cols / 2, means);
+            pattern.release();
+        } else {
+            means = new Mat(rows, cols, flat.type(), Core.mean(flat));
+        }
+        Core.divide(flat, means, flat);
+        means.release();
+    }
+
+    private static double meanOfChannels(Scalar mean, int channels) {
+        double total = 0;
+        for (int channel = 0; channel < channels; channel++) {
+            total += mean.val[channel];
+        }
+        return total / channels;
+    }
+
+    /**
+     * Frees the buffers of a session that is given up.
+     */
+    void release() {
+        sum.release();
+        work.release();
+    }
+}
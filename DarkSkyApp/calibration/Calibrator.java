@@ -0,0 +1,281 @@
+package com.darksky.calibration;
+
+import com.darksky.logging.EventLog;
+import com.darksky.metrics.Counter;
+import com.darksky.metrics.LatencyHistogram;
+import com.darksky.metrics.Metrics;
+import com.darksky.utils.CameraControls;
+import org.opencv.core.Mat;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * File Header Comment:
+ * This class calibrates every frame AutoCapture reads, before it is saved, and runs the sessions that make
+ * the master darks and flats.
+ */
+
+/**
+ * Class Header Comment:
+ * Calibrator is called by AutoCapture on the capture thread with each frame and the camera settings it was
+ * taken with. While a session is running the frames go, uncalibrated, into the session instead; when it has
+ * all its frames the master is worked out and saved on another thread. Otherwise the library is asked for the
+ * dark and flat that fit the settings (only when the settings or the library change), the chosen masters are
+ * read once and handed to the CalibrationKernel, and the frame is calibrated in place. A frame with no fitting
+ * master is saved as it is and counted in calibration.missing.
+ * <p>
+ * Masters live in DarkSky Reports/Calibration. -Ddarksky.calibration.threads sets the kernel's threads
+ * (default half the cores) and -Ddarksky.calibration=false turns calibration off (sessions still work).
+ */
+public class Calibrator {
+
+    private static final LatencyHistogram APPLY_TIME = Metrics.histogram("calibration.apply", "Calibrating one frame (dark and flat) on the capture thread");
+    private static final LatencyHistogram LOAD_TIME = Metrics.histogram("calibration.load", "Reading a master and setting up the kernel");
+    private static final Counter FRAMES_CALIBRATED = Metrics.counter("calibration.frames", "Frames calibrated before saving");
+    private static final Counter FRAMES_MISSING = Metrics.counter("calibration.missing", "Frames saved uncalibrated because no master fitted");
+    private static final Counter SESSION_FRAMES = Metrics.counter("calibration.session.frames", "Frames added to a calibration session");
+
+    private final CalibrationLibrary library;
+    private final CalibrationKernel kernel;
+    private final double exposureTolerance;
+    private volatile boolean enabled;
+    private volatile CalibrationSession session;
+    private volatile CompletableFuture<MasterFrame> sessionResult;
+
+    // Only touched on the capture thread
+    private CalibrationKey lastKey;
+    private int lastVersion = -1;
+    private MasterFrame dark;
+    private MasterFrame flat;
+    private boolean mismatchLogged;
+
+    private volatile String lastApplied = "nothing yet";  // For describe()
+
+    public Calibrator(CalibrationLibrary library, int threads, double exposureTolerance, boolean enabled) {
+        this.library = library;
+        this.kernel = new CalibrationKernel(threads);
+        this.exposureTolerance = exposureTolerance;
+        this.enabled = enabled;
+    }
+
+    /**
+     * @return A calibrator set up from the darksky.calibration.* system properties.
+     */
+    public static Calibrator fromProperties() {
+        double exposureTolerance = Double.parseDouble(System.getProperty("darksky.calibration.exposureTolerance", "0.1"));
+        CalibrationLibrary library = new CalibrationLibrary(
+                Paths.get(System.getProperty("user.home"), "Documents", "DarkSky Reports", "Calibration"), exposureTolerance,
+                Double.parseDouble(System.getProperty("darksky.calibration.temperatureTolerance", "3")));
+        return new Calibrator(library, Integer.getInteger("darksky.calibration.threads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2)),
+                exposureTolerance, !System.getProperty("darksky.calibration", "true").equals("false"));
+    }
+
+    public CalibrationLibrary getLibrary() {
+        return library;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        EventLog.info("Calibrator", "calibration.enabled", "enabled", enabled);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Starts collecting frames for a master. Cover the lens for darks; point at an even light (twilight sky, a
+     * panel) for flats.
+     *
+     * @param kind   Dark or flat.
+     * @param frames How many frames to stack.
+     * @return Completed with the saved master once the session has its frames.
+     * @throws IllegalStateException if a session is already running.
+     */
+    public synchronized CompletableFuture<MasterFrame> startSession(MasterFrame.Kind kind, int frames) {
+        if (session != null) {
+            throw new IllegalStateException("a " + session.getKind().name().toLowerCase() + " session is already running");
+        }
+        if (frames < 1) {
+            throw new IllegalArgumentException("a session needs at least one frame");
+        }
+        CompletableFuture<MasterFrame> result = new CompletableFuture<>();
+        sessionResult = result;
+        session = new CalibrationSession(kind, frames, exposureTolerance);
+        EventLog.info("Calibrator", "calibration.session.started", "kind", kind, "frames", frames);
+        return result;
+    }
+
+    /**
+     * Gives up the running session, if any.
+     */
+    public synchronized void cancelSession() {
+        CalibrationSession cancelled = session;
+        if (cancelled != null) {
+            session = null;
+            sessionResult.cancel(false);
+            EventLog.info("Calibrator", "calibration.session.cancelled", "frames", cancelled.getCount());
+            // Its buffers are freed by the garbage collector; the capture thread may still be adding to it
+        }
+    }
+
+    /**
+     * Feeds the frame to the running session, or calibrates it in place. Called by AutoCapture on the capture
+     * thread, before the frame is saved.
+     *
+     * @param controls The settings the frame was taken with.
+     */
+    public void process(Mat frame, CameraControls controls) {
+        CalibrationSession running = session;
+        if (running != null) {
+            addToSession(running, frame, controls);
+            return;
+        }
+        if (!enabled) {
+            return;
+        }
+        long start = System.nanoTime();
+        CalibrationKey key = CalibrationKey.of(controls);
+        if (!key.equals(lastKey) || library.getVersion() != lastVersion) {
+            chooseMasters(key);
+        }
+        if (!kernel.fits(frame)) {
+            FRAMES_MISSING.increment();
+            if ((dark != null || flat != null) && !mismatchLogged) {
+                EventLog.warn("Calibrator", "calibration.size.mismatch", "frame", frame.cols() + "x" + frame.rows() + "x" + frame.channels());
+                mismatchLogged = true;
+            }
+            return;
+        }
+        if (kernel.apply(frame)) {
+            APPLY_TIME.recordSince(start);
+            FRAMES_CALIBRATED.increment();
+        }
+    }
+
+    /**
+     * Picks the masters for a frame's settings and loads them into the kernel if they are not the ones it has.
+     */
+    private void chooseMasters(CalibrationKey key) {
+        lastVersion = library.getVersion();
+        lastKey = key;
+        MasterFrame nextDark = library.findDark(key);
+        MasterFrame nextFlat = library.findFlat(key);
+        if (Objects.equals(nextDark, dark) && Objects.equals(nextFlat, flat)) {
+            return;
+        }
+        long start = System.nanoTime();
+        Mat darkPixels = null;
+        Mat flatPixels = null;
+        try {
+            darkPixels = nextDark != null ? library.load(nextDark) : null;
+            flatPixels = nextFlat != null ? library.load(nextFlat) : null;
+            if (darkPixels != null && flatPixels != null && (darkPixels.rows() != flatPixels.rows()
+                    || darkPixels.cols() != flatPixels.cols() || darkPixels.channels() != flatPixels.channels())) {
+                throw new IOException("the dark and the flat are of different sizes");
+            }
+            kernel.setMasters(darkPixels, flatPixels);
+            dark = nextDark;
+            flat = nextFlat;
+            mismatchLogged = false;
+            lastApplied = (dark != null ? dark.toString() : "no dark") + "; " + (flat != null ? flat.toString() : "no flat");
+            LOAD_TIME.recordSince(start);
+            EventLog.info("Calibrator", "calibration.masters", "masters", lastApplied);
+        } catch (IOException e) {
+            kernel.setMasters(null, null);
+            dark = null;
+            flat = null;
+            lastApplied = "none: " + e.getMessage();
+            EventLog.warn("Calibrator", "calibration.load.failed", "key", key, e);
+        } finally {
+            if (darkPixels != null) {
+                darkPixels.release();
+            }
+            if (flatPixels != null) {
+                flatPixels.release();
+            }
+        }
+    }
+
+    private void addToSession(CalibrationSession running, Mat frame, CameraControls controls) {
+        if (running.getCount() == 0 && running.getKind() == MasterFrame.Kind.FLAT) {
+            setSessionDark(running, CalibrationKey.of(controls), frame);
+        }
+        SESSION_FRAMES.increment();
+        if (!running.add(frame, controls)) {
+            return;
+        }
+        CompletableFuture<MasterFrame> result;
+        synchronized (this) {
+            if (session != running) {
+                return;  // Cancelled meanwhile
+            }
+            session = null;
+            result = sessionResult;
+        }
+        // Stacking is done; working out and writing the master takes a moment, so not on the capture thread
+        CompletableFuture.runAsync(() -> {
+            Mat master = running.finish();
+            try {
+                result.complete(library.save(running.getKind(), running.getMasterKey(), master, running.getCount()));
+            } catch (IOException | RuntimeException e) {
+                EventLog.error("Calibrator", "calibration.session.failed", "kind", running.getKind(), e);
+                result.completeExceptionally(e);
+            } finally {
+                master.release();
+            }
+        });
+    }
+
+    /**
+     * Gives a flat session the dark that fits its frames, so it is taken off before stacking.
+     */
+    private void setSessionDark(CalibrationSession running, CalibrationKey key, Mat frame) {
+        MasterFrame match = library.findDark(key);
+        if (match == null) {
+            EventLog.info("Calibrator", "calibration.flat.nodark", "key", key);
+            return;
+        }
+        try {
+            Mat pixels = library.load(match);
+            if (pixels.rows() == frame.rows() && pixels.cols() == frame.cols() && pixels.channels() == frame.channels()) {
+                running.setDark(pixels);  // Freed by the garbage collector with the session
+            } else {
+                pixels.release();
+            }
+        } catch (IOException e) {
+            EventLog.warn("Calibrator", "calibration.load.failed", "key", key, e);
+        }
+    }
+
+    /**
+     * @return A few lines: whether it is on, the masters in use, the running session and the masters on disk.
+     */
+    public String describe() {
+        StringBuilder text = new StringBuilder();
+        text.append("calibration ").append(enabled ? "on" : "off").append(", ").append(kernel.getThreads()).append(" thread(s)\n");
+        text.append("in use: ").append(lastApplied).append('\n');
+        CalibrationSession running = session;
+        if (running != null) {
+            text.append("session: ").append(running.getKind().name().toLowerCase()).append(' ').append(running.getCount())
+                    .append(" of ").append(running.getWanted()).append(" frames");
+            if (running.getSkipped() > 0) {
+                text.append(", ").append(running.getSkipped()).append(" skipped (other settings)");
+            }
+            text.append('\n');
+        }
+        text.append("masters in ").append(library.getFolder()).append(':');
+        for (MasterFrame master : library.list()) {
+            text.append("\n  ").append(master);
+        }
+        return text.toString();
+    }
+
+    public void close() {
+        cancelSession();
+        kernel.close();
+    }
+}
@@ -0,0 +1,96 @@
+package com.darksky.calibration;
+
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * File Header Comment:
+ * This class describes one master calibration frame in the calibration folder.
+ */
+
+/**
+ * Class Header Comment:
+ * MasterFrame is a dark or a flat, the settings it was taken with and when it was made. Everything is in the
+ * file name, e.g. dark_e100000_g250_t-5.5_2024-05-01_21-30-00.tiff, so the library can be listed without
+ * opening the files. The pixels are a 32-bit float TIFF of the frame's size and channels: a dark is the
+ * mean level in camera units, a flat is normalised to a mean of 1 per Bayer colour (per channel for colour
+ * frames).
+ */
+public final class MasterFrame {
+
+    public enum Kind {
+        DARK, FLAT
+    }
+
+    static final String EXTENSION = ".tiff";
+    private static final DateTimeFormatter CREATED = DateTimeFormatter.ofPattern("yyyy-MM-dd_HH-mm-ss");
+    private static final Pattern NAME = Pattern.compile(
+            "(dark|flat)_e(\\d+)_g(\\d+)_t(-?\\d+\\.\\d|na)_(\\d{4}-\\d{2}-\\d{2}_\\d{2}-\\d{2}-\\d{2})\\.tiff");
+
+    private final Kind kind;
+    private final CalibrationKey key;
+    private final LocalDateTime created;
+    private final Path path;
+    private final int frames;  // Frames stacked, 0 if not known (listed from disk)
+
+    MasterFrame(Kind kind, CalibrationKey key, LocalDateTime created, Path path, int frames) {
+        this.kind = kind;
+        this.key = key;
+        this.created = created;
+        this.path = path;
+        this.frames = frames;
+    }
+
+    /**
+     * @return The file name for a master made now.
+     */
+    static String fileName(Kind kind, CalibrationKey key, LocalDateTime created) {
+        return kind.name().toLowerCase(Locale.ROOT) + "_" + key.toFileName() + "_" + CREATED.format(created) + EXTENSION;
+    }
+
+    /**
+     * @return The master described by a file's name, or null if it is not a master's name.
+     */
+    static MasterFrame parse(Path path) {
+        Matcher matcher = NAME.matcher(path.getFileName().toString());
+        if (!matcher.matches()) {
+            return null;
+        }
+        try {
+            String temperature = matcher.group(4);
+            CalibrationKey key = new CalibrationKey(Long.parseLong(matcher.group(2)), Integer.parseInt(matcher.group(3)),
+                    temperature.equals("na") ? Double.NaN : Double.parseDouble(temperature));
+            return new MasterFrame(Kind.valueOf(matcher.group(1).toUpperCase(Locale.ROOT)), key,
+                    LocalDateTime.parse(matcher.group(5), CREATED), path, 0);
+        } catch (NumberFormatException | DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public CalibrationKey getKey() {
+        return key;
+    }
+
+    public LocalDateTime getCreated() {
+        return created;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    @Override
+    public String toString() {
+        return kind.name().toLowerCase(Locale.ROOT) + " " + key + ", made " + created.toString().replace('T', ' ')
+                + (frames > 0 ? " from " + frames + " frames" : "");
+    }
+}
@@ -0,0 +1,435 @@
+package com.darksky.controllers;
+
+import com.darksky.logging.EventLog;
+import com.darksky.metrics.Counter;
+import com.darksky.metrics.LatencyHistogram;
+import com.darksky.metrics.Metrics;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * File Header Comment:
+ * This class talks to the enclosure microcontroller (Microcontroller.cpp), which controls the fan and powers
+ * the SQM, dew heater and mini PC. It replaces the console menu in ServerCommunication.cpp for the station,
+ * using the framed protocol described in EnclosureProtocol.
+ */
+
+/**
+ * Class Header Comment:
+ * EnclosureController listens on -Ddarksky.enclosure.port (default 8080, the port the firmware connects to;
+ * 0 turns it off) and takes the microcontroller's connection on a single NIO selector thread. A new connection
+ * replaces the old one, so a device that rebooted is picked up straight away.
+ * <p>
+ * Every request returns a CompletableFuture and is sent without waiting for earlier replies; replies are matched
+ * to requests by id. A request fails with an IOException when the device is not connected, disconnects, answers
+ * with an error, or does not answer within -Ddarksky.enclosure.timeoutMs (default 3000). Telemetry the device
+ * pushes after subscribeTelemetry goes to the telemetry listeners.
+ * <p>
+ * ServerCommunication.cpp listens on the same port, so only one of the two can run on a machine.
+ */
+public class EnclosureController {
+
+    private static final int DEFAULT_PORT = 8080;
+    private static final long TIMEOUT_MS = Long.getLong("darksky.enclosure.timeoutMs", 3000);
+    private static final long STOP_WAIT_MS = 2000;  // How long stop() waits for the selector thread
+
+    private static final EnclosureController INSTANCE = new EnclosureController();
+
+    private static final LatencyHistogram REQUEST_TIME = Metrics.histogram("enclosure.request", "Enclosure request round trip");
+    private static final Counter REQUEST_ERRORS = Metrics.counter("enclosure.errors", "Enclosure requests that failed or timed out");
+    private static final Counter TELEMETRY = Metrics.counter("enclosure.telemetry", "Telemetry reports pushed by the enclosure");
+
+    private final Map<Integer, CompletableFuture<EnclosureProtocol.Frame>> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final Queue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();  // Work handed to the selector thread
+    private final List<Consumer<EnclosureStatus>> telemetryListeners = new CopyOnWriteArrayList<>();
+
+    private final ByteBuffer in = ByteBuffer.allocate(4 * (EnclosureProtocol.HEADER_SIZE + EnclosureProtocol.MAX_LENGTH));
+    private final Queue<ByteBuffer> out = new ArrayDeque<>();  // Selector thread only
+    private SocketChannel device;  // Selector thread only
+    private volatile boolean connected;
+    private volatile int telemetryPeriod;  // Seconds, sent again when the device reconnects
+    private volatile EnclosureStatus lastStatus;
+
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private volatile Thread selectorThread;
+
+    private EnclosureController() {
+    }
+
+    public static EnclosureController get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Starts listening for the microcontroller. Does nothing if it is already running or turned off.
+     */
+    public synchronized void start() {
+        int port = Integer.getInteger("darksky.enclosure.port", DEFAULT_PORT);
+        if (selectorThread != null || port == 0) {
+            return;
+        }
+        try {
+            selector = Selector.open();
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port));  // All interfaces: the device is on the local network
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            EventLog.error("EnclosureController", "enclosure.start.failed", "port", port, e);
+            return;
+        }
+        selectorThread = new Thread(this::selectLoop, "darksky-enclosure");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+        EventLog.info("EnclosureController", "enclosure.listening", "port", port);
+    }
+
+    /**
+     * Stops listening and waits for the selector thread to drop the connection, so a start straight after can't
+     * have its new selector closed by the old thread.
+     */
+    public synchronized void stop() {
+        if (selectorThread == null) {
+            return;
+        }
+        Thread thread = selectorThread;
+        selectorThread = null;
+        thread.interrupt();
+        selector.wakeup();
+        try {
+            thread.join(STOP_WAIT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (thread.isAlive()) {
+            EventLog.warn("EnclosureController", "enclosure.stop.slow", "waitedMs", STOP_WAIT_MS);
+        }
+        selectorTasks.clear();  // Work for the old connection
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * @return The last status or telemetry report, or null before the first one.
+     */
+    public EnclosureStatus getLastStatus() {
+        return lastStatus;
+    }
+
+    /**
+     * Adds a listener for the telemetry the device pushes. It runs on the selector thread, so it must be quick.
+     */
+    public void addTelemetryListener(Consumer<EnclosureStatus> listener) {
+        telemetryListeners.add(listener);
+    }
+
+    public void removeTelemetryListener(Consumer<EnclosureStatus> listener) {
+        telemetryListeners.remove(listener);
+    }
+
+    /**
+     * @return Completes when the device answers.
+     */
+    public CompletableFuture<Void> ping() {
+        return acknowledged(request(EnclosureProtocol.PING));
+    }
+
+    public CompletableFuture<EnclosureStatus> getStatus() {
+        return request(EnclosureProtocol.GET_STATUS).thenApply(frame -> {
+            expect(frame, EnclosureProtocol.STATUS);
+            EnclosureStatus status = EnclosureProtocol.readStatus(frame.payload);
+            lastStatus = status;
+            return status;
+        });
+    }
+
+    /**
+     * Sets the fan speed.
+     *
+     * @param pwm PWM duty, 0 (off) to 255 (full speed).
+     */
+    public CompletableFuture<Void> setFanSpeed(int pwm) {
+        return acknowledged(request(EnclosureProtocol.SET_FAN_PWM, EnclosureProtocol.fanPwm(pwm)));
+    }
+
+    /**
+     * Sets the temperature at which the fan turns on by itself.
+     *
+     * @param fahrenheit The temperature in °F.
+     */
+    public CompletableFuture<Void> setFanOnTemperature(double fahrenheit) {
+        return acknowledged(request(EnclosureProtocol.SET_FAN_TEMP, EnclosureProtocol.fanTemperature(fahrenheit)));
+    }
+
+    /**
+     * Forces the recording devices (SQM, dew heater, mini PC) on, or hands them back to the schedule.
+     */
+    public CompletableFuture<Void> setRecordingPower(boolean forcedOn) {
+        return acknowledged(request(EnclosureProtocol.SET_POWER, EnclosureProtocol.power(EnclosureProtocol.POWER_RECORDING, forcedOn)));
+    }
+
+    /**
+     * Forces the fan on, or hands it back to the temperature control.
+     */
+    public CompletableFuture<Void> setFanPower(boolean forcedOn) {
+        return acknowledged(request(EnclosureProtocol.SET_POWER, EnclosureProtocol.power(EnclosureProtocol.POWER_FAN, forcedOn)));
+    }
+
+    public CompletableFuture<EnclosureSchedule> getSchedule() {
+        return request(EnclosureProtocol.GET_SCHEDULE).thenApply(frame -> {
+            expect(frame, EnclosureProtocol.SCHEDULE);
+            return EnclosureProtocol.readSchedule(frame.payload);
+        });
+    }
+
+    public CompletableFuture<Void> setSchedule(EnclosureSchedule schedule) {
+        return acknowledged(request(EnclosureProtocol.SET_SCHEDULE, EnclosureProtocol.schedule(schedule)));
+    }
+
+    /**
+     * Asks the device to push its status every periodSeconds. The subscription is sent again whenever the device
+     * reconnects.
+     *
+     * @param periodSeconds Seconds between reports, 0 to stop them.
+     */
+    public CompletableFuture<Void> subscribeTelemetry(int periodSeconds) {
+        byte[] payload = EnclosureProtocol.subscription(periodSeconds);
+        telemetryPeriod = periodSeconds;
+        return acknowledged(request(EnclosureProtocol.SUBSCRIBE, payload));
+    }
+
+    /**
+     * @return A one-line summary, used by the control socket.
+     */
+    public String describe() {
+        if (selectorThread == null) {
+            return "off";
+        }
+        EnclosureStatus status = lastStatus;
+        return (connected ? "connected" : "waiting for the device") + (status != null ? ", " + status : "");
+    }
+
+    // ---- Requests ----
+
+    private CompletableFuture<EnclosureProtocol.Frame> request(int type, byte... payload) {
+        if (!connected) {
+            REQUEST_ERRORS.increment();
+            return CompletableFuture.failedFuture(new IOException("enclosure not connected"));
+        }
+        int id = nextId.updateAndGet(last -> last >= 0xFFFF ? 1 : last + 1);  // 0 is kept for telemetry
+        ByteBuffer frame = EnclosureProtocol.encode(type, id, payload);
+        CompletableFuture<EnclosureProtocol.Frame> reply = new CompletableFuture<>();
+        pending.put(id, reply);
+        long start = System.nanoTime();
+        reply.orTimeout(TIMEOUT_MS, TimeUnit.MILLISECONDS).whenComplete((frameIn, error) -> {
+            pending.remove(id, reply);
+            if (error != null) {
+                REQUEST_ERRORS.increment();
+            } else {
+                REQUEST_TIME.recordSince(start);
+            }
+        });
+        runOnSelector(() -> {
+            if (device == null) {
+                reply.completeExceptionally(new IOException("enclosure disconnected"));
+                return;
+            }
+            queue(frame);
+        });
+        return reply;
+    }
+
+    private static CompletableFuture<Void> acknowledged(CompletableFuture<EnclosureProtocol.Frame> reply) {
+        return reply.thenAccept(frame -> expect(frame, EnclosureProtocol.ACK));
+    }
+
+    private static void expect(EnclosureProtocol.Frame frame, int type) {
+        if (frame.type != type) {
+            throw new IllegalStateException("unexpected reply type " + frame.type);
+        }
+    }
+
+    private void runOnSelector(Runnable task) {
+        selectorTasks.add(task);
+        selector.wakeup();
+    }
+
+    // ---- Selector thread ----
+
+    private void selectLoop() {
+        Selector selector = this.selector;  // This thread's own, even if a later start() replaces the field
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                selector.select();
+                Runnable task;
+                while ((task = selectorTasks.poll()) != null) {
+                    task.run();
+                }
+                for (SelectionKey key : selector.selectedKeys()) {
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else {
+                            if (key.isReadable()) {
+                                read(key);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                write(key);
+                            }
+                        }
+                    } catch (IOException e) {
+                        disconnect(key, e.getMessage());
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException e) {
+            EventLog.error("EnclosureController", "enclosure.selector.failed", e);
+        } finally {
+            for (SelectionKey key : new ArrayList<>(selector.keys())) {
+                disconnect(key, "stopped");
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+                // Shutting down anyway
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        if (device != null) {
+            disconnect(device.keyFor(selector), "replaced by a new connection");  // The device rebooted or reconnected
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);  // Frames are small; don't hold them back
+        channel.register(selector, SelectionKey.OP_READ);
+        device = channel;
+        connected = true;
+        EventLog.info("EnclosureController", "enclosure.connected", "address", channel.getRemoteAddress());
+        if (telemetryPeriod > 0) {
+            subscribeTelemetry(telemetryPeriod).exceptionally(error -> {
+                EventLog.warn("EnclosureController", "enclosure.subscribe.failed", "period", telemetryPeriod, error);
+                return null;
+            });
+        }
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        if (device.read(in) < 0) {
+            disconnect(key, "closed by the device");
+            return;
+        }
+        in.flip();
+        EnclosureProtocol.Frame frame;
+        while ((frame = EnclosureProtocol.decode(in)) != null) {
+            try {
+                handle(frame);
+            } catch (RuntimeException e) {
+                // A short or corrupt payload; drop the frame rather than the selector thread
+                EventLog.warn("EnclosureController", "enclosure.frame.bad", "type", frame.type, e);
+            }
+        }
+        in.compact();
+    }
+
+    private void handle(EnclosureProtocol.Frame frame) {
+        if (frame.type == EnclosureProtocol.TELEMETRY) {
+            EnclosureStatus status = EnclosureProtocol.readStatus(frame.payload);
+            lastStatus = status;
+            TELEMETRY.increment();
+            for (Consumer<EnclosureStatus> listener : telemetryListeners) {
+                try {
+                    listener.accept(status);
+                } catch (RuntimeException e) {
+                    EventLog.error("EnclosureController", "enclosure.listener.failed", "listener", listener, e);
+                }
+            }
+            return;
+        }
+        CompletableFuture<EnclosureProtocol.Frame> reply = pending.remove(frame.id);
+        if (reply == null) {
+            EventLog.debug("EnclosureController", "enclosure.reply.unmatched", "id", frame.id);
+            return;  // Timed out already
+        }
+        if (frame.type == EnclosureProtocol.ERROR) {
+            int code = frame.payload.hasRemaining() ? frame.payload.get() : 0;
+            reply.completeExceptionally(new IOException("enclosure refused the request: " + EnclosureProtocol.errorText(code)));
+        } else {
+            reply.complete(frame);
+        }
+    }
+
+    private void queue(ByteBuffer frame) {
+        out.add(frame);
+        SelectionKey key = device.keyFor(selector);
+        if (key != null && key.isValid()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        ByteBuffer buffer;
+        while ((buffer = out.peek()) != null) {
+            device.write(buffer);
+            if (buffer.hasRemaining()) {
+                return;  // Socket buffer is full; carry on when it drains
+            }
+            out.poll();
+        }
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    private void disconnect(SelectionKey key, String reason) {
+        if (key == null) {
+            return;
+        }
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {
+            // Already gone
+        }
+        if (key.channel() != device) {
+            return;  // The listening socket
+        }
+        device = null;
+        connected = false;
+        out.clear();
+        in.clear();
+        IOException error = new IOException("enclosure disconnected: " + reason);
+        for (CompletableFuture<EnclosureProtocol.Frame> reply : new ArrayList<>(pending.values())) {
+            reply.completeExceptionally(error);
+        }
+        EventLog.warn("EnclosureController", "enclosure.disconnected", "reason", reason);
+    }
+}
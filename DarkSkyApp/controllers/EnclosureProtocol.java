@@ -0,0 +1,191 @@
+package com.darksky.controllers;
+
+import java.nio.ByteBuffer;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * File Header Comment:
+ * This class holds the framed binary protocol spoken between the station and the enclosure microcontroller
+ * (see the MSG_ constants in Microcontroller.cpp, which must stay in step with the ones here).
+ */
+
+/**
+ * Class Header Comment:
+ * EnclosureProtocol builds and reads frames. Every frame is
+ * <pre>
+ *   [0xDA][length: u16][type: u8][request id: u16][payload]
+ * </pre>
+ * with numbers big-endian and the length counting the type, id and payload. A reply has the id of the request
+ * it answers, so several requests can be on the wire at once; telemetry the device pushes by itself has id 0.
+ * The old one-character commands (ServerCommunication.cpp) never start with 0xDA, so both work on the device.
+ */
+final class EnclosureProtocol {
+
+    static final byte MAGIC = (byte) 0xDA;
+    static final int HEADER_SIZE = 6;  // Magic, length, type and id
+    static final int MAX_LENGTH = 64;  // Largest type + id + payload the device accepts
+
+    // Requests
+    static final int PING = 0x01;
+    static final int GET_STATUS = 0x02;
+    static final int SET_FAN_PWM = 0x03;
+    static final int SET_FAN_TEMP = 0x04;
+    static final int SET_POWER = 0x05;
+    static final int GET_SCHEDULE = 0x06;
+    static final int SET_SCHEDULE = 0x07;
+    static final int SUBSCRIBE = 0x08;
+
+    // Replies
+    static final int ACK = 0x81;
+    static final int STATUS = 0x82;
+    static final int SCHEDULE = 0x86;
+    static final int TELEMETRY = 0x90;
+    static final int ERROR = 0xFF;
+
+    // SET_POWER targets
+    static final int POWER_RECORDING = 1;
+    static final int POWER_FAN = 2;
+
+    static final int MAX_SCHEDULES = 5;  // SCHEDULE_SIZE on the device
+
+    /**
+     * One received frame.
+     */
+    static final class Frame {
+        final int type;
+        final int id;
+        final ByteBuffer payload;
+
+        Frame(int type, int id, ByteBuffer payload) {
+            this.type = type;
+            this.id = id;
+            this.payload = payload;
+        }
+    }
+
+    private EnclosureProtocol() {
+    }
+
+    /**
+     * Builds a frame ready to be written.
+     *
+     * @param type    One of the request constants.
+     * @param id      Request id, 1 to 65535.
+     * @param payload The payload bytes, may be empty.
+     * @return The frame, flipped for writing.
+     */
+    static ByteBuffer encode(int type, int id, byte... payload) {
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        frame.put(MAGIC).putShort((short) (payload.length + 3)).put((byte) type).putShort((short) id).put(payload);
+        return frame.flip();
+    }
+
+    /**
+     * Takes the next complete frame out of the receive buffer. Bytes before a magic byte and frames with an
+     * impossible length are skipped, so a corrupt frame costs only itself.
+     *
+     * @param in The receive buffer, in read mode. Left positioned after the returned frame.
+     * @return The frame, or null if no complete frame is in the buffer yet.
+     */
+    static Frame decode(ByteBuffer in) {
+        while (in.remaining() >= 3) {
+            if (in.get(in.position()) != MAGIC) {
+                in.get();  // Not the start of a frame
+                continue;
+            }
+            int length = Short.toUnsignedInt(in.getShort(in.position() + 1));
+            if (length < 3 || length > MAX_LENGTH) {
+                in.get();  // Not a real frame; look for the next magic byte
+                continue;
+            }
+            if (in.remaining() < 3 + length) {
+                return null;  // Wait for the rest
+            }
+            in.get();
+            in.getShort();
+            int type = Byte.toUnsignedInt(in.get());
+            int id = Short.toUnsignedInt(in.getShort());
+            byte[] payload = new byte[length - 3];
+            in.get(payload);
+            return new Frame(type, id, ByteBuffer.wrap(payload));
+        }
+        return null;
+    }
+
+    static byte[] fanPwm(int pwm) {
+        if (pwm < 0 || pwm > 255) {
+            throw new IllegalArgumentException("fan PWM must be 0-255");
+        }
+        return new byte[]{(byte) pwm};
+    }
+
+    static byte[] fanTemperature(double fahrenheit) {
+        return ByteBuffer.allocate(2).putShort((short) Math.round(fahrenheit * 10)).array();
+    }
+
+    static byte[] power(int target, boolean forcedOn) {
+        return new byte[]{(byte) target, (byte) (forcedOn ? 1 : 0)};
+    }
+
+    static byte[] subscription(int periodSeconds) {
+        if (periodSeconds < 0 || periodSeconds > 0xFFFF) {
+            throw new IllegalArgumentException("telemetry period must be 0-65535 s");
+        }
+        return ByteBuffer.allocate(2).putShort((short) periodSeconds).array();
+    }
+
+    static byte[] schedule(EnclosureSchedule schedule) {
+        List<LocalTime> starts = schedule.getStartTimes();
+        ByteBuffer payload = ByteBuffer.allocate(3 + 3 * starts.size());
+        payload.putShort((short) schedule.getDurationMinutes()).put((byte) starts.size());
+        for (LocalTime start : starts) {
+            payload.put((byte) start.getHour()).put((byte) start.getMinute()).put((byte) start.getSecond());
+        }
+        return payload.array();
+    }
+
+    /**
+     * Reads a STATUS or TELEMETRY payload.
+     */
+    static EnclosureStatus readStatus(ByteBuffer payload) {
+        double temperature = payload.getShort() / 10.0;
+        double fanOnTemperature = payload.getShort() / 10.0;
+        int fanSpeed = Short.toUnsignedInt(payload.getShort());
+        int fanPwm = Byte.toUnsignedInt(payload.get());
+        int flags = payload.get();
+        long deviceTime = Integer.toUnsignedLong(payload.getInt());
+        int duration = Short.toUnsignedInt(payload.getShort());
+        return new EnclosureStatus(temperature, fanOnTemperature, fanSpeed, fanPwm, flags, deviceTime, duration);
+    }
+
+    /**
+     * Reads a SCHEDULE payload.
+     */
+    static EnclosureSchedule readSchedule(ByteBuffer payload) {
+        int duration = Short.toUnsignedInt(payload.getShort());
+        int count = Byte.toUnsignedInt(payload.get());
+        List<LocalTime> starts = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            starts.add(LocalTime.of(payload.get(), payload.get(), payload.get()));
+        }
+        return new EnclosureSchedule(duration, starts);
+    }
+
+    /**
+     * @return Text for an ERROR reply's code.
+     */
+    static String errorText(int code) {
+        switch (code) {
+            case 1:
+                return "unknown request";
+            case 2:
+                return "bad length";
+            case 3:
+                return "bad value";
+            default:
+                return "error " + code;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.darksky.controllers;
+
+import java.time.LocalTime;
+import java.util.List;
+
+/**
+ * File Header Comment:
+ * This class holds the recording schedule kept on the enclosure microcontroller.
+ */
+
+/**
+ * Class Header Comment:
+ * EnclosureSchedule is the list of times of day the device powers the SQM, dew heater and mini PC, and how
+ * many minutes they stay on each time. The device holds at most five start times.
+ */
+public final class EnclosureSchedule {
+
+    private final int durationMinutes;
+    private final List<LocalTime> startTimes;
+
+    /**
+     * @param durationMinutes Minutes the recording devices stay on after each start, 0-65535.
+     * @param startTimes      Start times, at most five.
+     */
+    public EnclosureSchedule(int durationMinutes, List<LocalTime> startTimes) {
+        if (durationMinutes < 0 || durationMinutes > 0xFFFF) {
+            throw new IllegalArgumentException("duration must be 0-65535 minutes");
+        }
+        if (startTimes.size() > EnclosureProtocol.MAX_SCHEDULES) {
+            throw new IllegalArgumentException("the enclosure holds at most " + EnclosureProtocol.MAX_SCHEDULES + " start times");
+        }
+        this.durationMinutes = durationMinutes;
+        this.startTimes = List.copyOf(startTimes);
+    }
+
+    public int getDurationMinutes() {
+        return durationMinutes;
+    }
+
+    public List<LocalTime> getStartTimes() {
+        return startTimes;
+    }
+
+    @Override
+    public String toString() {
+        return startTimes + " for " + durationMinutes + " min";
+    }
+}
@@ -0,0 +1,110 @@
+package com.darksky.controllers;
+
+import java.time.Instant;
+
+/**
+ * File Header Comment:
+ * This class holds one status report from the enclosure microcontroller.
+ */
+
+/**
+ * Class Header Comment:
+ * EnclosureStatus is what the device answers to a status request and pushes as telemetry: the enclosure
+ * temperature, the fan settings and which outputs are powered. It never changes once made.
+ */
+public final class EnclosureStatus {
+
+    private static final int RECORDING_ON = 1;
+    private static final int FAN_ON = 2;
+    private static final int RECORDING_FORCED = 4;
+    private static final int FAN_FORCED = 8;
+
+    private final double temperature;
+    private final double fanOnTemperature;
+    private final int fanSpeed;
+    private final int fanPwm;
+    private final int flags;
+    private final long deviceTime;
+    private final int recordingMinutes;
+
+    EnclosureStatus(double temperature, double fanOnTemperature, int fanSpeed, int fanPwm, int flags, long deviceTime, int recordingMinutes) {
+        this.temperature = temperature;
+        this.fanOnTemperature = fanOnTemperature;
+        this.fanSpeed = fanSpeed;
+        this.fanPwm = fanPwm;
+        this.flags = flags;
+        this.deviceTime = deviceTime;
+        this.recordingMinutes = recordingMinutes;
+    }
+
+    /**
+     * @return Enclosure temperature in °F.
+     */
+    public double getTemperature() {
+        return temperature;
+    }
+
+    /**
+     * @return Temperature in °F at which the fan turns on by itself.
+     */
+    public double getFanOnTemperature() {
+        return fanOnTemperature;
+    }
+
+    /**
+     * @return Raw reading of the fan speed input (0-4095).
+     */
+    public int getFanSpeed() {
+        return fanSpeed;
+    }
+
+    /**
+     * @return Fan PWM duty, 0-255.
+     */
+    public int getFanPwm() {
+        return fanPwm;
+    }
+
+    public boolean isRecordingPowered() {
+        return (flags & RECORDING_ON) != 0;
+    }
+
+    public boolean isFanOn() {
+        return (flags & FAN_ON) != 0;
+    }
+
+    /**
+     * @return true if the recording devices were switched on from the station rather than by the schedule.
+     */
+    public boolean isRecordingForced() {
+        return (flags & RECORDING_FORCED) != 0;
+    }
+
+    /**
+     * @return true if the fan was switched on from the station rather than by temperature.
+     */
+    public boolean isFanForced() {
+        return (flags & FAN_FORCED) != 0;
+    }
+
+    /**
+     * @return The device's clock (set by NTP), useful to spot a device that has lost time.
+     */
+    public Instant getDeviceTime() {
+        return Instant.ofEpochSecond(deviceTime);
+    }
+
+    /**
+     * @return How long the recording devices stay on after each scheduled start, in minutes.
+     */
+    public int getRecordingMinutes() {
+        return recordingMinutes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%.1f °F, fan %s (pwm %d, speed %d, on at %.1f °F%s), recording %s%s, device time %s",
+                temperature, isFanOn() ? "on" : "off", fanPwm, fanSpeed, fanOnTemperature, isFanForced() ? ", forced" : "",
+                isRecordingPowered() ? "on" : "off", isRecordingForced() ? " (forced)" : "", getDeviceTime());
+    }
+}
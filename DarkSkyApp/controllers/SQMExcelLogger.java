@@ -1,5 +1,9 @@
 package com.darksky.controllers;
 
+import com.darksky.logging.EventLog;
+import com.darksky.metrics.FlightEvents;
+import com.darksky.metrics.LatencyHistogram;
+import com.darksky.metrics.Metrics;
 import org.apache.poi.ss.usermodel.*;
 import org.apache.poi.xssf.usermodel.*;
 import org.apache.poi.ss.util.*;
@@ -9,6 +13,7 @@ import org.apache.poi.xddf.usermodel.*;
 import java.io.*;
 import java.nio.file.*;
 import java.text.SimpleDateFormat;
+import java.time.LocalDate;
 import java.util.*;
 
 /**
@@ -23,7 +28,16 @@ import java.util.*;
  * If the file does not exist, it creates one, adding a new entry for each measurement.
  */
 public class SQMExcelLogger {
-    private static final String FILE_NAME = System.getProperty("user.home") + "/Documents/DarkSky Reports/";
+    /** The day's workbook, in its day folder. */
+    public static final String WORKBOOK_NAME = "SQM-Measurements-With-Graph.xlsx";
+    /** The sheet of the workbook holding the readings. */
+    public static final String SHEET_NAME = "Measurements";
+
+    private static final LatencyHistogram PARSE_TIME = Metrics.histogram("sqm.parse", "Splitting and checking an SQM response");
+    private static final LatencyHistogram APPEND_TIME = Metrics.histogram("sqm.log.append", "Adding one reading to the workbook, including the save");
+    private static final LatencyHistogram WRITE_TIME = Metrics.histogram("sqm.log.write", "Writing the workbook to disk");
+
+    private static volatile boolean writing;  // The workbook is being read or saved right now
 
     /**
      * Method Header Comment:
@@ -31,21 +45,26 @@ public class SQMExcelLogger {
      * @param measurement The SQM data received as a comma-separated string.
      */
     public static void saveMeasurementToExcelWithGraph(String measurement) {
+        writing = true;
         try {
-            // Split the response into individual values
-            String[] values = measurement.split(",");
+            // Take the response apart into its values
+            long parseStart = System.nanoTime();
+            SQMReading reading = SQMReading.parse(measurement);
 
-            if (values.length < 6) { // Ensures the data has at least 6 values before proceeding.
-                System.out.println("Invalid data format received from SQM.");
+            if (reading == null) { // No sky brightness, nothing worth a row
+                EventLog.warn("SQMExcelLogger", "sqm.format.invalid", "response", measurement);
                 return;
             }
+            PARSE_TIME.recordSince(parseStart);
+            long appendStart = System.nanoTime();
+            FlightEvents.SQMLogWrite event = new FlightEvents.SQMLogWrite();
+            event.begin();
 
             // Get the current date to organize files by day
-            String currentDate = new SimpleDateFormat("yyyy-MM-dd").format(new Date());
-            String filePath = FILE_NAME + currentDate + "/SQM-Measurements-With-Graph.xlsx";
+            Path folderPath = dayFolder(reportsDir(), LocalDate.now());
+            String filePath = folderPath.resolve(WORKBOOK_NAME).toString();
 
             // Ensure the folder exists before writing the file
-            Path folderPath = Paths.get(FILE_NAME + currentDate);
             if (!Files.exists(folderPath)) {
                 Files.createDirectories(folderPath);
             }
@@ -58,14 +77,14 @@ public class SQMExcelLogger {
             if (file.exists()) {
                 try (FileInputStream fis = new FileInputStream(file)) {
                     workbook = new XSSFWorkbook(fis);
-                    sheet = (XSSFSheet) workbook.getSheet("Measurements");
+                    sheet = (XSSFSheet) workbook.getSheet(SHEET_NAME);
                 } catch (IOException e) {
-                    e.printStackTrace();
+                    EventLog.warn("SQMExcelLogger", "workbook.open.failed", "file", filePath, e);
                     return; // Exit if the file cannot be opened
                 }
             } else {
                 workbook = new XSSFWorkbook();
-                sheet = (XSSFSheet) workbook.createSheet("Measurements");
+                sheet = (XSSFSheet) workbook.createSheet(SHEET_NAME);
 
                 // Create and set up the header row
                 Row headerRow = sheet.createRow(0);
@@ -81,22 +100,15 @@ public class SQMExcelLogger {
             Row row = sheet.createRow(lastRow);
 
             row.createCell(0).setCellValue(new SimpleDateFormat("HH:mm:ss").format(new Date())); // Timestamp
-            row.createCell(1).setCellValue(values[0].trim()); // Raw response from SQM
-
-            // Extract the sky brightness value, removing the 'm' character if present
-            String skyBrightnessStr = values[1].trim().replace("m", "");
-            try {
-                double skyBrightness = Double.parseDouble(skyBrightnessStr); // Convert string to number
-                row.createCell(2).setCellValue(skyBrightness); // Store as numeric value in Excel
-            } catch (NumberFormatException e) {
-                System.out.println("Invalid sky brightness value: " + skyBrightnessStr);
-                row.createCell(2).setCellValue(skyBrightnessStr); // Store as a string if parsing fails
-            }
+            int comma = measurement.indexOf(',');
+            row.createCell(1).setCellValue(comma >= 0 ? measurement.substring(0, comma).trim() : ""); // Response type from SQM
 
-            // Add the remaining values from the measurement array
-            for (int i = 2; i < values.length; i++) {
-                row.createCell(i + 1).setCellValue(values[i].trim());
-            }
+            // Store the values as numbers; one the device didn't send is left empty
+            setNumber(row, 2, reading.getBrightness());
+            setNumber(row, 3, reading.getFrequency());
+            setNumber(row, 4, reading.getPeriodCounts());
+            setNumber(row, 5, reading.getPeriod());
+            setNumber(row, 6, reading.getSensorTemperature());
 
             // Create a drawing object for adding a graph to the sheet
             XSSFDrawing drawing = sheet.createDrawingPatriarch();
@@ -143,14 +155,49 @@ public class SQMExcelLogger {
             chart.plot(data);
 
             // Save the updated workbook to the file
+            long writeStart = System.nanoTime();
             try (FileOutputStream fos = new FileOutputStream(file)) {
                 workbook.write(fos);
             }
+            WRITE_TIME.recordSince(writeStart);
 
             workbook.close();
+            APPEND_TIME.recordSince(appendStart);
+            event.rowNumber = lastRow;
+            event.fileSize = file.length();
+            event.commit();
 
         } catch (IOException e) {
-            e.printStackTrace();
+            EventLog.warn("SQMExcelLogger", "workbook.write.failed", e);
+        } finally {
+            writing = false;
+        }
+    }
+
+    private static void setNumber(Row row, int column, float value) {
+        if (!Float.isNaN(value)) {
+            row.createCell(column).setCellValue(Double.parseDouble(Float.toString(value))); // 19.23, not 19.229999542
         }
     }
+
+    /**
+     * @return The DarkSky Reports folder in the user's Documents folder.
+     */
+    public static Path reportsDir() {
+        return Paths.get(System.getProperty("user.home"), "Documents", "DarkSky Reports");
+    }
+
+    /**
+     * @return The folder of one day under the reports folder, named yyyy-MM-dd.
+     */
+    public static Path dayFolder(Path reportsDir, LocalDate date) {
+        return reportsDir.resolve(date.toString());
+    }
+
+    /**
+     * @return true while a reading is being added to the workbook, so background disk work can wait for it.
+     */
+    public static boolean isWriting() {
+        return writing;
+    }
 }
\ No newline at end of file
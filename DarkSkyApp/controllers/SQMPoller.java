@@ -0,0 +1,203 @@
+package com.darksky.controllers;
+
+import com.darksky.logging.EventLog;
+import com.darksky.metrics.Counter;
+import com.darksky.metrics.FlightEvents;
+import com.darksky.metrics.LatencyHistogram;
+import com.darksky.metrics.Metrics;
+import com.darksky.services.ScheduledTask;
+import com.darksky.services.TaskScheduler;
+
+import java.io.*;
+import java.net.*;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * File Header Comment:
+ * This class is responsible for retrieving real-time light pollution data from the SQM-LE
+ * (Sky Quality Meter) device over the network and logging it into an Excel file for future analysis.
+ * It has no user interface, so it runs the same with the dashboard open or in headless mode.
+ */
+
+/**
+ * Class Header Comment:
+ * SQMPoller asks the SQM-LE for a reading once per measurement interval, on a task on the shared
+ * TaskScheduler. Every reading is saved with SQMExcelLogger and handed to the listeners, such as the
+ * SQMDataDisplay label on the dashboard. A request that gets no connection or no reply within
+ * -Ddarksky.sqm.timeoutMs (default 3000) counts as the device being offline.
+ */
+public class SQMPoller implements Runnable {
+
+    // IP address of the SQM-LE device (make sure this is correct!)
+    private static final String SERVER_IP = "192.168.1.74";
+    private static final int PORT = 10001; // The port number used to communicate with the device
+    private static final String ERROR_TEXT = "Error retrieving data";
+    private static final int TIMEOUT_MS = Integer.getInteger("darksky.sqm.timeoutMs", 3000); // For connecting and for the reply
+
+    private volatile int measurementInterval = 5000; // Default: 5 seconds
+    private volatile long lastPollMillis; // When the last measurement was started
+    private volatile String lastMeasurement; // The latest reading, null before the first one
+    private ScheduledTask sqmTask; // This task keeps fetching the data.
+    private final List<Consumer<String>> listeners = new CopyOnWriteArrayList<>();
+
+    private static final LatencyHistogram FETCH_TIME = Metrics.histogram("sqm.fetch", "SQM-LE request round trip");
+    private static final Counter FETCH_ERRORS = Metrics.counter("sqm.fetch.errors", "SQM-LE requests that failed");
+
+    /**
+     * Method Header Comment:
+     * Schedules the SQM poll at a fixed rate of one measurement per interval. Does nothing if it is already running.
+     */
+    public synchronized void start() {
+        if (isRunning()) {
+            return;
+        }
+        sqmTask = TaskScheduler.get().scheduleAtFixedRate("sqm-poll", this, 0, measurementInterval);
+    }
+
+    /**
+     * Stops polling the SQM-LE device.
+     */
+    public synchronized void stop() {
+        if (sqmTask != null) {
+            sqmTask.cancel(); // A request in progress ends within TIMEOUT_MS and its reading is dropped
+            sqmTask = null;
+        }
+    }
+
+    /**
+     * Cancels the current poll and schedules a new one to restart measurements.
+     */
+    public synchronized void reset() {
+        stop();
+        start();
+    }
+
+    public synchronized boolean isRunning() {
+        return sqmTask != null && !sqmTask.isCancelled();
+    }
+
+    /**
+     * Adds a listener that is called with every new reading, on the scheduler thread.
+     *
+     * @param listener Receives the reading text.
+     */
+    public void addListener(Consumer<String> listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Consumer<String> listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Method Header Comment:
+     * Takes one measurement: fetches new light pollution data from the SQM-LE device,
+     * logs it and passes it to the listeners. Called by the scheduler once per interval.
+     */
+    @Override
+    public void run() {
+        lastPollMillis = System.currentTimeMillis();
+        FlightEvents.SQMPoll event = new FlightEvents.SQMPoll();
+        event.begin();
+        String measurement = getSQMMeasurement();
+        event.responseLength = measurement == null ? 0 : measurement.length();
+        event.success = isReading(measurement);
+        event.intervalMillis = measurementInterval;
+        event.commit();
+        if (Thread.currentThread().isInterrupted()) {
+            return; // Cancelled while waiting for the device, don't log a stale reading
+        }
+        lastMeasurement = measurement;
+        for (Consumer<String> listener : listeners) {
+            listener.accept(measurement);
+        }
+        SQMExcelLogger.saveMeasurementToExcelWithGraph(measurement);
+    }
+
+    /**
+     * Method Header Comment:
+     * Connects to the SQM-LE device, requests the latest measurement, and returns the data.
+     *
+     * @return The measurement data as a string, or an error message if something goes wrong.
+     */
+    private String getSQMMeasurement() {
+        long start = System.nanoTime(); // Time the whole round trip, including connecting
+        try (
+                // Open a connection to the SQM-LE device, giving up if it doesn't answer in time
+                Socket socket = connect();
+
+                // Set up a way to send data to the device
+                PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+
+                // Set up a way to receive data from the device
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))
+        ) {
+            // Send the command "rx" (this tells the device to send us the latest data)
+            out.println("rx");
+
+            // Read and return the response from the device
+            String response = in.readLine();
+            FETCH_TIME.recordSince(start);
+            return response;
+        } catch (IOException e) {
+            // If something goes wrong (like the device is offline), log it and return a message
+            FETCH_ERRORS.increment();
+            EventLog.warn("SQMPoller", "sqm.fetch.failed", "error", e.toString());
+            return ERROR_TEXT;
+        }
+    }
+
+    /**
+     * Connects to the SQM-LE. Both the connect and every read give up after TIMEOUT_MS, so an unplugged device
+     * can't hold a scheduler thread, and the poll, for minutes.
+     */
+    private static Socket connect() throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(SERVER_IP, PORT), TIMEOUT_MS);
+            socket.setSoTimeout(TIMEOUT_MS);
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @param measurement A reading passed to the listeners.
+     * @return true if it is a real reading, false if the device couldn't be reached.
+     */
+    public static boolean isReading(String measurement) {
+        return measurement != null && !measurement.equals(ERROR_TEXT);
+    }
+
+    /**
+     * @return The latest reading, or null if there hasn't been one yet.
+     */
+    public String getLastMeasurement() {
+        return lastMeasurement;
+    }
+
+    public int getMeasurementInterval() {
+        return measurementInterval;
+    }
+
+    /**
+     * Changes the time between measurements. The poll is rescheduled so the next reading is due one new
+     * interval after the last one; a request in progress is left to finish.
+     *
+     * @param interval The new interval in milliseconds.
+     */
+    public synchronized void setMeasurementInterval(int interval) {
+        if (interval == measurementInterval) {
+            return;
+        }
+        this.measurementInterval = interval;
+        if (isRunning()) {
+            long sinceLast = System.currentTimeMillis() - lastPollMillis;
+            sqmTask = TaskScheduler.get().scheduleAtFixedRate("sqm-poll", this, Math.max(0, interval - sinceLast), interval);
+        }
+    }
+}
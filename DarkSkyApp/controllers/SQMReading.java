@@ -0,0 +1,95 @@
+package com.darksky.controllers;
+
+/**
+ * File Header Comment:
+ * This class holds one reading from the SQM-LE, taken apart into its numbers.
+ */
+
+/**
+ * Class Header Comment:
+ * The SQM-LE answers a request with a line such as "r, 19.23m,0000022921Hz,0000000020c,0000000.000s, 039.4C":
+ * the sky brightness in mag/arcsec², the sensor frequency, the period in counts, the period in seconds and the
+ * sensor temperature. parse is the one place that reads that line. A value that can't be read is NaN and the
+ * others are still kept. It never changes once made.
+ */
+public final class SQMReading {
+
+    private final float brightness;
+    private final float frequency;
+    private final float periodCounts;
+    private final float period;
+    private final float sensorTemperature;
+
+    private SQMReading(float brightness, float frequency, float periodCounts, float period, float sensorTemperature) {
+        this.brightness = brightness;
+        this.frequency = frequency;
+        this.periodCounts = periodCounts;
+        this.period = period;
+        this.sensorTemperature = sensorTemperature;
+    }
+
+    /**
+     * @param measurement A reading as passed to the SQMPoller listeners.
+     * @return The reading, or null if the device couldn't be reached or the reading has no sky brightness.
+     */
+    public static SQMReading parse(String measurement) {
+        if (!SQMPoller.isReading(measurement)) {
+            return null;
+        }
+        float brightness = Float.NaN, sensorTemperature = Float.NaN, frequency = Float.NaN, periodCounts = Float.NaN, period = Float.NaN;
+        for (String field : measurement.split(",")) {
+            String value = field.trim();
+            try {
+                if (value.endsWith("Hz")) {
+                    frequency = Float.parseFloat(value.substring(0, value.length() - 2));
+                } else if (value.endsWith("m")) {
+                    brightness = Float.parseFloat(value.substring(0, value.length() - 1));
+                } else if (value.endsWith("c")) {
+                    periodCounts = Float.parseFloat(value.substring(0, value.length() - 1));
+                } else if (value.endsWith("C")) {
+                    sensorTemperature = Float.parseFloat(value.substring(0, value.length() - 1));
+                } else if (value.endsWith("s")) {
+                    period = Float.parseFloat(value.substring(0, value.length() - 1));
+                }
+            } catch (NumberFormatException e) {
+                // Leave that value out; the rest of the reading is still worth keeping
+            }
+        }
+        return Float.isNaN(brightness) ? null : new SQMReading(brightness, frequency, periodCounts, period, sensorTemperature);
+    }
+
+    /**
+     * @return Sky brightness in mag/arcsec².
+     */
+    public float getBrightness() {
+        return brightness;
+    }
+
+    /**
+     * @return Sensor frequency in Hz, or NaN.
+     */
+    public float getFrequency() {
+        return frequency;
+    }
+
+    /**
+     * @return Sensor period in counts, or NaN.
+     */
+    public float getPeriodCounts() {
+        return periodCounts;
+    }
+
+    /**
+     * @return Sensor period in seconds, or NaN.
+     */
+    public float getPeriod() {
+        return period;
+    }
+
+    /**
+     * @return Sensor temperature in °C, or NaN.
+     */
+    public float getSensorTemperature() {
+        return sensorTemperature;
+    }
+}
@@ -2,9 +2,12 @@ package com.darksky.imagery;
 
 import javax.swing.*;
 import java.awt.*;
+import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.util.concurrent.CompletableFuture;
 import javax.imageio.ImageIO;
 
 /**
@@ -16,31 +19,47 @@ import javax.imageio.ImageIO;
 /**
  * Class Header Comment:
  * The BackgroundPanel class provides a custom JPanel that loads and displays an image
- * as its background. The image is fetched from a URL and scaled to fill the panel’s size
- * during rendering.
+ * as its background. The image is fetched from a URL and scaled to fill the panel’s size.
+ * The scaled copy is kept in a compatible image (same pixel layout as the screen, so Java2D can keep it in video
+ * memory) and is only rebuilt when the panel's size or screen changes. A repaint, including the small ones caused
+ * by the clock and SQM labels, is then a plain copy of the dirty region instead of a full-screen rescale.
  */
 public class BackgroundPanel extends JPanel {
     // Instance variable to store the background image
-    private Image backgroundImage;  // Stores the background image to be displayed
+    private Image backgroundImage;  // Stores the background image to be displayed, null until it has been decoded
+    private BufferedImage scaledImage;  // backgroundImage scaled to the panel, rebuilt only when the size changes
+    private GraphicsConfiguration scaledFor;  // Screen the cached image was made for
 
     /**
      * Constructor to initialize the BackgroundPanel with a background image from the given URL.
+     * The JPEG is decoded on a background thread so the window can appear before it is ready;
+     * until then the panel shows its background color.
      *
      * @param resourceUrl The URL pointing to the image to be displayed as the background.
-     * @throws IllegalArgumentException if the image cannot be loaded from the provided URL.
+     * @throws IllegalArgumentException if the image resource does not exist.
      */
     public BackgroundPanel(URL resourceUrl) {
-        try {
-            // Check if the resource URL is valid
-            if (resourceUrl == null) {
-                throw new IllegalArgumentException("Image resource not found.");
-            }
-            // Load the image from the URL and assign it to the backgroundImage variable
-            backgroundImage = ImageIO.read(resourceUrl);
-        } catch (IOException e) {
-            e.printStackTrace();  // Print the stack trace in case of an error
-            throw new IllegalArgumentException("Error loading image.");  // Throw an exception if the image cannot be loaded
+        // Check if the resource URL is valid
+        if (resourceUrl == null) {
+            throw new IllegalArgumentException("Image resource not found.");
         }
+        setBackground(Color.BLACK);  // Shown for the moment before the image is decoded
+
+        CompletableFuture.supplyAsync(() -> {
+            try {
+                return ImageIO.read(resourceUrl);  // Load the image from the URL
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }).whenComplete((image, error) -> SwingUtilities.invokeLater(() -> {
+            if (error != null) {
+                error.printStackTrace();  // Print the stack trace in case of an error
+                return;
+            }
+            backgroundImage = image;  // Assign it to the backgroundImage variable
+            scaledImage = null;  // Rebuilt on the next paint
+            repaint();
+        }));
     }
 
     /**
@@ -52,9 +71,47 @@ public class BackgroundPanel extends JPanel {
     protected void paintComponent(Graphics g) {
         super.paintComponent(g);  // Call the parent class's paintComponent method
 
-        // If the background image is not null, draw it scaled to the panel's size
-        if (backgroundImage != null) {
-            g.drawImage(backgroundImage, 0, 0, getWidth(), getHeight(), this);  // Scale the image to fit the panel's size
+        // If the background image is not null, draw the cached copy that is already the panel's size
+        if (backgroundImage != null && getWidth() > 0 && getHeight() > 0) {
+            Graphics2D g2d = (Graphics2D) g;
+            int pixelWidth = (int) Math.ceil(getWidth() * g2d.getTransform().getScaleX());  // Device pixels on HiDPI screens
+            int pixelHeight = (int) Math.ceil(getHeight() * g2d.getTransform().getScaleY());
+            if (scaledImage == null || scaledImage.getWidth() != pixelWidth || scaledImage.getHeight() != pixelHeight
+                    || scaledFor != getGraphicsConfiguration()) {
+                rebuildScaledImage(pixelWidth, pixelHeight);
+            }
+            g.drawImage(scaledImage, 0, 0, getWidth(), getHeight(), this);  // 1:1 in device pixels, only the clip is copied
+        }
+    }
+
+    /**
+     * Scales the background image once into an image with the screen's pixel layout.
+     */
+    private void rebuildScaledImage(int width, int height) {
+        if (scaledImage != null) {
+            scaledImage.flush();
+        }
+        scaledFor = getGraphicsConfiguration();
+        scaledImage = scaledFor != null
+                ? scaledFor.createCompatibleImage(width, height, Transparency.OPAQUE)
+                : new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2d = scaledImage.createGraphics();
+        // Done once per size, so the better (slower) scaling is affordable
+        g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+        g2d.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+        g2d.drawImage(backgroundImage, 0, 0, width, height, null);
+        g2d.dispose();
+    }
+
+    /**
+     * Frees the cached image when the panel is removed from the screen.
+     */
+    @Override
+    public void removeNotify() {
+        super.removeNotify();
+        if (scaledImage != null) {
+            scaledImage.flush();
+            scaledImage = null;
         }
     }
 }
\ No newline at end of file
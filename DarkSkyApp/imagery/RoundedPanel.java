@@ -2,7 +2,7 @@ package com.darksky.imagery;
 
 import javax.swing.*;
 import java.awt.*;
-import java.awt.geom.RoundRectangle2D;
+import java.awt.image.BufferedImage;
 
 /**
  * File Header Comment:
@@ -15,10 +15,15 @@ import java.awt.geom.RoundRectangle2D;
  * The RoundedPanel class extends JPanel and is designed to display a panel with rounded corners.
  * The corner radius can be customized by passing a value to the constructor, allowing for a
  * visually appealing, rounded appearance. The panel's background color is set by the container.
+ * The anti-aliased rounded rectangle is drawn once into a translucent compatible image and reused until the
+ * size or background color changes, so a repaint only has to blend the cached pixels.
  */
 public class RoundedPanel extends JPanel {
     // Instance variable to store the radius of the rounded corners
     private final int cornerRadius;  // The radius of the panel's rounded corners
+    private BufferedImage shapeImage;  // The filled rounded rectangle, rebuilt only when the size or color changes
+    private Color shapeColor;  // Background color the cached image was drawn with
+    private GraphicsConfiguration shapeFor;  // Screen the cached image was made for
 
     /**
      * Constructor to initialize the rounded panel with a specified corner radius.
@@ -41,17 +46,56 @@ public class RoundedPanel extends JPanel {
     @Override
     protected void paintComponent(Graphics g) {
         super.paintComponent(g);  // Call the parent class's paintComponent method to handle basic painting
+        if (getWidth() <= 0 || getHeight() <= 0) {
+            return;
+        }
 
-        // Cast the Graphics object to Graphics2D for better control over rendering
-        Graphics2D g2d = (Graphics2D) g;  // Cast to Graphics2D for improved rendering capabilities
+        Graphics2D g2d = (Graphics2D) g;
+        int pixelWidth = (int) Math.ceil(getWidth() * g2d.getTransform().getScaleX());  // Device pixels on HiDPI screens
+        int pixelHeight = (int) Math.ceil(getHeight() * g2d.getTransform().getScaleY());
+        if (shapeImage == null || shapeImage.getWidth() != pixelWidth || shapeImage.getHeight() != pixelHeight
+                || !getBackground().equals(shapeColor) || shapeFor != getGraphicsConfiguration()) {
+            rebuildShapeImage(pixelWidth, pixelHeight);
+        }
+        g2d.drawImage(shapeImage, 0, 0, getWidth(), getHeight(), this);
+    }
+
+    /**
+     * Draws the rounded rectangle into the cached image, scaled to device pixels.
+     */
+    private void rebuildShapeImage(int width, int height) {
+        if (shapeImage != null) {
+            shapeImage.flush();
+        }
+        shapeColor = getBackground();
+        shapeFor = getGraphicsConfiguration();
+        shapeImage = shapeFor != null
+                ? shapeFor.createCompatibleImage(width, height, Transparency.TRANSLUCENT)
+                : new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+
+        Graphics2D g2d = shapeImage.createGraphics();
 
         // Enable anti-aliasing to smooth the edges of the rounded corners
         g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);  // Enables anti-aliasing for smoother rendering
+        g2d.scale((double) width / getWidth(), (double) height / getHeight());
 
         // Set the color to the background color of the panel
-        g2d.setColor(getBackground());  // Use the current background color of the panel
+        g2d.setColor(shapeColor);  // Use the current background color of the panel
 
         // Fill a rounded rectangle with the specified corner radius
         g2d.fillRoundRect(0, 0, getWidth(), getHeight(), cornerRadius, cornerRadius);  // Draw the rounded rectangle with the specified dimensions and corner radius
+        g2d.dispose();
+    }
+
+    /**
+     * Frees the cached image when the panel is removed from the screen.
+     */
+    @Override
+    public void removeNotify() {
+        super.removeNotify();
+        if (shapeImage != null) {
+            shapeImage.flush();
+            shapeImage = null;
+        }
     }
 }
\ No newline at end of file
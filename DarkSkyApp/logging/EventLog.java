@@ -0,0 +1,300 @@
+package com.darksky.logging;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * File Header Comment:
+ * This class replaces System.out.println on the capture and SQM threads with an asynchronous log.
+ * Messages go to a log file in each day's reports folder instead of blocking on the console.
+ */
+
+/**
+ * Class Header Comment:
+ * EventLog puts each message into a preallocated ring buffer and returns right away; a background thread,
+ * asleep while there is nothing to write and woken by the next message, formats the messages and writes them to "DarkSky Reports/yyyy-MM-dd/DarkSky-yyyy-MM-dd.log", starting a new
+ * file every day. Messages below the level set with -Ddarksky.log.level (default INFO) are dropped before
+ * anything is stored. If the buffer is ever full the message is dropped and counted rather than making the
+ * caller wait. Messages are structured: a source, an event name and up to two key=value fields.
+ * <pre>
+ *   EventLog.info("AutoCapture", "frame.saved", "file", filename, "bytes", length);
+ * </pre>
+ */
+public final class EventLog {
+
+    /**
+     * Log levels from least to most important.
+     */
+    public enum Level { DEBUG, INFO, WARN, ERROR }
+
+    private static final int CAPACITY = 4096;  // Must be a power of two
+    private static final int MASK = CAPACITY - 1;
+
+    private static final Entry[] ring = new Entry[CAPACITY];
+    private static final AtomicLong nextSequence = new AtomicLong();  // Next slot a producer may claim
+    private static volatile long consumedSequence;  // Every slot below this has been written out
+    private static final LongAdder dropped = new LongAdder();
+    private static volatile Level threshold = Level.valueOf(System.getProperty("darksky.log.level", "INFO").toUpperCase());
+    private static volatile Thread writerThread;
+    private static volatile boolean writerParked;  // Set by the writer before it parks; producers then unpark it
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            ring[i] = new Entry();
+            ring[i].sequence = i - CAPACITY;  // Marks every slot as empty
+        }
+    }
+
+    /**
+     * One slot in the ring. Producers fill the fields and then publish by writing the sequence.
+     */
+    private static final class Entry {
+        volatile long sequence;
+        long timeMillis;
+        Level level;
+        String threadName;
+        String source;
+        String event;
+        String key1;
+        Object value1;
+        String key2;
+        Object value2;
+        Throwable error;
+    }
+
+    private EventLog() {
+    }
+
+    public static void setLevel(Level level) {
+        threshold = level;
+    }
+
+    public static boolean isEnabled(Level level) {
+        return level.ordinal() >= threshold.ordinal();
+    }
+
+    public static long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    public static void debug(String source, String event) {
+        log(Level.DEBUG, source, event, null, null, null, null, null);
+    }
+
+    public static void debug(String source, String event, String key, Object value) {
+        log(Level.DEBUG, source, event, key, value, null, null, null);
+    }
+
+    public static void info(String source, String event) {
+        log(Level.INFO, source, event, null, null, null, null, null);
+    }
+
+    public static void info(String source, String event, String key, Object value) {
+        log(Level.INFO, source, event, key, value, null, null, null);
+    }
+
+    public static void info(String source, String event, String key1, Object value1, String key2, Object value2) {
+        log(Level.INFO, source, event, key1, value1, key2, value2, null);
+    }
+
+    public static void warn(String source, String event, String key, Object value) {
+        log(Level.WARN, source, event, key, value, null, null, null);
+    }
+
+    public static void warn(String source, String event, String key1, Object value1, String key2, Object value2) {
+        log(Level.WARN, source, event, key1, value1, key2, value2, null);
+    }
+
+    public static void warn(String source, String event, Throwable error) {
+        log(Level.WARN, source, event, null, null, null, null, error);
+    }
+
+    public static void warn(String source, String event, String key, Object value, Throwable error) {
+        log(Level.WARN, source, event, key, value, null, null, error);
+    }
+
+    public static void error(String source, String event, Throwable error) {
+        log(Level.ERROR, source, event, null, null, null, null, error);
+    }
+
+    public static void error(String source, String event, String key, Object value, Throwable error) {
+        log(Level.ERROR, source, event, key, value, null, null, error);
+    }
+
+    /**
+     * Stores one message in the ring buffer. Never blocks and never does I/O.
+     */
+    private static void log(Level level, String source, String event, String key1, Object value1,
+                            String key2, Object value2, Throwable error) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        ensureWriter();
+
+        // Claim a slot, unless the writer is a whole ring behind
+        long sequence;
+        do {
+            sequence = nextSequence.get();
+            if (sequence - consumedSequence >= CAPACITY) {
+                dropped.increment();
+                return;
+            }
+        } while (!nextSequence.compareAndSet(sequence, sequence + 1));
+
+        Entry entry = ring[(int) (sequence & MASK)];
+        entry.timeMillis = System.currentTimeMillis();
+        entry.level = level;
+        entry.threadName = Thread.currentThread().getName();
+        entry.source = source;
+        entry.event = event;
+        entry.key1 = key1;
+        entry.value1 = value1;
+        entry.key2 = key2;
+        entry.value2 = value2;
+        entry.error = error;
+        entry.sequence = sequence;  // Publishes the entry to the writer thread
+        if (writerParked) {
+            LockSupport.unpark(writerThread);
+        }
+    }
+
+    /**
+     * Waits (up to the timeout) until every message logged so far has been written. Used before the app exits.
+     *
+     * @param timeoutMillis How long to wait at most.
+     */
+    public static void flush(long timeoutMillis) {
+        long target = nextSequence.get();
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (consumedSequence < target && System.currentTimeMillis() < deadline && writerThread != null) {
+            LockSupport.parkNanos(1_000_000);
+        }
+    }
+
+    private static void ensureWriter() {
+        if (writerThread == null) {
+            synchronized (EventLog.class) {
+                if (writerThread == null) {
+                    Thread thread = new Thread(EventLog::writeLoop, "event-log-writer");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    thread.start();
+                    writerThread = thread;
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs on the writer thread: formats published entries and appends them to today's log file.
+     */
+    private static void writeLoop() {
+        DateTimeFormatter timeFormat = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+        StringBuilder line = new StringBuilder(256);
+        LocalDate openDate = null;
+        BufferedWriter out = null;
+        long lastReportedDrops = 0;
+
+        while (true) {
+            long sequence = consumedSequence;
+            Entry entry = ring[(int) (sequence & MASK)];
+            if (entry.sequence != sequence) {
+                // Nothing new: note any dropped messages, push what we have to disk and sleep until a message comes
+                try {
+                    if (out != null) {
+                        lastReportedDrops = reportDrops(out, lastReportedDrops);
+                        out.flush();
+                    }
+                } catch (IOException ignored) {
+                }
+                writerParked = true;
+                if (entry.sequence != sequence) {  // Look again: a message published before writerParked was set won't unpark us
+                    LockSupport.park();
+                }
+                writerParked = false;
+                continue;
+            }
+
+            line.setLength(0);
+            Instant time = Instant.ofEpochMilli(entry.timeMillis);
+            timeFormat.formatTo(time, line);
+            line.append(' ').append(String.format("%-5s", entry.level)).append(" [").append(entry.threadName).append("] ")
+                    .append(entry.source).append(' ').append(entry.event);
+            appendField(line, entry.key1, entry.value1);
+            appendField(line, entry.key2, entry.value2);
+            if (entry.error != null) {
+                StringWriter trace = new StringWriter();
+                entry.error.printStackTrace(new PrintWriter(trace));
+                line.append(System.lineSeparator()).append(trace.toString().trim());
+            }
+            Level level = entry.level;
+
+            // Clear references so the ring doesn't keep old messages alive, then free the slot
+            entry.source = entry.event = entry.key1 = entry.key2 = entry.threadName = null;
+            entry.value1 = entry.value2 = null;
+            entry.error = null;
+            consumedSequence = sequence + 1;
+
+            if (level.ordinal() >= Level.WARN.ordinal()) {
+                System.err.println(line);
+            }
+
+            try {
+                LocalDate date = time.atZone(ZoneId.systemDefault()).toLocalDate();
+                if (!date.equals(openDate)) {  // New day, new file
+                    if (out != null) {
+                        out.close();
+                    }
+                    out = openLogFile(date);
+                    openDate = date;
+                }
+                lastReportedDrops = reportDrops(out, lastReportedDrops);
+                out.append(line);
+                out.newLine();
+            } catch (IOException e) {
+                System.err.println(line);
+                out = null;
+                openDate = null;
+            }
+        }
+    }
+
+    /**
+     * Writes a note to the log if messages were dropped since the last note. Returns the new drop total.
+     */
+    private static long reportDrops(BufferedWriter out, long lastReported) throws IOException {
+        long drops = dropped.sum();
+        if (drops != lastReported) {
+            out.write("(" + (drops - lastReported) + " log messages dropped, buffer was full)");
+            out.newLine();
+        }
+        return drops;
+    }
+
+    private static void appendField(StringBuilder line, String key, Object value) {
+        if (key != null) {
+            line.append(' ').append(key).append('=').append(value);
+        }
+    }
+
+    private static BufferedWriter openLogFile(LocalDate date) throws IOException {
+        Path folder = Paths.get(System.getProperty("user.home"), "Documents", "DarkSky Reports", date.toString());
+        Files.createDirectories(folder);
+        return Files.newBufferedWriter(folder.resolve("DarkSky-" + date + ".log"), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+}
@@ -0,0 +1,168 @@
+package com.darksky.meteor;
+
+import org.opencv.core.Mat;
+
+import java.util.ArrayDeque;
+
+/**
+ * File Header Comment:
+ * This class keeps the last few seconds of full-size frames, so the frames from before a meteor was seen can
+ * still be saved.
+ */
+
+/**
+ * Class Header Comment:
+ * FrameRing is a ring of preallocated Mats. Their pixels live in OpenCV's native memory, off the Java heap, so
+ * holding a second or more of full-size frames costs the garbage collector nothing, and storing a frame is a
+ * copy into memory that already exists. A ring is for frames of one size and type, the ones its capacity was
+ * worked out for; MeteorStage makes a new ring when the camera's frames change. Frames are numbered in the order
+ * they were stored, carrying on from the ring before.
+ * <p>
+ * A slot can be held: from hold(first) until the writer has gone past it, frames from number first on are not
+ * overwritten. If the ring comes round to a held frame, the new frame is not stored (store returns -1) rather
+ * than losing a frame that is about to be saved. Only the stream thread stores; the writer thread only reads
+ * held slots, which no one writes to.
+ */
+final class FrameRing {
+
+    private final int capacity;
+    private final int rows;
+    private final int cols;
+    private final int type;
+    private final Mat[] slots;
+    private final long[] times;
+    private long next;  // Number of the next frame stored, stream thread only
+    private final long start;  // Number of the first frame stored in this ring
+    private final ArrayDeque<Hold> holds = new ArrayDeque<>();  // Oldest first, guarded by this
+
+    /**
+     * Frames kept for one event, from first on, until the writer has passed them.
+     */
+    static final class Hold {
+        private volatile long nextNeeded;
+
+        private Hold(long first) {
+            this.nextNeeded = first;
+        }
+    }
+
+    /**
+     * @param capacity Frames kept.
+     * @param frame    A frame of the size and type the ring is for.
+     * @param first    The number the first stored frame gets.
+     */
+    FrameRing(int capacity, Mat frame, long first) {
+        this.capacity = capacity;
+        this.rows = frame.rows();
+        this.cols = frame.cols();
+        this.type = frame.type();
+        this.slots = new Mat[capacity];
+        this.times = new long[capacity];
+        this.next = first;
+        this.start = first;
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return The number the next stored frame will get.
+     */
+    long getNext() {
+        return next;
+    }
+
+    /**
+     * @return The number of the oldest frame still in the ring.
+     */
+    long getOldest() {
+        return Math.max(start, next - capacity);
+    }
+
+    /**
+     * @return true if the ring is for frames of this size and type.
+     */
+    boolean fits(Mat frame) {
+        return frame.rows() == rows && frame.cols() == cols && frame.type() == type;
+    }
+
+    /**
+     * Copies a frame into the ring. Called on the stream thread.
+     *
+     * @return The frame's number, or -1 if it was not stored because its slot is held or the ring is for
+     * frames of another size.
+     */
+    long store(Mat frame, long timeMillis) {
+        if (!fits(frame) || next - capacity >= oldestHeld()) {
+            return -1;
+        }
+        int slot = (int) (next % capacity);
+        Mat target = slots[slot];
+        if (target == null) {
+            target = new Mat(frame.rows(), frame.cols(), frame.type());
+            slots[slot] = target;
+        }
+        frame.copyTo(target);
+        times[slot] = timeMillis;
+        return next++;
+    }
+
+    /**
+     * @return The frame with the given number. Only valid while it is held (or on the stream thread).
+     */
+    Mat frame(long number) {
+        return slots[(int) (number % capacity)];
+    }
+
+    long time(long number) {
+        return times[(int) (number % capacity)];
+    }
+
+    /**
+     * Keeps frames from first on until the hold is released or moved on.
+     */
+    synchronized Hold hold(long first) {
+        Hold hold = new Hold(first);
+        holds.addLast(hold);
+        return hold;
+    }
+
+    /**
+     * Lets the frames before next be overwritten; the writer calls this as it goes.
+     */
+    void moveOn(Hold hold, long next) {
+        hold.nextNeeded = next;
+    }
+
+    synchronized void release(Hold hold) {
+        holds.remove(hold);
+    }
+
+    /**
+     * @return true while frames are waiting to be written.
+     */
+    synchronized boolean isHeld() {
+        return !holds.isEmpty();
+    }
+
+    private synchronized long oldestHeld() {
+        long oldest = Long.MAX_VALUE;
+        for (Hold hold : holds) {
+            oldest = Math.min(oldest, hold.nextNeeded);
+        }
+        return oldest;
+    }
+
+    /**
+     * Frees the slots. Nothing may be held.
+     */
+    void clear() {
+        for (int i = 0; i < capacity; i++) {
+            if (slots[i] != null) {
+                slots[i].release();
+                slots[i] = null;
+            }
+        }
+    }
+}
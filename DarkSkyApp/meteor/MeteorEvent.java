@@ -0,0 +1,69 @@
+package com.darksky.meteor;
+
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+/**
+ * File Header Comment:
+ * This class describes one saved meteor (or other transient): when it was seen and where its frames are.
+ */
+
+/**
+ * Class Header Comment:
+ * MeteorEvent is made by the writer once an event's frames and its event.csv are on disk, and is what the
+ * control socket's "meteor" command lists.
+ */
+public final class MeteorEvent {
+
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    private final long timeMillis;
+    private final Path folder;
+    private final int frames;
+    private final int detections;
+    private final double longest;
+
+    /**
+     * @param timeMillis When the first streak was seen.
+     * @param folder     Where the frames were saved.
+     * @param frames     Frames saved, before and after included.
+     * @param detections Frames a streak was found in.
+     * @param longest    Length of the longest streak, in full-size pixels.
+     */
+    MeteorEvent(long timeMillis, Path folder, int frames, int detections, double longest) {
+        this.timeMillis = timeMillis;
+        this.folder = folder;
+        this.frames = frames;
+        this.detections = detections;
+        this.longest = longest;
+    }
+
+    public long getTimeMillis() {
+        return timeMillis;
+    }
+
+    public Path getFolder() {
+        return folder;
+    }
+
+    public int getFrames() {
+        return frames;
+    }
+
+    public int getDetections() {
+        return detections;
+    }
+
+    public double getLongest() {
+        return longest;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "%s, streak %.0f px in %d of %d frames, %s",
+                TIME.format(Instant.ofEpochMilli(timeMillis)), longest, detections, frames, folder);
+    }
+}
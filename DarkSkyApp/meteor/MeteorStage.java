@@ -0,0 +1,269 @@
+package com.darksky.meteor;
+
+import com.darksky.logging.EventLog;
+import com.darksky.metrics.Counter;
+import com.darksky.metrics.LatencyHistogram;
+import com.darksky.metrics.Metrics;
+import com.darksky.utils.StreamListener;
+import org.opencv.core.Mat;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * File Header Comment:
+ * This class watches every frame the camera delivers for meteors and other fast events, which the pictures
+ * AutoCapture saves once per interval would miss, and saves only the frames around them.
+ */
+
+/**
+ * Class Header Comment:
+ * MeteorStage is a StreamListener, so while it is registered AutoCapture reads the camera continuously. For
+ * each frame, on the stream thread, it
+ * <ol>
+ *   <li>copies the full-size frame into the FrameRing (native memory, allocated once), and</li>
+ *   <li>runs the StreakDetector on a small grey copy.</li>
+ * </ol>
+ * When a streak is found, the -Ddarksky.meteor.before frames already in the ring (default 15) are held and the
+ * event runs until -Ddarksky.meteor.after frames (default 15) have passed without a streak, or it reaches
+ * -Ddarksky.meteor.maxFrames (default 150). The event is then handed to the MeteorWriter on a thread of its own,
+ * so the stream never waits for the disk; a "meteor.detected" and a "meteor.saved" event go to the EventLog.
+ * <p>
+ * The ring is sized on the first frame, and again whenever the frame size changes: room for two events, but no
+ * more than -Ddarksky.meteor.bufferMB (default 1024) unless that is too small for before + after + 1 frames. -Ddarksky.meteor=true turns the
+ * stage on at startup; the control socket's "meteor on|off" turns it on and off while running. The frames are
+ * saved as the camera gave them, not calibrated.
+ */
+public class MeteorStage implements StreamListener {
+
+    private static final LatencyHistogram STORE_TIME = Metrics.histogram("meteor.store", "Copying a stream frame into the pre-trigger ring");
+    private static final LatencyHistogram DETECT_TIME = Metrics.histogram("meteor.detect", "Looking for a streak in one stream frame");
+    private static final LatencyHistogram WRITE_TIME = Metrics.histogram("meteor.write", "Saving the frames of one meteor event");
+    private static final Counter FRAMES = Metrics.counter("meteor.frames", "Stream frames checked for meteors");
+    private static final Counter DETECTIONS = Metrics.counter("meteor.detections", "Stream frames with a streak in them");
+    private static final Counter EVENTS = Metrics.counter("meteor.events", "Meteor events saved");
+    private static final Counter OVERRUNS = Metrics.counter("meteor.overrun", "Stream frames not kept because the ring was full of frames still being saved");
+    private static final int RECENT_EVENTS = 20;  // Kept for describe()
+
+    private final Path root;
+    private final int before;
+    private final int after;
+    private final int maxFrames;
+    private final long bufferBytes;
+    private final StreakDetector detector;
+    private final ExecutorService writerThread;
+    private final Deque<MeteorEvent> recent = new ConcurrentLinkedDeque<>();
+
+    // Only touched on the stream thread, under this
+    private FrameRing ring;
+    private MeteorWriter writer;
+    private MeteorWriter.Recording recording;
+    private long lastSaved = -1;  // Last frame of the last event, so the next event doesn't save it again
+    private boolean stopped;
+
+    /**
+     * @param root        Where the events go.
+     * @param before      Frames saved from before the first streak.
+     * @param after       Frames saved after the last streak.
+     * @param maxFrames   Most frames saved for one event.
+     * @param bufferBytes Memory the ring may use.
+     * @param detector    Finds the streaks.
+     */
+    MeteorStage(Path root, int before, int after, int maxFrames, long bufferBytes, StreakDetector detector) {
+        this.root = root;
+        this.before = Math.max(0, before);
+        this.after = Math.max(0, after);
+        this.maxFrames = Math.max(this.before + this.after + 1, maxFrames);
+        this.bufferBytes = bufferBytes;
+        this.detector = detector;
+        this.writerThread = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "darksky-meteor-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return A stage set up from the darksky.meteor.* system properties, saving to DarkSky Reports/Meteors.
+     */
+    public static MeteorStage fromProperties() {
+        StreakDetector detector = new StreakDetector(Integer.getInteger("darksky.meteor.width", 640),
+                Double.parseDouble(System.getProperty("darksky.meteor.sigma", "5")), Integer.getInteger("darksky.meteor.minLength", 15));
+        return new MeteorStage(Paths.get(System.getProperty("user.home"), "Documents", "DarkSky Reports", "Meteors"),
+                Integer.getInteger("darksky.meteor.before", 15), Integer.getInteger("darksky.meteor.after", 15),
+                Integer.getInteger("darksky.meteor.maxFrames", 150), Long.getLong("darksky.meteor.bufferMB", 1024) << 20, detector);
+    }
+
+    /**
+     * @return true if the stage should run from startup (-Ddarksky.meteor=true).
+     */
+    public static boolean enabledAtStartup() {
+        return Boolean.getBoolean("darksky.meteor");
+    }
+
+    /**
+     * Keeps the frame and looks for a streak in it. Called by AutoCapture on the stream thread.
+     */
+    @Override
+    public synchronized void frameStreamed(Mat frame, long timeMillis) {
+        if (stopped) {
+            return;
+        }
+        if (ring == null || (!ring.fits(frame) && !ring.isHeld())) {
+            makeRing(frame);  // Until the frames held in the old ring are written, the new ones count as overruns
+        }
+        long start = System.nanoTime();
+        long number = ring.store(frame, timeMillis);
+        STORE_TIME.recordSince(start);
+        if (number < 0) {
+            OVERRUNS.increment();
+        }
+        start = System.nanoTime();
+        StreakDetector.Streak streak = detector.detect(frame);
+        DETECT_TIME.recordSince(start);
+        FRAMES.increment();
+        if (streak != null) {
+            DETECTIONS.increment();
+        }
+
+        if (recording == null) {
+            if (streak != null && number >= 0) {
+                long first = Math.max(Math.max(ring.getOldest(), number - before), lastSaved + 1);
+                recording = new MeteorWriter.Recording(first, timeMillis, ring.hold(first));
+                recording.streaks.put(number, streak);
+                recording.last = Math.min(number + after, first + maxFrames - 1);
+                EventLog.info("MeteorStage", "meteor.detected", "streak", streak);
+                if (number >= recording.last) {
+                    finishRecording();  // No frames wanted after it
+                }
+            }
+        } else if (number < 0) {
+            recording.last = ring.getNext() - 1;  // The ring is full of held frames: save what there is
+            finishRecording();
+        } else {
+            if (streak != null) {
+                recording.streaks.put(number, streak);
+                recording.last = Math.max(recording.last, Math.min(number + after, recording.first + maxFrames - 1));
+            }
+            if (number >= recording.last) {
+                finishRecording();
+            }
+        }
+    }
+
+    /**
+     * Makes a ring sized for frames like this one out of the memory allowed, freeing the old ring if there is one.
+     * Numbering carries on from the old ring, so lastSaved still means the same frame.
+     */
+    private void makeRing(Mat frame) {
+        long frameBytes = Math.max(1, frame.total() * frame.elemSize());
+        long wanted = 2L * (before + maxFrames);
+        int capacity = (int) Math.max(before + after + 1, Math.min(wanted, bufferBytes / frameBytes));
+        long first = 0;
+        if (ring != null) {
+            first = ring.getNext();
+            ring.clear();
+        }
+        ring = new FrameRing(capacity, frame, first);
+        writer = new MeteorWriter(root, ring);
+        EventLog.info("MeteorStage", "meteor.ring", "frames", capacity, "megabytes", capacity * frameBytes >> 20);
+    }
+
+    /**
+     * Hands the event to the writer thread. Its frames stay held in the ring until they are written.
+     */
+    private void finishRecording() {
+        MeteorWriter.Recording done = recording;
+        recording = null;
+        lastSaved = done.last;
+        MeteorWriter eventWriter = writer;
+        writerThread.execute(() -> {
+            long start = System.nanoTime();
+            try {
+                MeteorEvent event = eventWriter.write(done);
+                WRITE_TIME.recordSince(start);
+                EVENTS.increment();
+                recent.addFirst(event);
+                while (recent.size() > RECENT_EVENTS) {
+                    recent.pollLast();
+                }
+                EventLog.info("MeteorStage", "meteor.saved", "event", event);
+            } catch (IOException | RuntimeException e) {
+                EventLog.error("MeteorStage", "meteor.save.failed", "frames", done.last - done.first + 1, e);
+            }
+        });
+    }
+
+    /**
+     * @return The newest saved events first.
+     */
+    public List<MeteorEvent> recentEvents() {
+        return new ArrayList<>(recent);
+    }
+
+    /**
+     * @return A few lines: the ring, the event being recorded and the latest events.
+     */
+    public synchronized String describe() {
+        StringBuilder text = new StringBuilder();
+        if (ring == null) {
+            text.append("no frames yet (is capture running?)\n");
+        } else {
+            text.append("ring of ").append(ring.getCapacity()).append(" frames, ").append(before).append(" before and ")
+                    .append(after).append(" after each streak\n");
+        }
+        if (recording != null) {
+            text.append("recording an event, ").append(recording.streaks.size()).append(" streak(s) so far\n");
+        }
+        text.append("events in ").append(root).append(':');
+        List<MeteorEvent> events = recentEvents();
+        if (events.isEmpty()) {
+            text.append(" none yet");
+        }
+        for (MeteorEvent event : events) {
+            text.append("\n  ").append(event);
+        }
+        return text.toString();
+    }
+
+    /**
+     * Saves the event being recorded, waits a little for the writer and frees the ring. Remove the stage from
+     * AutoCapture first.
+     */
+    public void stop() {
+        synchronized (this) {
+            if (stopped) {
+                return;
+            }
+            stopped = true;
+            if (recording != null) {
+                recording.last = Math.min(recording.last, ring.getNext() - 1);
+                finishRecording();
+            }
+        }
+        writerThread.shutdown();
+        try {
+            if (!writerThread.awaitTermination(30, TimeUnit.SECONDS)) {
+                EventLog.warn("MeteorStage", "meteor.stop.timeout", "root", root);
+                return;  // Leave the ring alone, the writer is still using it
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        synchronized (this) {
+            if (ring != null) {
+                ring.clear();
+            }
+            detector.close();
+        }
+    }
+}
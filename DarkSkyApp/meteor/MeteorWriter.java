@@ -0,0 +1,131 @@
+package com.darksky.meteor;
+
+import org.opencv.imgcodecs.Imgcodecs;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * File Header Comment:
+ * This class saves the frames of a meteor event, and what was seen in them, from the FrameRing to disk.
+ */
+
+/**
+ * Class Header Comment:
+ * MeteorWriter runs on the stage's writer thread. An event goes to
+ * "DarkSky Reports/Meteors/yyyy-MM-dd/HH-mm-ss-SSS/" as frame_000.png, frame_001.png ... (PNG keeps 16-bit
+ * frames whole) and event.csv, one row per frame with its time and the streak found in it, if any. Last, one
+ * row for the event is added to Meteors/meteors.csv, so the events of a whole season can be read from one
+ * file. An event folder without event.csv was cut short and can be deleted.
+ * <p>
+ * Each frame's slot in the ring is let go as soon as the frame is written, so the stream can carry on filling
+ * the ring while a long event is still being saved.
+ */
+final class MeteorWriter {
+
+    private static final DateTimeFormatter DAY = DateTimeFormatter.ofPattern("yyyy-MM-dd").withZone(ZoneId.systemDefault());
+    private static final DateTimeFormatter FOLDER = DateTimeFormatter.ofPattern("HH-mm-ss-SSS").withZone(ZoneId.systemDefault());
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+    private static final String INDEX_HEADER = "Time,Folder,Frames,Detections,X1,Y1,X2,Y2,Length\n";
+
+    /**
+     * The frames of one event, from the first frame kept before the streak to the last one after it.
+     * Made and filled on the stream thread, then handed to the writer.
+     */
+    static final class Recording {
+        final long first;
+        final long triggerMillis;
+        final FrameRing.Hold hold;
+        final Map<Long, StreakDetector.Streak> streaks = new LinkedHashMap<>();  // By frame number
+        long last;
+
+        Recording(long first, long triggerMillis, FrameRing.Hold hold) {
+            this.first = first;
+            this.triggerMillis = triggerMillis;
+            this.hold = hold;
+        }
+
+        StreakDetector.Streak longest() {
+            StreakDetector.Streak longest = null;
+            for (StreakDetector.Streak streak : streaks.values()) {
+                if (longest == null || streak.length() > longest.length()) {
+                    longest = streak;
+                }
+            }
+            return longest;
+        }
+    }
+
+    private final Path root;
+    private final FrameRing ring;
+
+    /**
+     * @param root Where the events go (DarkSky Reports/Meteors).
+     * @param ring Where the frames are.
+     */
+    MeteorWriter(Path root, FrameRing ring) {
+        this.root = root;
+        this.ring = ring;
+    }
+
+    Path getRoot() {
+        return root;
+    }
+
+    /**
+     * Saves an event and lets go of its frames in the ring, also if saving fails.
+     */
+    MeteorEvent write(Recording recording) throws IOException {
+        try {
+            Instant trigger = Instant.ofEpochMilli(recording.triggerMillis);
+            Path folder = root.resolve(DAY.format(trigger)).resolve(FOLDER.format(trigger));
+            Files.createDirectories(folder);
+            StringBuilder rows = new StringBuilder("Frame,Time,File,X1,Y1,X2,Y2,Length,Changed Pixels\n");
+            for (long number = recording.first; number <= recording.last; number++) {
+                int index = (int) (number - recording.first);
+                String file = String.format(Locale.ROOT, "frame_%03d.png", index);
+                if (!Imgcodecs.imwrite(folder.resolve(file).toString(), ring.frame(number))) {
+                    throw new IOException("could not write " + folder.resolve(file));
+                }
+                rows.append(index).append(',').append(TIME.format(Instant.ofEpochMilli(ring.time(number)))).append(',').append(file);
+                StreakDetector.Streak streak = recording.streaks.get(number);
+                ring.moveOn(recording.hold, number + 1);
+                if (streak != null) {
+                    rows.append(String.format(Locale.ROOT, ",%d,%d,%d,%d,%.1f,%d", streak.x1, streak.y1, streak.x2, streak.y2, streak.length(), streak.changedPixels));
+                } else {
+                    rows.append(",,,,,,");
+                }
+                rows.append('\n');
+            }
+            Files.writeString(folder.resolve("event.csv"), rows, StandardCharsets.UTF_8);
+            StreakDetector.Streak longest = recording.longest();
+            int frames = (int) (recording.last - recording.first + 1);
+            appendToIndex(String.format(Locale.ROOT, "%s,%s,%d,%d,%d,%d,%d,%d,%.1f\n", TIME.format(trigger), root.relativize(folder),
+                    frames, recording.streaks.size(), longest.x1, longest.y1, longest.x2, longest.y2, longest.length()));
+            return new MeteorEvent(recording.triggerMillis, folder, frames, recording.streaks.size(), longest.length());
+        } finally {
+            ring.release(recording.hold);
+        }
+    }
+
+    private void appendToIndex(String row) throws IOException {
+        Path index = root.resolve("meteors.csv");
+        boolean fresh = !Files.exists(index);
+        try (Writer out = Files.newBufferedWriter(index, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            if (fresh) {
+                out.write(INDEX_HEADER);
+            }
+            out.write(row);
+        }
+    }
+}
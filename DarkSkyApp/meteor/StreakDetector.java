@@ -0,0 +1,152 @@
+package com.darksky.meteor;
+
+import com.darksky.metrics.Counter;
+import com.darksky.metrics.Metrics;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.Locale;
+
+/**
+ * File Header Comment:
+ * This class looks for a bright streak that appeared since the previous frame: a meteor, a satellite flare or
+ * a plane.
+ */
+
+/**
+ * Class Header Comment:
+ * StreakDetector works on a small grey copy of each frame (-Ddarksky.meteor.width pixels wide, default 640),
+ * so it costs a few milliseconds whatever the camera's resolution. It takes the previous frame off the current
+ * one, keeping only what got brighter, and marks the pixels more than -Ddarksky.meteor.sigma (default 5)
+ * standard deviations above the mean difference. Stars that twinkle give single dots; a meteor gives a line,
+ * which a probabilistic Hough transform finds if it is at least -Ddarksky.meteor.minLength small-frame pixels
+ * long (default 15). If more than MAX_CHANGED of the frame changed (clouds, the exposure, headlights) the frame
+ * is not searched. The longest line is reported in full-size pixels.
+ * <p>
+ * Not thread safe: one per stream. All buffers are kept between frames.
+ */
+final class StreakDetector implements AutoCloseable {
+
+    private static final double MAX_CHANGED = 0.02;  // Share of the frame that may change before it counts as a global change
+    private static final double MIN_LEVEL = 0.01;  // Smallest brightening counted, as a share of full scale, for frames with almost no noise
+    private static final Counter GLOBAL_CHANGES = Metrics.counter("meteor.rejected", "Stream frames not searched because most of the frame changed");
+
+    /**
+     * A line found in a frame, in full-size pixels.
+     */
+    static final class Streak {
+        final int x1;
+        final int y1;
+        final int x2;
+        final int y2;
+        final int changedPixels;  // Small-frame pixels that got brighter
+
+        Streak(int x1, int y1, int x2, int y2, int changedPixels) {
+            this.x1 = x1;
+            this.y1 = y1;
+            this.x2 = x2;
+            this.y2 = y2;
+            this.changedPixels = changedPixels;
+        }
+
+        double length() {
+            return Math.hypot(x2 - x1, y2 - y1);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "(%d,%d)-(%d,%d) %.0f px", x1, y1, x2, y2, length());
+        }
+    }
+
+    private final int width;
+    private final double sigma;
+    private final int minLength;
+    private final Mat small = new Mat();
+    private final Mat grey = new Mat();
+    private Mat current = new Mat();
+    private Mat previous = new Mat();
+    private final Mat difference = new Mat();
+    private final Mat mask = new Mat();
+    private final Mat lines = new Mat();
+    private final Mat joiner = Imgproc.getStructuringElement(Imgproc.MORPH_RECT, new Size(3, 3));
+    private final MatOfDouble mean = new MatOfDouble();
+    private final MatOfDouble deviation = new MatOfDouble();
+    private final int[] line = new int[4];
+
+    /**
+     * @param width     Width of the small copy searched, in pixels.
+     * @param sigma     How far above the noise a pixel must brighten.
+     * @param minLength Shortest line, in small-frame pixels.
+     */
+    StreakDetector(int width, double sigma, int minLength) {
+        this.width = width;
+        this.sigma = sigma;
+        this.minLength = minLength;
+    }
+
+    /**
+     * @return The longest new streak in the frame, or null if there is none (or this is the first frame).
+     */
+    Streak detect(Mat frame) {
+        int height = Math.max(1, (int) Math.round((double) frame.rows() * width / frame.cols()));
+        Imgproc.resize(frame, small, new Size(width, height), 0, 0, Imgproc.INTER_AREA);
+        Mat source = small;
+        if (small.channels() == 3) {
+            Imgproc.cvtColor(small, grey, Imgproc.COLOR_BGR2GRAY);
+            source = grey;
+        }
+        double fullScale = source.depth() == CvType.CV_16U ? 65535 : 255;
+        source.convertTo(current, CvType.CV_32F, 1 / fullScale);
+        boolean comparable = previous.rows() == current.rows() && previous.cols() == current.cols();
+        Mat swap = previous;
+        previous = current;
+        current = swap;
+        if (!comparable) {
+            return null;
+        }
+        // previous now holds this frame and current the one before it
+        Core.subtract(previous, current, difference);
+        Core.meanStdDev(difference, mean, deviation);
+        double level = Math.max(mean.toArray()[0] + sigma * deviation.toArray()[0], MIN_LEVEL);
+        Imgproc.threshold(difference, difference, level, 255, Imgproc.THRESH_BINARY);
+        difference.convertTo(mask, CvType.CV_8U);
+        int changed = Core.countNonZero(mask);
+        if (changed < minLength) {
+            return null;
+        }
+        if (changed > MAX_CHANGED * mask.rows() * mask.cols()) {
+            GLOBAL_CHANGES.increment();
+            return null;
+        }
+        Imgproc.dilate(mask, mask, joiner);  // Joins the dots of a faint streak
+        Imgproc.HoughLinesP(mask, lines, 1, Math.PI / 180, minLength, minLength, 3);
+        double longest = 0;
+        int[] best = null;
+        for (int i = 0; i < lines.rows(); i++) {
+            lines.get(i, 0, line);
+            double length = Math.hypot(line[2] - line[0], line[3] - line[1]);
+            if (length > longest) {
+                longest = length;
+                best = line.clone();
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+        double scale = (double) frame.cols() / width;
+        return new Streak((int) Math.round(best[0] * scale), (int) Math.round(best[1] * scale),
+                (int) Math.round(best[2] * scale), (int) Math.round(best[3] * scale), changed);
+    }
+
+    @Override
+    public void close() {
+        for (Mat mat : new Mat[]{small, grey, current, previous, difference, mask, lines, joiner, mean, deviation}) {
+            mat.release();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.darksky.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * File Header Comment:
+ * This class is a simple event counter used by the metrics registry.
+ */
+
+/**
+ * Class Header Comment:
+ * Counter counts things like failed SQM fetches or saved frames. It uses a LongAdder, so threads
+ * incrementing it at the same time don't block or fight over one memory location.
+ */
+public class Counter {
+
+    private final String name;
+    private final String help;  // One line description shown on the scrape endpoint
+    private final LongAdder count = new LongAdder();
+
+    Counter(String name, String help) {
+        this.name = name;
+        this.help = help;
+    }
+
+    /**
+     * Adds one to the counter.
+     */
+    public void increment() {
+        count.increment();
+    }
+
+    /**
+     * Adds the given amount to the counter.
+     *
+     * @param amount How much to add.
+     */
+    public void add(long amount) {
+        count.add(amount);
+    }
+
+    public long get() {
+        return count.sum();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getHelp() {
+        return help;
+    }
+}
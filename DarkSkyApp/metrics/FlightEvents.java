@@ -0,0 +1,109 @@
+package com.darksky.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * File Header Comment:
+ * This class holds the custom Java Flight Recorder events the application emits. They show up in JDK Mission
+ * Control next to GC and thread events, so a stutter on the field machine can be matched to what the app was doing.
+ */
+
+/**
+ * Class Header Comment:
+ * FlightEvents groups the event types. Each one is used as:
+ * <pre>
+ *   FlightEvents.FrameCapture event = new FlightEvents.FrameCapture();
+ *   event.begin();
+ *   ...
+ *   event.frameId = id;
+ *   event.commit();
+ * </pre>
+ * When no recording is running, begin() and commit() are close to free.
+ */
+public final class FlightEvents {
+
+    private FlightEvents() {
+    }
+
+    @Name("com.darksky.SQMPoll")
+    @Label("SQM Poll")
+    @Category({"DarkSky", "SQM"})
+    @Description("One request to the SQM-LE meter")
+    public static class SQMPoll extends Event {
+        @Label("Response Length")
+        public int responseLength;
+
+        @Label("Success")
+        public boolean success;
+
+        @Label("Poll Interval (ms)")
+        public long intervalMillis;
+    }
+
+    @Name("com.darksky.SQMLogWrite")
+    @Label("SQM Log Write")
+    @Category({"DarkSky", "SQM"})
+    @Description("Appending one reading to the day's workbook and saving it")
+    public static class SQMLogWrite extends Event {
+        @Label("Row")
+        public int rowNumber;
+
+        @Label("File Size")
+        @DataAmount
+        public long fileSize;
+    }
+
+    @Name("com.darksky.FrameCapture")
+    @Label("Frame Capture")
+    @Category({"DarkSky", "Capture"})
+    @Description("AutoCapture reading, encoding and saving one frame")
+    public static class FrameCapture extends Event {
+        @Label("Frame Id")
+        public long frameId;
+
+        @Label("Width")
+        public int width;
+
+        @Label("Height")
+        public int height;
+
+        @Label("Encoded Size")
+        @DataAmount
+        public long encodedBytes;
+
+        @Label("Source")
+        public String source;
+    }
+
+    @Name("com.darksky.PreviewFrame")
+    @Label("Preview Frame")
+    @Category({"DarkSky", "Capture"})
+    @Description("CameraWindow reading and displaying one live video frame")
+    public static class PreviewFrame extends Event {
+        @Label("Frame Id")
+        public long frameId;
+
+        @Label("Width")
+        public int width;
+
+        @Label("Height")
+        public int height;
+    }
+
+    @Name("com.darksky.DayRollover")
+    @Label("Day Rollover")
+    @Category({"DarkSky", "Dashboard"})
+    @Description("Switching the reports folder to a new day")
+    public static class DayRollover extends Event {
+        @Label("Previous Date")
+        public String previousDate;
+
+        @Label("New Date")
+        public String newDate;
+    }
+}
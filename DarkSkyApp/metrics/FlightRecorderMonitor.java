@@ -0,0 +1,116 @@
+package com.darksky.metrics;
+
+import com.darksky.logging.EventLog;
+import jdk.jfr.Configuration;
+import jdk.jfr.consumer.RecordingStream;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.time.Duration;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * File Header Comment:
+ * This class keeps a low-overhead Flight Recorder recording running all the time and saves it to disk
+ * when one of the DarkSky events takes longer than its threshold.
+ */
+
+/**
+ * Class Header Comment:
+ * FlightRecorderMonitor runs the JDK "default" recording profile (about 1% overhead) in memory and keeps the
+ * last few minutes. When a frame capture, SQM poll, log write, preview frame or day rollover is slower than
+ * its threshold, the recording is dumped to DarkSky Reports/diagnostics, at most once per cooldown period.
+ * Thresholds can be changed with -Ddarksky.jfr.frameMs, sqmMs, logMs, previewMs and rolloverMs.
+ * -Ddarksky.jfr=false turns the monitor off.
+ */
+public class FlightRecorderMonitor {
+
+    private static final Duration KEEP = Duration.ofMinutes(10);  // How much history a dump contains
+    private static final long COOLDOWN_MILLIS = 10 * 60 * 1000;  // At most one dump per 10 minutes
+
+    private static RecordingStream stream;
+    private static final AtomicLong lastDumpMillis = new AtomicLong();
+
+    private FlightRecorderMonitor() {
+    }
+
+    /**
+     * Starts the always-on recording. Safe to call more than once.
+     */
+    public static synchronized void start() {
+        if (stream != null || !Boolean.parseBoolean(System.getProperty("darksky.jfr", "true"))) {
+            return;
+        }
+        try {
+            stream = new RecordingStream(Configuration.getConfiguration("default"));
+        } catch (Exception e) {
+            EventLog.warn("FlightRecorderMonitor", "jfr.unavailable", e);
+            return;
+        }
+        stream.setMaxAge(KEEP);
+
+        watch(FlightEvents.FrameCapture.class, "darksky.jfr.frameMs", 5000);
+        watch(FlightEvents.SQMPoll.class, "darksky.jfr.sqmMs", 3000);
+        watch(FlightEvents.SQMLogWrite.class, "darksky.jfr.logMs", 2000);
+        watch(FlightEvents.PreviewFrame.class, "darksky.jfr.previewMs", 250);
+        watch(FlightEvents.DayRollover.class, "darksky.jfr.rolloverMs", 1000);
+
+        stream.startAsync();
+    }
+
+    /**
+     * Enables an event type and dumps the recording whenever one of its events is slower than the threshold.
+     */
+    private static void watch(Class<? extends jdk.jfr.Event> eventType, String property, long defaultMillis) {
+        Duration threshold = Duration.ofMillis(Long.getLong(property, defaultMillis));
+        String name = eventType.getAnnotation(jdk.jfr.Name.class).value();
+        stream.enable(eventType);
+        stream.onEvent(name, event -> {
+            if (event.getDuration().compareTo(threshold) > 0) {
+                dump(name + " took " + event.getDuration().toMillis() + " ms");
+            }
+        });
+    }
+
+    /**
+     * Writes the in-memory recording to a file, unless one was written within the cooldown period.
+     *
+     * @param reason Why the dump was taken, logged with the file name.
+     */
+    public static void dump(String reason) {
+        long now = System.currentTimeMillis();
+        long last = lastDumpMillis.get();
+        if (now - last < COOLDOWN_MILLIS || !lastDumpMillis.compareAndSet(last, now)) {
+            return;
+        }
+
+        // Dump on its own thread so the stream keeps reading events while the file is written
+        Thread dumper = new Thread(() -> {
+            try {
+                Path folder = Paths.get(System.getProperty("user.home"), "Documents", "DarkSky Reports", "diagnostics");
+                Files.createDirectories(folder);
+                Path file = folder.resolve("darksky-" + new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss").format(new Date()) + ".jfr");
+                stream.dump(file);
+                EventLog.warn("FlightRecorderMonitor", "jfr.dumped", "file", file, "reason", reason);
+            } catch (IOException e) {
+                EventLog.error("FlightRecorderMonitor", "jfr.dump.failed", "reason", reason, e);
+            }
+        }, "jfr-dump");
+        dumper.setDaemon(true);
+        dumper.start();
+    }
+
+    /**
+     * Stops the recording.
+     */
+    public static synchronized void stop() {
+        if (stream != null) {
+            stream.close();
+            stream = null;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.darksky.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * File Header Comment:
+ * This class is the one place where the application's counters and latency histograms are kept.
+ * The JMX bean and the local scrape endpoint in MetricsExporter read from here.
+ */
+
+/**
+ * Class Header Comment:
+ * Metrics hands out named counters and histograms. Classes look theirs up once and keep them in a static
+ * field, so the hot paths only pay for the record call itself:
+ * <pre>
+ *   private static final LatencyHistogram FETCH_TIME = Metrics.histogram("sqm.fetch", "SQM request round trip");
+ *   ...
+ *   long start = System.nanoTime();
+ *   ...
+ *   FETCH_TIME.recordSince(start);
+ * </pre>
+ */
+public class Metrics {
+
+    private static final Map<String, Counter> counters = new ConcurrentSkipListMap<>();  // Sorted so the scrape output is stable
+    private static final Map<String, LatencyHistogram> histograms = new ConcurrentSkipListMap<>();
+
+    private Metrics() {
+    }
+
+    /**
+     * Returns the counter with the given name, creating it the first time.
+     *
+     * @param name A dotted name such as "sqm.fetch.errors".
+     * @param help A one line description.
+     * @return The shared counter.
+     */
+    public static Counter counter(String name, String help) {
+        return counters.computeIfAbsent(name, n -> new Counter(n, help));
+    }
+
+    /**
+     * Returns the latency histogram with the given name, creating it the first time.
+     *
+     * @param name A dotted name such as "frame.encode".
+     * @param help A one line description.
+     * @return The shared histogram.
+     */
+    public static LatencyHistogram histogram(String name, String help) {
+        return histograms.computeIfAbsent(name, n -> new LatencyHistogram(n, help));
+    }
+
+    public static Map<String, Counter> getCounters() {
+        return counters;
+    }
+
+    public static Map<String, LatencyHistogram> getHistograms() {
+        return histograms;
+    }
+}
@@ -0,0 +1,166 @@
+package com.darksky.metrics;
+
+import com.darksky.logging.EventLog;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.function.ToLongFunction;
+
+/**
+ * File Header Comment:
+ * This class publishes the metrics registry over JMX and over a small HTTP endpoint on localhost, so we can
+ * see where time goes on the field PC during a long night.
+ */
+
+/**
+ * Class Header Comment:
+ * MetricsExporter registers the Metrics MXBean and serves http://127.0.0.1:&lt;port&gt;/metrics in the
+ * Prometheus text format. The port comes from -Ddarksky.metrics.port (default 9464, 0 turns the endpoint off).
+ * The endpoint only listens on the loopback address so it is never reachable from the network.
+ */
+public class MetricsExporter implements MetricsMXBean {
+
+    private static final int DEFAULT_PORT = 9464;
+    private static HttpServer server;
+
+    private MetricsExporter() {
+    }
+
+    /**
+     * Registers the JMX bean and starts the scrape endpoint. Safe to call more than once.
+     */
+    public static synchronized void start() {
+        try {
+            ObjectName name = new ObjectName("com.darksky:type=Metrics");
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsExporter(), name);
+            }
+        } catch (Exception e) {
+            EventLog.warn("MetricsExporter", "jmx.register.failed", e);
+        }
+
+        int port = Integer.getInteger("darksky.metrics.port", DEFAULT_PORT);
+        if (server != null || port == 0) {
+            return;
+        }
+        try {
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            server.createContext("/metrics", exchange -> {
+                byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            // One daemon thread is plenty for a local scraper and never keeps the app alive
+            server.setExecutor(Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "metrics-http");
+                thread.setDaemon(true);
+                return thread;
+            }));
+            server.start();
+            EventLog.info("MetricsExporter", "endpoint.started", "url", "http://127.0.0.1:" + port + "/metrics");
+        } catch (IOException e) {
+            EventLog.warn("MetricsExporter", "endpoint.failed", "port", port, e);
+        }
+    }
+
+    /**
+     * Stops the scrape endpoint.
+     */
+    public static synchronized void stop() {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+    }
+
+    /**
+     * Builds the Prometheus text output for every counter and histogram.
+     *
+     * @return The scrape body.
+     */
+    public static String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+        for (Counter counter : Metrics.getCounters().values()) {
+            String name = promName(counter.getName()) + "_total";
+            out.append("# HELP ").append(name).append(' ').append(counter.getHelp()).append('\n');
+            out.append("# TYPE ").append(name).append(" counter\n");
+            out.append(name).append(' ').append(counter.get()).append('\n');
+        }
+        for (LatencyHistogram histogram : Metrics.getHistograms().values()) {
+            String name = promName(histogram.getName()) + "_seconds";
+            out.append("# HELP ").append(name).append(' ').append(histogram.getHelp()).append('\n');
+            out.append("# TYPE ").append(name).append(" summary\n");
+            for (double quantile : new double[]{0.5, 0.9, 0.99, 0.999}) {
+                out.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                        .append(seconds(histogram.getPercentile(quantile))).append('\n');
+            }
+            out.append(name).append("_sum ").append(seconds(histogram.getTotalNanos())).append('\n');
+            out.append(name).append("_count ").append(histogram.getCount()).append('\n');
+            // A summary family only allows quantiles, _sum and _count, so the max is its own gauge
+            out.append("# HELP ").append(name).append("_max Largest sample of ").append(name).append('\n');
+            out.append("# TYPE ").append(name).append("_max gauge\n");
+            out.append(name).append("_max ").append(seconds(histogram.getMax())).append('\n');
+        }
+        return out.toString();
+    }
+
+    private static String promName(String name) {
+        return "darksky_" + name.replace('.', '_').replace('-', '_');
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        Map<String, Long> values = new TreeMap<>();
+        Metrics.getCounters().forEach((name, counter) -> values.put(name, counter.get()));
+        return values;
+    }
+
+    @Override
+    public Map<String, Long> getLatencyCounts() {
+        return longsPerHistogram(LatencyHistogram::getCount);
+    }
+
+    @Override
+    public Map<String, Double> getLatencyP50Millis() {
+        return millisPerHistogram(h -> h.getPercentile(0.5));
+    }
+
+    @Override
+    public Map<String, Double> getLatencyP99Millis() {
+        return millisPerHistogram(h -> h.getPercentile(0.99));
+    }
+
+    @Override
+    public Map<String, Double> getLatencyMaxMillis() {
+        return millisPerHistogram(LatencyHistogram::getMax);
+    }
+
+    private static Map<String, Long> longsPerHistogram(ToLongFunction<LatencyHistogram> value) {
+        Map<String, Long> values = new TreeMap<>();
+        Metrics.getHistograms().forEach((name, histogram) -> values.put(name, value.applyAsLong(histogram)));
+        return values;
+    }
+
+    private static Map<String, Double> millisPerHistogram(ToLongFunction<LatencyHistogram> nanos) {
+        Map<String, Double> values = new TreeMap<>();
+        Metrics.getHistograms().forEach((name, histogram) -> values.put(name, nanos.applyAsLong(histogram) / 1e6));
+        return values;
+    }
+}
@@ -0,0 +1,25 @@
+package com.darksky.metrics;
+
+import java.util.Map;
+
+/**
+ * File Header Comment:
+ * This interface is what JConsole / VisualVM show under com.darksky:type=Metrics.
+ */
+
+/**
+ * Class Header Comment:
+ * MetricsMXBean exposes the counters and the main latency percentiles as name to value tables.
+ */
+public interface MetricsMXBean {
+
+    Map<String, Long> getCounters();
+
+    Map<String, Long> getLatencyCounts();
+
+    Map<String, Double> getLatencyP50Millis();
+
+    Map<String, Double> getLatencyP99Millis();
+
+    Map<String, Double> getLatencyMaxMillis();
+}
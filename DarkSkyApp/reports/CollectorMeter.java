@@ -0,0 +1,70 @@
+package com.darksky.reports;
+
+import com.darksky.archive.SqmColumns;
+import com.darksky.timeline.TimelineCollector;
+import com.darksky.timeline.TimelineRecord;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * File Header Comment:
+ * This class reads one station's SQM readings from a TimelineCollector's folder for the report export.
+ */
+
+/**
+ * Class Header Comment:
+ * CollectorMeter asks the collector for the SQM records between the start of the local day and the start of the
+ * next, and turns them into columns. Timeline records carry no period counts, so that column is left empty.
+ */
+final class CollectorMeter implements SqmMeter {
+
+    private final TimelineCollector collector;
+    private final String station;
+
+    CollectorMeter(TimelineCollector collector, String station) {
+        this.collector = collector;
+        this.station = station;
+    }
+
+    @Override
+    public String getName() {
+        return station;
+    }
+
+    @Override
+    public SqmColumns readDay(LocalDate date) throws IOException {
+        ZoneId zone = ZoneId.systemDefault();
+        long from = date.atStartOfDay(zone).toInstant().toEpochMilli();
+        long to = date.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli();
+        return toColumns(collector.read(station, from, to, TimelineRecord.Kind.SQM), zone);
+    }
+
+    /**
+     * Turns the SQM records of one day into columns, in the order of SqmColumns.COLUMNS.
+     *
+     * @return The columns, or null if there were no records.
+     */
+    static SqmColumns toColumns(List<TimelineRecord> readings, ZoneId zone) {
+        if (readings.isEmpty()) {
+            return null;
+        }
+        int rows = readings.size();
+        int[] seconds = new int[rows];
+        float[][] values = new float[SqmColumns.COLUMNS.length][rows];
+        Arrays.fill(values[2], Float.NaN);  // Period counts, not kept in the timeline
+        for (int row = 0; row < rows; row++) {
+            TimelineRecord reading = readings.get(row);
+            seconds[row] = Instant.ofEpochMilli(reading.getTime()).atZone(zone).toLocalTime().toSecondOfDay();
+            values[0][row] = reading.getValue0();  // Brightness
+            values[1][row] = reading.getValue2();  // Frequency
+            values[3][row] = reading.getValue3();  // Period
+            values[4][row] = reading.getValue1();  // Sensor temperature
+        }
+        return new SqmColumns(seconds, values);
+    }
+}
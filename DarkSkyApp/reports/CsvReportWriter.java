@@ -0,0 +1,99 @@
+package com.darksky.reports;
+
+import com.darksky.archive.SqmColumns;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * File Header Comment:
+ * This class writes a report export as CSV: the readings to the chosen file and the nightly summaries next to it
+ * as NAME-nightly.csv.
+ */
+
+/**
+ * Class Header Comment:
+ * CsvReportWriter streams rows straight into a large buffer, so memory use does not grow with the range.
+ * Times are written as "yyyy-MM-dd HH:mm:ss" local time, and values the meter did not give are left empty.
+ * CSV has no charts; export to .xlsx for those.
+ */
+final class CsvReportWriter implements ReportWriter {
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final Path nightlyPath;
+    private final Writer out;
+    private final StringBuilder line = new StringBuilder(128);
+
+    CsvReportWriter(Path target) throws IOException {
+        String name = target.getFileName().toString();
+        nightlyPath = target.resolveSibling(name.substring(0, name.length() - ".csv".length()) + "-nightly.csv");
+        out = new BufferedWriter(Files.newBufferedWriter(target, StandardCharsets.UTF_8), BUFFER_SIZE);
+        out.write("Time,Meter");
+        for (String column : SqmColumns.COLUMNS) {
+            out.write(',');
+            out.write(column);
+        }
+        out.write('\n');
+    }
+
+    @Override
+    public long writeDay(String meter, LocalDate date, SqmColumns day) throws IOException {
+        String prefix = date + " ";
+        for (int row = 0; row < day.getRowCount(); row++) {
+            line.setLength(0);
+            int seconds = day.getSeconds(row);
+            line.append(prefix);
+            twoDigits(seconds / 3600).append(':');
+            twoDigits(seconds / 60 % 60).append(':');
+            twoDigits(seconds % 60).append(',').append(meter);
+            for (int column = 0; column < SqmColumns.COLUMNS.length; column++) {
+                line.append(',');
+                float value = day.getValue(column, row);
+                if (!Float.isNaN(value)) {
+                    line.append(value);
+                }
+            }
+            line.append('\n');
+            out.append(line);
+        }
+        return day.getRowCount();
+    }
+
+    private StringBuilder twoDigits(int value) {
+        return line.append((char) ('0' + value / 10)).append((char) ('0' + value % 10));
+    }
+
+    @Override
+    public void finish(List<String> meters, SortedMap<LocalDate, NightSummary[]> nights) throws IOException {
+        out.flush();
+        try (Writer nightly = Files.newBufferedWriter(nightlyPath, StandardCharsets.UTF_8)) {
+            nightly.write("Night,Meter,Readings,Darkest,Brightest,Mean,Mean Temperature\n");
+            for (Map.Entry<LocalDate, NightSummary[]> night : nights.entrySet()) {
+                for (int meter = 0; meter < meters.size(); meter++) {
+                    NightSummary summary = night.getValue()[meter];
+                    if (summary != null && summary.getCount() > 0) {
+                        double temperature = summary.getMeanTemperature();
+                        nightly.write(String.format(Locale.ROOT, "%s,%s,%d,%.2f,%.2f,%.3f,%s\n", night.getKey(), meters.get(meter),
+                                summary.getCount(), summary.getDarkest(), summary.getBrightest(), summary.getMean(),
+                                Double.isNaN(temperature) ? "" : String.format(Locale.ROOT, "%.1f", temperature)));
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
@@ -0,0 +1,60 @@
+package com.darksky.reports;
+
+/**
+ * File Header Comment:
+ * This class sums up one meter's readings over one night for the Nightly part of an export.
+ */
+
+/**
+ * Class Header Comment:
+ * A night runs from noon to noon and is named after the day it starts on, so the readings of one evening and
+ * the following morning (which are in two day folders) end up together. Readings are added one at a time as
+ * they are written out, so nothing but the totals is kept.
+ */
+final class NightSummary {
+
+    static final int NOON = 12 * 3600;  // Seconds of the day at which a night starts
+
+    private int count;
+    private double sum;
+    private float darkest = Float.NaN;  // Highest mag/arcsec²
+    private float brightest = Float.NaN;
+    private double temperatureSum;
+    private int temperatureCount;
+
+    void add(float brightness, float temperature) {
+        if (!Float.isNaN(brightness)) {
+            count++;
+            sum += brightness;
+            darkest = Float.isNaN(darkest) ? brightness : Math.max(darkest, brightness);
+            brightest = Float.isNaN(brightest) ? brightness : Math.min(brightest, brightness);
+        }
+        if (!Float.isNaN(temperature)) {
+            temperatureSum += temperature;
+            temperatureCount++;
+        }
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    /**
+     * @return The darkest sky of the night in mag/arcsec², NaN if there were no readings.
+     */
+    float getDarkest() {
+        return darkest;
+    }
+
+    float getBrightest() {
+        return brightest;
+    }
+
+    double getMean() {
+        return count == 0 ? Double.NaN : sum / count;
+    }
+
+    double getMeanTemperature() {
+        return temperatureCount == 0 ? Double.NaN : temperatureSum / temperatureCount;
+    }
+}
@@ -0,0 +1,305 @@
+package com.darksky.reports;
+
+import com.darksky.archive.SqmColumns;
+import com.darksky.controllers.SQMExcelLogger;
+import com.darksky.logging.EventLog;
+import com.darksky.metrics.Counter;
+import com.darksky.metrics.LatencyHistogram;
+import com.darksky.metrics.Metrics;
+import com.darksky.timeline.StationTimeline;
+import com.darksky.timeline.TimelineCollector;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * File Header Comment:
+ * This class exports the SQM readings of any date range and any set of meters to one XLSX or CSV file, instead
+ * of opening a workbook per day by hand.
+ */
+
+/**
+ * Class Header Comment:
+ * ReportExport splits the range into meter-days. Reading a day (opening its workbook, above all) is the slow
+ * part and days don't depend on each other, so they are read on a fork/join pool, split in halves down to
+ * single days. Writing must keep the order and is done by the calling thread, one window of days at a time,
+ * while the pool reads the next window:
+ * <pre>
+ *   pool:    read window 1 | read window 2  | read window 3  | ...
+ *   caller:                | write window 1 | write window 2 | ...
+ * </pre>
+ * At most two windows of days are held at once, and the writers stream their rows to disk (see
+ * XlsxReportWriter), so memory stays the same for a week or a year. A day that can't be read is skipped and
+ * counted in the result rather than failing the whole export. -Ddarksky.report.threads sets the pool size
+ * (default one per core).
+ */
+public class ReportExport {
+
+    /**
+     * Told how far an export has got, on the exporting thread, after each window of days.
+     */
+    public interface Progress {
+        /**
+         * @param done          Meter-days written so far.
+         * @param total         Meter-days in the export.
+         * @param rows          Readings written so far.
+         * @param rowsPerSecond Readings written per second since the start.
+         */
+        void update(int done, int total, long rows, double rowsPerSecond);
+    }
+
+    /**
+     * What an export wrote.
+     */
+    public static final class Result {
+        private final Path target;
+        private final int meterDays;
+        private final int unreadable;
+        private final long rows;
+        private final long millis;
+
+        Result(Path target, int meterDays, int unreadable, long rows, long millis) {
+            this.target = target;
+            this.meterDays = meterDays;
+            this.unreadable = unreadable;
+            this.rows = rows;
+            this.millis = millis;
+        }
+
+        public Path getTarget() {
+            return target;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+
+        /**
+         * @return Meter-days that had files which could not be read, and were left out.
+         */
+        public int getUnreadable() {
+            return unreadable;
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%d readings from %d meter-days in %.1f s (%.0f readings/s)%s -> %s",
+                    rows, meterDays, millis / 1000.0, rows * 1000.0 / Math.max(1, millis),
+                    unreadable > 0 ? ", " + unreadable + " unreadable" : "", target);
+        }
+    }
+
+    private static final int WINDOW_PER_THREAD = 4;  // Days read ahead per pool thread
+
+    private static final LatencyHistogram EXPORT_TIME = Metrics.histogram("report.export", "Exporting a date range, start to finish");
+    private static final LatencyHistogram DAY_READ_TIME = Metrics.histogram("report.day.read", "Reading one meter-day for an export");
+    private static final Counter ROWS_EXPORTED = Metrics.counter("report.rows", "Readings written by report exports");
+    private static final Counter DAYS_UNREADABLE = Metrics.counter("report.days.unreadable", "Meter-days an export skipped because they could not be read");
+
+    private final List<SqmMeter> meters;
+    private final LocalDate from;
+    private final LocalDate to;
+    private final int threads;
+
+    /**
+     * @param meters The meters to export, in the order they appear in the file.
+     * @param from   First day, local time.
+     * @param to     Last day, included.
+     */
+    public ReportExport(List<SqmMeter> meters, LocalDate from, LocalDate to) {
+        if (meters.isEmpty()) {
+            throw new IllegalArgumentException("no meters to export");
+        }
+        if (to.isBefore(from)) {
+            throw new IllegalArgumentException("the range ends before it starts");
+        }
+        this.meters = meters;
+        this.from = from;
+        this.to = to;
+        this.threads = Integer.getInteger("darksky.report.threads", Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Finds meters by name.
+     *
+     * @param names "local" (or blank) for this station, "all" for this station and every station the
+     *              collector holds (-Ddarksky.collector.dir), or a comma separated list of those names.
+     * @return The meters, in the order given.
+     * @throws IllegalArgumentException if a name is not a known meter.
+     */
+    public static List<SqmMeter> meters(String names) throws IOException {
+        String localName = System.getProperty("darksky.station.id", "local");
+        SqmMeter local = SqmMeter.reportFolders(localName, SQMExcelLogger.reportsDir(), StationTimeline.get());
+        TimelineCollector collector = TimelineCollector.fromProperties();
+        List<String> stations = Files.isDirectory(collector.getRoot()) ? collector.stations() : List.of();
+        List<SqmMeter> meters = new ArrayList<>();
+        if (names == null || names.isBlank()) {
+            meters.add(local);
+        } else if (names.equals("all")) {
+            meters.add(local);
+            for (String station : stations) {
+                meters.add(SqmMeter.collected(collector, station));
+            }
+        } else {
+            for (String name : names.split(",")) {
+                name = name.trim();
+                if (name.equals("local") || name.equals(localName)) {
+                    meters.add(local);
+                } else if (stations.contains(name)) {
+                    meters.add(SqmMeter.collected(collector, name));
+                } else {
+                    throw new IllegalArgumentException("unknown meter " + name + ", try local, all or one of " + stations);
+                }
+            }
+        }
+        return meters;
+    }
+
+    /**
+     * @param extension "xlsx" or "csv".
+     * @return Where an export of the range goes by default: the Exports folder under DarkSky Reports.
+     */
+    public static Path defaultTarget(LocalDate from, LocalDate to, String extension) {
+        return SQMExcelLogger.reportsDir().resolve("Exports").resolve("SQM " + from + " to " + to + "." + extension);
+    }
+
+    /**
+     * Runs the export. Blocks until the file is written.
+     *
+     * @param target   The file to write; its extension (.xlsx or .csv) picks the format.
+     * @param progress Told how far it has got, or null.
+     * @return What was written.
+     */
+    public Result export(Path target, Progress progress) throws IOException {
+        long start = System.nanoTime();
+        String fileName = target.getFileName().toString().toLowerCase(Locale.ROOT);
+        if (!fileName.endsWith(".xlsx") && !fileName.endsWith(".csv")) {
+            throw new IllegalArgumentException("export to a .xlsx or .csv file");
+        }
+        if (target.getParent() != null) {
+            Files.createDirectories(target.getParent());
+        }
+
+        List<String> names = new ArrayList<>();
+        for (SqmMeter meter : meters) {
+            names.add(meter.getName());
+        }
+        int days = (int) (to.toEpochDay() - from.toEpochDay() + 1);
+        int total = days * meters.size();  // Meter-day i is day i / meters, meter i % meters
+        SqmColumns[] loaded = new SqmColumns[total];
+        boolean[] failed = new boolean[total];
+        SortedMap<LocalDate, NightSummary[]> nights = new TreeMap<>();
+        int window = Math.max(1, threads * WINDOW_PER_THREAD);
+        long rows = 0;
+        int unreadable = 0;
+
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+        try (ReportWriter writer = fileName.endsWith(".csv") ? new CsvReportWriter(target) : new XlsxReportWriter(target)) {
+            ForkJoinTask<Void> reading = pool.submit(new ReadTask(loaded, failed, 0, Math.min(window, total)));
+            for (int first = 0; first < total; first += window) {
+                int end = Math.min(total, first + window);
+                ForkJoinTask<Void> current = reading;
+                reading = end < total ? pool.submit(new ReadTask(loaded, failed, end, Math.min(total, end + window))) : null;
+                current.join();  // Usually done already: reading is faster than writing
+                for (int index = first; index < end; index++) {
+                    LocalDate date = from.plusDays(index / meters.size());
+                    int meter = index % meters.size();
+                    if (failed[index]) {
+                        unreadable++;
+                    } else if (loaded[index] != null) {
+                        rows += writer.writeDay(names.get(meter), date, loaded[index]);
+                        summarize(nights, loaded[index], date, meter);
+                    }
+                    loaded[index] = null;  // Done with it
+                }
+                if (progress != null) {
+                    progress.update(end, total, rows, rows * 1e9 / Math.max(1, System.nanoTime() - start));
+                }
+            }
+            writer.finish(names, nights);
+        } finally {
+            pool.shutdownNow();
+        }
+
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        EXPORT_TIME.recordSince(start);
+        ROWS_EXPORTED.add(rows);
+        Result result = new Result(target, total, unreadable, rows, millis);
+        EventLog.info("ReportExport", "report.exported", "rows", rows, "millis", millis);
+        return result;
+    }
+
+    /**
+     * Adds one meter-day to the nightly summaries. Readings before noon belong to the night that started the day
+     * before.
+     */
+    private void summarize(SortedMap<LocalDate, NightSummary[]> nights, SqmColumns day, LocalDate date, int meter) {
+        int noon = day.indexOf(NightSummary.NOON);
+        summarize(nights, day, date.minusDays(1), meter, 0, noon);
+        summarize(nights, day, date, meter, noon, day.getRowCount());
+    }
+
+    private void summarize(SortedMap<LocalDate, NightSummary[]> nights, SqmColumns day, LocalDate night, int meter, int fromRow, int toRow) {
+        if (fromRow == toRow || night.isBefore(from) || night.isAfter(to)) {
+            return;
+        }
+        NightSummary[] summaries = nights.computeIfAbsent(night, date -> new NightSummary[meters.size()]);
+        if (summaries[meter] == null) {
+            summaries[meter] = new NightSummary();
+        }
+        for (int row = fromRow; row < toRow; row++) {
+            summaries[meter].add(day.getValue(0, row), day.getValue(4, row));
+        }
+    }
+
+    /**
+     * Reads a range of meter-days, splitting it in halves until each task has one.
+     */
+    private final class ReadTask extends RecursiveAction {
+        private final SqmColumns[] loaded;
+        private final boolean[] failed;
+        private final int first;
+        private final int end;
+
+        ReadTask(SqmColumns[] loaded, boolean[] failed, int first, int end) {
+            this.loaded = loaded;
+            this.failed = failed;
+            this.first = first;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - first > 1) {
+                int middle = (first + end) >>> 1;
+                invokeAll(new ReadTask(loaded, failed, first, middle), new ReadTask(loaded, failed, middle, end));
+                return;
+            }
+            LocalDate date = from.plusDays(first / meters.size());
+            SqmMeter meter = meters.get(first % meters.size());
+            long start = System.nanoTime();
+            try {
+                loaded[first] = meter.readDay(date);
+                DAY_READ_TIME.recordSince(start);
+            } catch (IOException e) {
+                failed[first] = true;
+                DAYS_UNREADABLE.increment();
+                EventLog.warn("ReportExport", "report.day.unreadable", "day", meter.getName() + " " + date, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.darksky.reports;
+
+import com.darksky.archive.SqmColumns;
+import com.darksky.controllers.SQMExcelLogger;
+import com.darksky.logging.EventLog;
+import com.darksky.timeline.StationTimeline;
+import com.darksky.timeline.TimelineRecord;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.ZoneId;
+
+/**
+ * File Header Comment:
+ * This class reads this station's SQM readings from its DarkSky Reports folders for the report export.
+ */
+
+/**
+ * Class Header Comment:
+ * ReportFolderMeter takes each day from the best file the folder has:
+ * <ul>
+ *   <li>sqm.cols, left by ArchiveCompactor, which reads in a millisecond;</li>
+ *   <li>SQM-Measurements-With-Graph.xlsx, which has every column but is slow to open;</li>
+ *   <li>the SQM readings in timeline.dat, for a day whose workbook is missing or is being written right now.</li>
+ * </ul>
+ */
+final class ReportFolderMeter implements SqmMeter {
+
+    private final String name;
+    private final Path reportsDir;
+    private final StationTimeline timeline;
+
+    ReportFolderMeter(String name, Path reportsDir, StationTimeline timeline) {
+        this.name = name;
+        this.reportsDir = reportsDir;
+        this.timeline = timeline;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public SqmColumns readDay(LocalDate date) throws IOException {
+        Path day = SQMExcelLogger.dayFolder(reportsDir, date);
+        if (!Files.isDirectory(day)) {
+            return null;
+        }
+        SqmColumns columns = SqmColumns.open(day);
+        if (columns != null) {
+            return columns;
+        }
+        Path workbookPath = day.resolve(SQMExcelLogger.WORKBOOK_NAME);
+        if (Files.exists(workbookPath)) {
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(workbookPath)); Workbook workbook = new XSSFWorkbook(in)) {
+                return SqmColumns.fromSheet(workbook.getSheet(SQMExcelLogger.SHEET_NAME));
+            } catch (IOException | RuntimeException e) {
+                // Today's workbook is rewritten on every reading and may be caught half written
+                EventLog.debug("ReportFolderMeter", "report.workbook.unreadable", "day", date);
+            }
+        }
+        ZoneId zone = ZoneId.systemDefault();
+        return CollectorMeter.toColumns(timeline.read(date.atStartOfDay(zone).toInstant(),
+                date.plusDays(1).atStartOfDay(zone).toInstant(), TimelineRecord.Kind.SQM), zone);
+    }
+}
@@ -0,0 +1,39 @@
+package com.darksky.reports;
+
+import com.darksky.archive.SqmColumns;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.SortedMap;
+
+/**
+ * File Header Comment:
+ * This interface is one output format of the report export.
+ */
+
+/**
+ * Class Header Comment:
+ * ReportWriter is only ever called from the export's own thread, in order: writeDay for each meter and day,
+ * oldest day first, then finish once with the nightly summaries, then close.
+ */
+interface ReportWriter extends AutoCloseable {
+
+    /**
+     * Writes one day of one meter's readings.
+     *
+     * @return The number of rows written.
+     */
+    long writeDay(String meter, LocalDate date, SqmColumns day) throws IOException;
+
+    /**
+     * Writes the nightly summaries and everything still buffered.
+     *
+     * @param meters Meter names, in the order of the arrays in nights.
+     * @param nights One summary per meter for each night, null where a meter has nothing that night.
+     */
+    void finish(List<String> meters, SortedMap<LocalDate, NightSummary[]> nights) throws IOException;
+
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,59 @@
+package com.darksky.reports;
+
+import com.darksky.archive.SqmColumns;
+import com.darksky.timeline.StationTimeline;
+import com.darksky.timeline.TimelineCollector;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.LocalDate;
+
+/**
+ * File Header Comment:
+ * This interface is one SQM meter whose readings can be exported: this station's own, or another station's
+ * as kept by a TimelineCollector.
+ */
+
+/**
+ * Class Header Comment:
+ * SqmMeter hands ReportExport one day of readings at a time. Days are independent of each other, so
+ * readDay may be called for several days at once from different threads.
+ */
+public interface SqmMeter {
+
+    /**
+     * @return The name shown in the export, e.g. the station id.
+     */
+    String getName();
+
+    /**
+     * Reads the readings taken on one day, local time.
+     *
+     * @param date The day.
+     * @return The day's readings in time order, or null if the meter has none for that day.
+     * @throws IOException if the day's files are there but can't be read.
+     */
+    SqmColumns readDay(LocalDate date) throws IOException;
+
+    /**
+     * A meter read from a station's report folders: the day's sqm.cols if it was archived, otherwise the SQM
+     * workbook, otherwise the SQM readings in the day's timeline.
+     *
+     * @param name       Name to show for it.
+     * @param reportsDir The DarkSky Reports folder.
+     * @param timeline   The timeline kept in the same folder.
+     */
+    static SqmMeter reportFolders(String name, Path reportsDir, StationTimeline timeline) {
+        return new ReportFolderMeter(name, reportsDir, timeline);
+    }
+
+    /**
+     * A meter read from the records a TimelineCollector holds for one station.
+     *
+     * @param collector The collector (it does not need to be started).
+     * @param station   The station id.
+     */
+    static SqmMeter collected(TimelineCollector collector, String station) {
+        return new CollectorMeter(collector, station);
+    }
+}
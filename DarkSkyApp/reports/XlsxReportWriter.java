@@ -0,0 +1,201 @@
+package com.darksky.reports;
+
+import com.darksky.archive.SqmColumns;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.xddf.usermodel.chart.AxisPosition;
+import org.apache.poi.xddf.usermodel.chart.ChartTypes;
+import org.apache.poi.xddf.usermodel.chart.LegendPosition;
+import org.apache.poi.xddf.usermodel.chart.XDDFCategoryAxis;
+import org.apache.poi.xddf.usermodel.chart.XDDFChartData;
+import org.apache.poi.xddf.usermodel.chart.XDDFDataSource;
+import org.apache.poi.xddf.usermodel.chart.XDDFDataSourcesFactory;
+import org.apache.poi.xddf.usermodel.chart.XDDFValueAxis;
+import org.apache.poi.xssf.streaming.SXSSFSheet;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.apache.poi.xssf.usermodel.XSSFChart;
+import org.apache.poi.xssf.usermodel.XSSFClientAnchor;
+import org.apache.poi.xssf.usermodel.XSSFDrawing;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.SortedMap;
+
+/**
+ * File Header Comment:
+ * This class writes a report export as an Excel workbook with the readings, a nightly summary and charts.
+ */
+
+/**
+ * Class Header Comment:
+ * XlsxReportWriter uses POI's streaming workbook (SXSSF): only the last few hundred rows are kept in memory
+ * and the rest go to a compressed temporary file, so a year of readings from several meters takes the same
+ * memory as a day. The sheets are:
+ * <ul>
+ *   <li>Readings (Readings 2, 3 ... past Excel's 1,048,576 rows): time, meter and the SQM columns;</li>
+ *   <li>Nightly: per night, each meter's number of readings, darkest sky, mean and mean temperature, with a
+ *       chart of the darkest sky and one of the temperature per night.</li>
+ * </ul>
+ * The charts are drawn from the nightly table rather than the readings, because a line of a million points
+ * is unreadable and makes Excel crawl; their values are also put in the chart itself, since the rows they
+ * point at are no longer in memory when the chart is made.
+ */
+final class XlsxReportWriter implements ReportWriter {
+
+    private static final int ROWS_IN_MEMORY = 500;
+    private static final int MAX_ROWS = 1_048_576;  // Per sheet, Excel 2007 and later
+    private static final int EXCEL_EPOCH_OFFSET = 25569;  // Days from Excel's day 0 (1899-12-30) to 1970-01-01
+    private static final int NIGHTLY_COLUMNS = 4;  // Per meter: readings, darkest, mean, temperature
+
+    private final Path target;
+    private final SXSSFWorkbook workbook = new SXSSFWorkbook(ROWS_IN_MEMORY);
+    private final CellStyle timeStyle;
+    private final CellStyle dateStyle;
+    private Sheet readings;
+    private int sheetCount;
+    private int nextRow;
+
+    XlsxReportWriter(Path target) {
+        this.target = target;
+        workbook.setCompressTempFiles(true);  // A year of readings is gigabytes of sheet XML before zipping
+        timeStyle = workbook.createCellStyle();
+        timeStyle.setDataFormat(workbook.createDataFormat().getFormat("yyyy-mm-dd hh:mm:ss"));
+        dateStyle = workbook.createCellStyle();
+        dateStyle.setDataFormat(workbook.createDataFormat().getFormat("yyyy-mm-dd"));
+        newReadingsSheet();
+    }
+
+    private void newReadingsSheet() {
+        sheetCount++;
+        readings = workbook.createSheet(sheetCount == 1 ? "Readings" : "Readings " + sheetCount);
+        readings.setColumnWidth(0, 20 * 256);
+        readings.createFreezePane(0, 1);
+        Row header = readings.createRow(0);
+        header.createCell(0).setCellValue("Time");
+        header.createCell(1).setCellValue("Meter");
+        for (int column = 0; column < SqmColumns.COLUMNS.length; column++) {
+            header.createCell(column + 2).setCellValue(SqmColumns.COLUMNS[column]);
+        }
+        nextRow = 1;
+    }
+
+    @Override
+    public long writeDay(String meter, LocalDate date, SqmColumns day) {
+        double dayNumber = date.toEpochDay() + EXCEL_EPOCH_OFFSET;
+        for (int index = 0; index < day.getRowCount(); index++) {
+            if (nextRow == MAX_ROWS) {
+                newReadingsSheet();
+            }
+            Row row = readings.createRow(nextRow++);
+            Cell time = row.createCell(0);
+            time.setCellValue(dayNumber + day.getSeconds(index) / 86400.0);  // Excel keeps times as fractions of a day
+            time.setCellStyle(timeStyle);
+            row.createCell(1).setCellValue(meter);
+            for (int column = 0; column < SqmColumns.COLUMNS.length; column++) {
+                float value = day.getValue(column, index);
+                if (!Float.isNaN(value)) {
+                    row.createCell(column + 2).setCellValue(value);
+                }
+            }
+        }
+        return day.getRowCount();
+    }
+
+    @Override
+    public void finish(List<String> meters, SortedMap<LocalDate, NightSummary[]> nights) throws IOException {
+        SXSSFSheet sheet = workbook.createSheet("Nightly");
+        Row header = sheet.createRow(0);
+        header.createCell(0).setCellValue("Night");
+        for (int meter = 0; meter < meters.size(); meter++) {
+            int first = 1 + meter * NIGHTLY_COLUMNS;
+            header.createCell(first).setCellValue(meters.get(meter) + " readings");
+            header.createCell(first + 1).setCellValue(meters.get(meter) + " darkest");
+            header.createCell(first + 2).setCellValue(meters.get(meter) + " mean");
+            header.createCell(first + 3).setCellValue(meters.get(meter) + " temperature");
+        }
+        sheet.setColumnWidth(0, 12 * 256);
+
+        int nightCount = nights.size();
+        String[] labels = new String[nightCount];
+        Double[][] darkest = new Double[meters.size()][nightCount];
+        Double[][] temperature = new Double[meters.size()][nightCount];
+        int index = 0;
+        for (LocalDate night : nights.keySet()) {
+            Row row = sheet.createRow(index + 1);
+            Cell date = row.createCell(0);
+            date.setCellValue(night.toEpochDay() + EXCEL_EPOCH_OFFSET);
+            date.setCellStyle(dateStyle);
+            labels[index] = night.toString();
+            NightSummary[] summaries = nights.get(night);
+            for (int meter = 0; meter < meters.size(); meter++) {
+                NightSummary summary = summaries[meter];
+                if (summary == null || summary.getCount() == 0) {
+                    continue;  // Left empty, and left out of the charts
+                }
+                int first = 1 + meter * NIGHTLY_COLUMNS;
+                row.createCell(first).setCellValue(summary.getCount());
+                row.createCell(first + 1).setCellValue(summary.getDarkest());
+                row.createCell(first + 2).setCellValue(summary.getMean());
+                darkest[meter][index] = (double) summary.getDarkest();
+                if (!Double.isNaN(summary.getMeanTemperature())) {
+                    row.createCell(first + 3).setCellValue(summary.getMeanTemperature());
+                    temperature[meter][index] = summary.getMeanTemperature();
+                }
+            }
+            index++;
+        }
+
+        if (nightCount > 0) {
+            int chartColumn = 2 + meters.size() * NIGHTLY_COLUMNS;
+            // SXSSFDrawing cannot make charts; they go on the XSSF sheet underneath, which is written out with it
+            XSSFDrawing drawing = workbook.getXSSFWorkbook().getSheet("Nightly").createDrawingPatriarch();
+            addChart(drawing, chartColumn, 0, "Darkest Sky per Night", "Sky Brightness (mag/arcsec²)", meters, labels, darkest, 1);
+            addChart(drawing, chartColumn, 22, "Mean Sensor Temperature per Night", "Temperature (°C)", meters, labels, temperature, 3);
+        }
+
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(target))) {
+            workbook.write(out);
+        }
+    }
+
+    /**
+     * Adds a line chart with one line per meter, from one column of each meter's block in the Nightly sheet.
+     *
+     * @param offset Column of the values within a meter's block of NIGHTLY_COLUMNS.
+     */
+    private static void addChart(XSSFDrawing drawing, int column, int row, String title, String axisTitle,
+                                 List<String> meters, String[] labels, Double[][] values, int offset) {
+        XSSFChart chart = drawing.createChart(new XSSFClientAnchor(0, 0, 0, 0, column, row, column + 12, row + 20));
+        chart.setTitleText(title);
+        chart.setTitleOverlay(false);
+        chart.getOrAddLegend().setPosition(LegendPosition.BOTTOM);
+        XDDFCategoryAxis xAxis = chart.createCategoryAxis(AxisPosition.BOTTOM);
+        xAxis.setTitle("Night");
+        XDDFValueAxis yAxis = chart.createValueAxis(AxisPosition.LEFT);
+        yAxis.setTitle(axisTitle);
+        XDDFChartData data = chart.createData(ChartTypes.LINE, xAxis, yAxis);
+        String lastRow = String.valueOf(labels.length + 1);
+        XDDFDataSource<String> nights = XDDFDataSourcesFactory.fromArray(labels, "'Nightly'!$A$2:$A$" + lastRow);
+        for (int meter = 0; meter < meters.size(); meter++) {
+            String letter = CellReference.convertNumToColString(1 + meter * NIGHTLY_COLUMNS + offset);
+            XDDFChartData.Series line = data.addSeries(nights,
+                    XDDFDataSourcesFactory.fromArray(values[meter], "'Nightly'!$" + letter + "$2:$" + letter + "$" + lastRow));
+            line.setTitle(meters.get(meter), null);
+        }
+        chart.plot(data);
+    }
+
+    @Override
+    public void close() throws IOException {
+        workbook.dispose();  // Deletes the temporary files
+        workbook.close();
+    }
+}
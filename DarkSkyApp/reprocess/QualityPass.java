@@ -0,0 +1,80 @@
+package com.darksky.reprocess;
+
+import com.darksky.analysis.FrameAnalyzer;
+import com.darksky.analysis.FrameQuality;
+import com.darksky.analysis.QualityIndex;
+import com.darksky.analysis.SkyReference;
+import org.opencv.core.Mat;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * File Header Comment:
+ * This class runs the frame quality analysis again over old days and rewrites their quality index.
+ */
+
+/**
+ * Class Header Comment:
+ * QualityPass analyses each frame with a FrameAnalyzer, as FrameAnalysisStage does for new frames, and keeps
+ * the results per day until the day is complete; the day's quality.idx is then replaced whole (see
+ * QualityIndex.replaceDay). FrameAnalyzer keeps buffers and is not thread safe, so each worker borrows one from
+ * an idle list and puts it back: there are never more analyzers than threads working at once. The cloud cover
+ * uses a SkyReference of its own that learns from the days reprocessed, oldest first.
+ */
+final class QualityPass implements ReprocessPass {
+
+    static final String NAME = "quality";
+
+    private final QualityIndex index = QualityIndex.get();
+    private final SkyReference sky = SkyReference.fromProperties();
+    private final Queue<FrameAnalyzer> idle = new ConcurrentLinkedQueue<>();
+    private final Map<LocalDate, Queue<FrameQuality>> days = new ConcurrentHashMap<>();
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public void process(LocalDate day, Mat frame, long time, String file) {
+        FrameAnalyzer analyzer = idle.poll();
+        if (analyzer == null) {
+            analyzer = new FrameAnalyzer(sky);
+        }
+        try {
+            FrameQuality quality = analyzer.analyze(frame, time, file);
+            days.computeIfAbsent(day, key -> new ConcurrentLinkedQueue<>()).add(quality);
+        } finally {
+            idle.add(analyzer);
+        }
+    }
+
+    @Override
+    public void finishDay(LocalDate day, Path folder) throws IOException {
+        Queue<FrameQuality> frames = days.remove(day);
+        if (frames != null) {
+            index.replaceDay(day, new ArrayList<>(frames));
+        }
+    }
+
+    @Override
+    public void abandonDay(LocalDate day) {
+        days.remove(day);
+    }
+
+    @Override
+    public void close() {
+        FrameAnalyzer analyzer;
+        while ((analyzer = idle.poll()) != null) {
+            analyzer.close();
+        }
+        days.clear();
+    }
+}
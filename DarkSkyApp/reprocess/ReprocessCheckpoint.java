@@ -0,0 +1,97 @@
+package com.darksky.reprocess;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * File Header Comment:
+ * This class remembers which days a reprocessing pass has finished, so a run that was stopped or crashed
+ * carries on where it was.
+ */
+
+/**
+ * Class Header Comment:
+ * ReprocessCheckpoint is a text file, DarkSky Reports/Reprocess/PASS.done, with one yyyy-MM-dd line per
+ * finished day. A line is appended and forced to disk right after the pass has written the day's results, so
+ * after a crash a day is at worst done twice, never skipped. Days finish out of order when several are in
+ * progress, which is why it is a list of days and not "done up to". A day whose frames can't be read at all
+ * (a corrupt frames.pack) is written as "yyyy-MM-dd skipped" and is not taken again until a fresh run. A line
+ * cut short by a crash is ignored.
+ */
+final class ReprocessCheckpoint {
+
+    private static final String SKIPPED = " skipped";
+
+    private final Path path;
+    private final Set<LocalDate> done = new HashSet<>();  // Guarded by this
+    private final Set<LocalDate> skipped = new HashSet<>();  // Guarded by this
+
+    /**
+     * Reads the file, or starts afresh.
+     *
+     * @param fresh true to forget the days already done (after the pass itself has changed).
+     */
+    ReprocessCheckpoint(Path path, boolean fresh) throws IOException {
+        this.path = path;
+        Files.createDirectories(path.getParent());
+        if (fresh) {
+            Files.deleteIfExists(path);
+        } else if (Files.exists(path)) {
+            List<String> lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+            for (String line : lines) {
+                line = line.trim();
+                boolean skip = line.endsWith(SKIPPED);
+                try {
+                    (skip ? skipped : done).add(LocalDate.parse(skip ? line.substring(0, line.length() - SKIPPED.length()) : line));
+                } catch (DateTimeParseException e) {
+                    // Cut short by a crash
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if the day is finished or was skipped.
+     */
+    synchronized boolean isDone(LocalDate day) {
+        return done.contains(day) || skipped.contains(day);
+    }
+
+    synchronized int getDoneCount() {
+        return done.size();
+    }
+
+    synchronized int getSkippedCount() {
+        return skipped.size();
+    }
+
+    /**
+     * Records a finished day. Called from the worker that finished it.
+     */
+    synchronized void markDone(LocalDate day) throws IOException {
+        Files.write(path, (day + "\n").getBytes(StandardCharsets.US_ASCII),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE, StandardOpenOption.SYNC);
+        done.add(day);
+    }
+
+    /**
+     * Records a day that could not be read, so later runs leave it out.
+     */
+    synchronized void markSkipped(LocalDate day) throws IOException {
+        Files.write(path, (day + SKIPPED + "\n").getBytes(StandardCharsets.US_ASCII),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE, StandardOpenOption.SYNC);
+        skipped.add(day);
+    }
+
+    Path getPath() {
+        return path;
+    }
+}
@@ -0,0 +1,67 @@
+package com.darksky.reprocess;
+
+import org.opencv.core.Mat;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.LocalDate;
+
+/**
+ * File Header Comment:
+ * This interface is one kind of work the Reprocessor can run again over the saved frames of old days.
+ */
+
+/**
+ * Class Header Comment:
+ * A ReprocessPass sees every frame of a day, on the Reprocessor's worker threads and in no particular order,
+ * then is told the day is complete and writes its results for the day in one go. Writing per day, and
+ * replacing the day's old results whole, is what lets an interrupted run start again at the first day that was
+ * not finished. A new analysis is added by writing a pass and naming it in {@link #create(String)}.
+ */
+public interface ReprocessPass extends AutoCloseable {
+
+    /**
+     * @return The name used on the control socket and for the checkpoint file.
+     */
+    String getName();
+
+    /**
+     * Works on one frame. Called from several worker threads at once.
+     *
+     * @param day   The day folder the frame is in.
+     * @param frame The decoded frame; released by the caller afterwards.
+     * @param time  When it was taken, in milliseconds since the epoch.
+     * @param file  The frame's original file name.
+     */
+    void process(LocalDate day, Mat frame, long time, String file);
+
+    /**
+     * Writes the results of a day whose frames have all been processed without error. Called at most once per
+     * day, on a worker thread; a day with a failed frame is abandoned instead.
+     *
+     * @param folder The day folder.
+     */
+    void finishDay(LocalDate day, Path folder) throws IOException;
+
+    /**
+     * Forgets what was collected for a day that is given up, because the run was stopped or a frame failed.
+     */
+    void abandonDay(LocalDate day);
+
+    @Override
+    void close();
+
+    /**
+     * @param name A pass name, e.g. "quality".
+     * @return A new pass.
+     * @throws IllegalArgumentException if there is no pass of that name.
+     */
+    static ReprocessPass create(String name) {
+        switch (name) {
+            case QualityPass.NAME:
+                return new QualityPass();
+            default:
+                throw new IllegalArgumentException("unknown pass " + name + ", try " + QualityPass.NAME);
+        }
+    }
+}
@@ -0,0 +1,399 @@
+package com.darksky.reprocess;
+
+import com.darksky.archive.ArchivedFrame;
+import com.darksky.archive.FramePack;
+import com.darksky.logging.EventLog;
+import com.darksky.metrics.Counter;
+import com.darksky.metrics.LatencyHistogram;
+import com.darksky.metrics.Metrics;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.imgcodecs.Imgcodecs;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * File Header Comment:
+ * This class runs a ReprocessPass over the frames of every old day under DarkSky Reports, so a changed analysis
+ * can be applied to years of frames overnight.
+ */
+
+/**
+ * Class Header Comment:
+ * Reprocessor has one walker thread that goes through the day folders, oldest first, and hands each frame to a
+ * ForkJoinPool (work stealing: a worker that runs out of frames takes queued ones from the others, so a slow
+ * TIFF night doesn't leave cores idle). Frames are read from the day's frames.pack if ArchiveCompactor has
+ * packed it, and as loose files otherwise; a worker reads, decodes, processes and releases its frame. At most
+ * -Ddarksky.reprocess.inFlight frames (default twice the threads) are handed out and not yet done: the walker
+ * waits for a free place, so memory stays at a few decoded frames however large the archive is.
+ * -Ddarksky.reprocess.threads sets the workers (default all cores but one), which run below normal priority so
+ * capture and the UI keep going.
+ * <p>
+ * Once a day's last frame is done, the pass writes the day and the day goes into the ReprocessCheckpoint; a new
+ * run of the same pass skips the days in it unless started fresh. A day with a frame that could not be read or
+ * processed keeps its old results and is not marked done, so a later run tries it again. A day whose frames can't
+ * be listed at all (a corrupt or cut short frames.pack) is logged, recorded as skipped and left out, and the run
+ * carries on with the other days. Today is never reprocessed. Progress, with files per second and an estimate of
+ * the time left, is in describe() and logged every minute.
+ */
+public final class Reprocessor {
+
+    private static final long PROGRESS_NANOS = 60_000_000_000L;
+
+    private static final LatencyHistogram READ_TIME = Metrics.histogram("reprocess.read", "Reading and decoding one archived frame for reprocessing");
+    private static final LatencyHistogram PASS_TIME = Metrics.histogram("reprocess.frame", "Running the reprocessing pass on one frame");
+    private static final Counter FRAMES = Metrics.counter("reprocess.frames", "Archived frames reprocessed");
+    private static final Counter BYTES = Metrics.counter("reprocess.bytes", "Bytes of archived frames read for reprocessing");
+    private static final Counter FAILURES = Metrics.counter("reprocess.failures", "Archived frames that could not be read or processed");
+
+    private static Reprocessor latest;  // Guarded by Reprocessor.class
+
+    /**
+     * A day being worked on. pending counts the frames handed out and not done, plus one for the walker while it
+     * is still handing them out; whoever brings it to 0 finishes the day. failed counts the frames that could not
+     * be read or processed.
+     */
+    private static final class DayJob {
+        final LocalDate day;
+        final Path folder;
+        final FramePack pack;
+        final AtomicInteger pending = new AtomicInteger(1);
+        final AtomicInteger failed = new AtomicInteger();
+        final int frames;
+
+        DayJob(LocalDate day, Path folder, FramePack pack, int frames) {
+            this.day = day;
+            this.folder = folder;
+            this.pack = pack;
+            this.frames = frames;
+        }
+    }
+
+    private final ReprocessPass pass;
+    private final Path reportsDir;
+    private final LocalDate from;
+    private final LocalDate to;
+    private final int threads;
+    private final int maxInFlight;
+    private final ReprocessCheckpoint checkpoint;
+    private final Semaphore inFlight;
+    private final ForkJoinPool pool;
+    private final Thread walker;
+    private volatile boolean stopping;
+    private volatile String state = "starting";
+
+    private final LongAdder framesDone = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder framesFailed = new LongAdder();
+    private final AtomicInteger daysDone = new AtomicInteger();
+    private volatile long framesTotal = -1;  // Known once the days have been counted
+    private volatile int daysTotal;
+    private volatile long startNanos;
+    private volatile long endNanos;
+
+    /**
+     * @param pass        What to run.
+     * @param reportsDir  The folder holding the yyyy-MM-dd day folders.
+     * @param from        First day, or null for the oldest.
+     * @param to          Last day, or null for yesterday; never later than yesterday.
+     * @param threads     Worker threads.
+     * @param maxInFlight Frames read or being processed at once.
+     * @param fresh       true to redo the days the checkpoint says are done.
+     */
+    Reprocessor(ReprocessPass pass, Path reportsDir, LocalDate from, LocalDate to, int threads, int maxInFlight, boolean fresh) throws IOException {
+        this.pass = pass;
+        this.reportsDir = reportsDir;
+        LocalDate yesterday = LocalDate.now().minusDays(1);
+        this.from = from;
+        this.to = to == null || to.isAfter(yesterday) ? yesterday : to;
+        this.threads = Math.max(1, threads);
+        this.maxInFlight = Math.max(this.threads, maxInFlight);
+        this.checkpoint = new ReprocessCheckpoint(reportsDir.resolve("Reprocess").resolve(pass.getName() + ".done"), fresh);
+        this.inFlight = new Semaphore(this.maxInFlight);
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.pool = new ForkJoinPool(this.threads, forkJoinPool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+            thread.setName("darksky-reprocess-" + threadNumber.incrementAndGet());
+            thread.setPriority(Thread.NORM_PRIORITY - 1);  // Below capture and the UI
+            return thread;
+        }, null, true);
+        this.walker = new Thread(this::run, "darksky-reprocess");
+        this.walker.setDaemon(true);
+    }
+
+    /**
+     * Starts a pass over the station's reports folder, set up from the darksky.reprocess.* system properties.
+     *
+     * @throws IllegalStateException if a run is still going.
+     */
+    public static synchronized Reprocessor start(String passName, LocalDate from, LocalDate to, boolean fresh) throws IOException {
+        if (latest != null && latest.isRunning()) {
+            throw new IllegalStateException("a " + latest.pass.getName() + " run is still going, stop it first");
+        }
+        int threads = Integer.getInteger("darksky.reprocess.threads", Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+        ReprocessPass pass = ReprocessPass.create(passName);
+        Reprocessor reprocessor = new Reprocessor(pass, Paths.get(System.getProperty("user.home"), "Documents", "DarkSky Reports"),
+                from, to, threads, Integer.getInteger("darksky.reprocess.inFlight", threads * 2), fresh);
+        latest = reprocessor;
+        reprocessor.walker.start();
+        return reprocessor;
+    }
+
+    /**
+     * @return The run started last, still going or not, or null if none was.
+     */
+    public static synchronized Reprocessor latest() {
+        return latest;
+    }
+
+    public boolean isRunning() {
+        return walker.isAlive();
+    }
+
+    /**
+     * Stops handing out frames. Frames already handed out are finished, but their day is not written or marked
+     * done, so the next run does it again.
+     */
+    public void stop() {
+        stopping = true;
+        walker.interrupt();
+    }
+
+    private void run() {
+        startNanos = System.nanoTime();
+        EventLog.info("Reprocessor", "reprocess.started", "pass", pass.getName(), "threads", threads);
+        try {
+            List<Path> days = new ArrayList<>();
+            state = "counting frames";
+            long total = 0;
+            for (Path folder : dayFolders()) {
+                if (stopping) {
+                    break;
+                }
+                try {
+                    total += countFrames(folder);
+                    days.add(folder);
+                } catch (IOException | RuntimeException e) {
+                    skipDay(folder, e);  // A broken pack only costs its own day
+                }
+            }
+            framesTotal = total;
+            daysTotal = days.size();
+            state = "running";
+            long lastProgress = System.nanoTime();
+            for (Path folder : days) {
+                if (stopping) {
+                    break;
+                }
+                handOut(folder);
+                if (System.nanoTime() - lastProgress > PROGRESS_NANOS) {
+                    lastProgress = System.nanoTime();
+                    EventLog.info("Reprocessor", "reprocess.progress", "pass", pass.getName(), "progress", progress());
+                }
+            }
+        } catch (InterruptedException e) {
+            stopping = true;
+        } catch (IOException | RuntimeException e) {
+            if (!stopping) {  // Otherwise most likely a read cut short by stop()
+                state = "failed: " + e.getMessage();
+                EventLog.error("Reprocessor", "reprocess.failed", "pass", pass.getName(), e);
+            }
+            stopping = true;
+        }
+        // Wait for the frames still out: once every place is free, every day has been finished or abandoned
+        inFlight.acquireUninterruptibly(maxInFlight);
+        inFlight.release(maxInFlight);
+        pool.shutdown();
+        pass.close();
+        endNanos = System.nanoTime();
+        if (!state.startsWith("failed")) {
+            state = stopping ? "stopped" : "finished";
+        }
+        EventLog.info("Reprocessor", "reprocess.ended", "pass", pass.getName(), "progress", progress());
+    }
+
+    /**
+     * Hands out the frames of one day, waiting for free places as it goes.
+     */
+    private void handOut(Path folder) throws IOException, InterruptedException {
+        FramePack pack = null;
+        List<ArchivedFrame> frames;
+        try {
+            pack = FramePack.open(folder);
+            frames = ArchivedFrame.list(folder, pack);
+        } catch (IOException | RuntimeException e) {
+            if (pack != null) {
+                pack.close();
+            }
+            skipDay(folder, e);
+            return;
+        }
+        DayJob job = new DayJob(LocalDate.parse(folder.getFileName().toString()), folder, pack, frames.size());
+        try {
+            for (ArchivedFrame frame : frames) {
+                inFlight.acquire();
+                if (stopping) {
+                    inFlight.release();
+                    break;
+                }
+                job.pending.incrementAndGet();
+                pool.execute(() -> processFrame(job, frame));
+            }
+        } finally {
+            frameDone(job);  // The walker's own count
+        }
+    }
+
+    private void processFrame(DayJob job, ArchivedFrame frame) {
+        try {
+            if (!stopping) {
+                long start = System.nanoTime();
+                byte[] bytes = frame.getEntry() != null ? job.pack.read(frame.getEntry()) : Files.readAllBytes(frame.getFile());
+                MatOfByte encoded = new MatOfByte(bytes);
+                Mat decoded = Imgcodecs.imdecode(encoded, Imgcodecs.IMREAD_UNCHANGED);
+                encoded.release();
+                if (decoded == null || decoded.empty()) {
+                    throw new IOException("could not decode " + frame.getName());
+                }
+                READ_TIME.recordSince(start);
+                try {
+                    start = System.nanoTime();
+                    pass.process(job.day, decoded, frame.getTime(), frame.getName());
+                    PASS_TIME.recordSince(start);
+                } finally {
+                    decoded.release();
+                }
+                framesDone.increment();
+                bytesRead.add(bytes.length);
+                FRAMES.increment();
+                BYTES.add(bytes.length);
+            }
+        } catch (IOException | RuntimeException e) {
+            job.failed.incrementAndGet();
+            framesFailed.increment();
+            FAILURES.increment();
+            EventLog.warn("Reprocessor", "reprocess.frame.failed", "file", job.day + "/" + frame.getName(), e);
+        } finally {
+            frameDone(job);
+            inFlight.release();  // After the day is finished, so the walker's final wait covers it
+        }
+    }
+
+    /**
+     * Counts a frame of the day as done; the last one writes the day, or forgets it if the run is stopping or a
+     * frame failed. Writing a day replaces its old results whole, so a day with failed frames would lose theirs;
+     * it is left as it was and not marked done, and the next run tries it again.
+     */
+    private void frameDone(DayJob job) {
+        if (job.pending.decrementAndGet() != 0) {
+            return;
+        }
+        try {
+            if (job.pack != null) {
+                job.pack.close();
+            }
+            if (stopping) {
+                pass.abandonDay(job.day);
+                return;
+            }
+            if (job.failed.get() > 0) {
+                pass.abandonDay(job.day);
+                EventLog.warn("Reprocessor", "reprocess.day.skipped", "failed", job.failed.get() + " of " + job.frames + " frames of " + job.day);
+                return;
+            }
+            pass.finishDay(job.day, job.folder);
+            checkpoint.markDone(job.day);
+            daysDone.incrementAndGet();
+            EventLog.info("Reprocessor", "reprocess.day.done", "day", job.day, "frames", job.frames);
+        } catch (IOException | RuntimeException e) {
+            EventLog.error("Reprocessor", "reprocess.day.failed", "day", job.day, e);
+        }
+    }
+
+    /**
+     * Leaves out a day whose frames can't be listed, such as one with a corrupt or cut short frames.pack, and
+     * records it in the checkpoint so later runs don't stumble on it again (a fresh run tries it again).
+     */
+    private void skipDay(Path folder, Exception e) throws IOException {
+        if (stopping) {
+            return;  // Most likely cut short by stop(), the day is still fine
+        }
+        LocalDate day = LocalDate.parse(folder.getFileName().toString());
+        EventLog.warn("Reprocessor", "reprocess.day.unreadable", "day", day, e);
+        checkpoint.markSkipped(day);
+    }
+
+    /**
+     * @return The day folders in the range that are not done or skipped yet, oldest first.
+     */
+    private List<Path> dayFolders() throws IOException {
+        List<Path> days = new ArrayList<>();
+        if (!Files.isDirectory(reportsDir)) {
+            return days;
+        }
+        try (DirectoryStream<Path> folders = Files.newDirectoryStream(reportsDir, Files::isDirectory)) {
+            for (Path folder : folders) {
+                LocalDate day;
+                try {
+                    day = LocalDate.parse(folder.getFileName().toString());
+                } catch (DateTimeParseException e) {
+                    continue;  // Not a day folder
+                }
+                if ((from == null || !day.isBefore(from)) && !day.isAfter(to) && !checkpoint.isDone(day)) {
+                    days.add(folder);
+                }
+            }
+        }
+        days.sort(Comparator.comparing(Path::getFileName));
+        return days;
+    }
+
+    private static int countFrames(Path folder) throws IOException {
+        try (FramePack pack = FramePack.open(folder)) {
+            return ArchivedFrame.list(folder, pack).size();
+        }
+    }
+
+    /**
+     * @return One line: frames done of the total, files and megabytes per second, failures, days and time left.
+     */
+    public String progress() {
+        long done = framesDone.sum();
+        long total = framesTotal;
+        long end = endNanos != 0 ? endNanos : System.nanoTime();
+        double seconds = Math.max(1e-3, (end - startNanos) / 1e9);
+        double filesPerSecond = done / seconds;
+        StringBuilder line = new StringBuilder(String.format(Locale.ROOT, "%d of %s frames, %.1f files/s, %.1f MB/s, %d failed, %d of %d days done",
+                done, total < 0 ? "?" : Long.toString(total), filesPerSecond, bytesRead.sum() / seconds / (1 << 20), framesFailed.sum(),
+                daysDone.get(), daysTotal));
+        if (total > 0 && endNanos == 0 && filesPerSecond > 0) {
+            long left = (long) ((total - done - framesFailed.sum()) / filesPerSecond);
+            line.append(String.format(Locale.ROOT, ", about %dh %02dm left", left / 3600, left / 60 % 60));
+        }
+        return line.toString();
+    }
+
+    /**
+     * @return A few lines: the pass, the range, the state and the progress.
+     */
+    public String describe() {
+        return pass.getName() + " pass, " + (from != null ? from : "oldest day") + " to " + to + ", " + threads + " thread(s), "
+                + maxInFlight + " frames in flight: " + state + "\n" + progress() + "\ncheckpoint: " + checkpoint.getPath()
+                + " (" + checkpoint.getDoneCount() + " days done, " + checkpoint.getSkippedCount() + " skipped)";
+    }
+}
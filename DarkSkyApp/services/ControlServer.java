@@ -0,0 +1,426 @@
+package com.darksky.services;
+
+import com.darksky.analysis.AnalysisBenchmark;
+import com.darksky.analysis.FrameQuality;
+import com.darksky.analysis.QualityIndex;
+import com.darksky.calibration.CalibrationBenchmark;
+import com.darksky.calibration.Calibrator;
+import com.darksky.calibration.MasterFrame;
+import com.darksky.controllers.EnclosureController;
+import com.darksky.logging.EventLog;
+import com.darksky.meteor.MeteorStage;
+import com.darksky.metrics.MetricsExporter;
+import com.darksky.reports.ReportExport;
+import com.darksky.reprocess.Reprocessor;
+import com.darksky.timeline.StationTimeline;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * File Header Comment:
+ * This class is a small text control socket for a station running in headless mode. It only listens on the
+ * loopback address, so it can be used from the station itself (or over an SSH tunnel), e.g. with
+ * "nc 127.0.0.1 7071".
+ */
+
+/**
+ * Class Header Comment:
+ * ControlServer reads one command per line and answers with one or more lines followed by a line with a
+ * single ".". Commands:
+ * <pre>
+ *   status                    What is running, the capture settings and the last SQM reading
+ *   tasks                     The scheduled tasks and their timings
+ *   metrics                   The same text as the /metrics page
+ *   capture start|stop        Start or stop AutoCapture
+ *   capture interval MS       Time between pictures
+ *   sqm interval MS           Time between SQM readings
+ *   enclosure                 Ask the enclosure microcontroller for its status
+ *   enclosure fan PWM         Fan speed, 0-255
+ *   enclosure fan on|auto     Force the fan on, or leave it to the temperature
+ *   enclosure fantemp F       Temperature at which the fan turns on
+ *   enclosure record on|auto  Force the recording devices on, or leave them to the schedule
+ *   enclosure schedule        The recording schedule
+ *   timeline [MIN]            SQM readings of the last MIN minutes (default 10) with enclosure state and frame
+ *   timeline events [MIN]     Sky brightness jumps and fan/power changes of the last MIN minutes (default 60)
+ *   export FROM TO [xlsx|csv] [METERS]
+ *                             Export the SQM readings of days FROM to TO (yyyy-MM-dd) to DarkSky Reports/Exports;
+ *                             METERS is local (default), all, or a comma separated list of collector stations
+ *   quality [HOURS]           Frame quality over the last HOURS (default 12) and the 10 best frames
+ *   quality bench [FRAMES]    Time the frame analysis on the newest saved frame, FRAMES per run (default 20)
+ *   calibrate                 Calibration state, the masters in use and the masters on disk
+ *   calibrate dark|flat [N]   Stack the next N frames (default 20) into a master dark (lens covered) or flat
+ *   calibrate cancel|on|off   Give up the running session, or turn calibration on or off
+ *   calibrate bench [FRAMES]  Time the calibration on the newest saved frame, FRAMES per run (default 20)
+ *   meteor                    Meteor detection state and the latest saved events
+ *   meteor on|off             Turn meteor detection (continuous camera reading) on or off
+ *   reprocess PASS [FROM [TO]] [fresh]
+ *                             Run PASS (quality) again over the saved frames of days FROM to TO (yyyy-MM-dd,
+ *                             default all days before today) in the background; fresh redoes finished and skipped days
+ *   reprocess [stop]          Progress of the latest run, or stop it (a new run carries on from there)
+ *   ui                        Open the dashboard on this machine's display
+ *   shutdown                  Stop the station
+ *   quit                      Close this connection
+ * </pre>
+ * Connections are handled one at a time on a single daemon thread; an idle connection is closed after a minute.
+ */
+public class ControlServer {
+
+    private static final int IDLE_TIMEOUT_MS = 60000;
+    private static final double SQM_JUMP = 0.3;  // mag/arcsec² between readings reported by "timeline events"
+
+    private final int port;
+    private final Runnable uiLauncher; // Opens the dashboard, supplied by Main so this package doesn't load Swing
+    private final Runnable shutdownAction;
+    private ServerSocket serverSocket;
+    private Thread acceptThread;
+
+    /**
+     * @param port           Port on 127.0.0.1 to listen on.
+     * @param uiLauncher     Called for the "ui" command.
+     * @param shutdownAction Called for the "shutdown" command.
+     */
+    public ControlServer(int port, Runnable uiLauncher, Runnable shutdownAction) {
+        this.port = port;
+        this.uiLauncher = uiLauncher;
+        this.shutdownAction = shutdownAction;
+    }
+
+    /**
+     * Opens the socket and starts answering commands.
+     *
+     * @throws IOException if the port can't be opened.
+     */
+    public void start() throws IOException {
+        serverSocket = new ServerSocket(port, 4, InetAddress.getLoopbackAddress());
+        acceptThread = new Thread(this::acceptLoop, "darksky-control");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        EventLog.info("ControlServer", "control.started", "port", port);
+    }
+
+    public void stop() {
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();  // Makes accept() throw, which ends the loop
+            }
+        } catch (IOException e) {
+            EventLog.warn("ControlServer", "control.close.failed", e);
+        }
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try (Socket client = serverSocket.accept()) {
+                client.setSoTimeout(IDLE_TIMEOUT_MS);
+                serve(client);
+            } catch (SocketTimeoutException e) {
+                // Idle client, already closed by try-with-resources
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    EventLog.warn("ControlServer", "control.client.failed", "error", e.toString());
+                }
+            }
+        }
+    }
+
+    private void serve(Socket client) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+        PrintWriter out = new PrintWriter(client.getOutputStream(), true, StandardCharsets.UTF_8);
+        String line;
+        while ((line = in.readLine()) != null) {
+            String command = line.trim();
+            if (command.equalsIgnoreCase("quit")) {
+                return;
+            }
+            out.println(handle(command));
+            out.println(".");
+            if (command.equalsIgnoreCase("shutdown")) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Runs one command and returns the answer.
+     */
+    String handle(String command) {
+        StationServices services = StationServices.get();
+        String[] words = command.toLowerCase().split("\\s+");
+        try {
+            switch (words[0]) {
+                case "status":
+                    return services.describe();
+                case "tasks":
+                    return TaskScheduler.get().describeTasks();
+                case "metrics":
+                    return MetricsExporter.scrape();
+                case "capture":
+                    if (words.length == 2 && words[1].equals("start")) {
+                        services.getAutoCapture().startCapture();
+                        return services.getAutoCapture().isCapturing() ? "capturing" : "error: camera not found";
+                    }
+                    if (words.length == 2 && words[1].equals("stop")) {
+                        services.getAutoCapture().stopCapture();
+                        return "stopped";
+                    }
+                    if (words.length == 3 && words[1].equals("interval")) {
+                        services.getAutoCapture().setCaptureInterval(parseInterval(words[2]));
+                        return "capture interval " + services.getAutoCapture().getCaptureInterval() + " ms";
+                    }
+                    break;
+                case "sqm":
+                    if (words.length == 3 && words[1].equals("interval")) {
+                        services.getSqmPoller().setMeasurementInterval(parseInterval(words[2]));
+                        return "sqm interval " + services.getSqmPoller().getMeasurementInterval() + " ms";
+                    }
+                    break;
+                case "enclosure":
+                    return enclosure(words);
+                case "timeline":
+                    return timeline(words);
+                case "export":
+                    return export(command.split("\\s+"));  // Not lowercased: station ids keep their case
+                case "quality":
+                    return quality(words);
+                case "calibrate":
+                    return calibrate(words);
+                case "meteor":
+                    return meteor(words);
+                case "reprocess":
+                    return reprocess(words);
+                case "ui":
+                    uiLauncher.run();
+                    return "opening dashboard";
+                case "shutdown":
+                    shutdownAction.run();
+                    return "shutting down";
+                default:
+                    break;
+            }
+        } catch (RuntimeException e) {
+            EventLog.warn("ControlServer", "control.command.failed", "command", command, e);
+            return "error: " + e.getMessage();
+        }
+        return "error: unknown command, try status, tasks, metrics, capture start|stop|interval MS, sqm interval MS, enclosure, timeline, export, quality, calibrate, meteor, reprocess, ui, shutdown, quit";
+    }
+
+    /**
+     * Runs an enclosure command and waits for the device's answer.
+     */
+    private static String enclosure(String[] words) {
+        EnclosureController enclosure = EnclosureController.get();
+        CompletableFuture<?> reply;
+        if (words.length == 1) {
+            reply = enclosure.getStatus();
+        } else if (words.length == 2 && words[1].equals("schedule")) {
+            reply = enclosure.getSchedule();
+        } else if (words.length == 3 && words[1].equals("fan")) {
+            reply = words[2].equals("on") || words[2].equals("auto")
+                    ? enclosure.setFanPower(words[2].equals("on"))
+                    : enclosure.setFanSpeed(Integer.parseInt(words[2]));
+        } else if (words.length == 3 && words[1].equals("fantemp")) {
+            reply = enclosure.setFanOnTemperature(Double.parseDouble(words[2]));
+        } else if (words.length == 3 && words[1].equals("record") && (words[2].equals("on") || words[2].equals("auto"))) {
+            reply = enclosure.setRecordingPower(words[2].equals("on"));
+        } else {
+            return "error: try enclosure, enclosure fan PWM|on|auto, enclosure fantemp F, enclosure record on|auto, enclosure schedule";
+        }
+        try {
+            Object answer = reply.get();
+            return answer != null ? answer.toString() : "ok";
+        } catch (ExecutionException e) {
+            return "error: " + e.getCause().getMessage();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "error: interrupted";
+        }
+    }
+
+    /**
+     * Answers the timeline commands from the station timeline.
+     */
+    private static String timeline(String[] words) {
+        boolean events = words.length > 1 && words[1].equals("events");
+        int minutesIndex = events ? 2 : 1;
+        int minutes = words.length > minutesIndex ? Integer.parseInt(words[minutesIndex]) : events ? 60 : 10;
+        Instant to = Instant.now();
+        Instant from = to.minus(Duration.ofMinutes(minutes));
+        StationTimeline timeline = StationTimeline.get();
+        List<Object> lines = new ArrayList<>();
+        try {
+            if (events) {
+                lines.addAll(timeline.enclosureChanges(from, to));
+                lines.addAll(timeline.sqmJumps(from, to, SQM_JUMP));
+            } else {
+                lines.addAll(timeline.join(from, to, 60_000));
+            }
+        } catch (IOException e) {
+            return "error: " + e.getMessage();
+        }
+        StringBuilder answer = new StringBuilder();
+        for (Object line : lines) {
+            answer.append(line).append('\n');
+        }
+        return lines.isEmpty() ? "nothing recorded" : answer.substring(0, answer.length() - 1);
+    }
+
+    /**
+     * Runs a report export and waits for it to finish.
+     */
+    private static String export(String[] words) {
+        if (words.length < 3 || words.length > 5) {
+            return "error: try export FROM TO [xlsx|csv] [METERS], e.g. export 2024-01-01 2024-01-31 csv all";
+        }
+        LocalDate from = LocalDate.parse(words[1]);
+        LocalDate to = LocalDate.parse(words[2]);
+        String format = words.length > 3 ? words[3].toLowerCase() : "xlsx";
+        try {
+            ReportExport export = new ReportExport(ReportExport.meters(words.length > 4 ? words[4] : null), from, to);
+            return export.export(ReportExport.defaultTarget(from, to, format), null).toString();
+        } catch (IOException e) {
+            return "error: " + e.getMessage();
+        }
+    }
+
+    /**
+     * Answers the quality commands from the quality index, or runs the analysis benchmark.
+     */
+    private static String quality(String[] words) {
+        try {
+            if (words.length > 1 && words[1].equals("bench")) {
+                int frames = words.length > 2 ? Integer.parseInt(words[2]) : 20;
+                Path image = AnalysisBenchmark.latestFrame(Paths.get(System.getProperty("user.home"), "Documents", "DarkSky Reports"));
+                if (image == null) {
+                    return "error: no saved frame to analyse";
+                }
+                return AnalysisBenchmark.run(image, frames, StationServices.get().getAutoCapture().getCaptureInterval());
+            }
+            int hours = words.length > 1 ? Integer.parseInt(words[1]) : 12;
+            Instant to = Instant.now();
+            Instant from = to.minus(Duration.ofHours(hours));
+            QualityIndex index = QualityIndex.get();
+            StringBuilder answer = new StringBuilder(index.summary(from, to));
+            for (FrameQuality frame : index.best(from, to, 10)) {
+                answer.append('\n').append(frame);
+            }
+            return answer.toString();
+        } catch (IOException e) {
+            return "error: " + e.getMessage();
+        }
+    }
+
+    /**
+     * Runs a calibration command. Sessions are only started here; they finish as AutoCapture takes the frames.
+     */
+    private static String calibrate(String[] words) {
+        Calibrator calibrator = StationServices.get().getCalibrator();
+        if (calibrator == null) {
+            return "error: the station is not started";
+        }
+        String action = words.length > 1 ? words[1] : "";
+        switch (action) {
+            case "":
+                return calibrator.describe();
+            case "dark":
+            case "flat":
+                int frames = words.length > 2 ? Integer.parseInt(words[2]) : 20;
+                calibrator.startSession(action.equals("dark") ? MasterFrame.Kind.DARK : MasterFrame.Kind.FLAT, frames);
+                return "stacking the next " + frames + " frames into a master " + action
+                        + (StationServices.get().getAutoCapture().isCapturing() ? "" : " (start the capture first)");
+            case "cancel":
+                calibrator.cancelSession();
+                return "cancelled";
+            case "on":
+            case "off":
+                calibrator.setEnabled(action.equals("on"));
+                return "calibration " + action;
+            case "bench":
+                try {
+                    Path image = AnalysisBenchmark.latestFrame(Paths.get(System.getProperty("user.home"), "Documents", "DarkSky Reports"));
+                    if (image == null) {
+                        return "error: no saved frame to calibrate";
+                    }
+                    return CalibrationBenchmark.run(image, words.length > 2 ? Integer.parseInt(words[2]) : 20,
+                            StationServices.get().getAutoCapture().getCaptureInterval());
+                } catch (IOException e) {
+                    return "error: " + e.getMessage();
+                }
+            default:
+                return "error: try calibrate, calibrate dark|flat [N], calibrate cancel|on|off, calibrate bench [FRAMES]";
+        }
+    }
+
+    /**
+     * Shows the meteor detection, or turns it on or off.
+     */
+    private static String meteor(String[] words) {
+        String action = words.length > 1 ? words[1] : "";
+        switch (action) {
+            case "":
+                MeteorStage stage = StationServices.get().getMeteorStage();
+                return stage == null ? "meteor detection off" : "meteor detection on\n" + stage.describe();
+            case "on":
+            case "off":
+                StationServices.get().setMeteorDetection(action.equals("on"));
+                return "meteor detection " + action
+                        + (action.equals("on") && !StationServices.get().getAutoCapture().isCapturing() ? " (starts with the capture)" : "");
+            default:
+                return "error: try meteor, meteor on|off";
+        }
+    }
+
+    /**
+     * Starts a reprocessing run, which goes on in the background, or shows or stops the latest one.
+     */
+    private static String reprocess(String[] words) {
+        Reprocessor latest = Reprocessor.latest();
+        if (words.length == 1 || words[1].equals("stop")) {
+            if (latest == null) {
+                return "nothing reprocessed since the station started";
+            }
+            if (words.length > 1) {
+                latest.stop();
+                return "stopping, frames already started are finished first\n" + latest.describe();
+            }
+            return latest.describe();
+        }
+        List<String> arguments = new ArrayList<>(Arrays.asList(words).subList(2, words.length));
+        boolean fresh = arguments.remove("fresh");
+        if (arguments.size() > 2) {
+            return "error: try reprocess PASS [FROM [TO]] [fresh], e.g. reprocess quality 2024-01-01";
+        }
+        LocalDate from = arguments.size() > 0 ? LocalDate.parse(arguments.get(0)) : null;
+        LocalDate to = arguments.size() > 1 ? LocalDate.parse(arguments.get(1)) : null;
+        try {
+            return "started\n" + Reprocessor.start(words[1], from, to, fresh).describe();
+        } catch (IOException e) {
+            return "error: " + e.getMessage();
+        }
+    }
+
+    private static int parseInterval(String text) {
+        int interval = Integer.parseInt(text);
+        if (interval < 1000) {
+            throw new IllegalArgumentException("interval must be at least 1000 ms");
+        }
+        return interval;
+    }
+}
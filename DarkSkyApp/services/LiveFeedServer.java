@@ -0,0 +1,468 @@
+package com.darksky.services;
+
+import com.darksky.logging.EventLog;
+import com.darksky.metrics.Counter;
+import com.darksky.metrics.LatencyHistogram;
+import com.darksky.metrics.Metrics;
+import com.darksky.utils.FrameListener;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfInt;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * File Header Comment:
+ * This class serves the live picture and the SQM readings to web browsers on the station, so the sky can be
+ * watched from more than the one full-screen CameraWindow. It only listens on 127.0.0.1 (use an SSH tunnel
+ * to watch from another machine).
+ */
+
+/**
+ * Class Header Comment:
+ * LiveFeedServer is a small non-blocking HTTP server: one thread and one NIO Selector handle every viewer.
+ * <pre>
+ *   http://127.0.0.1:8090/              Page with the live picture and the latest reading
+ *   http://127.0.0.1:8090/video.mjpg    Live picture as MJPEG (multipart/x-mixed-replace)
+ *   http://127.0.0.1:8090/snapshot.jpg  The latest picture
+ *   http://127.0.0.1:8090/sqm           SQM readings as Server-Sent Events
+ * </pre>
+ * A published frame is scaled down and JPEG encoded once, and every viewer is sent the same bytes (a read-only
+ * view of one buffer, no copy per viewer). A viewer that is still receiving the previous frame when a new one
+ * arrives simply skips the new one, so a slow viewer gets fewer frames and never holds up the others or fills
+ * memory. Nothing is encoded while nobody is watching, apart from one snapshot every few seconds.
+ * The port comes from -Ddarksky.live.port (default 8090, 0 turns the server off).
+ */
+public class LiveFeedServer implements FrameListener {
+
+    private static final int DEFAULT_PORT = 8090;
+    private static final int MAX_WIDTH = Integer.getInteger("darksky.live.maxWidth", 1280);  // Frames are shrunk to this width
+    private static final int JPEG_QUALITY = Integer.getInteger("darksky.live.quality", 80);
+    private static final long SNAPSHOT_REFRESH_NANOS = 10_000_000_000L;  // Idle snapshot refresh
+    private static final int MAX_QUEUED_EVENTS = 32;  // SSE messages kept for a slow viewer before the oldest are dropped
+    private static final String BOUNDARY = "darkskyframe";
+    private static final long STOP_WAIT_MS = 2000;  // How long stop() waits for the selector thread
+
+    private static final LiveFeedServer INSTANCE = new LiveFeedServer();
+
+    private static final LatencyHistogram ENCODE_TIME = Metrics.histogram("live.encode", "Scaling and JPEG encoding one live frame for all viewers");
+    private static final Counter FRAMES_ENCODED = Metrics.counter("live.frames.encoded", "Live frames encoded (once for all viewers)");
+    private static final Counter FRAMES_SENT = Metrics.counter("live.frames.sent", "Live frames queued to a viewer");
+    private static final Counter FRAMES_DROPPED = Metrics.counter("live.frames.dropped", "Live frames skipped for a viewer that was still busy");
+    private static final Counter EVENTS_DROPPED = Metrics.counter("live.events.dropped", "SQM events dropped for a viewer that was not reading");
+
+    private enum Kind { REQUEST, VIDEO, EVENTS, ONE_SHOT }
+
+    /**
+     * One connected browser. Only touched on the selector thread.
+     */
+    private static final class Client {
+        final SocketChannel channel;
+        final ByteBuffer request = ByteBuffer.allocate(2048);
+        final Queue<ByteBuffer> out = new ArrayDeque<>();
+        Kind kind = Kind.REQUEST;
+
+        Client(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    private final Queue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();  // Work handed to the selector thread
+    private final List<Client> clients = new ArrayList<>();  // Selector thread only
+    private volatile int videoViewers;
+    private ByteBuffer latestPart;  // Latest frame as a complete MJPEG part, selector thread only
+    private volatile byte[] latestJpeg;
+    private ByteBuffer latestEvent;  // Latest SQM reading as an SSE message, selector thread only
+    private volatile long lastEncodeNanos;
+
+    private final Object encodeLock = new Object();
+    private Mat scaled;  // Reused for every encode, guarded by encodeLock
+    private MatOfInt jpegParams;  // Made in start(), once the OpenCV library is loaded
+
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private volatile Thread selectorThread;
+
+    private LiveFeedServer() {
+    }
+
+    public static LiveFeedServer get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Starts the server on the configured port. Does nothing if it is already running or turned off.
+     * Needs the OpenCV library to be loaded before frames are published.
+     */
+    public synchronized void start() {
+        int port = Integer.getInteger("darksky.live.port", DEFAULT_PORT);
+        if (selectorThread != null || port == 0) {
+            return;
+        }
+        try {
+            scaled = new Mat();
+            jpegParams = new MatOfInt(Imgcodecs.IMWRITE_JPEG_QUALITY, JPEG_QUALITY);
+            selector = Selector.open();
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            EventLog.error("LiveFeedServer", "live.start.failed", "port", port, e);
+            return;
+        }
+        selectorThread = new Thread(this::selectLoop, "darksky-live");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+        EventLog.info("LiveFeedServer", "live.started", "url", "http://127.0.0.1:" + port + "/");
+    }
+
+    /**
+     * Stops the server and waits for the selector thread to close the connections, so a start straight after
+     * can't have its new selector closed by the old thread.
+     */
+    public synchronized void stop() {
+        if (selectorThread == null) {
+            return;
+        }
+        Thread thread = selectorThread;
+        selectorThread = null;
+        thread.interrupt();
+        selector.wakeup();
+        try {
+            thread.join(STOP_WAIT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (thread.isAlive()) {
+            EventLog.warn("LiveFeedServer", "live.stop.slow", "waitedMs", STOP_WAIT_MS);
+        }
+        selectorTasks.clear();  // Work for the old connections
+    }
+
+    /**
+     * Called by AutoCapture after each saved picture.
+     */
+    @Override
+    public void frameCaptured(Mat frame, Path file) {
+        publishFrame(frame, false);
+    }
+
+    /**
+     * Offers a frame to the viewers. The frame is encoded on the calling thread, once, and only if someone is
+     * watching (or the idle snapshot is old). The Mat isn't kept, so the caller may reuse it straight away.
+     *
+     * @param frame    The frame, 8 or 16 bit, 1 or 3 channels.
+     * @param rgbOrder true if the channels are in RGB order (CameraWindow's preview), false for OpenCV's BGR.
+     */
+    public void publishFrame(Mat frame, boolean rgbOrder) {
+        if (selectorThread == null || frame.empty()) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (videoViewers == 0 && latestJpeg != null && now - lastEncodeNanos < SNAPSHOT_REFRESH_NANOS) {
+            return;  // Nobody is watching and the snapshot is recent enough
+        }
+
+        byte[] jpeg;
+        synchronized (encodeLock) {
+            if (frame.width() > MAX_WIDTH) {
+                double factor = (double) MAX_WIDTH / frame.width();
+                Imgproc.resize(frame, scaled, new Size(MAX_WIDTH, Math.round(frame.height() * factor)), 0, 0, Imgproc.INTER_AREA);
+            } else {
+                frame.copyTo(scaled);
+            }
+            if (scaled.depth() == CvType.CV_16U) {
+                scaled.convertTo(scaled, CvType.CV_8U, 1.0 / 256);  // JPEG holds 8 bits per channel
+            }
+            if (rgbOrder && scaled.channels() == 3) {
+                Imgproc.cvtColor(scaled, scaled, Imgproc.COLOR_RGB2BGR);
+            }
+            MatOfByte encoded = new MatOfByte();
+            if (!Imgcodecs.imencode(".jpg", scaled, encoded, jpegParams)) {
+                encoded.release();
+                return;
+            }
+            jpeg = encoded.toArray();
+            encoded.release();
+        }
+        lastEncodeNanos = now;
+        ENCODE_TIME.recordSince(now);
+        FRAMES_ENCODED.increment();
+
+        // One MJPEG part for everybody; each viewer gets its own read-only view of it. A heap buffer, because a
+        // new direct buffer per frame is slow to allocate and only freed by the GC; viewers may still be sending
+        // the previous part, so it can't be reused either
+        byte[] header = ("--" + BOUNDARY + "\r\nContent-Type: image/jpeg\r\nContent-Length: " + jpeg.length + "\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer part = ByteBuffer.allocate(header.length + jpeg.length + 2);
+        part.put(header).put(jpeg).put((byte) '\r').put((byte) '\n').flip();
+        latestJpeg = jpeg;
+        ByteBuffer shared = part.asReadOnlyBuffer();
+        runOnSelector(() -> {
+            latestPart = shared;  // Set here so a viewer joining now gets it exactly once
+            for (Client client : clients) {
+                if (client.kind != Kind.VIDEO) {
+                    continue;
+                }
+                if (client.out.isEmpty()) {
+                    queue(client, shared.duplicate());
+                    FRAMES_SENT.increment();
+                } else {
+                    FRAMES_DROPPED.increment();  // Still sending an older frame to this viewer
+                }
+            }
+        });
+    }
+
+    /**
+     * Sends an SQM reading to every viewer of /sqm.
+     *
+     * @param reading The reading as received from the SQM-LE.
+     */
+    public void publishReading(String reading) {
+        if (selectorThread == null) {
+            return;
+        }
+        String json = "{\"time\":\"" + LocalDateTime.now().withNano(0) + "\",\"reading\":\"" + escapeJson(reading) + "\"}";
+        ByteBuffer event = ByteBuffer.wrap(("event: sqm\ndata: " + json + "\n\n").getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+        runOnSelector(() -> {
+            latestEvent = event;
+            for (Client client : clients) {
+                if (client.kind != Kind.EVENTS) {
+                    continue;
+                }
+                if (client.out.size() >= MAX_QUEUED_EVENTS) {
+                    client.out.poll();  // Drop the oldest reading for a viewer that isn't keeping up
+                    EVENTS_DROPPED.increment();
+                }
+                queue(client, event.duplicate());
+            }
+        });
+    }
+
+    private void runOnSelector(Runnable task) {
+        selectorTasks.add(task);
+        selector.wakeup();
+    }
+
+    // ---- Selector thread ----
+
+    private void selectLoop() {
+        Selector selector = this.selector;  // This thread's own, even if a later start() replaces the field
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                selector.select();
+                Runnable task;
+                while ((task = selectorTasks.poll()) != null) {
+                    task.run();
+                }
+                for (SelectionKey key : selector.selectedKeys()) {
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else {
+                            Client client = (Client) key.attachment();
+                            if (key.isReadable()) {
+                                read(client, key);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                write(client, key);
+                            }
+                        }
+                    } catch (IOException e) {
+                        close(key);  // Viewer went away
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException e) {
+            EventLog.error("LiveFeedServer", "live.selector.failed", e);
+        } finally {
+            for (SelectionKey key : new ArrayList<>(selector.keys())) {
+                close(key);
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+                // Shutting down anyway
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        Client client = new Client(channel);
+        channel.register(selector, SelectionKey.OP_READ, client);
+        clients.add(client);
+    }
+
+    private void read(Client client, SelectionKey key) throws IOException {
+        if (client.kind != Kind.REQUEST) {
+            // Streaming clients don't send anything else; read only to notice when they disconnect
+            ByteBuffer discard = ByteBuffer.allocate(256);
+            if (client.channel.read(discard) < 0) {
+                close(key);
+            }
+            return;
+        }
+        if (client.channel.read(client.request) < 0) {
+            close(key);
+            return;
+        }
+        String text = new String(client.request.array(), 0, client.request.position(), StandardCharsets.US_ASCII);
+        if (!text.contains("\r\n\r\n")) {
+            if (!client.request.hasRemaining()) {
+                respond(client, "431 Request Header Fields Too Large", "text/plain", "Request too large".getBytes(StandardCharsets.US_ASCII));
+            }
+            return;  // Wait for the rest of the headers
+        }
+        String[] requestLine = text.substring(0, text.indexOf("\r\n")).split(" ");
+        String path = requestLine.length > 1 ? requestLine[1] : "/";
+        route(client, requestLine[0], path);
+    }
+
+    private void route(Client client, String method, String path) {
+        if (!method.equals("GET")) {
+            respond(client, "405 Method Not Allowed", "text/plain", "GET only".getBytes(StandardCharsets.US_ASCII));
+            return;
+        }
+        switch (path) {
+            case "/video.mjpg":
+                client.kind = Kind.VIDEO;
+                videoViewers++;
+                queue(client, headers("200 OK", "multipart/x-mixed-replace; boundary=" + BOUNDARY, -1));
+                if (latestPart != null) {
+                    queue(client, latestPart.duplicate());
+                }
+                EventLog.info("LiveFeedServer", "live.viewer.joined", "viewers", videoViewers);
+                break;
+            case "/sqm":
+                client.kind = Kind.EVENTS;
+                queue(client, headers("200 OK", "text/event-stream", -1));
+                if (latestEvent != null) {
+                    queue(client, latestEvent.duplicate());
+                }
+                break;
+            case "/snapshot.jpg":
+                byte[] jpeg = latestJpeg;
+                if (jpeg == null) {
+                    respond(client, "503 Service Unavailable", "text/plain", "No frame yet".getBytes(StandardCharsets.US_ASCII));
+                } else {
+                    respond(client, "200 OK", "image/jpeg", jpeg);
+                }
+                break;
+            case "/":
+                respond(client, "200 OK", "text/html; charset=utf-8", PAGE.getBytes(StandardCharsets.UTF_8));
+                break;
+            default:
+                respond(client, "404 Not Found", "text/plain", "Not found".getBytes(StandardCharsets.US_ASCII));
+                break;
+        }
+    }
+
+    private void respond(Client client, String status, String contentType, byte[] body) {
+        client.kind = Kind.ONE_SHOT;
+        queue(client, headers(status, contentType, body.length));
+        queue(client, ByteBuffer.wrap(body));
+    }
+
+    private static ByteBuffer headers(String status, String contentType, int contentLength) {
+        String text = "HTTP/1.1 " + status + "\r\nContent-Type: " + contentType + "\r\nCache-Control: no-cache\r\n"
+                + (contentLength >= 0 ? "Content-Length: " + contentLength + "\r\n" : "")
+                + "Connection: close\r\n\r\n";
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private void queue(Client client, ByteBuffer buffer) {
+        client.out.add(buffer);
+        SelectionKey key = client.channel.keyFor(selector);
+        if (key != null && key.isValid()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void write(Client client, SelectionKey key) throws IOException {
+        ByteBuffer buffer;
+        while ((buffer = client.out.peek()) != null) {
+            client.channel.write(buffer);
+            if (buffer.hasRemaining()) {
+                return;  // Socket buffer is full; carry on when it drains
+            }
+            client.out.poll();
+        }
+        if (client.kind == Kind.ONE_SHOT) {
+            close(key);
+        } else {
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private void close(SelectionKey key) {
+        Object attachment = key.attachment();
+        if (attachment instanceof Client) {
+            Client client = (Client) attachment;
+            if (clients.remove(client) && client.kind == Kind.VIDEO) {
+                videoViewers--;
+                EventLog.info("LiveFeedServer", "live.viewer.left", "viewers", videoViewers);
+            }
+        }
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {
+            // Already gone
+        }
+    }
+
+    private static String escapeJson(String text) {
+        if (text == null) {
+            return "";
+        }
+        StringBuilder out = new StringBuilder(text.length() + 8);
+        for (char c : text.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if (c < 0x20) {
+                out.append(String.format("\\u%04x", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+        return out.toString();
+    }
+
+    private static final String PAGE = "<!DOCTYPE html><html><head><title>DarkSky live</title>"
+            + "<style>body{background:#000;color:#ff0;font-family:Arial;margin:0;text-align:center}"
+            + "img{max-width:100%;max-height:90vh}</style></head><body>"
+            + "<img src=\"/video.mjpg\" alt=\"Live picture\"><p id=\"sqm\">SQM Data: ---</p>"
+            + "<script>new EventSource('/sqm').addEventListener('sqm',function(e){"
+            + "var d=JSON.parse(e.data);document.getElementById('sqm').textContent='SQM Data: '+d.reading+' ('+d.time+')';});"
+            + "</script></body></html>";
+}
@@ -0,0 +1,129 @@
+package com.darksky.services;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * File Header Comment:
+ * This class is the handle for one repeating job in the TaskScheduler (the clock, the SQM poll, AutoCapture ...).
+ */
+
+/**
+ * Class Header Comment:
+ * ScheduledTask wraps the job so the scheduler can count its runs and time them, and so it can be cancelled.
+ * The numbers are what the scheduler shows in its list of active tasks.
+ */
+public class ScheduledTask implements Runnable {
+
+    private final String name;
+    private final Runnable job;
+    private final long periodMillis;
+    private final Object runLock;  // Shared by every task scheduled under this name, so their runs never overlap
+    private final TaskScheduler owner;
+    private volatile ScheduledFuture<?> future;
+
+    private final AtomicLong runs = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private volatile long lastStartMillis;
+    private volatile long lastDurationNanos;
+    private volatile boolean running;
+
+    ScheduledTask(String name, Runnable job, long periodMillis, Object runLock, TaskScheduler owner) {
+        this.name = name;
+        this.job = job;
+        this.periodMillis = periodMillis;
+        this.runLock = runLock;
+        this.owner = owner;
+    }
+
+    void setFuture(ScheduledFuture<?> future) {
+        this.future = future;
+    }
+
+    /**
+     * Runs the job once, after any run of a task this one replaced. Exceptions are caught and counted, because
+     * an exception escaping a ScheduledExecutorService task silently stops every later run.
+     */
+    @Override
+    public void run() {
+        synchronized (runLock) {
+            lastStartMillis = System.currentTimeMillis();
+            running = true;
+            long start = System.nanoTime();
+            try {
+                job.run();
+            } catch (Throwable t) {
+                failures.incrementAndGet();
+                owner.reportFailure(this, t);
+            } finally {
+                lastDurationNanos = System.nanoTime() - start;
+                running = false;
+                runs.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Stops the task. A run that is in progress is interrupted, and no further runs start.
+     */
+    public void cancel() {
+        cancel(true);
+    }
+
+    /**
+     * Stops the task from starting again.
+     *
+     * @param interruptIfRunning true to interrupt a run in progress, false to let it finish.
+     */
+    public void cancel(boolean interruptIfRunning) {
+        owner.remove(this);
+        if (future != null) {
+            future.cancel(interruptIfRunning);
+        }
+    }
+
+    public boolean isCancelled() {
+        return future != null && future.isCancelled();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getPeriodMillis() {
+        return periodMillis;
+    }
+
+    public long getRuns() {
+        return runs.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @return How long until the next run starts, in milliseconds (negative if it is late).
+     */
+    public long getMillisUntilNextRun() {
+        return future == null ? 0 : future.getDelay(TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return A one line summary such as "sqm-poll every 5000 ms, 12 runs, last 41.2 ms, next in 3998 ms".
+     */
+    public String describe() {
+        return String.format("%s every %d ms, %d runs (%d failed), last %.1f ms%s, next in %d ms",
+                name, periodMillis, getRuns(), getFailures(), lastDurationNanos / 1e6,
+                running ? ", running now" : "", getMillisUntilNextRun());
+    }
+
+    long getLastStartMillis() {
+        return lastStartMillis;
+    }
+}
@@ -0,0 +1,183 @@
+package com.darksky.services;
+
+import com.darksky.controllers.SQMPoller;
+import com.darksky.logging.EventLog;
+import com.darksky.metrics.FlightRecorderMonitor;
+import com.darksky.metrics.LatencyHistogram;
+import com.darksky.metrics.Metrics;
+import com.darksky.metrics.MetricsExporter;
+import com.darksky.utils.FrameListener;
+import org.opencv.core.Core;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * File Header Comment:
+ * This class starts the station in stages that run at the same time, instead of one after the other on the
+ * main thread before the window could appear.
+ */
+
+/**
+ * Class Header Comment:
+ * Startup runs these stages on a few short-lived threads while the dashboard is being built:
+ * <pre>
+ *   opencv       Load the OpenCV native library
+ *   monitoring   Metrics endpoint and Flight Recorder monitor
+ *   storage      Today's report folder and the date check
+ *   timeline     Connect the station timeline and the collector upload
+ *   calibration  Load the master darks and flats
+ *   analysis     Frame quality analysis and meteor detection
+ *   archive      Compact old day folders
+ *   sqm          Start the SQM-LE poll
+ *   enclosure    Listen for the enclosure microcontroller
+ *   live         The local live feed server for browsers (after opencv)
+ *   camera       Open the camera and start AutoCapture (after opencv, storage, timeline, calibration and analysis)
+ * </pre>
+ * Progress goes to the listeners as short text ("Starting camera (10/11 done)"), and each stage is timed in a
+ * startup.&lt;stage&gt; histogram. Time to first frame and time to first SQM reading are measured from JVM start
+ * and kept in startup.first_frame and startup.first_reading.
+ * <p>
+ * Class loading is a large part of what is left. A CDS archive for the application classes cuts it down:
+ * <pre>
+ *   java -XX:ArchiveClassesAtExit=darksky.jsa -jar DarkSky.jar --startup-only   (once, writes the archive)
+ *   java -XX:SharedArchiveFile=darksky.jsa -jar DarkSky.jar                     (every start after that)
+ * </pre>
+ * --startup-only runs every stage, builds the window and exits, so the archive holds the classes a real start loads.
+ */
+public class Startup {
+
+    private static final String[] STAGES = {"opencv", "monitoring", "storage", "timeline", "calibration", "analysis", "archive",
+            "sqm", "enclosure", "live", "camera"};
+
+    private static final LatencyHistogram FIRST_FRAME = Metrics.histogram("startup.first_frame", "JVM start to the first saved frame");
+    private static final LatencyHistogram FIRST_READING = Metrics.histogram("startup.first_reading", "JVM start to the first SQM reading");
+
+    private final List<Consumer<String>> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicInteger finished = new AtomicInteger();
+    private volatile String status = "Starting";
+    private ExecutorService pool;
+
+    /**
+     * Adds a progress listener. It is called straight away with the current status, then on every change.
+     *
+     * @param listener Receives the status text, on a startup thread.
+     */
+    public void addListener(Consumer<String> listener) {
+        listeners.add(listener);
+        listener.accept(status);
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    /**
+     * Starts every stage.
+     *
+     * @return Completes when all stages have finished (a failed stage is logged, not rethrown).
+     */
+    public CompletableFuture<Void> start() {
+        long startNanos = System.nanoTime();
+        AtomicInteger threadNumber = new AtomicInteger();
+        pool = Executors.newFixedThreadPool(3, r -> {
+            Thread thread = new Thread(r, "darksky-startup-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        StationServices services = StationServices.get();
+        watchFirstFrame(services);
+        watchFirstReading(services);
+
+        CompletableFuture<Void> opencv = stage("opencv", () -> System.loadLibrary(Core.NATIVE_LIBRARY_NAME));
+        CompletableFuture<Void> monitoring = stage("monitoring", () -> {
+            MetricsExporter.start();  // Publishing the metrics over JMX and on http://127.0.0.1:9464/metrics
+            FlightRecorderMonitor.start();  // Saving a recording when a latency threshold is breached
+        });
+        CompletableFuture<Void> storage = stage("storage", services::startStorage);
+        CompletableFuture<Void> timeline = stage("timeline", services::startTimeline);
+        CompletableFuture<Void> calibration = stage("calibration", services::startCalibration);
+        CompletableFuture<Void> analysis = stage("analysis", services::startFrameAnalysis);
+        CompletableFuture<Void> archive = stage("archive", services::startArchive);
+        CompletableFuture<Void> sqm = stage("sqm", services::startSqm);
+        CompletableFuture<Void> enclosure = stage("enclosure", services::startEnclosure);
+        CompletableFuture<Void> live = opencv.thenCompose(ready -> stage("live", () -> {
+            LiveFeedServer server = LiveFeedServer.get();
+            server.start();
+            services.getAutoCapture().addFrameListener(server);
+            services.getSqmPoller().addListener(server::publishReading);
+        }));
+        // The first frame goes to the timeline, the calibration and the analysis, so they are set up before the camera
+        CompletableFuture<Void> camera = CompletableFuture.allOf(opencv, storage, timeline, calibration, analysis)
+                .thenCompose(ready -> stage("camera", services::startCapture));
+
+        return CompletableFuture.allOf(opencv, monitoring, storage, timeline, calibration, analysis, archive, sqm, enclosure, live, camera)
+                .whenComplete((done, error) -> {
+                    pool.shutdown();
+                    long millis = (System.nanoTime() - startNanos) / 1_000_000;
+                    EventLog.info("Startup", "startup.finished", "millis", millis, "jvmUptimeMillis", ManagementFactory.getRuntimeMXBean().getUptime());
+                    setStatus("Welcome!");
+                });
+    }
+
+    /**
+     * Runs one stage on the pool, timing it and reporting progress. Errors are logged and the stage counts as done,
+     * so a missing camera doesn't stop the SQM poll from starting.
+     */
+    private CompletableFuture<Void> stage(String name, Runnable work) {
+        LatencyHistogram timer = Metrics.histogram("startup." + name, "Startup stage: " + name);
+        return CompletableFuture.runAsync(() -> {
+            setStatus("Starting " + name + " (" + finished.get() + "/" + STAGES.length + " done)");
+            long start = System.nanoTime();
+            try {
+                work.run();
+            } catch (Throwable t) {  // UnsatisfiedLinkError from loadLibrary is an Error, not an Exception
+                EventLog.error("Startup", "stage.failed", "stage", name, t);
+            }
+            long nanos = System.nanoTime() - start;
+            timer.record(nanos);
+            finished.incrementAndGet();
+            EventLog.info("Startup", "stage.finished", "stage", name, "millis", nanos / 1_000_000);
+        }, pool);
+    }
+
+    private void setStatus(String text) {
+        status = text;
+        for (Consumer<String> listener : listeners) {
+            listener.accept(text);
+        }
+    }
+
+    private void watchFirstFrame(StationServices services) {
+        AtomicReference<FrameListener> once = new AtomicReference<>();
+        once.set((frame, file) -> {
+            services.getAutoCapture().removeFrameListener(once.get());
+            long uptime = ManagementFactory.getRuntimeMXBean().getUptime();
+            FIRST_FRAME.record(uptime * 1_000_000);
+            EventLog.info("Startup", "startup.first_frame", "jvmUptimeMillis", uptime);
+        });
+        services.getAutoCapture().addFrameListener(once.get());
+    }
+
+    private void watchFirstReading(StationServices services) {
+        SQMPoller poller = services.getSqmPoller();
+        AtomicReference<Consumer<String>> once = new AtomicReference<>();
+        once.set(measurement -> {
+            if (!SQMPoller.isReading(measurement)) {
+                return;  // Wait for a real reading, not the "device offline" text
+            }
+            poller.removeListener(once.get());
+            long uptime = ManagementFactory.getRuntimeMXBean().getUptime();
+            FIRST_READING.record(uptime * 1_000_000);
+            EventLog.info("Startup", "startup.first_reading", "jvmUptimeMillis", uptime);
+        });
+        poller.addListener(once.get());
+    }
+}
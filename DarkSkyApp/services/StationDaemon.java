@@ -0,0 +1,83 @@
+package com.darksky.services;
+
+import com.darksky.logging.EventLog;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * File Header Comment:
+ * This class runs the station without a user interface: AutoCapture, the SQM poller and the loggers, with
+ * no window, no background image and no connection to a display server. It is meant for unattended field PCs.
+ */
+
+/**
+ * Class Header Comment:
+ * StationDaemon starts the StationServices (through Startup) and then waits until the "shutdown" control command or the JVM
+ * shutting down (Ctrl+C, systemd stop). AWT is never loaded unless the dashboard is opened later with the
+ * "ui" command. Because nothing big is loaded, it runs in a small heap, for example:
+ * <pre>
+ *   java -Xms16m -Xmx128m -XX:+UseSerialGC -XX:TieredStopAtLevel=1 \
+ *        -Ddarksky.mode=headless -Ddarksky.control.port=7071 -jar DarkSky.jar
+ * </pre>
+ * darksky.control.port turns on the ControlServer on 127.0.0.1 (off when 0 or not set).
+ */
+public class StationDaemon {
+
+    private final Runnable uiLauncher;
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private ControlServer controlServer;
+
+    /**
+     * @param uiLauncher Opens the dashboard, used by the control socket's "ui" command.
+     */
+    public StationDaemon(Runnable uiLauncher) {
+        this.uiLauncher = uiLauncher;
+    }
+
+    /**
+     * Starts the station and blocks until it is told to stop.
+     */
+    public void run() {
+        long start = System.nanoTime();
+        CompletableFuture<Void> started = new Startup().start();  // Camera, SQM and storage in parallel
+
+        int port = Integer.getInteger("darksky.control.port", 0);
+        if (port > 0) {
+            controlServer = new ControlServer(port, uiLauncher, stopped::countDown);
+            try {
+                controlServer.start();
+            } catch (IOException e) {
+                EventLog.error("StationDaemon", "control.start.failed", "port", port, e);
+            }
+        }
+
+        // Ctrl+C or a service manager stopping the JVM still closes the camera and writes out the log
+        Thread shutdownHook = new Thread(this::shutdown, "darksky-shutdown");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+
+        started.join();
+        EventLog.info("StationDaemon", "daemon.started", "millis", (System.nanoTime() - start) / 1_000_000,
+                "control", port > 0 ? "127.0.0.1:" + port : "off");
+
+        try {
+            stopped.await();  // The scheduler threads are daemons, so this is what keeps the JVM running
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        shutdown();
+    }
+
+    private synchronized void shutdown() {
+        if (controlServer != null) {
+            controlServer.stop();
+            controlServer = null;
+        }
+        if (StationServices.get().isStarted()) {
+            StationServices.get().stop();
+        }
+    }
+}
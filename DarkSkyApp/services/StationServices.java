@@ -0,0 +1,382 @@
+package com.darksky.services;
+
+import com.darksky.analysis.FrameAnalysisStage;
+import com.darksky.archive.ArchiveCompactor;
+import com.darksky.calibration.Calibrator;
+import com.darksky.controllers.EnclosureController;
+import com.darksky.controllers.EnclosureStatus;
+import com.darksky.controllers.SQMExcelLogger;
+import com.darksky.controllers.SQMPoller;
+import com.darksky.logging.EventLog;
+import com.darksky.meteor.MeteorStage;
+import com.darksky.metrics.FlightEvents;
+import com.darksky.reprocess.Reprocessor;
+import com.darksky.timeline.StationTimeline;
+import com.darksky.timeline.TimelineUploader;
+import com.darksky.utils.AutoCapture;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.function.Consumer;
+
+/**
+ * File Header Comment:
+ * This class owns the parts of the station that do the actual work: AutoCapture, the SQM poller and the
+ * daily report folder. They used to be created by DashboardWindow, so nothing ran without the full-screen UI.
+ */
+
+/**
+ * Class Header Comment:
+ * StationServices holds one AutoCapture and one SQMPoller for the whole application. The dashboard and the
+ * headless daemon both start them through here, and a dashboard attached later to a running daemon shows the
+ * same instances instead of opening the camera a second time. Nothing in this class touches AWT or Swing.
+ */
+public class StationServices {
+
+    private static final StationServices INSTANCE = new StationServices();
+
+    private final AutoCapture autoCapture = new AutoCapture();
+    private final SQMPoller sqmPoller = new SQMPoller();
+    private final Object storageLock = new Object();  // Guards the parts the start methods below set up, so startSqm needn't wait for them
+    private Calibrator calibrator; // Darks and flats for AutoCapture, made by startCalibration
+    private ScheduledTask dateCheckTask; // Checks once a minute whether the day has changed
+    private Consumer<String> timelineSqm; // The timeline's listeners while it is connected, so stop can take them off again
+    private Consumer<EnclosureStatus> timelineEnclosure;
+    private ScheduledTask uploadTask; // Sends the timeline to the collector, null if none is configured
+    private ArchiveCompactor archiveCompactor; // Shrinks old day folders, null if turned off
+    private FrameAnalysisStage frameAnalysis; // Works out the quality of each saved frame, null if turned off
+    private MeteorStage meteorStage; // Watches every camera frame for meteors, null while off
+    private volatile String currentDate;
+    private volatile String todaysFolderPath;
+    private volatile boolean started;
+
+    private StationServices() {
+    }
+
+    public static StationServices get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Starts every part of the station, one after the other. Startup runs the same steps in parallel. Each start
+     * method leaves alone what is already running, and stop undoes all of them, so a stop and a start again
+     * leave everything connected once.
+     */
+    public void start() {
+        startStorage();
+        startTimeline();
+        startCalibration();
+        startFrameAnalysis();
+        startArchive();
+        startCapture();
+        startSqm();
+    }
+
+    /**
+     * Creates today's report folder and starts the once-a-minute date check.
+     */
+    public void startStorage() {
+        started = true;
+        synchronized (storageLock) {
+            if (dateCheckTask == null) {
+                updateFolderPath();
+                startDateCheck();
+            }
+        }
+    }
+
+    /**
+     * Connects the SQM poller, AutoCapture and the enclosure telemetry to the station timeline, and sends the
+     * timeline to the collector once a minute (-Ddarksky.collector.intervalMs) if -Ddarksky.collector.url is set.
+     */
+    public void startTimeline() {
+        started = true;
+        synchronized (storageLock) {
+            if (timelineSqm != null) {
+                return;
+            }
+            StationTimeline timeline = StationTimeline.get();
+            timelineSqm = timeline::recordSqm;
+            timelineEnclosure = timeline::recordEnclosure;
+            sqmPoller.addListener(timelineSqm);
+            autoCapture.addFrameListener(timeline);
+            EnclosureController.get().addTelemetryListener(timelineEnclosure);
+
+            TimelineUploader uploader = TimelineUploader.fromProperties();
+            if (uploader != null) {
+                long interval = Long.getLong("darksky.collector.intervalMs", 60000);
+                uploadTask = TaskScheduler.get().scheduleAtFixedRate("collector-upload", uploader, 10000, interval);
+                EventLog.info("StationServices", "collector.upload.started", "station", uploader.getStationId());
+            }
+        }
+    }
+
+    /**
+     * Loads the master darks and flats and hands them to AutoCapture.
+     */
+    public void startCalibration() {
+        started = true;
+        synchronized (storageLock) {
+            if (calibrator == null) {
+                calibrator = Calibrator.fromProperties();
+                autoCapture.setCalibrator(calibrator);
+            }
+        }
+    }
+
+    /**
+     * Starts the frame quality analysis, and meteor detection if -Ddarksky.meteor=true.
+     */
+    public void startFrameAnalysis() {
+        started = true;
+        synchronized (storageLock) {
+            if (frameAnalysis == null) {
+                frameAnalysis = FrameAnalysisStage.fromProperties();
+                if (frameAnalysis != null) {
+                    frameAnalysis.start();
+                    autoCapture.addFrameListener(frameAnalysis);
+                }
+            }
+            if (MeteorStage.enabledAtStartup()) {
+                setMeteorDetection(true);
+            }
+        }
+    }
+
+    /**
+     * Starts compacting old day folders, which gives way to AutoCapture and the SQM logger whenever they are
+     * writing.
+     */
+    public void startArchive() {
+        started = true;
+        synchronized (storageLock) {
+            if (archiveCompactor == null) {
+                archiveCompactor = ArchiveCompactor.fromProperties(() -> autoCapture.isSaving() || SQMExcelLogger.isWriting());
+                if (archiveCompactor != null) {
+                    archiveCompactor.start();
+                }
+            }
+        }
+    }
+
+    /**
+     * Opens the camera and starts AutoCapture. Needs the OpenCV library to be loaded.
+     */
+    public void startCapture() {
+        started = true;
+        autoCapture.startCapture();  // Not under the lock: opening the camera can take seconds
+        EventLog.info("StationServices", "capture.started", "capturing", autoCapture.isCapturing());
+    }
+
+    /**
+     * Starts polling the SQM-LE.
+     */
+    public void startSqm() {
+        started = true;
+        sqmPoller.start();
+    }
+
+    /**
+     * Starts listening for the enclosure microcontroller and asks it for telemetry every 10 seconds as soon as it
+     * connects (-Ddarksky.enclosure.telemetrySeconds, 0 for none). The telemetry goes into the station timeline.
+     */
+    public void startEnclosure() {
+        EnclosureController enclosure = EnclosureController.get();
+        enclosure.start();
+        int period = Integer.getInteger("darksky.enclosure.telemetrySeconds", 10);
+        if (period > 0 && !enclosure.isConnected()) {
+            enclosure.subscribeTelemetry(period).exceptionally(error -> null);  // Not connected yet; sent on connect
+        }
+    }
+
+    /**
+     * Stops everything, cancels all scheduled tasks and writes out the log. Used when the application exits.
+     */
+    public void stop() {
+        synchronized (storageLock) {
+            if (dateCheckTask != null) {
+                dateCheckTask.cancel();  // Stop the date check
+                dateCheckTask = null;
+            }
+            if (archiveCompactor != null) {
+                archiveCompactor.stop();
+                archiveCompactor = null;
+            }
+            if (timelineSqm != null) {
+                sqmPoller.removeListener(timelineSqm);
+                autoCapture.removeFrameListener(StationTimeline.get());
+                EnclosureController.get().removeTelemetryListener(timelineEnclosure);
+                timelineSqm = null;
+                timelineEnclosure = null;
+            }
+            if (uploadTask != null) {
+                uploadTask.cancel();
+                uploadTask = null;
+            }
+            if (meteorStage != null) {
+                autoCapture.removeStreamListener(meteorStage);
+            }
+            autoCapture.stopCapture(); // Stop the capture before exiting
+            if (meteorStage != null) {
+                meteorStage.stop();  // Saves an event still being recorded
+                meteorStage = null;
+            }
+            if (calibrator != null) {
+                autoCapture.setCalibrator(null);
+                calibrator.close();
+                calibrator = null;
+            }
+            if (frameAnalysis != null) {
+                autoCapture.removeFrameListener(frameAnalysis);
+                frameAnalysis.stop();
+                frameAnalysis = null;
+            }
+            Reprocessor reprocessor = Reprocessor.latest();
+            if (reprocessor != null) {
+                reprocessor.stop();  // Finished days are in its checkpoint; the next run carries on
+            }
+            sqmPoller.stop();
+            LiveFeedServer.get().stop();
+            EnclosureController.get().stop();
+            StationTimeline.get().close();
+            TaskScheduler.get().shutdown(); // Stop the clock and anything else still scheduled
+            EventLog.info("StationServices", "station.stopped");
+            EventLog.flush(2000); // Write out any log messages still in the buffer
+            started = false;
+        }
+    }
+
+    public boolean isStarted() {
+        return started;
+    }
+
+    public AutoCapture getAutoCapture() {
+        return autoCapture;
+    }
+
+    public SQMPoller getSqmPoller() {
+        return sqmPoller;
+    }
+
+    /**
+     * @return The frame calibration, or null before startCalibration.
+     */
+    public Calibrator getCalibrator() {
+        synchronized (storageLock) {
+            return calibrator;
+        }
+    }
+
+    /**
+     * Turns meteor detection on or off. While it is on, AutoCapture reads the camera continuously between the
+     * saved pictures.
+     *
+     * @return The running stage, or null when turned off.
+     */
+    public MeteorStage setMeteorDetection(boolean on) {
+        synchronized (storageLock) {
+            if (on && meteorStage == null) {
+                meteorStage = MeteorStage.fromProperties();
+                autoCapture.addStreamListener(meteorStage);
+                EventLog.info("StationServices", "meteor.started");
+            } else if (!on && meteorStage != null) {
+                autoCapture.removeStreamListener(meteorStage);
+                meteorStage.stop();
+                meteorStage = null;
+                EventLog.info("StationServices", "meteor.stopped");
+            }
+            return meteorStage;
+        }
+    }
+
+    /**
+     * @return The meteor detection, or null while it is off.
+     */
+    public MeteorStage getMeteorStage() {
+        synchronized (storageLock) {
+            return meteorStage;
+        }
+    }
+
+    /**
+     * @return The folder today's pictures and logs go into.
+     */
+    public String getTodaysFolderPath() {
+        return todaysFolderPath;
+    }
+
+    /**
+     * @return A short multi-line status, used by the control socket.
+     */
+    public String describe() {
+        return "capturing: " + autoCapture.isCapturing() + " (" + autoCapture.getSettings() + ")\n"
+                + "sqm: " + (sqmPoller.isRunning() ? "every " + sqmPoller.getMeasurementInterval() + " ms" : "stopped")
+                + ", last reading: " + sqmPoller.getLastMeasurement() + "\n"
+                + "enclosure: " + EnclosureController.get().describe() + "\n"
+                + "folder: " + todaysFolderPath;
+    }
+
+    /**
+     * Helper method to get the current date in "yyyy-MM-dd" format
+     *
+     * @return Current date as a string
+     */
+    private static String getCurrentDate() {
+        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
+        return sdf.format(new Date());
+    }
+
+    private void startDateCheck() {
+        currentDate = getCurrentDate();
+
+        dateCheckTask = TaskScheduler.get().scheduleAtFixedRate("date-check", () -> {
+            // Check if the date has changed using the already initialized currentDate
+            String currentDateInThread = getCurrentDate();
+            if (!currentDateInThread.equals(currentDate)) {
+                FlightEvents.DayRollover event = new FlightEvents.DayRollover();
+                event.begin();
+                event.previousDate = currentDate;
+                currentDate = currentDateInThread;  // Update the currentDate
+                updateFolderPath();  // Call the method to create/update the folder
+                event.newDate = currentDate;
+                event.commit();
+            }
+            // Additional check to recreate the folder if it's missing
+            else {
+                updateFolderPath();  // Recheck and create the folder if necessary
+            }
+        }, 0, 60000);  // Check every minute
+    }
+
+    /**
+     * Helper method to create or update the folder path for today
+     */
+    private void updateFolderPath() {
+        String newDate = getCurrentDate(); // Get today's date
+        EventLog.debug("StationServices", "folder.check", "date", newDate);
+
+        // Use the same approach as the image capture method to get the correct path
+        try {
+            Path reportsDir = Paths.get(System.getProperty("user.home"), "Documents", "DarkSky Reports");
+
+            if (Files.notExists(reportsDir)) {
+                Files.createDirectories(reportsDir);
+            }
+
+            Path todaysFolder = reportsDir.resolve(newDate);
+
+            if (Files.notExists(todaysFolder)) {
+                Files.createDirectories(todaysFolder); // Create the folder for today if it doesn't exist
+            }
+
+            todaysFolderPath = todaysFolder.toString(); // Store the path for later use
+
+        } catch (IOException e) {
+            EventLog.error("StationServices", "folder.create.failed", "date", newDate, e);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package com.darksky.services;
+
+import com.darksky.logging.EventLog;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * File Header Comment:
+ * This class is the one scheduler every repeating job in the application runs on. It replaces the separate
+ * "new Thread + Thread.sleep" loops and the java.util.Timer the dashboard used to start.
+ */
+
+/**
+ * Class Header Comment:
+ * TaskScheduler runs named tasks on a fixed-size ScheduledThreadPoolExecutor, so the number of threads stays
+ * the same no matter how many times capture or SQM polling is reset. Tasks run at a fixed rate: each run is
+ * due at start + n * period, so the time a run takes (or a late wake-up) doesn't push later runs back.
+ * Scheduling a task under a name that is already in use cancels the old one first, which is what keeps a
+ * reset from leaving two copies of the same loop running. A run of the old task that is already in progress
+ * is left to finish, so changing an interval never cuts off a capture or a request halfway, and runs of tasks
+ * with the same name take turns: the new task's first run waits until the old run is done. The list of
+ * active tasks can be read with {@link #describeTasks()} or in JConsole under com.darksky:type=Scheduler.
+ */
+public class TaskScheduler implements TaskSchedulerMXBean {
+
+    private static final int THREADS = Integer.getInteger("darksky.scheduler.threads", 4);
+    private static final TaskScheduler INSTANCE = new TaskScheduler();
+
+    private final ScheduledThreadPoolExecutor executor;
+    private final Map<String, ScheduledTask> tasks = new ConcurrentHashMap<>();
+    private final Map<String, Object> runLocks = new ConcurrentHashMap<>();  // One per name, kept across replacements
+
+    private TaskScheduler() {
+        AtomicInteger threadNumber = new AtomicInteger();
+        ThreadFactory factory = r -> {
+            Thread thread = new Thread(r, "darksky-scheduler-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        executor = new ScheduledThreadPoolExecutor(THREADS, factory);
+        executor.setRemoveOnCancelPolicy(true);  // Cancelled tasks leave the queue right away
+        executor.prestartAllCoreThreads();
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("com.darksky:type=Scheduler"));
+        } catch (Exception e) {
+            EventLog.warn("TaskScheduler", "jmx.register.failed", e);
+        }
+    }
+
+    /**
+     * @return The application's scheduler.
+     */
+    public static TaskScheduler get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Runs a task repeatedly at a fixed rate. Replaces any task already scheduled under the same name.
+     *
+     * @param name           A unique name such as "sqm-poll".
+     * @param job            The work to do on each run.
+     * @param initialDelayMs How long to wait before the first run.
+     * @param periodMs       Time between the starts of two runs.
+     * @return The handle used to cancel the task.
+     */
+    public ScheduledTask scheduleAtFixedRate(String name, Runnable job, long initialDelayMs, long periodMs) {
+        ScheduledTask task = new ScheduledTask(name, job, periodMs, runLock(name), this);
+        synchronized (tasks) {
+            ScheduledTask previous = tasks.put(name, task);
+            if (previous != null) {
+                previous.cancel(false);  // A run in progress finishes before the new task's first run starts
+                tasks.put(name, task);  // previous.cancel() removed the name, put the new task back
+            }
+            task.setFuture(executor.scheduleAtFixedRate(task, initialDelayMs, periodMs, TimeUnit.MILLISECONDS));
+        }
+        return task;
+    }
+
+    /**
+     * Runs a task once after a delay. It is listed under its name until it has run.
+     *
+     * @param name    A unique name.
+     * @param job     The work to do.
+     * @param delayMs How long to wait before running it.
+     * @return The handle used to cancel the task.
+     */
+    public ScheduledTask scheduleOnce(String name, Runnable job, long delayMs) {
+        ScheduledTask task = new ScheduledTask(name, job, 0, runLock(name), this);
+        Runnable runAndForget = () -> {
+            task.run();
+            remove(task);
+        };
+        synchronized (tasks) {
+            ScheduledTask previous = tasks.put(name, task);
+            if (previous != null) {
+                previous.cancel(false);
+                tasks.put(name, task);
+            }
+            task.setFuture(executor.schedule(runAndForget, delayMs, TimeUnit.MILLISECONDS));
+        }
+        return task;
+    }
+
+    /**
+     * Cancels the task with the given name, if there is one.
+     *
+     * @param name The task name.
+     */
+    public void cancel(String name) {
+        ScheduledTask task = tasks.get(name);
+        if (task != null) {
+            task.cancel();
+        }
+    }
+
+    /**
+     * @return The tasks that are currently scheduled, sorted by name.
+     */
+    public List<ScheduledTask> getActiveTasks() {
+        return new ArrayList<>(new TreeMap<>(tasks).values());
+    }
+
+    /**
+     * @return One line per active task, for logs and the options dialog.
+     */
+    public String describeTasks() {
+        StringBuilder out = new StringBuilder();
+        for (ScheduledTask task : getActiveTasks()) {
+            out.append(task.describe()).append('\n');
+        }
+        out.append(THREADS).append(" scheduler threads, ").append(executor.getActiveCount()).append(" busy");
+        return out.toString();
+    }
+
+    /**
+     * Cancels every task and stops the threads. Used when the application exits.
+     */
+    public void shutdown() {
+        for (ScheduledTask task : getActiveTasks()) {
+            task.cancel();
+        }
+        executor.shutdownNow();
+    }
+
+    private Object runLock(String name) {
+        return runLocks.computeIfAbsent(name, key -> new Object());
+    }
+
+    void remove(ScheduledTask task) {
+        tasks.remove(task.getName(), task);
+    }
+
+    void reportFailure(ScheduledTask task, Throwable error) {
+        EventLog.error("TaskScheduler", "task.failed", "task", task.getName(), error);
+    }
+
+    @Override
+    public Map<String, String> getTasks() {
+        Map<String, String> view = new TreeMap<>();
+        for (ScheduledTask task : getActiveTasks()) {
+            view.put(task.getName(), task.describe());
+        }
+        return view;
+    }
+
+    @Override
+    public int getThreadCount() {
+        return executor.getPoolSize();
+    }
+}
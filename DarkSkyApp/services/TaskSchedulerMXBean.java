@@ -0,0 +1,19 @@
+package com.darksky.services;
+
+import java.util.Map;
+
+/**
+ * File Header Comment:
+ * This interface is what JConsole / VisualVM show under com.darksky:type=Scheduler.
+ */
+
+/**
+ * Class Header Comment:
+ * TaskSchedulerMXBean gives a live view of the scheduled tasks and the size of the thread pool.
+ */
+public interface TaskSchedulerMXBean {
+
+    Map<String, String> getTasks();
+
+    int getThreadCount();
+}
@@ -0,0 +1,223 @@
+package com.darksky.timeline;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * File Header Comment:
+ * This class runs a few simulated stations against a collector on 127.0.0.1, to check that uploads are
+ * idempotent before stations are pointed at a real collector.
+ */
+
+/**
+ * Class Header Comment:
+ * CollectorSimulation gives each simulated station its own StationTimeline in a scratch folder and sends it with
+ * a real TimelineUploader, all stations at once. It checks that:
+ * <ul>
+ *   <li>every record arrives once and the collector's cursor is each station's newest record;</li>
+ *   <li>a batch sent again (its answer lost) is acknowledged with the same cursor and stores nothing;</li>
+ *   <li>after the collector and the stations restart, only the records made since are sent;</li>
+ *   <li>a station with nothing new sends nothing;</li>
+ *   <li>asking about a station that never sent anything doesn't make it appear.</li>
+ * </ul>
+ * The scratch folder is deleted afterwards. Run with "java -jar DarkSky.jar --collector-sim".
+ */
+public final class CollectorSimulation {
+
+    private static final String GHOST = "sim-ghost";  // Only ever asked about, never sends
+
+    private final int stations;
+    private final int records;
+    private final Path work;
+    private final List<StationTimeline> timelines = new ArrayList<>();
+    private final HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(10)).build();
+    private final StringBuilder report = new StringBuilder();
+    private TimelineCollector collector;
+    private int failures;
+
+    private CollectorSimulation(int stations, int records, Path work) {
+        this.stations = stations;
+        this.records = records;
+        this.work = work;
+    }
+
+    /**
+     * @param stations How many stations to simulate.
+     * @param records  SQM readings per station, half before and half after the restart.
+     * @return One line per check, the first saying whether they all passed.
+     */
+    public static String run(int stations, int records) throws IOException, InterruptedException {
+        CollectorSimulation simulation = new CollectorSimulation(stations, records, Files.createTempDirectory("darksky-collector-sim"));
+        try {
+            simulation.runChecks();
+        } finally {
+            simulation.cleanUp();
+        }
+        String result = simulation.failures == 0 ? "passed" : "FAILED " + simulation.failures + " check(s)";
+        return String.format(Locale.ROOT, "%s: %d stations, %d records each", result, stations, records) + simulation.report;
+    }
+
+    private void runChecks() throws IOException, InterruptedException {
+        collector = new TimelineCollector(work.resolve("collector"), 0, "127.0.0.1");
+        collector.start();
+        for (int i = 0; i < stations; i++) {
+            timelines.add(new StationTimeline(work.resolve(id(i))));
+        }
+
+        // First night: everything is new
+        record(records / 2);
+        long[] sent = uploadAll();
+        for (int i = 0; i < stations; i++) {
+            check("first upload " + id(i), sent[i] == records / 2, sent[i] + " sent");
+        }
+        checkHeld("after first upload");
+
+        // A lost answer: the station sends its first batch again
+        for (int i = 0; i < stations; i++) {
+            List<TimelineRecord> batch = timelines.get(i).readAfter(0, 100);
+            long before = collector.lastTime(id(i));
+            String answer = post(id(i), batch);
+            check("resend " + id(i), answer.equals("ack " + before), answer);
+        }
+        checkHeld("after resend");
+
+        // Both sides restart; the new uploaders only know what the collector tells them
+        collector.stop();
+        collector = new TimelineCollector(work.resolve("collector"), 0, "127.0.0.1");
+        collector.start();
+        record(records - records / 2);
+        sent = uploadAll();
+        for (int i = 0; i < stations; i++) {
+            check("upload after restart " + id(i), sent[i] == records - records / 2, sent[i] + " sent");
+        }
+        checkHeld("after restart");
+
+        // Nothing new since
+        sent = uploadAll();
+        for (int i = 0; i < stations; i++) {
+            check("nothing new " + id(i), sent[i] == 0, sent[i] + " sent");
+        }
+
+        // Reads must not register a station
+        String cursor = get("/v1/stations/" + GHOST + "/cursor").trim();
+        get("/v1/query?from=2000-01-01T00:00:00Z&to=2100-01-01T00:00:00Z&stations=" + GHOST);
+        check("unknown station", cursor.equals("0") && !collector.stations().contains(GHOST)
+                && Files.notExists(collector.getRoot().resolve(GHOST)), "cursor " + cursor + ", stations " + collector.stations());
+    }
+
+    /**
+     * Adds SQM readings to every station's timeline.
+     */
+    private void record(int count) {
+        for (StationTimeline timeline : timelines) {
+            for (int n = 0; n < count; n++) {
+                timeline.recordSqm(String.format(Locale.ROOT, "r, %05.2fm,0000022921Hz,0000000020c,0000000.000s, 039.4C", 18 + n % 300 / 100.0));
+            }
+        }
+    }
+
+    /**
+     * Sends every station's timeline with a new uploader, all stations at once, until each has caught up.
+     *
+     * @return The records each station sent.
+     */
+    private long[] uploadAll() throws InterruptedException {
+        URI url = URI.create("http://127.0.0.1:" + collector.getPort());
+        ExecutorService pool = Executors.newFixedThreadPool(stations);
+        try {
+            List<Future<Long>> results = new ArrayList<>();
+            for (int i = 0; i < stations; i++) {
+                TimelineUploader uploader = new TimelineUploader(id(i), url, timelines.get(i), 64);
+                results.add(pool.submit(() -> {
+                    long total = 0;
+                    for (int count = uploader.uploadBatch(); count > 0; count = uploader.uploadBatch()) {
+                        total += count;
+                    }
+                    return total;
+                }));
+            }
+            long[] sent = new long[stations];
+            for (int i = 0; i < stations; i++) {
+                try {
+                    sent[i] = results.get(i).get();
+                } catch (ExecutionException e) {
+                    sent[i] = -1;
+                    report.append("\n  ").append(id(i)).append(" upload failed: ").append(e.getCause());
+                }
+            }
+            return sent;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Checks that the collector holds each station's records exactly once and its cursor is the newest one.
+     */
+    private void checkHeld(String when) throws IOException {
+        long to = System.currentTimeMillis() + Duration.ofDays(1).toMillis();  // Records may be a little ahead of the clock
+        for (int i = 0; i < stations; i++) {
+            List<TimelineRecord> local = timelines.get(i).readAfter(0, Integer.MAX_VALUE);
+            List<TimelineRecord> held = collector.read(id(i), 0, to, null);
+            boolean same = local.size() == held.size();
+            for (int n = 0; same && n < held.size(); n++) {
+                same = local.get(n).getTime() == held.get(n).getTime();
+            }
+            long newest = local.isEmpty() ? 0 : local.get(local.size() - 1).getTime();
+            check(when + " " + id(i), same && collector.lastTime(id(i)) == newest,
+                    held.size() + " of " + local.size() + " held, cursor " + collector.lastTime(id(i)) + " / " + newest);
+        }
+    }
+
+    private String post(String station, List<TimelineRecord> batch) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + collector.getPort() + "/v1/stations/" + station + "/records"))
+                .POST(HttpRequest.BodyPublishers.ofByteArray(TimelineBatch.encode(batch)))
+                .build();
+        return client.send(request, HttpResponse.BodyHandlers.ofString()).body().trim();
+    }
+
+    private String get(String path) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + collector.getPort() + path)).GET().build();
+        return client.send(request, HttpResponse.BodyHandlers.ofString()).body();
+    }
+
+    private void check(String name, boolean passed, String detail) {
+        if (!passed) {
+            failures++;
+        }
+        report.append("\n  ").append(passed ? "ok     " : "FAILED ").append(name).append(": ").append(detail);
+    }
+
+    private void cleanUp() throws IOException {
+        if (collector != null) {
+            collector.stop();
+        }
+        for (StationTimeline timeline : timelines) {
+            timeline.close();
+        }
+        try (Stream<Path> files = Files.walk(work)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    private static String id(int station) {
+        return "sim-" + station;
+    }
+}
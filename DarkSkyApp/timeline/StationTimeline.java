@@ -0,0 +1,341 @@
+package com.darksky.timeline;
+
+import com.darksky.controllers.EnclosureStatus;
+import com.darksky.controllers.SQMReading;
+import com.darksky.logging.EventLog;
+import com.darksky.metrics.Counter;
+import com.darksky.metrics.LatencyHistogram;
+import com.darksky.metrics.Metrics;
+import com.darksky.utils.FrameListener;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * File Header Comment:
+ * This class keeps SQM readings, saved frames and enclosure telemetry in one time-ordered series on the
+ * station's clock, so a bad frame or a jump in sky brightness can be matched to what the fan and the
+ * enclosure temperature were doing at the time.
+ */
+
+/**
+ * Class Header Comment:
+ * StationTimeline is fed by the SQM poller, AutoCapture (as a FrameListener) and the EnclosureController's
+ * telemetry. Each arrival is stamped with System.currentTimeMillis() under one lock, so the three sources share
+ * a clock and the series is always in time order; the enclosure's own NTP clock is kept beside it to show drift.
+ * Records are appended to timeline.dat in the day's report folder (36 bytes each, see TimelineFile), and queries
+ * binary search the days they cover:
+ * <pre>
+ *   read(from, to, kind)            Raw records
+ *   join(from, to, windowMillis)    Each SQM reading with the enclosure state and the nearest frame
+ *   sqmJumps(from, to, magnitudes)  Joined rows where the sky brightness changed by at least that much
+ *   enclosureChanges(from, to)      Enclosure reports where the fan or power state changed
+ * </pre>
+ */
+public class StationTimeline implements FrameListener {
+
+    private static final String FILE_NAME = "timeline.dat";
+
+    private static final StationTimeline INSTANCE = new StationTimeline(Paths.get(System.getProperty("user.home"), "Documents", "DarkSky Reports"));
+
+    private static final LatencyHistogram APPEND_TIME = Metrics.histogram("timeline.append", "Appending one record to the station timeline");
+    private static final LatencyHistogram QUERY_TIME = Metrics.histogram("timeline.query", "Reading a time range from the station timeline");
+    private static final Counter RECORDS = Metrics.counter("timeline.records", "Records appended to the station timeline");
+    private static final Counter WRITE_ERRORS = Metrics.counter("timeline.write.errors", "Timeline records that could not be written");
+
+    private final Path reportsDir;
+    private final ByteBuffer recordBuffer = ByteBuffer.allocate(TimelineRecord.SIZE);  // Guarded by this
+    private TimelineFile today;  // Guarded by this
+    private LocalDate todayDate;
+    private long lastTime;  // Every record is at least 1 ms after the one before, even if the clock steps back
+    private boolean writeFailed;  // Log the first failure only, until a write works again
+
+    /**
+     * Makes a timeline kept under another reports folder. The station itself uses {@link #get()}; this is for
+     * tools that work on another tree, such as a simulated station feeding a collector.
+     *
+     * @param reportsDir The folder holding the yyyy-MM-dd day folders.
+     */
+    public StationTimeline(Path reportsDir) {
+        this.reportsDir = reportsDir;
+    }
+
+    public static StationTimeline get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Adds an SQM-LE reading, e.g. "r, 19.23m,0000022921Hz,0000000020c,0000000.000s, 039.4C".
+     * Failed polls are not recorded.
+     */
+    public void recordSqm(String reading) {
+        SQMReading parsed = SQMReading.parse(reading);
+        if (parsed != null) {
+            append(TimelineRecord.Kind.SQM, 0, parsed.getBrightness(), parsed.getSensorTemperature(), parsed.getFrequency(),
+                    parsed.getPeriod(), 0);
+        }
+    }
+
+    /**
+     * Adds an enclosure telemetry report.
+     */
+    public void recordEnclosure(EnclosureStatus status) {
+        int flags = (status.isRecordingPowered() ? TimelineRecord.RECORDING_ON : 0)
+                | (status.isFanOn() ? TimelineRecord.FAN_ON : 0)
+                | (status.isRecordingForced() ? TimelineRecord.RECORDING_FORCED : 0)
+                | (status.isFanForced() ? TimelineRecord.FAN_FORCED : 0);
+        long clockOffset = status.getDeviceTime().toEpochMilli() - System.currentTimeMillis();
+        append(TimelineRecord.Kind.ENCLOSURE, flags, (float) status.getTemperature(), (float) status.getFanOnTemperature(),
+                status.getFanSpeed(), status.getFanPwm(), clockOffset);
+    }
+
+    /**
+     * Adds a saved frame with its mean level, which is enough to spot a frame that is washed out or black.
+     * Called by AutoCapture on the capture thread.
+     */
+    @Override
+    public void frameCaptured(Mat frame, Path file) {
+        double scale = frame.depth() == CvType.CV_16U ? 65535.0 : 255.0;
+        float mean = (float) (Core.mean(frame).val[0] / scale);
+        long bytes = 0;
+        try {
+            bytes = Files.size(file);
+        } catch (IOException e) {
+            // The size is only for information
+        }
+        append(TimelineRecord.Kind.FRAME, 0, frame.width(), frame.height(), mean, bytes, 0);
+    }
+
+    private synchronized void append(TimelineRecord.Kind kind, int flags, float value0, float value1, float value2, float value3, long reference) {
+        long start = System.nanoTime();
+        try {
+            TimelineFile file = fileFor(System.currentTimeMillis());
+            long time = Math.max(System.currentTimeMillis(), lastTime + 1);  // Strictly increasing, so a time is a record's key
+            lastTime = time;
+            recordBuffer.clear();
+            new TimelineRecord(time, kind, flags, value0, value1, value2, value3, reference).writeTo(recordBuffer);
+            file.append(recordBuffer.flip(), 1);
+            RECORDS.increment();
+            APPEND_TIME.recordSince(start);
+            writeFailed = false;
+        } catch (IOException e) {
+            WRITE_ERRORS.increment();
+            if (!writeFailed) {
+                EventLog.error("StationTimeline", "timeline.write.failed", "kind", kind, e);
+                writeFailed = true;
+            }
+        }
+    }
+
+    /**
+     * Returns the file for the day of the given time, switching to a new file at midnight.
+     */
+    private TimelineFile fileFor(long time) throws IOException {
+        LocalDate date = dateOf(time);
+        if (today == null || !date.equals(todayDate)) {
+            closeToday();
+            today = TimelineFile.openForAppend(pathFor(date));
+            todayDate = date;
+            lastTime = Math.max(lastTime, today.getLastTime());  // Carry on after the records of an earlier run
+            EventLog.info("StationTimeline", "timeline.opened", "path", today.getPath(), "records", today.getCount());
+        }
+        return today;
+    }
+
+    /**
+     * Closes today's file. The next record opens it again.
+     */
+    public synchronized void close() {
+        closeToday();
+    }
+
+    private void closeToday() {
+        if (today != null) {
+            try {
+                today.close();
+            } catch (IOException e) {
+                EventLog.warn("StationTimeline", "timeline.close.failed", e);
+            }
+            today = null;
+        }
+    }
+
+    // ---- Queries ----
+
+    /**
+     * Reads the records with from &lt;= time &lt; to.
+     *
+     * @param kind Only records of this kind, or null for all kinds.
+     * @return The records in time order.
+     */
+    public List<TimelineRecord> read(Instant from, Instant to, TimelineRecord.Kind kind) throws IOException {
+        long start = System.nanoTime();
+        List<TimelineRecord> records = new ArrayList<>();
+        long fromMillis = from.toEpochMilli();
+        long toMillis = to.toEpochMilli();
+        for (LocalDate date = dateOf(fromMillis); !date.isAfter(dateOf(toMillis - 1)); date = date.plusDays(1)) {
+            synchronized (this) {
+                if (date.equals(todayDate) && today != null) {
+                    records.addAll(today.read(fromMillis, toMillis, kind));  // The open file, under the append lock
+                    continue;
+                }
+            }
+            try (TimelineFile file = TimelineFile.openForRead(pathFor(date))) {
+                if (file != null) {
+                    records.addAll(file.read(fromMillis, toMillis, kind));
+                }
+            }
+        }
+        QUERY_TIME.recordSince(start);
+        return records;
+    }
+
+    /**
+     * Reads the records after a given time, oldest first, across as many days as needed. Used to send
+     * everything not yet sent, however long the station was offline.
+     *
+     * @param afterTime  Only records with a later time.
+     * @param maxRecords Stop after this many.
+     */
+    public List<TimelineRecord> readAfter(long afterTime, int maxRecords) throws IOException {
+        List<TimelineRecord> records = new ArrayList<>();
+        LocalDate firstDate = dateOf(afterTime + 1);
+        for (LocalDate date : recordedDates()) {
+            if (date.isBefore(firstDate)) {
+                continue;
+            }
+            ZoneId zone = ZoneId.systemDefault();
+            Instant dayStart = Instant.ofEpochMilli(Math.max(afterTime + 1, date.atStartOfDay(zone).toInstant().toEpochMilli()));
+            Instant dayEnd = date.plusDays(1).atStartOfDay(zone).toInstant();
+            for (TimelineRecord record : read(dayStart, dayEnd, null)) {  // This day only, or the earlier ones come again
+                records.add(record);
+                if (records.size() == maxRecords) {
+                    return records;
+                }
+            }
+        }
+        return records;
+    }
+
+    /**
+     * @return The days that have a timeline file, oldest first.
+     */
+    private List<LocalDate> recordedDates() throws IOException {
+        List<LocalDate> dates = new ArrayList<>();
+        if (!Files.isDirectory(reportsDir)) {
+            return dates;
+        }
+        try (DirectoryStream<Path> folders = Files.newDirectoryStream(reportsDir)) {
+            for (Path folder : folders) {
+                try {
+                    LocalDate date = LocalDate.parse(folder.getFileName().toString());
+                    if (Files.exists(folder.resolve(FILE_NAME))) {
+                        dates.add(date);
+                    }
+                } catch (DateTimeParseException e) {
+                    // Not a day folder
+                }
+            }
+        }
+        Collections.sort(dates);
+        return dates;
+    }
+
+    /**
+     * Joins each SQM reading with the last enclosure report at or before it and the nearest frame.
+     *
+     * @param windowMillis How far from the reading a frame may be to count as its frame.
+     * @return One row per SQM reading, in time order.
+     */
+    public List<TimelineRow> join(Instant from, Instant to, long windowMillis) throws IOException {
+        // Read a little earlier and later so readings near the edges still find their enclosure state and frame
+        List<TimelineRecord> records = read(from.minusMillis(Math.max(windowMillis, 5 * 60_000)), to.plusMillis(windowMillis), null);
+        List<TimelineRecord> frames = new ArrayList<>();
+        for (TimelineRecord record : records) {
+            if (record.getKind() == TimelineRecord.Kind.FRAME) {
+                frames.add(record);
+            }
+        }
+        List<TimelineRow> rows = new ArrayList<>();
+        TimelineRecord enclosure = null;
+        int nextFrame = 0;  // First frame not before the current reading; both lists are in time order
+        for (TimelineRecord record : records) {
+            if (record.getKind() == TimelineRecord.Kind.ENCLOSURE) {
+                enclosure = record;
+            } else if (record.getKind() == TimelineRecord.Kind.SQM
+                    && record.getTime() >= from.toEpochMilli() && record.getTime() < to.toEpochMilli()) {
+                while (nextFrame < frames.size() && frames.get(nextFrame).getTime() < record.getTime()) {
+                    nextFrame++;
+                }
+                TimelineRecord frame = closer(record, nextFrame > 0 ? frames.get(nextFrame - 1) : null,
+                        nextFrame < frames.size() ? frames.get(nextFrame) : null, windowMillis);
+                rows.add(new TimelineRow(record, enclosure, frame));
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Finds the readings where the sky brightness moved by at least the given amount since the reading before.
+     *
+     * @param magnitudes Smallest change in mag/arcsec² that counts, e.g. 0.3.
+     * @return The joined rows of the readings after each jump.
+     */
+    public List<TimelineRow> sqmJumps(Instant from, Instant to, double magnitudes) throws IOException {
+        List<TimelineRow> jumps = new ArrayList<>();
+        TimelineRecord previous = null;
+        for (TimelineRow row : join(from, to, 60_000)) {
+            if (previous != null && Math.abs(row.getReading().getValue0() - previous.getValue0()) >= magnitudes) {
+                jumps.add(row);
+            }
+            previous = row.getReading();
+        }
+        return jumps;
+    }
+
+    /**
+     * Finds the enclosure reports where the fan or the recording power turned on or off, or was forced or released.
+     */
+    public List<TimelineRecord> enclosureChanges(Instant from, Instant to) throws IOException {
+        List<TimelineRecord> changes = new ArrayList<>();
+        TimelineRecord previous = null;
+        for (TimelineRecord record : read(from, to, TimelineRecord.Kind.ENCLOSURE)) {
+            if (previous == null || record.getFlags() != previous.getFlags()) {
+                changes.add(record);
+            }
+            previous = record;
+        }
+        return changes;
+    }
+
+    private static TimelineRecord closer(TimelineRecord reading, TimelineRecord before, TimelineRecord after, long windowMillis) {
+        long beforeGap = before == null ? Long.MAX_VALUE : reading.getTime() - before.getTime();
+        long afterGap = after == null ? Long.MAX_VALUE : after.getTime() - reading.getTime();
+        if (Math.min(beforeGap, afterGap) > windowMillis) {
+            return null;
+        }
+        return beforeGap <= afterGap ? before : after;
+    }
+
+    private static LocalDate dateOf(long millis) {
+        return Instant.ofEpochMilli(millis).atZone(ZoneId.systemDefault()).toLocalDate();
+    }
+
+    private Path pathFor(LocalDate date) {
+        return reportsDir.resolve(date.toString()).resolve(FILE_NAME);
+    }
+}
@@ -0,0 +1,80 @@
+package com.darksky.timeline;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * File Header Comment:
+ * This class is the wire format for sending timeline records from a station to the collector.
+ */
+
+/**
+ * Class Header Comment:
+ * TimelineBatch is gzip over "DSTB", a version, a record count and the records in their 36 byte file layout.
+ * Records in a batch must be in strictly increasing time order; the collector uses the time as the record's
+ * key to drop anything it already has, which is what makes sending a batch twice harmless.
+ */
+final class TimelineBatch {
+
+    private static final int MAGIC = 0x44535442;  // "DSTB"
+    private static final int VERSION = 1;
+    static final int MAX_RECORDS = 50_000;  // Largest batch the collector accepts
+
+    private TimelineBatch() {
+    }
+
+    static byte[] encode(List<TimelineRecord> records) throws IOException {
+        ByteBuffer raw = ByteBuffer.allocate(12 + records.size() * TimelineRecord.SIZE);
+        raw.putInt(MAGIC).putInt(VERSION).putInt(records.size());
+        for (TimelineRecord record : records) {
+            record.writeTo(raw);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(raw.capacity() / 4);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(bytes, 8192)) {
+            gzip.write(raw.array());
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reads a batch and checks that it is well formed.
+     *
+     * @throws IOException if the batch is corrupt, too large or out of order.
+     */
+    static List<TimelineRecord> decode(InputStream body) throws IOException {
+        DataInputStream in = new DataInputStream(new GZIPInputStream(body, 8192));
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("not a timeline batch");
+        }
+        int count = in.readInt();
+        if (count < 0 || count > MAX_RECORDS) {
+            throw new IOException("batch has " + count + " records, at most " + MAX_RECORDS + " allowed");
+        }
+        byte[] raw = new byte[count * TimelineRecord.SIZE];
+        in.readFully(raw);
+        ByteBuffer buffer = ByteBuffer.wrap(raw);
+        List<TimelineRecord> records = new ArrayList<>(count);
+        long previous = Long.MIN_VALUE;
+        for (int i = 0; i < count; i++) {
+            TimelineRecord record;
+            try {
+                record = TimelineRecord.readFrom(buffer);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("bad record at " + i + ": " + e.getMessage());
+            }
+            if (record.getTime() <= previous) {
+                throw new IOException("records out of order at " + i);
+            }
+            previous = record.getTime();
+            records.add(record);
+        }
+        return records;
+    }
+}
@@ -0,0 +1,462 @@
+package com.darksky.timeline;
+
+import com.darksky.logging.EventLog;
+import com.darksky.metrics.Counter;
+import com.darksky.metrics.LatencyHistogram;
+import com.darksky.metrics.Metrics;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * File Header Comment:
+ * This class is the collector that several DarkSky stations send their timelines to, so readings from
+ * different sites can be compared without copying report folders around by hand.
+ */
+
+/**
+ * Class Header Comment:
+ * TimelineCollector is a small HTTP server. Stations (TimelineUploader) send gzipped TimelineBatches; the
+ * collector keeps them sharded by station and UTC day, one TimelineFile per shard:
+ * <pre>
+ *   &lt;root&gt;/&lt;station&gt;/&lt;yyyy-MM-dd&gt;.dat
+ * </pre>
+ * Endpoints:
+ * <pre>
+ *   POST /v1/stations/ID/records          Body: a TimelineBatch. Answers "ack TIME", the last record now held
+ *   GET  /v1/stations/ID/cursor           The last record time held for the station (0 if none)
+ *   GET  /v1/stations                     Every station with its last record time
+ *   GET  /v1/query?from=&amp;to=[&amp;kind=][&amp;stations=a,b]   Records as CSV, time order per station
+ *   GET  /v1/summary?from=&amp;to=[&amp;stations=a,b]          Per station SQM count, min, mean and max
+ * </pre>
+ * Each station's records arrive in time order, so the collector only has to remember the last time it holds per
+ * station: anything at or before it is a resend and is skipped. A station that was offline simply sends
+ * everything after that time when it is back, and a batch whose answer was lost can be sent again safely.
+ * Queries binary search each station's day files and run the stations in parallel.
+ * <p>
+ * Run it with "java -jar DarkSky.jar --collector". -Ddarksky.collector.port (default 9470),
+ * -Ddarksky.collector.dir (default ~/Documents/DarkSky Collector) and -Ddarksky.collector.bind (default
+ * 127.0.0.1; set 0.0.0.0 to take stations from the network) configure it.
+ */
+public class TimelineCollector {
+
+    private static final Pattern STATION_ID = Pattern.compile("[A-Za-z0-9_.-]{1,64}");
+
+    private static final LatencyHistogram INGEST_TIME = Metrics.histogram("collector.ingest", "Storing one batch from a station");
+    private static final LatencyHistogram QUERY_TIME = Metrics.histogram("collector.query", "Answering a cross-station query");
+    private static final Counter RECORDS_STORED = Metrics.counter("collector.records", "Records stored by the collector");
+    private static final Counter RECORDS_DUPLICATE = Metrics.counter("collector.records.duplicate", "Resent records the collector already had");
+
+    /**
+     * One station's storage. Appends and reads of the open day file are done under the shard's lock.
+     */
+    private static final class Shard {
+        final Path dir;
+        long lastTime;  // Time of the newest record held
+        TimelineFile open;  // Day file being appended to
+        LocalDate openDate;
+
+        Shard(Path dir) {
+            this.dir = dir;
+        }
+    }
+
+    private final Path root;
+    private final int port;
+    private final String bindAddress;
+    private final Map<String, Shard> shards = new ConcurrentHashMap<>();
+    private HttpServer server;
+    private ExecutorService pool;
+
+    /**
+     * @param root        Folder the station shards are kept in.
+     * @param port        Port to listen on.
+     * @param bindAddress Address to listen on, e.g. "127.0.0.1".
+     */
+    public TimelineCollector(Path root, int port, String bindAddress) {
+        this.root = root;
+        this.port = port;
+        this.bindAddress = bindAddress;
+    }
+
+    /**
+     * @return A collector set up from the darksky.collector.* system properties.
+     */
+    public static TimelineCollector fromProperties() {
+        Path root = Path.of(System.getProperty("darksky.collector.dir",
+                Path.of(System.getProperty("user.home"), "Documents", "DarkSky Collector").toString()));
+        return new TimelineCollector(root, Integer.getInteger("darksky.collector.port", 9470),
+                System.getProperty("darksky.collector.bind", "127.0.0.1"));
+    }
+
+    public synchronized void start() throws IOException {
+        if (server != null) {
+            return;
+        }
+        Files.createDirectories(root);
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getByName(bindAddress), port), 64);
+        server.createContext("/v1/stations", this::handleStations);
+        server.createContext("/v1/query", exchange -> handleQuery(exchange, false));
+        server.createContext("/v1/summary", exchange -> handleQuery(exchange, true));
+        AtomicInteger threadNumber = new AtomicInteger();
+        pool = Executors.newFixedThreadPool(Integer.getInteger("darksky.collector.threads", 4), r -> {
+            Thread thread = new Thread(r, "darksky-collector-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(pool);
+        server.start();
+        EventLog.info("TimelineCollector", "collector.started", "url", "http://" + bindAddress + ":" + getPort() + "/v1/stations");
+    }
+
+    /**
+     * @return Folder the station shards are kept in.
+     */
+    public Path getRoot() {
+        return root;
+    }
+
+    /**
+     * @return The port listened on (useful when started on port 0).
+     */
+    public int getPort() {
+        return server != null ? server.getAddress().getPort() : port;
+    }
+
+    public synchronized void stop() {
+        if (server == null) {
+            return;
+        }
+        server.stop(1);
+        pool.shutdown();
+        server = null;
+        for (Shard shard : shards.values()) {
+            synchronized (shard) {
+                closeOpen(shard);
+            }
+        }
+    }
+
+    // ---- Ingest ----
+
+    /**
+     * Stores the records of a batch that are newer than what the station already has here.
+     *
+     * @return The station's last record time after storing.
+     */
+    long ingest(String station, List<TimelineRecord> records) throws IOException {
+        long start = System.nanoTime();
+        Shard shard = shard(station);
+        synchronized (shard) {
+            int first = 0;
+            while (first < records.size() && records.get(first).getTime() <= shard.lastTime) {
+                first++;  // Already held: the batch was sent again after a lost answer, or overlaps the last one
+            }
+            RECORDS_DUPLICATE.add(first);
+            // Write each day's run of records with one write
+            int runStart = first;
+            while (runStart < records.size()) {
+                LocalDate date = dateOf(records.get(runStart).getTime());
+                int runEnd = runStart;
+                while (runEnd < records.size() && dateOf(records.get(runEnd).getTime()).equals(date)) {
+                    runEnd++;
+                }
+                ByteBuffer buffer = ByteBuffer.allocate((runEnd - runStart) * TimelineRecord.SIZE);
+                for (int i = runStart; i < runEnd; i++) {
+                    records.get(i).writeTo(buffer);
+                }
+                fileFor(shard, date).append(buffer.flip(), runEnd - runStart);
+                shard.lastTime = records.get(runEnd - 1).getTime();
+                RECORDS_STORED.add(runEnd - runStart);
+                runStart = runEnd;
+            }
+            INGEST_TIME.recordSince(start);
+            return shard.lastTime;
+        }
+    }
+
+    /**
+     * Returns the station's shard, making it the first time the station sends records. Only ingest makes shards;
+     * reads use {@link #lastTime} and the folder, so asking about a station that never sent anything leaves
+     * nothing behind.
+     */
+    private Shard shard(String station) throws IOException {
+        Shard shard = shards.get(station);
+        if (shard != null) {
+            return shard;
+        }
+        shard = new Shard(root.resolve(station));
+        shard.lastTime = lastTimeOnDisk(shard.dir);
+        Shard existing = shards.putIfAbsent(station, shard);
+        return existing != null ? existing : shard;
+    }
+
+    /**
+     * @return The time of the newest record held for the station, 0 if none.
+     */
+    long lastTime(String station) throws IOException {
+        Shard shard = shards.get(station);
+        return shard != null ? shard.lastTime : lastTimeOnDisk(root.resolve(station));
+    }
+
+    /**
+     * @return The time of the newest record in a station's day files, 0 if none.
+     */
+    private static long lastTimeOnDisk(Path dir) throws IOException {
+        List<LocalDate> dates = datesOf(dir);
+        for (int i = dates.size() - 1; i >= 0; i--) {
+            try (TimelineFile file = TimelineFile.openForRead(dir.resolve(dates.get(i) + ".dat"))) {
+                if (file != null && file.getCount() > 0) {
+                    return file.getLastTime();
+                }
+            }
+        }
+        return 0;
+    }
+
+    private TimelineFile fileFor(Shard shard, LocalDate date) throws IOException {
+        if (shard.open == null || !date.equals(shard.openDate)) {
+            closeOpen(shard);
+            shard.open = TimelineFile.openForAppend(pathFor(shard, date));
+            shard.openDate = date;
+        }
+        return shard.open;
+    }
+
+    private static void closeOpen(Shard shard) {
+        if (shard.open != null) {
+            try {
+                shard.open.close();
+            } catch (IOException e) {
+                EventLog.warn("TimelineCollector", "collector.close.failed", "dir", shard.dir, e);
+            }
+            shard.open = null;
+        }
+    }
+
+    // ---- Queries ----
+
+    /**
+     * Reads one station's records with from &lt;= time &lt; to. Works without start(), straight from the folder.
+     *
+     * @param kind Only records of this kind, or null for all.
+     */
+    public List<TimelineRecord> read(String station, long from, long to, TimelineRecord.Kind kind) throws IOException {
+        Shard shard = shards.get(station);  // Null if nothing was sent since start: then there is no open file either
+        Path dir = root.resolve(station);
+        List<TimelineRecord> records = new ArrayList<>();
+        for (LocalDate date : datesOf(dir)) {
+            if (date.isBefore(dateOf(from)) || date.isAfter(dateOf(to - 1))) {
+                continue;
+            }
+            if (shard != null) {
+                synchronized (shard) {
+                    if (date.equals(shard.openDate) && shard.open != null) {
+                        records.addAll(shard.open.read(from, to, kind));  // Being appended to right now
+                        continue;
+                    }
+                }
+            }
+            try (TimelineFile file = TimelineFile.openForRead(dir.resolve(date + ".dat"))) {
+                if (file != null) {
+                    records.addAll(file.read(from, to, kind));
+                }
+            }
+        }
+        return records;
+    }
+
+    /**
+     * @return Every station that has sent something, sorted.
+     */
+    public List<String> stations() throws IOException {
+        TreeSet<String> stations = new TreeSet<>(shards.keySet());
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(root, Files::isDirectory)) {
+            for (Path dir : dirs) {
+                stations.add(dir.getFileName().toString());
+            }
+        }
+        return new ArrayList<>(stations);
+    }
+
+    // ---- HTTP ----
+
+    private void handleStations(HttpExchange exchange) throws IOException {
+        try {
+            String[] parts = exchange.getRequestURI().getPath().split("/");  // "", "v1", "stations", ID, action
+            if (parts.length == 3) {
+                StringBuilder body = new StringBuilder();
+                for (String station : stations()) {
+                    body.append(station).append(' ').append(lastTime(station)).append('\n');
+                }
+                respond(exchange, 200, "text/plain", body.toString());
+                return;
+            }
+            if (parts.length != 5 || !STATION_ID.matcher(parts[3]).matches()) {
+                respond(exchange, 404, "text/plain", "not found\n");
+                return;
+            }
+            String station = parts[3];
+            if (parts[4].equals("cursor") && exchange.getRequestMethod().equals("GET")) {
+                respond(exchange, 200, "text/plain", lastTime(station) + "\n");
+            } else if (parts[4].equals("records") && exchange.getRequestMethod().equals("POST")) {
+                List<TimelineRecord> records;
+                try (InputStream body = exchange.getRequestBody()) {
+                    records = TimelineBatch.decode(body);
+                } catch (IOException e) {
+                    respond(exchange, 400, "text/plain", "bad batch: " + e.getMessage() + "\n");
+                    return;
+                }
+                long lastTime = ingest(station, records);
+                respond(exchange, 200, "text/plain", "ack " + lastTime + "\n");
+            } else {
+                respond(exchange, 404, "text/plain", "not found\n");
+            }
+        } catch (IOException e) {
+            EventLog.error("TimelineCollector", "collector.request.failed", "uri", exchange.getRequestURI(), e);
+            respond(exchange, 500, "text/plain", "error: " + e.getMessage() + "\n");
+        }
+    }
+
+    private void handleQuery(HttpExchange exchange, boolean summary) throws IOException {
+        long start = System.nanoTime();
+        Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+        long from, to;
+        TimelineRecord.Kind kind;
+        List<String> stations;
+        try {
+            from = Instant.parse(query.get("from")).toEpochMilli();
+            to = Instant.parse(query.get("to")).toEpochMilli();
+            kind = summary ? TimelineRecord.Kind.SQM
+                    : query.containsKey("kind") ? TimelineRecord.Kind.valueOf(query.get("kind").toUpperCase(Locale.ROOT)) : null;
+            stations = query.containsKey("stations") ? Arrays.asList(query.get("stations").split(",")) : stations();
+            for (String station : stations) {
+                if (!STATION_ID.matcher(station).matches()) {
+                    throw new IllegalArgumentException("bad station " + station);
+                }
+            }
+        } catch (RuntimeException e) {
+            respond(exchange, 400, "text/plain", "usage: ?from=2024-01-01T00:00:00Z&to=...[&kind=SQM|FRAME|ENCLOSURE][&stations=a,b]\n");
+            return;
+        }
+        // Stations are independent, so read them in parallel; the result keeps the requested order
+        List<String> parts;
+        try {
+            parts = stations.parallelStream().map(station -> {
+                try {
+                    List<TimelineRecord> records = read(station, from, to, kind);
+                    return summary ? summarize(station, records) : toCsv(station, records);
+                } catch (IOException e) {
+                    throw new IllegalStateException(station + ": " + e.getMessage(), e);
+                }
+            }).collect(Collectors.toList());
+        } catch (IllegalStateException e) {
+            respond(exchange, 500, "text/plain", "error: " + e.getMessage() + "\n");
+            return;
+        }
+        String header = summary ? "station,readings,min,mean,max\n" : "station,time,kind,flags,value0,value1,value2,value3,reference\n";
+        respond(exchange, 200, "text/csv", header + String.join("", parts));
+        QUERY_TIME.recordSince(start);
+    }
+
+    private static String toCsv(String station, List<TimelineRecord> records) {
+        StringBuilder csv = new StringBuilder(records.size() * 80);
+        for (TimelineRecord record : records) {
+            csv.append(station).append(',').append(record.getInstant()).append(',').append(record.getKind()).append(',')
+                    .append(record.getFlags()).append(',').append(record.getValue0()).append(',').append(record.getValue1()).append(',')
+                    .append(record.getValue2()).append(',').append(record.getValue3()).append(',').append(record.getReference()).append('\n');
+        }
+        return csv.toString();
+    }
+
+    private static String summarize(String station, List<TimelineRecord> readings) {
+        if (readings.isEmpty()) {
+            return station + ",0,,,\n";
+        }
+        double min = Double.MAX_VALUE, max = -Double.MAX_VALUE, sum = 0;
+        for (TimelineRecord reading : readings) {
+            min = Math.min(min, reading.getValue0());
+            max = Math.max(max, reading.getValue0());
+            sum += reading.getValue0();
+        }
+        return String.format(Locale.ROOT, "%s,%d,%.2f,%.2f,%.2f\n", station, readings.size(), min, sum / readings.size(), max);
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null) {
+            return query;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0) {
+                query.put(pair.substring(0, equals), URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return query;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static List<LocalDate> datesOf(Path dir) throws IOException {
+        List<LocalDate> dates = new ArrayList<>();
+        if (!Files.isDirectory(dir)) {
+            return dates;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.dat")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    dates.add(LocalDate.parse(name.substring(0, name.length() - 4)));
+                } catch (DateTimeParseException e) {
+                    // Not a day file
+                }
+            }
+        }
+        dates.sort(null);
+        return dates;
+    }
+
+    private static Path pathFor(Shard shard, LocalDate date) {
+        return shard.dir.resolve(date + ".dat");
+    }
+
+    private static LocalDate dateOf(long millis) {
+        return Instant.ofEpochMilli(millis).atZone(ZoneOffset.UTC).toLocalDate();
+    }
+}
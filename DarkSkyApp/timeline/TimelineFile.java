@@ -0,0 +1,88 @@
+package com.darksky.timeline;
+
+import com.darksky.utils.SortedRecordFile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * File Header Comment:
+ * This class reads and writes one day of the station timeline (timeline.dat in the day's report folder).
+ */
+
+/**
+ * Class Header Comment:
+ * TimelineFile is a SortedRecordFile with the "DSTL" header and TimelineRecords, so a time range is found with a
+ * binary search and read without loading the rest of the day. Records are only ever appended, since the
+ * timeline makes them in time order.
+ */
+final class TimelineFile implements AutoCloseable {
+
+    private static final int MAGIC = 0x4453544C;  // "DSTL"
+    private static final int VERSION = 1;
+
+    private final SortedRecordFile file;
+
+    private TimelineFile(SortedRecordFile file) {
+        this.file = file;
+    }
+
+    /**
+     * Opens a day's file for appending, creating it if needed.
+     */
+    static TimelineFile openForAppend(Path path) throws IOException {
+        return new TimelineFile(SortedRecordFile.openForWrite(path, MAGIC, VERSION, TimelineRecord.SIZE, "timeline file"));
+    }
+
+    /**
+     * Opens a day's file for reading only.
+     *
+     * @return The file, or null if there is no timeline for that day.
+     */
+    static TimelineFile openForRead(Path path) throws IOException {
+        SortedRecordFile file = SortedRecordFile.openForRead(path, MAGIC, VERSION, TimelineRecord.SIZE, "timeline file");
+        return file != null ? new TimelineFile(file) : null;
+    }
+
+    /**
+     * Appends records. They must not be older than the last record in the file.
+     */
+    void append(ByteBuffer records, int recordCount) throws IOException {
+        file.append(records, recordCount);
+    }
+
+    long getCount() {
+        return file.getCount();
+    }
+
+    /**
+     * @return The time of the last record, or 0 if the file is empty.
+     */
+    long getLastTime() throws IOException {
+        return file.getLastTime();
+    }
+
+    Path getPath() {
+        return file.getPath();
+    }
+
+    /**
+     * Reads the records with from &lt;= time &lt; to.
+     *
+     * @param kind Only records of this kind, or null for all.
+     */
+    List<TimelineRecord> read(long from, long to, TimelineRecord.Kind kind) throws IOException {
+        List<TimelineRecord> records = file.read(from, to, TimelineRecord::readFrom);
+        if (kind != null) {
+            records.removeIf(record -> record.getKind() != kind);
+        }
+        return records;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
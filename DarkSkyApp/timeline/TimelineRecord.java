@@ -0,0 +1,130 @@
+package com.darksky.timeline;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+
+/**
+ * File Header Comment:
+ * This class is one entry in the station timeline: an SQM reading, a saved frame or an enclosure telemetry
+ * report, stamped with the station's clock when it arrived.
+ */
+
+/**
+ * Class Header Comment:
+ * TimelineRecord has the same fixed layout for every kind, so a day's file is a plain array of records that
+ * can be binary searched by time. What the four values mean depends on the kind:
+ * <pre>
+ *   kind       value0           value1              value2              value3      flags              reference
+ *   SQM        mag/arcsec²      SQM sensor temp °C  frequency Hz        period s    -                  -
+ *   FRAME      width            height              mean level (0-1)    file bytes  -                  -
+ *   ENCLOSURE  temperature °F   fan-on temp °F      fan speed (raw)     fan PWM     EnclosureStatus    device clock - station clock (ms)
+ * </pre>
+ */
+public final class TimelineRecord {
+
+    public enum Kind {
+        SQM, FRAME, ENCLOSURE;
+
+        static Kind of(int code) {
+            Kind[] kinds = values();
+            if (code < 0 || code >= kinds.length) {
+                throw new IllegalArgumentException("unknown record kind " + code);
+            }
+            return kinds[code];
+        }
+    }
+
+    static final int SIZE = 36;  // Bytes per record on disk
+
+    // ENCLOSURE flags, same bits as the firmware's STATUS frame
+    public static final int RECORDING_ON = 1;
+    public static final int FAN_ON = 2;
+    public static final int RECORDING_FORCED = 4;
+    public static final int FAN_FORCED = 8;
+
+    private final long time;
+    private final Kind kind;
+    private final int flags;
+    private final float value0, value1, value2, value3;
+    private final long reference;
+
+    public TimelineRecord(long time, Kind kind, int flags, float value0, float value1, float value2, float value3, long reference) {
+        this.time = time;
+        this.kind = kind;
+        this.flags = flags;
+        this.value0 = value0;
+        this.value1 = value1;
+        this.value2 = value2;
+        this.value3 = value3;
+        this.reference = reference;
+    }
+
+    void writeTo(ByteBuffer out) {
+        out.putLong(time).put((byte) kind.ordinal()).put((byte) flags).putShort((short) 0)
+                .putFloat(value0).putFloat(value1).putFloat(value2).putFloat(value3).putLong(reference);
+    }
+
+    static TimelineRecord readFrom(ByteBuffer in) {
+        long time = in.getLong();
+        Kind kind = Kind.of(in.get());
+        int flags = Byte.toUnsignedInt(in.get());
+        in.getShort();
+        return new TimelineRecord(time, kind, flags, in.getFloat(), in.getFloat(), in.getFloat(), in.getFloat(), in.getLong());
+    }
+
+    /**
+     * @return Station time in milliseconds since the epoch.
+     */
+    public long getTime() {
+        return time;
+    }
+
+    public Instant getInstant() {
+        return Instant.ofEpochMilli(time);
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public boolean hasFlag(int flag) {
+        return (flags & flag) != 0;
+    }
+
+    public float getValue0() {
+        return value0;
+    }
+
+    public float getValue1() {
+        return value1;
+    }
+
+    public float getValue2() {
+        return value2;
+    }
+
+    public float getValue3() {
+        return value3;
+    }
+
+    public long getReference() {
+        return reference;
+    }
+
+    @Override
+    public String toString() {
+        switch (kind) {
+            case SQM:
+                return String.format("%s SQM %.2f mag/arcsec² (%.1f °C)", getInstant(), value0, value1);
+            case FRAME:
+                return String.format("%s FRAME %dx%d mean %.3f, %d bytes", getInstant(), (int) value0, (int) value1, value2, (long) value3);
+            default:
+                return String.format("%s ENCLOSURE %.1f °F, fan %s pwm %d speed %d, recording %s", getInstant(), value0,
+                        hasFlag(FAN_ON) ? "on" : "off", (int) value3, (int) value2, hasFlag(RECORDING_ON) ? "on" : "off");
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.darksky.timeline;
+
+/**
+ * File Header Comment:
+ * This class is one row of the joined timeline: an SQM reading with the enclosure state and the frame that
+ * go with it.
+ */
+
+/**
+ * Class Header Comment:
+ * TimelineRow pairs an SQM reading with the last enclosure report at or before it and the saved frame closest
+ * to it in time. Either of the two can be null when there was none close enough.
+ */
+public final class TimelineRow {
+
+    private final TimelineRecord reading;
+    private final TimelineRecord enclosure;
+    private final TimelineRecord frame;
+
+    TimelineRow(TimelineRecord reading, TimelineRecord enclosure, TimelineRecord frame) {
+        this.reading = reading;
+        this.enclosure = enclosure;
+        this.frame = frame;
+    }
+
+    public TimelineRecord getReading() {
+        return reading;
+    }
+
+    /**
+     * @return The last enclosure report at or before the reading, or null.
+     */
+    public TimelineRecord getEnclosure() {
+        return enclosure;
+    }
+
+    /**
+     * @return The nearest frame within the join window, or null.
+     */
+    public TimelineRecord getFrame() {
+        return frame;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder(reading.toString());
+        if (enclosure != null) {
+            text.append(" | ").append(enclosure.toString().substring(enclosure.getInstant().toString().length() + 1));
+        }
+        if (frame != null) {
+            text.append(" | ").append(frame.toString().substring(frame.getInstant().toString().length() + 1))
+                    .append(String.format(" (%+d s)", (frame.getTime() - reading.getTime()) / 1000));
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,184 @@
+package com.darksky.timeline;
+
+import com.darksky.logging.EventLog;
+import com.darksky.metrics.Counter;
+import com.darksky.metrics.LatencyHistogram;
+import com.darksky.metrics.Metrics;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * File Header Comment:
+ * This class sends the station's timeline to a TimelineCollector, so several stations can be compared in one
+ * place.
+ */
+
+/**
+ * Class Header Comment:
+ * TimelineUploader runs on the shared scheduler (see StationServices). Each run asks the collector how far it
+ * got, if it doesn't already know, then sends everything after that in gzipped batches until it has caught up.
+ * The collector's answer to each batch is the new position, so:
+ * <ul>
+ *   <li>nothing is kept on the station side but the timeline itself, and a restart just asks again;</li>
+ *   <li>a batch whose answer is lost is sent again and the collector skips what it already has;</li>
+ *   <li>after a night offline the backlog is read from the day files and sent, oldest first.</li>
+ * </ul>
+ * After a failure the uploader waits 1, 2, 4 ... up to 32 runs before trying again, so an unreachable collector
+ * costs almost nothing. Configured with -Ddarksky.collector.url (e.g. http://collector:9470, unset = off),
+ * -Ddarksky.station.id (default the host name) and -Ddarksky.collector.batch (records per batch, default 5000).
+ */
+public class TimelineUploader implements Runnable {
+
+    private static final int MAX_BATCHES_PER_RUN = 20;  // Leave a long backlog for the next runs instead of hogging a thread
+    private static final int MAX_BACKOFF_RUNS = 32;
+
+    private static final LatencyHistogram UPLOAD_TIME = Metrics.histogram("collector.upload", "Sending one batch to the collector");
+    private static final Counter RECORDS_SENT = Metrics.counter("collector.upload.records", "Timeline records sent to the collector");
+    private static final Counter BYTES_SENT = Metrics.counter("collector.upload.bytes", "Compressed bytes sent to the collector");
+    private static final Counter UPLOAD_ERRORS = Metrics.counter("collector.upload.errors", "Failed attempts to reach the collector");
+
+    private final String stationId;
+    private final URI collector;
+    private final StationTimeline timeline;
+    private final int batchSize;
+    private final HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(10)).build();
+
+    private long cursor = -1;  // Last record time the collector holds, -1 until asked
+    private int failures;
+    private int runsToSkip;
+
+    /**
+     * @param stationId Name of this station at the collector (letters, digits, '.', '_' and '-').
+     * @param collector Base URL of the collector, e.g. http://127.0.0.1:9470.
+     * @param timeline  The timeline to send.
+     * @param batchSize Records per batch.
+     */
+    public TimelineUploader(String stationId, URI collector, StationTimeline timeline, int batchSize) {
+        this.stationId = stationId;
+        this.collector = collector;
+        this.timeline = timeline;
+        this.batchSize = Math.min(batchSize, TimelineBatch.MAX_RECORDS);
+    }
+
+    /**
+     * @return An uploader set up from the system properties, or null if no collector is configured.
+     */
+    public static TimelineUploader fromProperties() {
+        String url = System.getProperty("darksky.collector.url");
+        if (url == null || url.isEmpty()) {
+            return null;
+        }
+        String stationId = System.getProperty("darksky.station.id");
+        if (stationId == null) {
+            try {
+                stationId = InetAddress.getLocalHost().getHostName().replaceAll("[^A-Za-z0-9_.-]", "-");
+            } catch (IOException e) {
+                stationId = "station";
+            }
+        }
+        return new TimelineUploader(stationId, URI.create(url), StationTimeline.get(), Integer.getInteger("darksky.collector.batch", 5000));
+    }
+
+    /**
+     * Sends what the collector doesn't have yet. Called by the scheduler.
+     */
+    @Override
+    public void run() {
+        if (runsToSkip > 0) {
+            runsToSkip--;
+            return;
+        }
+        try {
+            int sent = 0;
+            for (int batch = 0; batch < MAX_BATCHES_PER_RUN && !Thread.currentThread().isInterrupted(); batch++) {
+                int count = uploadBatch();
+                if (count == 0) {
+                    break;
+                }
+                sent += count;
+            }
+            if (failures > 0) {
+                EventLog.info("TimelineUploader", "collector.reconnected", "failures", failures);
+            }
+            failures = 0;
+            if (sent > 0) {
+                EventLog.debug("TimelineUploader", "collector.uploaded", "records", sent);
+            }
+        } catch (IOException e) {
+            failed(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Sends one batch.
+     *
+     * @return The number of records sent, 0 if there was nothing new.
+     */
+    int uploadBatch() throws IOException, InterruptedException {
+        if (cursor < 0) {
+            cursor = fetchCursor();
+        }
+        List<TimelineRecord> records = timeline.readAfter(cursor, batchSize);
+        if (records.isEmpty()) {
+            return 0;
+        }
+        byte[] body = TimelineBatch.encode(records);
+        long start = System.nanoTime();
+        HttpRequest request = HttpRequest.newBuilder(collector.resolve("/v1/stations/" + stationId + "/records"))
+                .timeout(Duration.ofSeconds(30))
+                .header("Content-Type", "application/x-darksky-timeline")
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+                .build();
+        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != 200 || !response.body().startsWith("ack ")) {
+            throw new IOException("collector answered " + response.statusCode() + ": " + response.body().trim());
+        }
+        cursor = Long.parseLong(response.body().substring(4).trim());
+        UPLOAD_TIME.recordSince(start);
+        RECORDS_SENT.add(records.size());
+        BYTES_SENT.add(body.length);
+        return records.size();
+    }
+
+    private long fetchCursor() throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(collector.resolve("/v1/stations/" + stationId + "/cursor"))
+                .timeout(Duration.ofSeconds(30))
+                .GET()
+                .build();
+        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != 200) {
+            throw new IOException("collector answered " + response.statusCode() + ": " + response.body().trim());
+        }
+        return Long.parseLong(response.body().trim());
+    }
+
+    private void failed(IOException e) {
+        UPLOAD_ERRORS.increment();
+        cursor = -1;  // Ask again next time; the collector may have been restored from elsewhere
+        if (failures == 0) {
+            EventLog.warn("TimelineUploader", "collector.upload.failed", "collector", collector, e);
+        }
+        failures++;
+        runsToSkip = Math.min(MAX_BACKOFF_RUNS, 1 << Math.min(failures - 1, 5));
+    }
+
+    /**
+     * @return The last record time the collector is known to hold, or -1 if not known yet.
+     */
+    public long getCursor() {
+        return cursor;
+    }
+
+    public String getStationId() {
+        return stationId;
+    }
+}
@@ -3,24 +3,25 @@ package com.darksky.ui;
 import com.darksky.controllers.SQMDataDisplay;
 import com.darksky.imagery.RoundedPanel;
 import com.darksky.imagery.BackgroundPanel;
+import com.darksky.logging.EventLog;
+import com.darksky.services.Startup;
+import com.darksky.services.StationServices;
 import com.darksky.utils.AutoCapture;
 import com.darksky.utils.CameraWindow;
+import com.darksky.utils.CaptureSettings;
+import com.darksky.utils.ExportReports;
 import com.darksky.utils.ViewReports;
 
+import javax.imageio.ImageIO;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
-import java.io.File;
+import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.URL;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * File Header Comment:
@@ -39,21 +40,41 @@ public class DashboardWindow extends JFrame {
 
     public AutoCapture autoCapture;
 
-    // Variable to store the path to today's folder
-    private String todaysFolderPath;
-    private String currentDate;
-    private Timer timer;
-
+    private final StationServices services; // AutoCapture, the SQM poll and the report folder
+    private final boolean attached; // true when shown on top of a headless daemon that keeps running after it closes
     private SQMDataDisplay sqmDisplay;
+    private SkyBrightnessChart skyChart;
+    private DigitalClock clock;
+
+    // Picture sizes offered in the options dialog
+    private static final String[] RESOLUTIONS = {"Maximum", "3840x2160", "1920x1080", "1280x720"};
 
     /**
      * Method Header Comment:
      * Initializes the Dashboard window with the provided user data.
      * Sets up the user interface elements including background, logo, form panel, and buttons.
+     * The window appears straight away; the welcome label shows the startup progress until everything is running.
+     * Closing the window exits the application.
+     *
+     * @param startup The startup that is bringing up the camera, SQM-LE and storage in the background.
+     */
+    public DashboardWindow(Startup startup) {
+        this(false);
+        startup.addListener(status -> UiUpdateBus.setText(welcomeLabel, status));
+    }
+
+    /**
+     * Method Header Comment:
+     * Initializes the Dashboard window on top of the station services. It doesn't start them:
+     * that is done by Startup, or by the headless daemon.
+     *
+     * @param attached true to attach to a running headless daemon: closing the window then only closes the
+     *                 window, and capture and SQM logging carry on.
      */
-    public DashboardWindow() {
-        autoCapture = new AutoCapture();
-        autoCapture.startCapture();
+    public DashboardWindow(boolean attached) {
+        this.attached = attached;
+        services = StationServices.get();
+        autoCapture = services.getAutoCapture();
 
         setTitle("DarkSky - Dashboard");
 
@@ -63,7 +84,7 @@ public class DashboardWindow extends JFrame {
         int screenHeight = screenSize.height;
 
         setSize(screenWidth, screenHeight);
-        setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE); // Close only this window
+        setDefaultCloseOperation(attached ? JFrame.DISPOSE_ON_CLOSE : JFrame.EXIT_ON_CLOSE); // Close only this window
         setUndecorated(true);
 
         // Load background image
@@ -75,13 +96,17 @@ public class DashboardWindow extends JFrame {
         addLogoToPanel(backgroundPanel, screenWidth);
 
         // Create and add the digital clock to the panel
-        DigitalClock clock = new DigitalClock(screenWidth, screenHeight);
+        clock = new DigitalClock(screenWidth, screenHeight);
         backgroundPanel.add(clock);
 
         // Create and add the SQM data display to the panel
-        this.sqmDisplay = new SQMDataDisplay(screenWidth, screenHeight);
+        this.sqmDisplay = new SQMDataDisplay(screenWidth, screenHeight, services.getSqmPoller());
         backgroundPanel.add(sqmDisplay);
 
+        // Create and add the live sky brightness chart above it
+        this.skyChart = new SkyBrightnessChart(screenWidth, screenHeight, services.getSqmPoller());
+        backgroundPanel.add(skyChart);
+
         JPanel wrapperPanel = new JPanel(new GridBagLayout());
         wrapperPanel.setOpaque(false);
 
@@ -93,86 +118,25 @@ public class DashboardWindow extends JFrame {
 
         backgroundPanel.add(wrapperPanel, BorderLayout.CENTER);
 
-        updateFolderPath();
-
-        startDateCheckTimer();
-
         setLocationRelativeTo(null);
         setVisible(true);
 
         addWindowListener(new WindowAdapter() {
             @Override
             public void windowClosing(WindowEvent e) {
-                if (timer != null) {
-                    timer.cancel();  // Stop the timer
+                clock.stopClock();
+                sqmDisplay.detach();
+                skyChart.detach();
+                if (DashboardWindow.this.attached) {
+                    EventLog.info("DashboardWindow", "ui.detached");
+                    return; // The daemon keeps capturing and logging
                 }
-                autoCapture.stopCapture(); // Stop the capture before closing the window
+                services.stop(); // Stop capture, the SQM poll and the scheduler, and write out the log
                 System.exit(0); // Exit the application
             }
         });
     }
 
-    /**
-     * Helper method to get the current date in "yyyy-MM-dd" format
-     *
-     * @return Current date as a string
-     */
-    private String getCurrentDate() {
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
-        return sdf.format(new Date());
-    }
-
-    private void startDateCheckTimer() {
-        // Initialize currentDate once the window is ready
-        currentDate = getCurrentDate();
-
-        Timer timer = new Timer();
-        timer.scheduleAtFixedRate(new TimerTask() {
-            @Override
-            public void run() {
-                // Check if the date has changed using the already initialized currentDate
-                String currentDateInThread = getCurrentDate();
-                if (!currentDateInThread.equals(currentDate)) {
-                    currentDate = currentDateInThread;  // Update the currentDate
-                    updateFolderPath();  // Call the method to create/update the folder
-                }
-                // Additional check to recreate the folder if it's missing
-                else {
-                    updateFolderPath();  // Recheck and create the folder if necessary
-                }
-            }
-        }, 0, 60000);  // Check every minute
-    }
-
-    /**
-     * Helper method to create or update the folder path for today
-     */
-    private void updateFolderPath() {
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
-        String newDate = sdf.format(new Date()); // Get today's date
-        System.out.println("Current Date for Folder: " + newDate);
-
-        // Use the same approach as the image capture method to get the correct path
-        try {
-            Path reportsDir = Paths.get(System.getProperty("user.home"), "Documents", "DarkSky Reports");
-
-            if (Files.notExists(reportsDir)) {
-                Files.createDirectories(reportsDir);
-            }
-
-            Path todaysFolder = reportsDir.resolve(newDate);
-
-            if (Files.notExists(todaysFolder)) {
-                Files.createDirectories(todaysFolder); // Create the folder for today if it doesn't exist
-            }
-
-            todaysFolderPath = todaysFolder.toString(); // Store the path for later use
-
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
-
     /**
      * Helper method to create and add the form panel with buttons and other UI elements.
      *
@@ -207,17 +171,32 @@ public class DashboardWindow extends JFrame {
         if (logoUrl == null) {
             throw new IllegalArgumentException("Logo image not found in com.darksky.resources!");
         }
-        ImageIcon originalIcon = new ImageIcon(logoUrl);  // Load the image.
-        Image img = originalIcon.getImage();
-
         // Resize the image to fit the screen width
         int newWidth = (int) (screenWidth * 0.28);
         int newHeight = (int) (newWidth * 0.54);
 
-        Image resizedImg = img.getScaledInstance(newWidth, newHeight, Image.SCALE_SMOOTH);  // Smooth resizing.
-        ImageIcon resizedIcon = new ImageIcon(resizedImg);
+        JLabel logoLabel = new JLabel();  // The logo is set once it has been loaded and resized
 
-        JLabel logoLabel = new JLabel(resizedIcon);  // Create a label with the resized logo.
+        // Decode and resize off the event dispatch thread so the window appears without waiting for it
+        CompletableFuture.supplyAsync(() -> {
+            try {
+                BufferedImage original = ImageIO.read(logoUrl);  // Load the image.
+                BufferedImage resized = new BufferedImage(newWidth, newHeight, BufferedImage.TYPE_INT_ARGB);
+                Graphics2D g2d = resized.createGraphics();
+                g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);  // Smooth resizing.
+                g2d.drawImage(original, 0, 0, newWidth, newHeight, null);
+                g2d.dispose();
+                return resized;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }).whenComplete((resized, error) -> {
+            if (error != null) {
+                EventLog.warn("DashboardWindow", "logo.load.failed", error);
+            } else {
+                UiUpdateBus.post(logoLabel, () -> logoLabel.setIcon(new ImageIcon(resized)));
+            }
+        });
 
         // Center the logo at the top of the window
         int logoX = (screenWidth - newWidth) / 2;
@@ -273,6 +252,11 @@ public class DashboardWindow extends JFrame {
             setVisible(true);
         });
 
+        JButton exportReportsButton = createButton("Export Reports", screenWidth, screenHeight);
+        gbc.gridy++;
+        panel.add(exportReportsButton, gbc);
+        exportReportsButton.addActionListener(e -> new ExportReports(this));
+
         JButton optionsButton = createButton("Options", screenWidth, screenHeight);
         gbc.gridy++;
         panel.add(optionsButton, gbc);
@@ -300,14 +284,25 @@ public class DashboardWindow extends JFrame {
 
         // Create text field for SQM interval and set the current value
         JTextField sqmIntervalField = new JTextField(10);
-        sqmIntervalField.setText(String.valueOf(sqmDisplay.getMeasurementInterval()));  // Get the current SQM measurement interval
+        sqmIntervalField.setText(String.valueOf(services.getSqmPoller().getMeasurementInterval()));  // Get the current SQM measurement interval
+
+        // Picture size and file format, preselected with the current settings
+        CaptureSettings current = autoCapture.getSettings();
+        JComboBox<String> resolutionBox = new JComboBox<>(RESOLUTIONS);
+        resolutionBox.setSelectedItem(current.getResolutionText());
+        JComboBox<String> formatBox = new JComboBox<>(CaptureSettings.FORMATS);
+        formatBox.setSelectedItem(current.getFormat());
 
-        // Panel to display both interval fields, change layout from 2 to 3 rows
-        JPanel panel = new JPanel(new GridLayout(3, 1)); // Change from 2 to 3 because there are two intervals
+        // Panel to display the interval fields and the picture options
+        JPanel panel = new JPanel(new GridLayout(8, 1));
         panel.add(new JLabel("Autocapture Interval (ms):"));
         panel.add(captureIntervalField);
         panel.add(new JLabel("SQM Measurement Interval (ms):"));
         panel.add(sqmIntervalField);
+        panel.add(new JLabel("Autocapture Resolution:"));
+        panel.add(resolutionBox);
+        panel.add(new JLabel("Autocapture Format:"));
+        panel.add(formatBox);
 
         // Show the dialog with OK and Cancel options
         int result = JOptionPane.showConfirmDialog(
@@ -335,16 +330,22 @@ public class DashboardWindow extends JFrame {
                     return;
                 }
 
-                // Update the intervals for both autocapture and SQM
-                autoCapture.setCaptureInterval(captureInterval);  // Update autocapture interval
-                sqmDisplay.setMeasurementInterval(sqmInterval);  // Update SQM measurement interval
-
-                // Reset both processes to apply the new intervals
-                autoCapture.reset();  // Reset autocapture
-                sqmDisplay.reset();    // Reset SQM
+                // Apply the new settings on the next tick. The camera stays open: only a new
+                // resolution touches it, and that is done by the capture task without reopening it
+                CaptureSettings next = current.withInterval(captureInterval)
+                        .withFormat((String) formatBox.getSelectedItem());
+                String resolution = (String) resolutionBox.getSelectedItem();
+                if (resolution.equals("Maximum")) {
+                    next = next.withResolution(0, 0);
+                } else {
+                    String[] size = resolution.split("x");
+                    next = next.withResolution(Integer.parseInt(size[0]), Integer.parseInt(size[1]));
+                }
+                autoCapture.applySettings(next);
+                services.getSqmPoller().setMeasurementInterval(sqmInterval);  // Reschedules the poll, no reset needed
 
                 // Show success message
-                JOptionPane.showMessageDialog(this, "Intervals updated successfully!");
+                JOptionPane.showMessageDialog(this, "Settings updated successfully!");
             } catch (NumberFormatException e) {
                 // Handle invalid input (non-numeric)
                 JOptionPane.showMessageDialog(this, "Invalid input! Please enter valid numbers.");
@@ -1,9 +1,12 @@
 package com.darksky.ui;
 
+import com.darksky.services.ScheduledTask;
+import com.darksky.services.TaskScheduler;
+
 import javax.swing.*;
 import java.awt.*;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
 
 /**
  * File Header Comment:
@@ -13,14 +16,15 @@ import java.util.Date;
 /**
  * Class Header Comment:
  * The DigitalClock class extends JLabel and implements Runnable to create a digital clock
- * that continuously updates and displays the current time in a specified format.
+ * that is updated once a second by the TaskScheduler and displays the current time in a specified format.
  */
 public class DigitalClock extends JLabel implements Runnable {
     // Constant to define the time format for the digital clock
     private static final String TIME_FORMAT = "hh:mm a";  // Time format used for the clock (12-hour format with AM/PM)
+    private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern(TIME_FORMAT);  // Thread-safe, made once
 
-    // The thread responsible for updating the clock every second
-    private Thread clockThread;  // A thread to run the clock updates in the background
+    // The scheduled task that updates the clock every second
+    private ScheduledTask clockTask;  // Runs on the shared TaskScheduler instead of its own thread
 
     /**
      * Constructor to initialize the digital clock's appearance and start the clock.
@@ -33,38 +37,40 @@ public class DigitalClock extends JLabel implements Runnable {
         setForeground(Color.WHITE);  // Set the clock text color to white
         setHorizontalAlignment(SwingConstants.CENTER);  // Align the text to the center of the label
         setBounds(screenWidth - 250, 50, 200, 40);  // Set the position and size of the clock label on the screen
-        startClock();  // Start the clock's background thread to update time
+        startClock();  // Start updating the time once a second
     }
 
     /**
-     * Starts the clock by creating and starting a new thread to run the clock updates.
+     * Starts the clock by scheduling a tick every second on the shared scheduler.
      */
     private void startClock() {
-        clockThread = new Thread(this);  // Create a new thread that will run the clock updates
-        clockThread.start();  // Start the thread to run the clock
+        clockTask = TaskScheduler.get().scheduleAtFixedRate("clock", this, 0, 1000);
     }
 
     /**
-     * The run method continuously updates the clock every second in a separate thread.
+     * Stops updating the clock.
+     */
+    public void stopClock() {
+        if (clockTask != null) {
+            clockTask.cancel();
+        }
+    }
+
+    /**
+     * The run method is one clock tick. The scheduler calls it once a second at a fixed rate,
+     * so the ticks don't drift the way sleep(1000) after each update did.
      */
     @Override
     public void run() {
-        while (true) {  // Infinite loop to update the clock continuously
-            updateClock();  // Update the clock display
-            try {
-                Thread.sleep(1000);  // Pause for 1 second before updating again
-            } catch (InterruptedException e) {
-                e.printStackTrace();  // Print stack trace if an interruption occurs
-            }
-        }
+        updateClock();  // Update the clock display
     }
 
     /**
-     * Updates the clock's label with the current time.
+     * Updates the clock's label with the current time. The text only changes once a minute,
+     * and the update bus drops the other ticks without repainting.
      */
     private void updateClock() {
-        SimpleDateFormat sdf = new SimpleDateFormat(TIME_FORMAT);  // Create a new SimpleDateFormat with the defined time format
-        String currentTime = sdf.format(new Date());  // Get the current time formatted as a string
-        setText(currentTime);  // Set the label's text to the current time
+        String currentTime = LocalTime.now().format(FORMATTER);  // Get the current time formatted as a string
+        UiUpdateBus.setText(this, currentTime);  // Set the label's text on the EDT
     }
 }
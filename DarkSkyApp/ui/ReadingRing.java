@@ -0,0 +1,63 @@
+package com.darksky.ui;
+
+/**
+ * File Header Comment:
+ * This class keeps the most recent SQM readings for the live chart on the dashboard.
+ */
+
+/**
+ * Class Header Comment:
+ * ReadingRing is a fixed-size ring of (time, brightness) pairs kept in two primitive arrays, so adding a reading
+ * allocates nothing and eight hours at one reading a second is a few hundred kilobytes. Every reading gets a
+ * sequence number (0, 1, 2 ...); a reader remembers the number it got up to and later copies only what came
+ * after it. Readings are added by the SQM poll thread and copied out on the event dispatch thread.
+ */
+final class ReadingRing {
+
+    private final long[] times;
+    private final float[] values;
+    private long written;  // Sequence number of the next reading
+
+    ReadingRing(int capacity) {
+        times = new long[capacity];
+        values = new float[capacity];
+    }
+
+    int getCapacity() {
+        return times.length;
+    }
+
+    synchronized void add(long time, float value) {
+        int slot = (int) (written % times.length);
+        times[slot] = time;
+        values[slot] = value;
+        written++;
+    }
+
+    /**
+     * @return The sequence number the next reading will get.
+     */
+    synchronized long getWritten() {
+        return written;
+    }
+
+    /**
+     * Copies the readings from a sequence number on, oldest first. Readings that have already been overwritten
+     * are skipped.
+     *
+     * @param from       First sequence number wanted.
+     * @param timesOut   Receives the times; at least getCapacity() long.
+     * @param valuesOut  Receives the brightness values; at least getCapacity() long.
+     * @return The number of readings copied.
+     */
+    synchronized int copySince(long from, long[] timesOut, float[] valuesOut) {
+        long first = Math.max(from, written - times.length);
+        int count = (int) Math.max(0, written - first);
+        for (int i = 0; i < count; i++) {
+            int slot = (int) ((first + i) % times.length);
+            timesOut[i] = times[slot];
+            valuesOut[i] = values[slot];
+        }
+        return count;
+    }
+}
@@ -0,0 +1,332 @@
+package com.darksky.ui;
+
+import com.darksky.controllers.SQMPoller;
+import com.darksky.controllers.SQMReading;
+import com.darksky.metrics.LatencyHistogram;
+import com.darksky.metrics.Metrics;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * File Header Comment:
+ * This class is the live sky brightness chart on the dashboard: the SQM readings of the last few hours as a line.
+ */
+
+/**
+ * Class Header Comment:
+ * SkyBrightnessChart keeps the readings in a ReadingRing and draws them into a cached image with one pixel
+ * column per time slot (the window, -Ddarksky.chart.hours, default 8, divided by the width). For each column
+ * it only remembers the lowest, highest and last reading, and draws a vertical stroke from the lowest to the
+ * highest, joined to the column before. That is the same picture a line through every point would give, at a
+ * cost that depends on the width and not on the number of readings.
+ * <p>
+ * A new reading only redraws its own column. When a reading falls past the right edge the image is shifted left
+ * with one copy. The whole image is only redrawn from the columns when a reading falls outside the brightness
+ * range, and from the ring when the chart changes size. Painting is two image copies, so the chart keeps up
+ * with the rest of the dashboard and allocates nothing per reading.
+ */
+public class SkyBrightnessChart extends JComponent {
+
+    private static final long WINDOW_MILLIS = Long.getLong("darksky.chart.hours", 8) * 3_600_000L;
+    private static final int CAPACITY = Integer.getInteger("darksky.chart.capacity", 8 * 3600);  // Eight hours at 1 Hz
+
+    private static final int LEFT = 44;  // Room for the brightness labels
+    private static final int TOP = 22;  // Room for the title
+    private static final int RIGHT = 8;
+    private static final int BOTTOM = 18;  // Room for the time labels
+    private static final float DEFAULT_LOW = 16;
+    private static final float DEFAULT_HIGH = 22;
+
+    private static final Color BACKGROUND = new Color(0, 0, 0, 140);
+    private static final Color GRID = new Color(255, 255, 255, 50);
+    private static final Color LINE = Color.YELLOW;
+
+    private static final LatencyHistogram DRAW_TIME = Metrics.histogram("ui.chart.draw", "Drawing new SQM readings onto the dashboard chart");
+
+    private final SQMPoller poller;
+    private final Consumer<String> listener;
+    private final ReadingRing ring = new ReadingRing(CAPACITY);
+    private final long[] newTimes = new long[CAPACITY];  // Copied out of the ring on the EDT, reused
+    private final float[] newValues = new float[CAPACITY];
+
+    // Everything below is only used on the event dispatch thread
+    private BufferedImage frame;  // Background, grid and labels
+    private BufferedImage plot;  // The line, one pixel column per time slot
+    private Graphics2D plotGraphics;
+    private float[] columnMin;  // NaN where a column has no readings
+    private float[] columnMax;
+    private float[] columnLast;
+    private double millisPerColumn;
+    private long rightColumn;  // Time slot of the rightmost column, counted from the epoch
+    private long drawnUpTo;  // Ring sequence number of the first reading not drawn yet
+    private float low = DEFAULT_LOW;
+    private float high = DEFAULT_HIGH;
+
+    /**
+     * @param screenWidth  Used to place the chart on the dashboard.
+     * @param screenHeight Used to place the chart on the dashboard.
+     * @param poller       The poller whose readings are shown.
+     */
+    public SkyBrightnessChart(int screenWidth, int screenHeight, SQMPoller poller) {
+        this.poller = poller;
+        setOpaque(false);
+        setBounds((int) (screenWidth * 0.02), (int) (screenHeight * 0.58), (int) (screenWidth * 0.30), (int) (screenHeight * 0.30));
+
+        // Readings arrive on the SQM poll thread; drawing is done on the EDT, however many arrived in between
+        listener = measurement -> {
+            SQMReading reading = SQMReading.parse(measurement);
+            if (reading != null) {
+                ring.add(System.currentTimeMillis(), reading.getBrightness());
+                UiUpdateBus.post(this, this::drawNewReadings);
+            }
+        };
+        poller.addListener(listener);
+    }
+
+    /**
+     * Stops taking readings. The poller keeps running.
+     */
+    public void detach() {
+        poller.removeListener(listener);
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        int plotWidth = getWidth() - LEFT - RIGHT;
+        int plotHeight = getHeight() - TOP - BOTTOM;
+        if (plotWidth <= 0 || plotHeight <= 0) {
+            return;
+        }
+        if (plot == null || plot.getWidth() != plotWidth || plot.getHeight() != plotHeight) {
+            rebuild(plotWidth, plotHeight);
+        }
+        g.drawImage(frame, 0, 0, null);
+        g.drawImage(plot, LEFT, TOP, null);
+    }
+
+    /**
+     * Draws the readings that arrived since the last call. Runs on the EDT, posted by the listener.
+     */
+    private void drawNewReadings() {
+        if (plot == null) {
+            return;  // Not shown yet; the first paint draws everything from the ring
+        }
+        long start = System.nanoTime();
+        long written = ring.getWritten();
+        int count = ring.copySince(drawnUpTo, newTimes, newValues);
+        drawnUpTo = written;
+        long rightBefore = rightColumn;
+        boolean outOfRange = false;
+        int firstDirty = plot.getWidth();
+        int lastDirty = -1;
+        for (int i = 0; i < count; i++) {
+            int x = addToColumns(newTimes[i], newValues[i]);
+            if (x < 0) {
+                continue;
+            }
+            if (newValues[i] < low || newValues[i] > high) {
+                outOfRange = true;
+            } else if (!outOfRange) {
+                drawColumn(x);
+            }
+            firstDirty = Math.min(firstDirty, x);
+            lastDirty = Math.max(lastDirty, x);
+        }
+        if (outOfRange) {
+            fitRange();
+            drawFrame();
+            drawAllColumns();
+            repaint();
+        } else if (rightColumn != rightBefore) {
+            repaint(LEFT, TOP, plot.getWidth(), plot.getHeight());
+        } else if (lastDirty >= 0) {
+            repaint(LEFT + firstDirty, TOP, lastDirty - firstDirty + 1, plot.getHeight());
+        }
+        DRAW_TIME.recordSince(start);
+    }
+
+    /**
+     * Puts a reading into its column, shifting the columns left first if it is past the right edge.
+     *
+     * @return The column, or -1 if the reading is older than the window.
+     */
+    private int addToColumns(long time, float value) {
+        int width = columnMin.length;
+        long slot = (long) (time / millisPerColumn);
+        if (slot > rightColumn) {
+            scroll((int) Math.min(width, slot - rightColumn));
+            rightColumn = slot;
+        }
+        if (rightColumn - slot >= width) {
+            return -1;
+        }
+        int x = width - 1 - (int) (rightColumn - slot);
+        columnMin[x] = Float.isNaN(columnMin[x]) ? value : Math.min(columnMin[x], value);
+        columnMax[x] = Float.isNaN(columnMax[x]) ? value : Math.max(columnMax[x], value);
+        columnLast[x] = value;
+        return x;
+    }
+
+    /**
+     * Makes the images and columns for a new size and draws everything in the ring.
+     */
+    private void rebuild(int width, int height) {
+        if (plotGraphics != null) {
+            plotGraphics.dispose();
+        }
+        frame = newImage(getWidth(), getHeight());
+        plot = newImage(width, height);
+        plotGraphics = plot.createGraphics();
+        plotGraphics.setColor(LINE);
+        columnMin = new float[width];
+        columnMax = new float[width];
+        columnLast = new float[width];
+        Arrays.fill(columnMin, Float.NaN);
+        Arrays.fill(columnMax, Float.NaN);
+        Arrays.fill(columnLast, Float.NaN);
+        millisPerColumn = (double) WINDOW_MILLIS / width;
+        rightColumn = (long) (System.currentTimeMillis() / millisPerColumn);
+        drawnUpTo = ring.getWritten();
+        int count = ring.copySince(0, newTimes, newValues);
+        for (int i = 0; i < count; i++) {
+            addToColumns(newTimes[i], newValues[i]);
+        }
+        fitRange();
+        drawFrame();
+        drawAllColumns();
+    }
+
+    private BufferedImage newImage(int width, int height) {
+        GraphicsConfiguration configuration = getGraphicsConfiguration();
+        return configuration != null
+                ? configuration.createCompatibleImage(width, height, Transparency.TRANSLUCENT)
+                : new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+    }
+
+    /**
+     * Moves the line left by a number of columns, for readings past the right edge.
+     */
+    private void scroll(int columns) {
+        int width = plot.getWidth();
+        if (columns < width) {
+            System.arraycopy(columnMin, columns, columnMin, 0, width - columns);
+            System.arraycopy(columnMax, columns, columnMax, 0, width - columns);
+            System.arraycopy(columnLast, columns, columnLast, 0, width - columns);
+            plotGraphics.copyArea(columns, 0, width - columns, plot.getHeight(), -columns, 0);
+        }
+        int cleared = Math.max(0, width - columns);
+        Arrays.fill(columnMin, cleared, width, Float.NaN);
+        Arrays.fill(columnMax, cleared, width, Float.NaN);
+        Arrays.fill(columnLast, cleared, width, Float.NaN);
+        clear(cleared, width - cleared);
+    }
+
+    /**
+     * Sets the brightness range to whole magnitudes around every column, at least DEFAULT_LOW to DEFAULT_HIGH
+     * wide when there are no readings.
+     */
+    private void fitRange() {
+        float min = Float.NaN;
+        float max = Float.NaN;
+        for (int x = 0; x < columnMin.length; x++) {
+            if (!Float.isNaN(columnMin[x])) {
+                min = Float.isNaN(min) ? columnMin[x] : Math.min(min, columnMin[x]);
+                max = Float.isNaN(max) ? columnMax[x] : Math.max(max, columnMax[x]);
+            }
+        }
+        if (Float.isNaN(min)) {
+            low = DEFAULT_LOW;
+            high = DEFAULT_HIGH;
+            return;
+        }
+        low = (float) Math.floor(min);
+        high = (float) Math.max(Math.ceil(max), low + 1);
+    }
+
+    private void drawAllColumns() {
+        clear(0, plot.getWidth());
+        for (int x = 0; x < columnMin.length; x++) {
+            drawColumn(x);
+        }
+    }
+
+    /**
+     * Draws one column: a stroke from its lowest to its highest reading, stretched to meet the last reading of the
+     * column before so the line has no gaps.
+     */
+    private void drawColumn(int x) {
+        clear(x, 1);
+        if (Float.isNaN(columnMin[x])) {
+            return;
+        }
+        float min = columnMin[x];
+        float max = columnMax[x];
+        if (x > 0 && !Float.isNaN(columnLast[x - 1])) {
+            min = Math.min(min, columnLast[x - 1]);
+            max = Math.max(max, columnLast[x - 1]);
+        }
+        plotGraphics.drawLine(x, toY(max), x, toY(min));
+    }
+
+    private void clear(int x, int width) {
+        plotGraphics.setComposite(AlphaComposite.Clear);
+        plotGraphics.fillRect(x, 0, width, plot.getHeight());
+        plotGraphics.setComposite(AlphaComposite.SrcOver);
+    }
+
+    private int toY(float value) {
+        int height = plot.getHeight();
+        return height - 1 - Math.round((value - low) / (high - low) * (height - 1));
+    }
+
+    /**
+     * Draws the background, one grid line per magnitude (fewer if the range is wide) and the labels.
+     */
+    private void drawFrame() {
+        Graphics2D g = frame.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            g.setComposite(AlphaComposite.Clear);
+            g.fillRect(0, 0, frame.getWidth(), frame.getHeight());
+            g.setComposite(AlphaComposite.SrcOver);
+            g.setColor(BACKGROUND);
+            g.fillRoundRect(0, 0, frame.getWidth(), frame.getHeight(), 20, 20);
+
+            g.setFont(new Font("Arial", Font.BOLD, 13));
+            g.setColor(Color.WHITE);
+            g.drawString("Sky Brightness (mag/arcsec²)", LEFT, TOP - 6);
+
+            int step = (int) Math.max(1, Math.ceil((high - low) / 6));
+            FontMetrics metrics = g.getFontMetrics();
+            for (int mag = (int) Math.ceil(low); mag <= high; mag += step) {
+                int y = TOP + toY(mag);
+                g.setColor(GRID);
+                g.drawLine(LEFT, y, LEFT + plot.getWidth() - 1, y);
+                g.setColor(Color.WHITE);
+                String label = String.valueOf(mag);
+                g.drawString(label, LEFT - 6 - metrics.stringWidth(label), y + metrics.getAscent() / 2 - 1);
+            }
+
+            int baseline = TOP + plot.getHeight() + metrics.getAscent() + 2;
+            g.drawString(ago(WINDOW_MILLIS), LEFT, baseline);
+            String middle = ago(WINDOW_MILLIS / 2);
+            g.drawString(middle, LEFT + plot.getWidth() / 2 - metrics.stringWidth(middle) / 2, baseline);
+            g.drawString("now", LEFT + plot.getWidth() - metrics.stringWidth("now"), baseline);
+        } finally {
+            g.dispose();
+        }
+    }
+
+    /**
+     * @return e.g. "-8h" or "-90m".
+     */
+    private static String ago(long millis) {
+        long minutes = millis / 60_000;
+        return minutes % 60 == 0 ? "-" + minutes / 60 + "h" : "-" + minutes + "m";
+    }
+}
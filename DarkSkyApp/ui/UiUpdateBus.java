@@ -0,0 +1,106 @@
+package com.darksky.ui;
+
+import com.darksky.metrics.Counter;
+import com.darksky.metrics.Metrics;
+
+import javax.swing.*;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * File Header Comment:
+ * This class is how background tasks (the clock, the SQM poll, the live video) change what is on screen.
+ * Swing components may only be touched on the event dispatch thread (EDT), and every change to a label on the
+ * full-screen translucent dashboard repaints a large area, so updates are collected here and applied together.
+ */
+
+/**
+ * Class Header Comment:
+ * UiUpdateBus keeps the latest pending update for each widget. Posting a second update for the same widget
+ * before the first was applied replaces it, so a widget is changed at most once per flush. Flushes run on the
+ * EDT no more than once per frame budget (darksky.ui.frameMs, default 33 ms). Text that is the same as what
+ * the label already shows is dropped, so a clock that ticks every second but changes once a minute only
+ * repaints once a minute.
+ */
+public final class UiUpdateBus {
+
+    private static final int FRAME_MILLIS = Integer.getInteger("darksky.ui.frameMs", 33);
+
+    private static final Map<Object, Runnable> pending = new ConcurrentHashMap<>();  // Latest update per widget
+    private static final AtomicBoolean flushQueued = new AtomicBoolean();
+    private static volatile long lastFlushNanos;
+    private static final Timer flushTimer = new Timer(FRAME_MILLIS, e -> flush());
+
+    private static final Counter APPLIED = Metrics.counter("ui.updates.applied", "Widget updates applied on the EDT");
+    private static final Counter SKIPPED = Metrics.counter("ui.updates.skipped", "Widget updates dropped because nothing changed");
+    private static final Counter COALESCED = Metrics.counter("ui.updates.coalesced", "Widget updates replaced by a newer one before they were applied");
+    private static final Counter FLUSHES = Metrics.counter("ui.flushes", "Batches of widget updates applied on the EDT");
+
+    static {
+        flushTimer.setRepeats(false);
+    }
+
+    private UiUpdateBus() {
+    }
+
+    /**
+     * Sets a label's text from any thread. Does nothing if the label already shows that text.
+     *
+     * @param label The label to change.
+     * @param text  The new text.
+     */
+    public static void setText(JLabel label, String text) {
+        // Reading the text off the EDT may see a slightly old value; the check is repeated on the EDT below
+        if (!pending.containsKey(label) && Objects.equals(label.getText(), text)) {
+            SKIPPED.increment();
+            return;
+        }
+        post(label, () -> {
+            if (Objects.equals(label.getText(), text)) {
+                SKIPPED.increment();
+            } else {
+                label.setText(text);
+                APPLIED.increment();
+            }
+        });
+    }
+
+    /**
+     * Queues an update for a widget from any thread. If an update for the same key is still waiting,
+     * it is replaced by this one.
+     *
+     * @param key    Usually the component being updated.
+     * @param update The change to make on the EDT.
+     */
+    public static void post(Object key, Runnable update) {
+        if (pending.put(key, update) != null) {
+            COALESCED.increment();
+        }
+        if (flushQueued.compareAndSet(false, true)) {
+            long waitMillis = FRAME_MILLIS - (System.nanoTime() - lastFlushNanos) / 1_000_000;
+            if (waitMillis <= 0) {
+                SwingUtilities.invokeLater(UiUpdateBus::flush);
+            } else {
+                flushTimer.setInitialDelay((int) waitMillis);
+                flushTimer.restart();
+            }
+        }
+    }
+
+    /**
+     * Applies every waiting update. Runs on the EDT.
+     */
+    private static void flush() {
+        lastFlushNanos = System.nanoTime();
+        flushQueued.set(false);  // Updates posted from here on queue the next flush
+        for (Object key : pending.keySet()) {
+            Runnable update = pending.remove(key);
+            if (update != null) {
+                update.run();
+            }
+        }
+        FLUSHES.increment();
+    }
+}
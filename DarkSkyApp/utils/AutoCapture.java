@@ -1,78 +1,309 @@
 package com.darksky.utils;
 
+import com.darksky.calibration.Calibrator;
+import com.darksky.logging.EventLog;
+import com.darksky.metrics.Counter;
+import com.darksky.metrics.FlightEvents;
+import com.darksky.metrics.LatencyHistogram;
+import com.darksky.metrics.Metrics;
+import com.darksky.services.ScheduledTask;
+import com.darksky.services.TaskScheduler;
+import org.opencv.core.CvType;
 import org.opencv.core.Mat;
-import org.opencv.videoio.VideoCapture;
-import org.opencv.videoio.Videoio;
+import org.opencv.core.MatOfByte;
 import org.opencv.imgcodecs.Imgcodecs;
 
-import javax.swing.*;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class AutoCapture {
 
-    private VideoCapture capture;
-    private boolean isCapturing = false;
-    private volatile int captureInterval;  // Time interval
+    private FrameSource capture;  // Camera or replayed files, see FrameSources
+    private volatile boolean isCapturing = false;
+    private volatile boolean saving;  // A picture is being read and written right now
+    private final AtomicReference<CaptureSettings> settings = new AtomicReference<>(CaptureSettings.defaults());  // Read on every tick
+    private CaptureSettings applied;  // Settings the camera was last set up with, only touched under captureLock
+    private double maxWidth, maxHeight;  // Largest size found when the camera was opened
+    private volatile long lastTickMillis;  // When the last picture was started, to keep the cadence across interval changes
+    private ScheduledTask captureTask;  // Takes one picture per interval on the shared scheduler
+    private Mat frame;  // Reused for every picture, made on first start once the OpenCV library is loaded
+    private final List<FrameListener> frameListeners = new CopyOnWriteArrayList<>();
+    private final List<StreamListener> streamListeners = new CopyOnWriteArrayList<>();
+    private volatile Thread streamThread;  // Reads frames for the stream listeners between pictures, null while none listen
+    private volatile Calibrator calibrator;  // Takes the dark off and applies the flat before saving, null for none
+    private final Object captureLock = new Object();  // Keeps stopCapture from closing the source mid-read
+
+    private static final LatencyHistogram ACQUIRE_TIME = Metrics.histogram("frame.acquire", "Reading one frame from the frame source");
+    private static final LatencyHistogram ENCODE_TIME = Metrics.histogram("frame.encode", "Encoding a captured frame (PNG, JPG or TIFF)");
+    private static final LatencyHistogram WRITE_TIME = Metrics.histogram("frame.write", "Writing an encoded frame to disk");
+    private static final Counter FRAMES_SAVED = Metrics.counter("frame.saved", "Frames saved by AutoCapture");
+    private static final Counter BYTES_SAVED = Metrics.counter("frame.saved.bytes", "Bytes of image files written by AutoCapture");
+    private static final LatencyHistogram OPEN_TIME = Metrics.histogram("capture.open", "Opening the camera and setting it up (start and reset)");
+    private static final LatencyHistogram RECONFIGURE_TIME = Metrics.histogram("capture.reconfigure", "Changing the picture size on an open camera");
+    private static final LatencyHistogram STREAM_READ_TIME = Metrics.histogram("frame.stream.read", "Reading one frame for the stream listeners");
+    private static final Counter FRAMES_STREAMED = Metrics.counter("frame.streamed", "Frames read for the stream listeners (not saved)");
+    private static final long STREAM_RETRY_MILLIS = 100;  // Pause after a failed stream read, so a missing frame doesn't spin a core
+    private static final AtomicLong frameIds = new AtomicLong();  // Numbers the frames for the Flight Recorder events
 
 
     public AutoCapture() {
-        captureInterval = 60000; // 60 seconds
     }
 
     public boolean isCapturing() {
         return isCapturing;
     }
 
-    public void startCapture() {
+    public synchronized void startCapture() {
         if (isCapturing) return;  // Prevent starting multiple captures at the same time
         isCapturing = true;
-        capture = new VideoCapture(0);
+        long openStart = System.nanoTime();
+        capture = FrameSources.create(false);  // Saved images keep the raw data if the source has it
 
         // Verify if camera is correct.
-        if (!capture.isOpened()) {
-            System.out.println("Camera not found!");
+        if (!capture.open()) {
+            EventLog.warn("AutoCapture", "capture.not.found", "source", capture.getDescription());
+            isCapturing = false;
             return;
         }
 
-        setMaxCameraResolution();
+        synchronized (captureLock) {
+            if (frame == null) {
+                frame = new Mat();
+            }
+            maxWidth = capture.getWidth();
+            maxHeight = capture.getHeight();
+            applied = settings.get();
+            applyResolution(applied);
+        }
+        long openNanos = System.nanoTime() - openStart;
+        OPEN_TIME.record(openNanos);
+        EventLog.info("AutoCapture", "capture.opened", "source", capture.getDescription(), "millis", openNanos / 1_000_000);
+
+        // Fixed rate: pictures are taken at start + n * interval, however long saving takes
+        scheduleCapture(0, applied.getIntervalMillis());
+        if (!streamListeners.isEmpty()) {
+            startStream();
+        }
+    }
+
+    private void scheduleCapture(long initialDelay, int interval) {
+        captureTask = TaskScheduler.get().scheduleAtFixedRate("autocapture", this::captureFrame, initialDelay, interval);
+    }
 
-        new Thread(() -> {
-            Mat frame = new Mat();
-            while (isCapturing) {
+    /**
+     * Changes the capture settings while the camera keeps running. A new interval takes effect from the last
+     * picture (the next one is due last + new interval), and a new size or format is picked up by the next
+     * picture. Only a size change touches the camera, and it never closes it.
+     *
+     * @param next The new settings.
+     */
+    public synchronized void applySettings(CaptureSettings next) {  // Same lock as start and stop, so isCapturing and the task agree
+        CaptureSettings previous = settings.getAndSet(next);
+        EventLog.info("AutoCapture", "settings.changed", "settings", next);
+        if (isCapturing && next.getIntervalMillis() != previous.getIntervalMillis()) {
+            long sinceLast = System.currentTimeMillis() - lastTickMillis;
+            scheduleCapture(Math.max(0, next.getIntervalMillis() - sinceLast), next.getIntervalMillis());
+        }
+    }
+
+    public CaptureSettings getSettings() {
+        return settings.get();
+    }
+
+    /**
+     * Takes and saves one picture. Called by the scheduler once per capture interval.
+     */
+    private void captureFrame() {
+        synchronized (captureLock) {
+            if (!isCapturing || Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            lastTickMillis = System.currentTimeMillis();
+            CaptureSettings current = settings.get();
+            if (current.resolutionDiffers(applied)) {
+                long reconfigureStart = System.nanoTime();
+                applyResolution(current);
+                long reconfigureNanos = System.nanoTime() - reconfigureStart;
+                RECONFIGURE_TIME.record(reconfigureNanos);
+                EventLog.info("AutoCapture", "capture.reconfigured", "resolution", current.getResolutionText(), "millis", reconfigureNanos / 1_000_000);
+            }
+            applied = current;
+            saving = true;
+            try {
+                FlightEvents.FrameCapture event = new FlightEvents.FrameCapture();
+                event.begin();
+                long acquireStart = System.nanoTime();
                 if (capture.read(frame)) {
-                    captureImage(frame);
-                }
-                try {
-                    Thread.sleep(captureInterval); // Waiting interval between pictures
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+                    ACQUIRE_TIME.recordSince(acquireStart);
+                    Calibrator frameCalibrator = calibrator;
+                    if (frameCalibrator != null) {
+                        frameCalibrator.process(frame, capture.getControls());
+                    }
+                    event.frameId = frameIds.incrementAndGet();
+                    event.width = frame.width();
+                    event.height = frame.height();
+                    event.source = capture.getDescription();
+                    Path saved = captureImage(frame, current.getFormat(), event);
+                    event.commit();
+                    if (saved != null) {
+                        for (FrameListener listener : frameListeners) {
+                            listener.frameCaptured(frame, saved);
+                        }
+                    }
                 }
+            } finally {
+                saving = false;
             }
-        }).start();
+        }
     }
 
-    public void stopCapture() {
+    /**
+     * @return true while a picture is being read or written, so background disk work can wait for it.
+     */
+    public boolean isSaving() {
+        return saving;
+    }
+
+    public synchronized void stopCapture() {
         isCapturing = false;
-        if (capture != null) {
-            capture.release();
+        stopStream();
+        if (captureTask != null) {
+            captureTask.cancel();  // No more pictures, and a wait in progress is interrupted
+            captureTask = null;
+        }
+        synchronized (captureLock) {  // Wait for a picture that is being saved right now
+            if (capture != null) {
+                capture.close();
+            }
         }
     }
 
     /**
-     * Resets the capture process. Stops and restarts the capture.
+     * Resets the capture process. Stops and restarts the capture, which closes and reopens the camera.
+     * Used when another window has had the camera; setting changes go through applySettings instead.
      */
     public void reset() {
         stopCapture();
         startCapture();
     }
 
-    private void captureImage(Mat frame) {
+    /**
+     * Adds a listener that sees every saved frame.
+     *
+     * @param listener Called on the capture thread after each save.
+     */
+    public void addFrameListener(FrameListener listener) {
+        frameListeners.add(listener);
+    }
+
+    public void removeFrameListener(FrameListener listener) {
+        frameListeners.remove(listener);
+    }
+
+    /**
+     * Adds a listener that sees every frame the camera delivers. While there is at least one, the camera is
+     * read continuously on a thread of its own between the saved pictures.
+     *
+     * @param listener Called on the stream thread for each frame.
+     */
+    public synchronized void addStreamListener(StreamListener listener) {
+        streamListeners.add(listener);
+        if (isCapturing && streamThread == null) {
+            startStream();
+        }
+    }
+
+    public synchronized void removeStreamListener(StreamListener listener) {
+        streamListeners.remove(listener);
+        if (streamListeners.isEmpty()) {
+            stopStream();
+        }
+    }
+
+    private void startStream() {
+        Thread thread = new Thread(this::streamFrames, "darksky-stream");
+        thread.setDaemon(true);
+        streamThread = thread;
+        thread.start();
+        EventLog.info("AutoCapture", "stream.started", "listeners", streamListeners.size());
+    }
+
+    private void stopStream() {
+        Thread thread = streamThread;
+        if (thread != null) {
+            streamThread = null;
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Reads frames for the stream listeners until capture stops or a newer stream thread takes over. Each read
+     * takes captureLock, so the scheduled pictures still get the camera between two stream frames.
+     */
+    private void streamFrames() {
+        Mat streamed = new Mat();
+        try {
+            while (isCapturing && streamThread == Thread.currentThread()) {
+                boolean read;
+                synchronized (captureLock) {
+                    if (!isCapturing || streamThread != Thread.currentThread()) {
+                        break;
+                    }
+                    long readStart = System.nanoTime();
+                    read = capture.read(streamed);
+                    if (read) {
+                        STREAM_READ_TIME.recordSince(readStart);
+                    }
+                }
+                if (!read) {
+                    Thread.sleep(STREAM_RETRY_MILLIS);
+                    continue;
+                }
+                FRAMES_STREAMED.increment();
+                long time = System.currentTimeMillis();
+                for (StreamListener listener : streamListeners) {
+                    try {
+                        listener.frameStreamed(streamed, time);
+                    } catch (RuntimeException e) {
+                        EventLog.warn("AutoCapture", "stream.listener.failed", "listener", listener.getClass().getSimpleName(), e);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        } finally {
+            streamed.release();
+        }
+    }
+
+    /**
+     * Sets what calibrates each frame between reading and saving it, so the saved file and the frame listeners
+     * see the calibrated frame.
+     *
+     * @param calibrator Called on the capture thread, or null for none.
+     */
+    public void setCalibrator(Calibrator calibrator) {
+        this.calibrator = calibrator;
+    }
+
+    /**
+     * Encodes the frame and saves it in today's reports folder.
+     *
+     * @param frame  The frame to save.
+     * @param format The file format, one of CaptureSettings.FORMATS.
+     * @param event  The Flight Recorder event to put the encoded size in.
+     * @return The saved file, or null if saving failed.
+     */
+    private Path captureImage(Mat frame, String format, FlightEvents.FrameCapture event) {
         String timestamp = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss").format(new Date());
-        String filename = timestamp + ".png";
+        String filename = timestamp + "." + format;
 
         try {
             Path reportsDir = Paths.get(System.getProperty("user.home"), "Documents", "DarkSky Reports");
@@ -81,45 +312,80 @@ public class AutoCapture {
             Path dateFolder = reportsDir.resolve(currentDate);
 
             Path imagePath = dateFolder.resolve(filename);
-            System.out.println("Attempting to save to: " + imagePath);
+            EventLog.debug("AutoCapture", "frame.saving", "path", imagePath);
 
-            if (!Imgcodecs.imwrite(imagePath.toString(), frame)) {
+            // Encode and write separately so the metrics show which of the two is slow
+            long encodeStart = System.nanoTime();
+            MatOfByte encoded = new MatOfByte();
+            Mat toEncode = to8BitIfNeeded(frame, format);
+            boolean ok = Imgcodecs.imencode("." + format, toEncode, encoded);
+            if (toEncode != frame) {
+                toEncode.release();
+            }
+            if (!ok) {
                 throw new Exception("Failed to save image.");
             }
+            byte[] bytes = encoded.toArray();
+            encoded.release();
+            ENCODE_TIME.recordSince(encodeStart);
+
+            long writeStart = System.nanoTime();
+            Files.write(imagePath, bytes);
+            WRITE_TIME.recordSince(writeStart);
+            FRAMES_SAVED.increment();
+            BYTES_SAVED.add(bytes.length);
 
-            System.out.println("Snapshot saved as " + filename);
+            EventLog.info("AutoCapture", "frame.saved", "file", filename, "bytes", bytes.length);
+            event.encodedBytes = bytes.length;
+            return imagePath;
 
         } catch (Exception e) {
-            e.printStackTrace();
+            EventLog.error("AutoCapture", "frame.save.failed", "file", filename, e);
+            return null;
         }
     }
 
-    private void setMaxCameraResolution() {
-        // Get the current maximum width and height supported by the camera
-        double maxWidth = capture.get(Videoio.CAP_PROP_FRAME_WIDTH);
-        double maxHeight = capture.get(Videoio.CAP_PROP_FRAME_HEIGHT);
+    /**
+     * JPG can only hold 8 bits per channel, so 16-bit raw frames are scaled down for it.
+     * PNG and TIFF keep the full 16 bits.
+     */
+    private static Mat to8BitIfNeeded(Mat frame, String format) {
+        if (!format.equals("jpg") || frame.depth() != CvType.CV_16U) {
+            return frame;
+        }
+        Mat eightBit = new Mat();
+        frame.convertTo(eightBit, CvType.CV_8U, 1.0 / 256);
+        return eightBit;
+    }
 
-        // Set the resolution to 1920x1080 if it's smaller, or the camera's max resolution
-        if (maxWidth < 1920) {
-            capture.set(Videoio.CAP_PROP_FRAME_WIDTH, 1920);
-            capture.set(Videoio.CAP_PROP_FRAME_HEIGHT, 1080);
+    /**
+     * Sets the picture size on the open camera. Must be called with captureLock held.
+     */
+    private void applyResolution(CaptureSettings target) {
+        if (!target.isMaxResolution()) {
+            capture.setResolution(target.getWidth(), target.getHeight());
+        } else if (maxWidth < 1920) {
+            // Set the resolution to 1920x1080 if it's smaller, or the camera's max resolution
+            capture.setResolution(1920, 1080);
         } else {
-            capture.set(Videoio.CAP_PROP_FRAME_WIDTH, maxWidth);
-            capture.set(Videoio.CAP_PROP_FRAME_HEIGHT, maxHeight);
+            capture.setResolution(maxWidth, maxHeight);
         }
 
         // Confirm the final resolution
-        System.out.println("Using resolution: " + capture.get(Videoio.CAP_PROP_FRAME_WIDTH) + "x" + capture.get(Videoio.CAP_PROP_FRAME_HEIGHT));
+        EventLog.info("AutoCapture", "capture.resolution", "resolution", capture.getWidth() + "x" + capture.getHeight(),
+                "source", capture.getDescription());
     }
 
     public int getCaptureInterval() {
-        return captureInterval;
+        return settings.get().getIntervalMillis();
     }
 
+    /**
+     * Changes the time between pictures without reopening the camera.
+     *
+     * @param interval The new interval in milliseconds.
+     */
     public void setCaptureInterval(int interval) {
-        this.captureInterval = interval;
-        if (isCapturing) {
-            reset();
-        }
+        applySettings(settings.get().withInterval(interval));
     }
 }
\ No newline at end of file
@@ -0,0 +1,51 @@
+package com.darksky.utils;
+
+import java.util.Locale;
+
+/**
+ * File Header Comment:
+ * This class holds the camera settings a frame was taken with, which calibration frames have to match.
+ */
+
+/**
+ * Class Header Comment:
+ * CameraControls is what the frame source knows about the last frame it read: exposure, gain and sensor
+ * temperature. Sources that can't tell (a webcam, replayed files) report UNKNOWN, with an exposure and gain of
+ * 0 and no temperature.
+ */
+public final class CameraControls {
+
+    public static final CameraControls UNKNOWN = new CameraControls(0, 0, Double.NaN);
+
+    private final long exposureMicros;
+    private final int gain;
+    private final double temperature;
+
+    /**
+     * @param exposureMicros Exposure in microseconds, 0 if unknown.
+     * @param gain           Gain in the camera's own units, 0 if unknown.
+     * @param temperature    Sensor temperature in °C, NaN if unknown.
+     */
+    public CameraControls(long exposureMicros, int gain, double temperature) {
+        this.exposureMicros = exposureMicros;
+        this.gain = gain;
+        this.temperature = temperature;
+    }
+
+    public long getExposureMicros() {
+        return exposureMicros;
+    }
+
+    public int getGain() {
+        return gain;
+    }
+
+    public double getTemperature() {
+        return temperature;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "exposure %d µs, gain %d, %.1f °C", exposureMicros, gain, temperature);
+    }
+}
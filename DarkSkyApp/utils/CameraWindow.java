@@ -1,9 +1,16 @@
 package com.darksky.utils;
 
+import com.darksky.logging.EventLog;
+import com.darksky.metrics.Counter;
+import com.darksky.metrics.FlightEvents;
+import com.darksky.metrics.LatencyHistogram;
+import com.darksky.metrics.Metrics;
+import com.darksky.services.LiveFeedServer;
+import com.darksky.services.ScheduledTask;
+import com.darksky.services.TaskScheduler;
 import com.darksky.ui.DashboardWindow;
+import com.darksky.ui.UiUpdateBus;
 import org.opencv.core.Mat;
-import org.opencv.videoio.VideoCapture;
-import org.opencv.videoio.Videoio;
 import org.opencv.imgproc.Imgproc;
 import org.opencv.imgcodecs.Imgcodecs;
 
@@ -26,16 +33,35 @@ import java.util.Date;
  * Class Header Comment:
  * The CameraWindow class creates and displays a live video feed from a webcam.
  * It allows the user to toggle the camera on/off, capture images, and navigate back to the previous screen.
+ * The live feed runs at a small size; a snapshot switches the camera to full resolution, which can take a
+ * while, and it stays there for SNAPSHOT_WARM_MS after the last snapshot so a burst of snapshots switches once.
  */
 public class CameraWindow extends JFrame {
 
     // Key UI components for camera display and interaction
     private JLabel cameraLabel;  // Displays the live video feed
-    private VideoCapture capture;  // Represents the video capture device (webcam)
-    private boolean isRunning;  // Tracks whether the camera is running or not
+    private FrameSource capture;  // Represents the video capture device (webcam, ZWO camera or replayed files)
+    private volatile boolean isRunning;  // Tracks whether the camera is running or not
+    private ScheduledTask previewTask;  // Reads and shows one live frame every PREVIEW_PERIOD_MS
+    private final Mat previewFrame = new Mat();  // Reused for every live frame
+    private long previewFrameId;  // Numbers the live frames for the Flight Recorder events
     private JButton toggleButton, snapshotButton, backButton;  // Buttons for camera control and image capture
     private JLayeredPane layeredPane;  // Layout container for layered UI components
     private JFrame dashboardWindow;  // Reference to the dashboard window
+    private double fullWidth, fullHeight;  // Full resolution used for snapshots
+    private double previewWidth, previewHeight;  // Lower resolution used for the live feed
+    private boolean fullResolution;  // The camera is at the snapshot size, guarded by capture
+
+    private static final long PREVIEW_PERIOD_MS = 60;  // About 16 frames per second
+    private static final long SNAPSHOT_WARM_MS = 10000;  // Stay at full resolution this long after the last snapshot
+    private static final String PREVIEW_SIZE_TASK = "camera-preview-size";  // Switches back to the preview size
+
+    private static final LatencyHistogram ACQUIRE_TIME = Metrics.histogram("preview.acquire", "Reading one live video frame, shrunk to the window");
+    private static final LatencyHistogram CONVERT_TIME = Metrics.histogram("preview.convert", "Converting a live video Mat to a BufferedImage");
+    private static final LatencyHistogram PAINT_TIME = Metrics.histogram("preview.paint", "Painting the live video label");
+    private static final LatencyHistogram SWITCH_TIME = Metrics.histogram("snapshot.switch", "Switching the camera between the preview size and full resolution");
+    private static final LatencyHistogram SNAPSHOT_TIME = Metrics.histogram("snapshot.read", "Reading one full resolution snapshot, without the mode switch");
+    private static final Counter WARM_SNAPSHOTS = Metrics.counter("snapshot.warm", "Snapshots taken while the camera was still at full resolution");
 
     /**
      * Constructor to initialize and set up the camera window UI and functionality.
@@ -68,7 +94,14 @@ public class CameraWindow extends JFrame {
         int startX = margin;
         int startY = margin;
 
-        cameraLabel = new JLabel();
+        cameraLabel = new JLabel() {
+            @Override
+            protected void paintComponent(Graphics g) {
+                long start = System.nanoTime();
+                super.paintComponent(g);
+                PAINT_TIME.recordSince(start);
+            }
+        };
         cameraLabel.setBounds(0, 0, screenWidth, screenHeight);
         cameraLabel.setOpaque(false);
         layeredPane.add(cameraLabel, Integer.valueOf(0));
@@ -122,41 +155,71 @@ public class CameraWindow extends JFrame {
             return;
         }
         isRunning = true;
-        capture = new VideoCapture(0);
+        capture = FrameSources.create(true);  // The live feed needs colour frames
+        capture.open();
 
-        double maxWidth = capture.get(Videoio.CAP_PROP_FRAME_WIDTH);
-        double maxHeight = capture.get(Videoio.CAP_PROP_FRAME_HEIGHT);
+        double maxWidth = capture.getWidth();
+        double maxHeight = capture.getHeight();
 
+        // Snapshots use the same resolution AutoCapture saves at
         if (maxWidth < 1920) {
-            capture.set(Videoio.CAP_PROP_FRAME_WIDTH, 1920);
-            capture.set(Videoio.CAP_PROP_FRAME_HEIGHT, 1080);
+            fullWidth = 1920;
+            fullHeight = 1080;
         } else {
-            capture.set(Videoio.CAP_PROP_FRAME_WIDTH, maxWidth);
-            capture.set(Videoio.CAP_PROP_FRAME_HEIGHT, maxHeight);
+            fullWidth = maxWidth;
+            fullHeight = maxHeight;
         }
 
-        System.out.println("Using resolution: " + capture.get(Videoio.CAP_PROP_FRAME_WIDTH) +
-                "x" + capture.get(Videoio.CAP_PROP_FRAME_HEIGHT));
+        // The live feed never needs more pixels than the label it is drawn in
+        previewWidth = Math.min(fullWidth, cameraLabel.getWidth());
+        previewHeight = Math.min(fullHeight, cameraLabel.getHeight());
+        setResolution(previewWidth, previewHeight);
+
+        EventLog.info("CameraWindow", "preview.resolution", "preview", capture.getWidth() + "x" + capture.getHeight(),
+                "snapshot", fullWidth + "x" + fullHeight);
 
         if (!capture.isOpened()) {
             JOptionPane.showMessageDialog(this, "Camera not found!", "Error", JOptionPane.ERROR_MESSAGE);
             return;
         }
 
-        new Thread(() -> {
-            Mat frame = new Mat();
-            while (isRunning) {
-                if (capture.read(frame)) {
-                    Imgproc.cvtColor(frame, frame, Imgproc.COLOR_BGR2RGB);
-                    updateCameraDisplay(frame);
-                }
-                try {
-                    Thread.sleep(60);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
+        previewTask = TaskScheduler.get().scheduleAtFixedRate("camera-preview", this::showPreviewFrame, 0, PREVIEW_PERIOD_MS);
+    }
+
+    /**
+     * Reads one live frame and shows it. Called by the scheduler every PREVIEW_PERIOD_MS.
+     */
+    private void showPreviewFrame() {
+        FlightEvents.PreviewFrame event = new FlightEvents.PreviewFrame();
+        event.begin();
+        boolean grabbed;
+        long acquireStart = System.nanoTime();
+        synchronized (capture) {  // A snapshot may be switching the resolution, or stopCamera closing the source
+            if (!isRunning) {
+                return;
             }
-        }).start();
+            // Frames come back already shrunk to the label and converted to RGB
+            grabbed = capture.readPreview(previewFrame, cameraLabel.getWidth(), cameraLabel.getHeight(), Imgproc.COLOR_BGR2RGB);
+        }
+        if (grabbed) {
+            ACQUIRE_TIME.recordSince(acquireStart);
+            LiveFeedServer.get().publishFrame(previewFrame, true);  // Browsers see the live video too while this window is open
+            updateCameraDisplay(previewFrame);
+            event.frameId = ++previewFrameId;
+            event.width = previewFrame.width();
+            event.height = previewFrame.height();
+            event.commit();
+        }
+    }
+
+    /**
+     * Sets the capture resolution. The camera picks the closest mode it supports.
+     *
+     * @param width The requested frame width.
+     * @param height The requested frame height.
+     */
+    private void setResolution(double width, double height) {
+        capture.setResolution(width, height);
     }
 
     /**
@@ -164,8 +227,16 @@ public class CameraWindow extends JFrame {
      */
     private void stopCamera() {
         isRunning = false;
+        if (previewTask != null) {
+            previewTask.cancel();
+            previewTask = null;
+        }
+        TaskScheduler.get().cancel(PREVIEW_SIZE_TASK);
         if (capture != null) {
-            capture.release();
+            synchronized (capture) {  // Don't close the source under a frame that is being read
+                capture.close();
+                fullResolution = false;
+            }
         }
     }
 
@@ -190,7 +261,24 @@ public class CameraWindow extends JFrame {
         if (!isRunning || capture == null) return;
 
         Mat frame = new Mat();
-        if (capture.read(frame)) {
+        boolean grabbed;
+        synchronized (capture) {
+            if (fullResolution) {
+                WARM_SNAPSHOTS.increment();  // Still switched from the last snapshot
+            } else {
+                long switchStart = System.nanoTime();
+                setResolution(fullWidth, fullHeight);
+                fullResolution = true;
+                SWITCH_TIME.recordSince(switchStart);
+            }
+            long readStart = System.nanoTime();
+            grabbed = capture.read(frame);
+            SNAPSHOT_TIME.recordSince(readStart);
+        }
+        // Go back to the preview size once no snapshot has been taken for a while; each snapshot starts the wait again
+        TaskScheduler.get().scheduleOnce(PREVIEW_SIZE_TASK, this::switchToPreviewSize, SNAPSHOT_WARM_MS);
+
+        if (grabbed) {
             String timestamp = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss").format(new Date());
             String filename = timestamp + ".png";
 
@@ -207,7 +295,7 @@ public class CameraWindow extends JFrame {
                 }
 
                 Path imagePath = dateFolder.resolve(filename);
-                System.out.println("Attempting to save to: " + imagePath);
+                EventLog.info("CameraWindow", "snapshot.saving", "path", imagePath);
 
                 if (!Imgcodecs.imwrite(imagePath.toString(), frame)) {
                     throw new Exception("Failed to save image.");
@@ -216,12 +304,27 @@ public class CameraWindow extends JFrame {
                 JOptionPane.showMessageDialog(this, "Snapshot saved as " + filename + " in " + imagePath);
 
             } catch (Exception e) {
-                e.printStackTrace();
+                EventLog.warn("CameraWindow", "snapshot.save.failed", "file", filename, e);
                 JOptionPane.showMessageDialog(this, "Error: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
             }
         }
     }
 
+    /**
+     * Puts the camera back to the preview size after a burst of snapshots. Runs on the scheduler.
+     */
+    private void switchToPreviewSize() {
+        synchronized (capture) {
+            if (!isRunning || !fullResolution) {
+                return;
+            }
+            long switchStart = System.nanoTime();
+            setResolution(previewWidth, previewHeight);
+            fullResolution = false;
+            SWITCH_TIME.recordSince(switchStart);
+        }
+    }
+
     /**
      * Goes back to the previous window and stops the camera.
      */
@@ -242,13 +345,21 @@ public class CameraWindow extends JFrame {
      * @param frame The current frame to display on the screen.
      */
     private void updateCameraDisplay(Mat frame) {
+        long convertStart = System.nanoTime();
         ImageIcon image = new ImageIcon(convertMatToBufferedImage(frame));
+        CONVERT_TIME.recordSince(convertStart);
+
+        // Preview frames already match the label, so there is nothing to scale
+        if (frame.width() == cameraLabel.getWidth() && frame.height() == cameraLabel.getHeight()) {
+            UiUpdateBus.post(cameraLabel, () -> cameraLabel.setIcon(image));  // A frame not yet shown is replaced by this one
+            return;
+        }
 
         Image scaledImage = image.getImage().getScaledInstance(
                 cameraLabel.getWidth(), cameraLabel.getHeight(), Image.SCALE_SMOOTH
         );
 
-        cameraLabel.setIcon(new ImageIcon(scaledImage));
+        UiUpdateBus.post(cameraLabel, () -> cameraLabel.setIcon(new ImageIcon(scaledImage)));
     }
 
 
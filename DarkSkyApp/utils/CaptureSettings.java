@@ -0,0 +1,91 @@
+package com.darksky.utils;
+
+/**
+ * File Header Comment:
+ * This class holds the AutoCapture settings the user can change while the camera is running:
+ * the time between pictures, the picture size and the file format.
+ */
+
+/**
+ * Class Header Comment:
+ * CaptureSettings is immutable. AutoCapture keeps the current settings in one reference and the capture task
+ * reads it at the start of every tick, so a change from the options dialog is picked up on the next picture
+ * without closing and reopening the camera. Use the with... methods to make a changed copy.
+ */
+public final class CaptureSettings {
+
+    public static final String[] FORMATS = {"png", "jpg", "tiff"};  // Formats offered in the options dialog
+
+    private final int intervalMillis;  // Time between pictures
+    private final int width, height;  // Requested picture size, 0 x 0 means the largest size the camera offers
+    private final String format;  // File extension and encoder, e.g. "png"
+
+    public CaptureSettings(int intervalMillis, int width, int height, String format) {
+        this.intervalMillis = intervalMillis;
+        this.width = width;
+        this.height = height;
+        this.format = format;
+    }
+
+    /**
+     * @return The settings AutoCapture starts with: one PNG a minute at the largest size.
+     */
+    public static CaptureSettings defaults() {
+        return new CaptureSettings(60000, 0, 0, "png");
+    }
+
+    public CaptureSettings withInterval(int intervalMillis) {
+        return new CaptureSettings(intervalMillis, width, height, format);
+    }
+
+    public CaptureSettings withResolution(int width, int height) {
+        return new CaptureSettings(intervalMillis, width, height, format);
+    }
+
+    public CaptureSettings withFormat(String format) {
+        return new CaptureSettings(intervalMillis, width, height, format);
+    }
+
+    public int getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    /**
+     * @return true if the picture size is "as large as the camera allows".
+     */
+    public boolean isMaxResolution() {
+        return width <= 0 || height <= 0;
+    }
+
+    /**
+     * @param other Settings to compare with.
+     * @return true if the picture size differs, the only change that has to touch the camera.
+     */
+    public boolean resolutionDiffers(CaptureSettings other) {
+        return other == null || width != other.width || height != other.height;
+    }
+
+    /**
+     * @return The size as shown in the options dialog, "Maximum" or e.g. "1920x1080".
+     */
+    public String getResolutionText() {
+        return isMaxResolution() ? "Maximum" : width + "x" + height;
+    }
+
+    @Override
+    public String toString() {
+        return "every " + intervalMillis + " ms, " + getResolutionText() + ", " + format;
+    }
+}
@@ -0,0 +1,136 @@
+package com.darksky.utils;
+
+import com.darksky.reports.ReportExport;
+import com.darksky.ui.UiUpdateBus;
+
+import javax.swing.*;
+import java.awt.*;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * File Header Comment:
+ * This class is the dialog for exporting the SQM readings of a date range into one file.
+ */
+
+/**
+ * Class Header Comment:
+ * ExportReports asks for the first and last day, the file format and the meters, then runs a ReportExport in
+ * the background. The progress bar and the status line show how many days are done and how fast rows are
+ * being written; when it is finished the Exports folder is opened.
+ */
+public class ExportReports extends JDialog {
+
+    private static final String[] FORMATS = {"xlsx", "csv"};
+
+    private final JTextField fromField = new JTextField(10);
+    private final JTextField toField = new JTextField(10);
+    private final JComboBox<String> formatBox = new JComboBox<>(FORMATS);
+    private final JTextField metersField = new JTextField("local", 10);
+    private final JButton exportButton = new JButton("Export");
+    private final JProgressBar progressBar = new JProgressBar();
+    private final JLabel statusLabel = new JLabel(" ");
+
+    /**
+     * Builds and shows the dialog, set to the current month.
+     *
+     * @param owner The window it belongs to.
+     */
+    public ExportReports(Frame owner) {
+        super(owner, "Export Reports", false);
+        LocalDate today = LocalDate.now();
+        fromField.setText(today.withDayOfMonth(1).toString());
+        toField.setText(today.toString());
+
+        // Labels on the left, fields on the right
+        JPanel fields = new JPanel(new GridLayout(4, 2, 8, 8));
+        fields.add(new JLabel("From (yyyy-MM-dd):"));
+        fields.add(fromField);
+        fields.add(new JLabel("To (yyyy-MM-dd):"));
+        fields.add(toField);
+        fields.add(new JLabel("Format:"));
+        fields.add(formatBox);
+        fields.add(new JLabel("Meters (local, all or names):"));
+        fields.add(metersField);
+
+        progressBar.setStringPainted(true);
+        JPanel bottom = new JPanel(new BorderLayout(8, 8));
+        bottom.add(progressBar, BorderLayout.NORTH);
+        bottom.add(statusLabel, BorderLayout.CENTER);
+        bottom.add(exportButton, BorderLayout.EAST);
+
+        JPanel content = new JPanel(new BorderLayout(8, 8));
+        content.setBorder(BorderFactory.createEmptyBorder(12, 12, 12, 12));
+        content.add(fields, BorderLayout.CENTER);
+        content.add(bottom, BorderLayout.SOUTH);
+        setContentPane(content);
+
+        exportButton.addActionListener(e -> startExport());
+        pack();
+        setLocationRelativeTo(owner);
+        setVisible(true);
+    }
+
+    /**
+     * Checks the fields and starts the export on a background thread.
+     */
+    private void startExport() {
+        LocalDate from;
+        LocalDate to;
+        try {
+            from = LocalDate.parse(fromField.getText().trim());
+            to = LocalDate.parse(toField.getText().trim());
+        } catch (DateTimeParseException e) {
+            JOptionPane.showMessageDialog(this, "Please enter the days as yyyy-MM-dd.");
+            return;
+        }
+        String format = (String) formatBox.getSelectedItem();
+        String meters = metersField.getText().trim();
+        Path target = ReportExport.defaultTarget(from, to, format);
+
+        exportButton.setEnabled(false);
+        progressBar.setValue(0);
+        statusLabel.setText("Reading days...");
+
+        // Reading and writing a long range takes a while; keep it off the event dispatch thread
+        CompletableFuture.supplyAsync(() -> {
+            try {
+                ReportExport export = new ReportExport(ReportExport.meters(meters), from, to);
+                return export.export(target, (done, total, rows, rowsPerSecond) -> UiUpdateBus.post(progressBar, () -> {
+                    progressBar.setMaximum(total);
+                    progressBar.setValue(done);
+                    statusLabel.setText(String.format(Locale.ROOT, "%d of %d days, %d rows (%.0f rows/s)", done, total, rows, rowsPerSecond));
+                }));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }).whenComplete((result, error) -> UiUpdateBus.post(progressBar, () -> {  // Replaces a progress update still pending
+            exportButton.setEnabled(true);
+            if (error != null) {
+                Throwable cause = error.getCause() != null ? error.getCause() : error;
+                statusLabel.setText(" ");
+                JOptionPane.showMessageDialog(this, "Export failed: " + cause.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            progressBar.setValue(progressBar.getMaximum());
+            statusLabel.setText(String.format(Locale.ROOT, "%d rows in %.1f s%s", result.getRows(), result.getMillis() / 1000.0,
+                    result.getUnreadable() > 0 ? ", " + result.getUnreadable() + " days unreadable" : ""));
+            openFolder(result.getTarget().getParent());
+        }));
+    }
+
+    private void openFolder(Path folder) {
+        try {
+            if (Desktop.isDesktopSupported()) {
+                Desktop.getDesktop().open(folder.toFile());
+            }
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(this, "Saved to " + folder, "Info", JOptionPane.INFORMATION_MESSAGE);
+        }
+    }
+}
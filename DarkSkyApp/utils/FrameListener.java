@@ -0,0 +1,25 @@
+package com.darksky.utils;
+
+import org.opencv.core.Mat;
+
+import java.nio.file.Path;
+
+/**
+ * File Header Comment:
+ * This interface lets other parts of the application see each picture AutoCapture saves.
+ */
+
+/**
+ * Class Header Comment:
+ * FrameListener is called on the capture thread right after a frame has been written to disk.
+ * The Mat is reused for the next picture, so a listener that needs the pixels later must copy them,
+ * and a slow listener delays the next capture.
+ */
+public interface FrameListener {
+
+    /**
+     * @param frame The frame as read from the source.
+     * @param file  Where it was saved.
+     */
+    void frameCaptured(Mat frame, Path file);
+}
@@ -0,0 +1,98 @@
+package com.darksky.utils;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * File Header Comment:
+ * This interface describes anything that can hand frames to the capture code: a webcam opened through OpenCV,
+ * the ZWO camera through its native binding, or saved images replayed from disk.
+ */
+
+/**
+ * Class Header Comment:
+ * FrameSource lets AutoCapture and CameraWindow work without knowing where their frames come from.
+ * Use {@link FrameSources#create(boolean)} to get the source configured for this machine.
+ */
+public interface FrameSource {
+
+    /**
+     * Opens the source so frames can be read.
+     *
+     * @return true if the source is ready, false if it could not be opened.
+     */
+    boolean open();
+
+    /**
+     * @return true if the source is open and can deliver frames.
+     */
+    boolean isOpened();
+
+    /**
+     * Reads the next frame into the given Mat, reusing its memory when the size matches.
+     *
+     * @param frame The Mat to store the frame in.
+     * @return true if a frame was read.
+     */
+    boolean read(Mat frame);
+
+    /**
+     * Reads a frame for the live video, shrunk to the given size and optionally colour converted.
+     * Sources that can do this before the frame reaches Java (the ZWO binding) override this.
+     *
+     * @param frame      The Mat to store the preview in.
+     * @param width      Preview width in pixels.
+     * @param height     Preview height in pixels.
+     * @param colourCode An Imgproc colour conversion code such as Imgproc.COLOR_BGR2RGB, or -1 for none.
+     * @return true if a frame was read.
+     */
+    default boolean readPreview(Mat frame, int width, int height, int colourCode) {
+        if (!read(frame)) {
+            return false;
+        }
+        if (frame.width() != width || frame.height() != height) {
+            Imgproc.resize(frame, frame, new Size(width, height), 0, 0, Imgproc.INTER_AREA);
+        }
+        if (colourCode >= 0) {
+            Imgproc.cvtColor(frame, frame, colourCode);
+        }
+        return true;
+    }
+
+    /**
+     * @return The exposure, gain and sensor temperature of the last frame read, or CameraControls.UNKNOWN for
+     *         sources that can't tell.
+     */
+    default CameraControls getControls() {
+        return CameraControls.UNKNOWN;
+    }
+
+    /**
+     * Asks the source for a frame size. Sources that can't change size ignore this.
+     *
+     * @param width  The requested width in pixels.
+     * @param height The requested height in pixels.
+     */
+    void setResolution(double width, double height);
+
+    /**
+     * @return The current frame width in pixels.
+     */
+    double getWidth();
+
+    /**
+     * @return The current frame height in pixels.
+     */
+    double getHeight();
+
+    /**
+     * Closes the source and releases the device or files behind it.
+     */
+    void close();
+
+    /**
+     * @return A short description used in log messages, e.g. "OpenCV device 0".
+     */
+    String getDescription();
+}
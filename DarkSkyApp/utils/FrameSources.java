@@ -0,0 +1,93 @@
+package com.darksky.utils;
+
+import org.opencv.core.Size;
+
+import java.nio.file.Paths;
+
+/**
+ * File Header Comment:
+ * This class picks which FrameSource the application captures from. The choice comes from the
+ * darksky.frameSource system property so the same build can run with a webcam, the ZWO camera or replayed files.
+ */
+
+/**
+ * Class Header Comment:
+ * FrameSources builds a FrameSource from the command line settings:
+ * <pre>
+ *   -Ddarksky.frameSource=opencv          OpenCV device 0 (the default)
+ *   -Ddarksky.frameSource=opencv:1        OpenCV device 1
+ *   -Ddarksky.frameSource=zwo             ZWO camera, RAW16 (also zwo:raw8 and zwo:rgb24)
+ *   -Ddarksky.frameSource=replay:/path    Folder of images or a video file
+ *   -Ddarksky.replay.fps=2                Replay rate (default 1, 0 for no limit)
+ *   -Ddarksky.replay.loop=false           Stop at the last frame instead of starting over
+ *   -Ddarksky.replay.size=3552x3552       Resize replayed frames
+ * </pre>
+ */
+public class FrameSources {
+
+    private FrameSources() {
+    }
+
+    /**
+     * Creates the configured frame source. The source still has to be opened.
+     *
+     * @param colourNeeded true if the caller needs 8-bit colour frames (live video), false if raw data is fine (saving).
+     * @return A new, unopened FrameSource.
+     */
+    public static FrameSource create(boolean colourNeeded) {
+        return create(System.getProperty("darksky.frameSource", "opencv"), colourNeeded);
+    }
+
+    /**
+     * Creates a frame source from a setting such as "opencv:0", "zwo:raw16" or "replay:/home/me/frames".
+     *
+     * @param setting      The frame source setting.
+     * @param colourNeeded true if the caller needs 8-bit colour frames.
+     * @return A new, unopened FrameSource.
+     */
+    public static FrameSource create(String setting, boolean colourNeeded) {
+        String type = setting;
+        String argument = "";
+        int colon = setting.indexOf(':');
+        if (colon >= 0) {
+            type = setting.substring(0, colon);
+            argument = setting.substring(colon + 1);
+        }
+
+        switch (type.toLowerCase()) {
+            case "zwo":
+                int imageType = ZWOFrameSource.IMG_RAW16;
+                if (argument.equalsIgnoreCase("raw8")) {
+                    imageType = ZWOFrameSource.IMG_RAW8;
+                } else if (argument.equalsIgnoreCase("rgb24")) {
+                    imageType = ZWOFrameSource.IMG_RGB24;
+                }
+                return new ZWOFrameSource(imageType, colourNeeded);
+
+            case "replay":
+                double fps = Double.parseDouble(System.getProperty("darksky.replay.fps", "1"));
+                boolean loop = Boolean.parseBoolean(System.getProperty("darksky.replay.loop", "true"));
+                return new ReplayFrameSource(Paths.get(argument), fps, loop, parseSize(System.getProperty("darksky.replay.size")));
+
+            case "opencv":
+                return new OpenCVFrameSource(argument.isEmpty() ? 0 : Integer.parseInt(argument));
+
+            default:
+                throw new IllegalArgumentException("Unknown frame source: " + setting);
+        }
+    }
+
+    /**
+     * Parses a size like "1920x1080". Returns null if the setting is missing.
+     */
+    private static Size parseSize(String setting) {
+        if (setting == null || setting.isEmpty()) {
+            return null;
+        }
+        String[] parts = setting.toLowerCase().split("x");
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("Frame size must look like 1920x1080: " + setting);
+        }
+        return new Size(Double.parseDouble(parts[0]), Double.parseDouble(parts[1]));
+    }
+}
@@ -0,0 +1,72 @@
+package com.darksky.utils;
+
+import org.opencv.core.Mat;
+import org.opencv.videoio.VideoCapture;
+import org.opencv.videoio.Videoio;
+
+/**
+ * File Header Comment:
+ * This class reads frames from a camera through OpenCV's VideoCapture. It is what AutoCapture and
+ * CameraWindow used directly before frame sources were added.
+ */
+
+/**
+ * Class Header Comment:
+ * OpenCVFrameSource wraps a VideoCapture device (usually device 0, the USB camera).
+ */
+public class OpenCVFrameSource implements FrameSource {
+
+    private final int deviceIndex;  // OpenCV device number
+    private VideoCapture capture;
+
+    /**
+     * @param deviceIndex The OpenCV device number to open.
+     */
+    public OpenCVFrameSource(int deviceIndex) {
+        this.deviceIndex = deviceIndex;
+    }
+
+    @Override
+    public boolean open() {
+        capture = new VideoCapture(deviceIndex);
+        return capture.isOpened();
+    }
+
+    @Override
+    public boolean isOpened() {
+        return capture != null && capture.isOpened();
+    }
+
+    @Override
+    public boolean read(Mat frame) {
+        return capture != null && capture.read(frame);
+    }
+
+    @Override
+    public void setResolution(double width, double height) {
+        capture.set(Videoio.CAP_PROP_FRAME_WIDTH, width);
+        capture.set(Videoio.CAP_PROP_FRAME_HEIGHT, height);
+    }
+
+    @Override
+    public double getWidth() {
+        return capture.get(Videoio.CAP_PROP_FRAME_WIDTH);
+    }
+
+    @Override
+    public double getHeight() {
+        return capture.get(Videoio.CAP_PROP_FRAME_HEIGHT);
+    }
+
+    @Override
+    public void close() {
+        if (capture != null) {
+            capture.release();
+        }
+    }
+
+    @Override
+    public String getDescription() {
+        return "OpenCV device " + deviceIndex;
+    }
+}
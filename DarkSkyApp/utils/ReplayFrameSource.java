@@ -0,0 +1,187 @@
+package com.darksky.utils;
+
+import com.darksky.logging.EventLog;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.videoio.VideoCapture;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * File Header Comment:
+ * This class replays saved frames (a folder of PNG/JPG images or a video file) as if they came from a camera.
+ * It lets the capture, encode and save code run on a machine with no camera attached, for testing and benchmarks.
+ */
+
+/**
+ * Class Header Comment:
+ * ReplayFrameSource hands out frames at a fixed rate. The next frame is due at start + n / rate, so slow
+ * readers don't make the replay drift. Frames can be resized to any size to test the pipeline with large frames.
+ */
+public class ReplayFrameSource implements FrameSource {
+
+    private final Path path;  // Folder of images or a video file
+    private final double framesPerSecond;  // 0 means as fast as possible
+    private final boolean loop;  // Start again from the first frame at the end
+    private final double targetWidth, targetHeight;  // 0 means keep the original size
+
+    private List<Path> images;  // Used when path is a folder
+    private VideoCapture video;  // Used when path is a video file
+    private int nextIndex;
+    private long startNanos;
+    private long framesServed;
+    private double width, height;
+    private boolean opened;
+
+    /**
+     * @param path            A folder of .png/.jpg images (replayed in name order) or a video file.
+     * @param framesPerSecond How many frames to hand out per second, or 0 for no limit.
+     * @param loop            true to start over after the last frame.
+     * @param frameSize       Size to resize every frame to, or null to keep the saved size.
+     */
+    public ReplayFrameSource(Path path, double framesPerSecond, boolean loop, Size frameSize) {
+        this.path = path;
+        this.framesPerSecond = framesPerSecond;
+        this.loop = loop;
+        this.targetWidth = frameSize != null ? frameSize.width : 0;
+        this.targetHeight = frameSize != null ? frameSize.height : 0;
+    }
+
+    @Override
+    public boolean open() {
+        try {
+            if (Files.isDirectory(path)) {
+                try (Stream<Path> files = Files.list(path)) {
+                    images = files.filter(ReplayFrameSource::isImage).sorted().collect(Collectors.toList());
+                }
+                opened = !images.isEmpty();
+            } else {
+                video = new VideoCapture(path.toString());
+                opened = video.isOpened();
+            }
+        } catch (IOException e) {
+            EventLog.warn("ReplayFrameSource", "replay.open.failed", "path", path, e);
+            opened = false;
+        }
+        nextIndex = 0;
+        framesServed = 0;
+        startNanos = System.nanoTime();
+        return opened;
+    }
+
+    @Override
+    public boolean isOpened() {
+        return opened;
+    }
+
+    @Override
+    public boolean read(Mat frame) {
+        if (!opened || !waitForNextFrame()) {
+            return false;
+        }
+
+        boolean ok = images != null ? readImage(frame) : readVideo(frame);
+        if (!ok) {
+            return false;
+        }
+
+        if (targetWidth > 0 && targetHeight > 0 && (frame.width() != targetWidth || frame.height() != targetHeight)) {
+            Imgproc.resize(frame, frame, new Size(targetWidth, targetHeight));
+        }
+        width = frame.width();
+        height = frame.height();
+        framesServed++;
+        return true;
+    }
+
+    /**
+     * Sleeps until the next frame is due. Returns false if the thread was interrupted.
+     */
+    private boolean waitForNextFrame() {
+        if (framesPerSecond <= 0) {
+            return true;
+        }
+        long dueNanos = startNanos + (long) (framesServed * 1_000_000_000L / framesPerSecond);
+        long waitNanos = dueNanos - System.nanoTime();
+        if (waitNanos > 0) {
+            try {
+                Thread.sleep(waitNanos / 1_000_000, (int) (waitNanos % 1_000_000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean readImage(Mat frame) {
+        if (nextIndex >= images.size()) {
+            if (!loop) {
+                return false;
+            }
+            nextIndex = 0;
+        }
+        Path file = images.get(nextIndex++);
+        Mat image = Imgcodecs.imread(file.toString(), Imgcodecs.IMREAD_UNCHANGED);
+        if (image == null || image.empty()) {
+            EventLog.warn("ReplayFrameSource", "replay.decode.failed", "file", file);
+            return false;
+        }
+        image.copyTo(frame);
+        image.release();
+        return true;
+    }
+
+    private boolean readVideo(Mat frame) {
+        if (video.read(frame)) {
+            return true;
+        }
+        if (!loop) {
+            return false;
+        }
+        // Reopen the file to start again from the first frame
+        video.release();
+        video = new VideoCapture(path.toString());
+        return video.read(frame);
+    }
+
+    @Override
+    public void setResolution(double width, double height) {
+        // The replay size is fixed by the frameSize given to the constructor
+    }
+
+    @Override
+    public double getWidth() {
+        return targetWidth > 0 ? targetWidth : width;
+    }
+
+    @Override
+    public double getHeight() {
+        return targetHeight > 0 ? targetHeight : height;
+    }
+
+    @Override
+    public void close() {
+        if (video != null) {
+            video.release();
+        }
+        opened = false;
+    }
+
+    @Override
+    public String getDescription() {
+        return "Replay of " + path + (framesPerSecond > 0 ? " at " + framesPerSecond + " fps" : "");
+    }
+
+    private static boolean isImage(Path file) {
+        String name = file.getFileName().toString().toLowerCase();
+        return name.endsWith(".png") || name.endsWith(".jpg") || name.endsWith(".jpeg");
+    }
+}
@@ -0,0 +1,221 @@
+package com.darksky.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * File Header Comment:
+ * This class is the file layout shared by the station timeline (TimelineFile) and the frame quality index
+ * (QualityFile): fixed-size records kept in time order behind a small header.
+ */
+
+/**
+ * Class Header Comment:
+ * SortedRecordFile is an 8 byte header (a magic number and a version) followed by records of one fixed size,
+ * each starting with its time as a long, in time order. Because the records are sorted and all the same size,
+ * the file is its own index: a time range is found with a binary search on the record times and read with
+ * positional reads, without loading the rest of the file. A record older than the last one is put in its place
+ * by moving the few records after it up one. A record cut short by a crash is dropped when the file is opened
+ * for writing again. The magic number, version and record size are given by the format built on it.
+ */
+public final class SortedRecordFile implements AutoCloseable {
+
+    public static final int HEADER_SIZE = 8;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final int recordSize;
+    private final String description;  // What the file is, for error messages
+    private final ByteBuffer timeBuffer = ByteBuffer.allocate(Long.BYTES);  // Used by the binary search
+    private long count;  // Whole records in the file
+
+    private SortedRecordFile(Path path, FileChannel channel, int recordSize, String description, long count) {
+        this.path = path;
+        this.channel = channel;
+        this.recordSize = recordSize;
+        this.description = description;
+        this.count = count;
+    }
+
+    /**
+     * Opens a file for writing, creating it if needed.
+     *
+     * @param description What the file is, e.g. "timeline file", used in error messages.
+     */
+    public static SortedRecordFile openForWrite(Path path, int magic, int version, int recordSize, String description) throws IOException {
+        Files.createDirectories(path.getParent());
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (channel.size() < HEADER_SIZE) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(magic).putInt(version).flip();
+            channel.truncate(0);
+            channel.write(header, 0);
+        } else {
+            checkHeader(channel, path, magic, version, description);
+        }
+        long count = (channel.size() - HEADER_SIZE) / recordSize;
+        channel.truncate(HEADER_SIZE + count * recordSize);  // Drop a half-written record
+        return new SortedRecordFile(path, channel, recordSize, description, count);
+    }
+
+    /**
+     * Opens a file for reading only.
+     *
+     * @return The file, or null if it doesn't exist or has no header yet.
+     */
+    public static SortedRecordFile openForRead(Path path, int magic, int version, int recordSize, String description) throws IOException {
+        if (!Files.exists(path)) {
+            return null;
+        }
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        if (channel.size() < HEADER_SIZE) {
+            channel.close();
+            return null;
+        }
+        checkHeader(channel, path, magic, version, description);
+        return new SortedRecordFile(path, channel, recordSize, description, (channel.size() - HEADER_SIZE) / recordSize);
+    }
+
+    private static void checkHeader(FileChannel channel, Path path, int magic, int version, String description) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        channel.read(header, 0);
+        header.flip();
+        if (header.getInt() != magic || header.getInt() != version) {
+            channel.close();
+            throw new IOException("not a " + description + ": " + path);
+        }
+    }
+
+    /**
+     * Appends records. They must not be older than the last record in the file.
+     */
+    public void append(ByteBuffer records, int recordCount) throws IOException {
+        writeFully(records, HEADER_SIZE + count * recordSize);
+        count += recordCount;
+    }
+
+    /**
+     * Adds a record in its place by time, after any records with the same time.
+     *
+     * @param record The record, recordSize bytes.
+     */
+    public void insert(ByteBuffer record, long time) throws IOException {
+        long at = count == 0 || timeAt(count - 1) <= time ? count : upperBound(time);
+        long tailBytes = (count - at) * recordSize;
+        long position = HEADER_SIZE + at * recordSize;
+        if (tailBytes > 0) {
+            // Usually one or two records: the ones a slower writer was still busy with
+            ByteBuffer tail = ByteBuffer.allocate((int) tailBytes);
+            readFully(tail, position);
+            tail.flip();
+            writeFully(tail, position + recordSize);
+        }
+        writeFully(record, position);
+        count++;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return The time of the last record, or 0 if the file is empty.
+     */
+    public long getLastTime() throws IOException {
+        return count == 0 ? 0 : timeAt(count - 1);
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * Reads the records with from &lt;= time &lt; to.
+     *
+     * @param reader Reads one record from the buffer, leaving it at the next one.
+     */
+    public <T> List<T> read(long from, long to, Function<ByteBuffer, T> reader) throws IOException {
+        long first = lowerBound(from);
+        long end = lowerBound(to);
+        List<T> records = new ArrayList<>();
+        int batch = 1024;  // Records per read, so a whole night isn't read into one buffer
+        ByteBuffer buffer = ByteBuffer.allocate(batch * recordSize);
+        for (long start = first; start < end; start += batch) {
+            int n = (int) Math.min(batch, end - start);
+            buffer.clear().limit(n * recordSize);
+            readFully(buffer, HEADER_SIZE + start * recordSize);
+            buffer.flip();
+            for (int i = 0; i < n; i++) {
+                records.add(reader.apply(buffer));
+            }
+        }
+        return records;
+    }
+
+    /**
+     * @return The index of the first record with a time of at least the given time (count if there is none).
+     */
+    private long lowerBound(long time) throws IOException {
+        long low = 0;
+        long high = count;
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            if (timeAt(middle) < time) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return The index of the first record with a later time than the given time (count if there is none).
+     */
+    private long upperBound(long time) throws IOException {
+        long low = 0;
+        long high = count;
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            if (timeAt(middle) <= time) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private long timeAt(long index) throws IOException {
+        timeBuffer.clear();
+        readFully(timeBuffer, HEADER_SIZE + index * recordSize);
+        return timeBuffer.getLong(0);
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException(description + " ended early: " + path);
+            }
+            position += read;
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,25 @@
+package com.darksky.utils;
+
+import org.opencv.core.Mat;
+
+/**
+ * File Header Comment:
+ * This interface lets other parts of the application see every frame the camera delivers, not only the
+ * ones AutoCapture saves.
+ */
+
+/**
+ * Class Header Comment:
+ * StreamListener is called on AutoCapture's stream thread for each frame read between the saved pictures,
+ * as fast as the camera delivers them. Nothing is saved for these frames. The Mat is reused for the next
+ * frame, so a listener that needs the pixels later must copy them, and a slow listener means frames are
+ * missed (the camera is not read while a listener runs).
+ */
+public interface StreamListener {
+
+    /**
+     * @param frame      The frame as read from the source, full size.
+     * @param timeMillis When it was read, as System.currentTimeMillis().
+     */
+    void frameStreamed(Mat frame, long timeMillis);
+}
@@ -0,0 +1,155 @@
+package com.darksky.utils;
+
+import com.darksky.logging.EventLog;
+import org.opencv.core.Mat;
+
+/**
+ * File Header Comment:
+ * This class reads frames from the ZWO ASI camera through the native binding in ZWOCameraJNI.cpp.
+ */
+
+/**
+ * Class Header Comment:
+ * ZWOFrameSource opens the first connected ASI camera and reads frames straight into an OpenCV Mat on the
+ * native side, so there is no extra copy through a Java byte array. Raw frames (RAW8/RAW16) are only
+ * demosaiced natively when colour output is asked for.
+ */
+public class ZWOFrameSource implements FrameSource {
+
+    // Image types, same values as ASI_IMG_TYPE in ASICamera2.h
+    public static final int IMG_RAW8 = 0;
+    public static final int IMG_RGB24 = 1;
+    public static final int IMG_RAW16 = 2;
+
+    private static final String LIBRARY_NAME = "ZWOCameraJNI";  // libZWOCameraJNI.so / ZWOCameraJNI.dll
+    private static boolean libraryLoaded;
+
+    private final int imageType;  // One of the IMG_ constants
+    private final boolean colourOutput;  // Demosaic raw frames to BGR before handing them to Java
+    private boolean opened;
+
+    /**
+     * @param imageType    The format the camera sends frames in (IMG_RAW8, IMG_RAW16 or IMG_RGB24).
+     * @param colourOutput true to get 8-bit BGR frames, false to keep the raw Bayer data.
+     */
+    public ZWOFrameSource(int imageType, boolean colourOutput) {
+        this.imageType = imageType;
+        this.colourOutput = colourOutput;
+    }
+
+    @Override
+    public boolean open() {
+        if (!loadLibrary()) {
+            return false;
+        }
+        opened = nativeOpen(imageType, colourOutput);
+        return opened;
+    }
+
+    @Override
+    public boolean isOpened() {
+        return opened;
+    }
+
+    @Override
+    public boolean read(Mat frame) {
+        return opened && nativeRead(frame.getNativeObjAddr());
+    }
+
+    /**
+     * Reads a frame in the camera's binned preview format and shrinks what is left on the native side, so only
+     * preview-sized pixels reach Java.
+     */
+    @Override
+    public boolean readPreview(Mat frame, int width, int height, int colourCode) {
+        return opened && nativeReadPreview(frame.getNativeObjAddr(), width, height, colourCode);
+    }
+
+    /**
+     * Returns how long the last preview took in each native stage, in nanoseconds:
+     * [0] acquire from the camera (including a switch into the preview format), [1] colour (raw frames) and resize,
+     * [2] convert and copy into the output Mat.
+     *
+     * @return A new array with the three stage timings.
+     */
+    public long[] getPreviewTimings() {
+        long[] timings = new long[3];
+        if (opened) {
+            nativePreviewTimings(timings);
+        }
+        return timings;
+    }
+
+    /**
+     * @return The exposure, gain and sensor temperature the last frame was read with.
+     */
+    @Override
+    public CameraControls getControls() {
+        if (!opened) {
+            return CameraControls.UNKNOWN;
+        }
+        long[] controls = new long[3];
+        nativeControls(controls);
+        return new CameraControls(controls[0], (int) controls[1], controls[2] / 10.0);  // The SDK gives tenths of a degree
+    }
+
+    @Override
+    public void setResolution(double width, double height) {
+        // Full-resolution frames are always read at the sensor size
+    }
+
+    @Override
+    public double getWidth() {
+        return opened ? nativeWidth() : 0;
+    }
+
+    @Override
+    public double getHeight() {
+        return opened ? nativeHeight() : 0;
+    }
+
+    @Override
+    public void close() {
+        if (opened) {
+            nativeClose();
+            opened = false;
+        }
+    }
+
+    @Override
+    public String getDescription() {
+        return "ZWO camera (" + (imageType == IMG_RAW16 ? "RAW16" : imageType == IMG_RAW8 ? "RAW8" : "RGB24") + ")";
+    }
+
+    /**
+     * Loads the native library once. Returns false instead of throwing so callers can report a missing camera.
+     */
+    static synchronized boolean loadLibrary() {
+        if (!libraryLoaded) {
+            try {
+                System.loadLibrary(LIBRARY_NAME);
+                libraryLoaded = true;
+            } catch (UnsatisfiedLinkError e) {
+                EventLog.warn("ZWOFrameSource", "library.missing", "library", LIBRARY_NAME, e);
+            }
+        }
+        return libraryLoaded;
+    }
+
+    // Native methods implemented in ZWOCameraJNI.cpp
+    private static native boolean nativeOpen(int imageType, boolean colourOutput);
+
+    private static native boolean nativeRead(long matAddress);
+
+    private static native boolean nativeReadPreview(long matAddress, int width, int height, int colourCode);
+
+    private static native void nativePreviewTimings(long[] timings);
+
+    private static native void nativeControls(long[] controls);
+
+    private static native int nativeWidth();
+
+    private static native int nativeHeight();
+
+    private static native void nativeClose();
+}
@@ -9,6 +9,30 @@
 
 #define SCHEDULE_SIZE 5 //system set for 5 max time schedules in the system. could be modified to have more
 
+//Framed binary protocol used by the Java EnclosureController (DarkSkyApp/controllers/EnclosureProtocol.java).
+//A frame is: [0xDA magic][length, 2 bytes big-endian][type][request id, 2 bytes big-endian][payload]
+//where length counts the type, id and payload bytes. Replies carry the id of the request they answer, so the
+//server can send several requests without waiting. A first byte other than the magic is still treated as a
+//one-character menu command, so ServerCommunication.cpp keeps working.
+#define FRAME_MAGIC 0xDA
+#define FRAME_MAX_LENGTH 64 //largest type + id + payload accepted
+#define MSG_PING 0x01 //-> ACK
+#define MSG_GET_STATUS 0x02 //-> STATUS
+#define MSG_SET_FAN_PWM 0x03 //[pwm] -> ACK
+#define MSG_SET_FAN_TEMP 0x04 //[temp F * 10, int16] -> ACK
+#define MSG_SET_POWER 0x05 //[1=recording device/2=fan][1=forced on/0=automatic] -> ACK
+#define MSG_GET_SCHEDULE 0x06 //-> SCHEDULE
+#define MSG_SET_SCHEDULE 0x07 //[duration min, uint16][count][count x (hour, minute, second)] -> ACK
+#define MSG_SUBSCRIBE 0x08 //[period s, uint16, 0 = stop] -> ACK, then TELEMETRY frames with id 0
+#define MSG_ACK 0x81
+#define MSG_STATUS 0x82 //[temp*10 int16][fanOnTemp*10 int16][fan speed uint16][fan pwm][flags][device time uint32][duration min uint16]
+#define MSG_SCHEDULE 0x86
+#define MSG_TELEMETRY 0x90 //same payload as STATUS
+#define MSG_ERROR 0xFF //[error code]
+#define ERROR_UNKNOWN_TYPE 1
+#define ERROR_BAD_LENGTH 2
+#define ERROR_BAD_VALUE 3
+
 using namespace std;
 
 const char *wifi_ID = "NTGR_26A4_5G"; //name of NETGEAR router Wi-Fi
@@ -34,6 +58,12 @@ static struct tm time_ESP32; //time struct to keep track of utc time on ESP32
 
 static float fanOnTemp = 90.0; //temperature at which the fan turns on at
 static float temp; //temperature read by sensor
+static int fanPwmValue = 63; //current fan PWM duty (starts at lowSpd), reported in STATUS frames
+
+static uint8_t frameBuffer[3 + FRAME_MAX_LENGTH]; //frame being received: magic, length, then type, id and payload
+static int frameFill = 0; //bytes of frameBuffer received so far
+static unsigned long telemetryPeriodMs = 0; //0 = no telemetry frames
+static unsigned long lastTelemetryMs = 0;
 
 //assigning GPIO pins to variables  
 const int tempSensor_input = 39; //A3 pin. Used for DS18B20 temp sensor data line input
@@ -71,6 +101,11 @@ void remove_array_entry(int); //removes the time from the time_schedule array
 void tm_initialization(); //creates a default set of 5 time schedules
 void duration_change(); //change the duration that the recording device on for when the time schedule is triggered 
 void tm_print(int); //print out the times currently being stored in the time schedule and send those times to the server 
+void frame_receive(uint8_t); //adds one byte to the frame being received and handles the frame once it is complete
+void frame_handle(uint8_t, uint16_t, const uint8_t*, int); //runs one framed request
+void frame_send(uint8_t, uint16_t, const uint8_t*, int); //sends one frame to the server
+void status_send(uint8_t, uint16_t); //sends a STATUS or TELEMETRY frame
+void set_fan_pwm(int); //sets the fan PWM duty and remembers it for STATUS frames
 
 //flags to keep fan and recording device on/off regardless of conditional statement
 static bool fanFlag = false;
@@ -110,7 +145,7 @@ void setup() {
   digitalWrite(SQM_power, 0); //SQM switch starts as off
   digitalWrite(miniPC_power, 0); //mini-PC starts as off
   digitalWrite(dewHeater_power, 0); //dew heater starts as off
-  analogWrite(fanPWM, lowSpd); //sets fan at low speed
+  set_fan_pwm(lowSpd); //sets fan at low speed
 
   tempSensor.begin(); //intializes the DS18B20 sensor
   
@@ -207,7 +242,7 @@ void time_check(void){ //finished
   Serial.print(":");
   Serial.println(time_ESP32.tm_sec);
   
-  for(i=0; i<SCHEDULE_SIZE; i++){ //this method for turning on at a schedule can be improved
+  for(i=0; i<number_of_schedules; i++){ //this method for turning on at a schedule can be improved
     //if it is the scheduled hour, the recording device will turn on for certain amount of time according to onTimeMin. OR the recording device will turn on if the server program enables it
     if(((time_ESP32.tm_hour == schedule_times[i].tm_hour) && (time_ESP32.tm_min < onTimeMin)) || (recordFlag)){ //change this to account for minutes spilling over
       digitalWrite(SQM_power, HIGH);
@@ -223,6 +258,18 @@ void time_check(void){ //finished
       recordOn = false;
     }
   }
+  if((number_of_schedules == 0) && (recordFlag)){ //the loop above doesn't run without schedules, but the server can still force recording on
+    digitalWrite(SQM_power, HIGH);
+    digitalWrite(dewHeater_power, HIGH);
+    digitalWrite(miniPC_power, HIGH);
+    recordOn = true;
+  }
+  else if(number_of_schedules == 0){
+    digitalWrite(SQM_power, LOW);
+    digitalWrite(dewHeater_power, LOW);
+    digitalWrite(miniPC_power, LOW);
+    recordOn = false;
+  }
 }
 
 void WiFi_initializing(void){ //finished
@@ -282,9 +329,15 @@ void socket_connection(void *taskParamaters){ //finished
 
     else{
       Serial.println("Communicating with Server...");
+      frameFill = 0; //start every connection with an empty frame buffer and no telemetry
+      telemetryPeriodMs = 0;
       while(client.connected()){
-        delay(1000);
+        delay(20); //short enough for pipelined requests, still lets the watchdog run
         communication();
+        if((telemetryPeriodMs > 0) && (millis() - lastTelemetryMs >= telemetryPeriodMs)){
+          lastTelemetryMs = millis();
+          status_send(MSG_TELEMETRY, 0); //telemetry is pushed without a request, so it carries id 0
+        }
       }
     }
 
@@ -292,17 +345,150 @@ void socket_connection(void *taskParamaters){ //finished
 }
 
 void communication(void){ //finished
-  Serial.println("COMMUNICATION");
-  if (client.available()){
-    serverCommand[0] = client.read(); //recieves message from server program
-    //Serial.println(serverCommand);
-    control_menu(serverCommand); //passes message from server program to control_menu
+  while (client.available()){
+    if((frameFill == 0) && (client.peek() != FRAME_MAGIC)){ //not a frame: one-character menu command from ServerCommunication.cpp
+      serverCommand[0] = client.read(); //recieves message from server program
+      control_menu(serverCommand); //passes message from server program to control_menu
+      memset(serverCommand, 0, sizeof(serverCommand)); //clears the serverCommand character array for the next use
+    }
+    else{
+      frame_receive(client.read()); //framed request, read all that has arrived instead of one byte per second
+    }
   }
-    
-   
-    memset(serverCommand, 0, sizeof(serverCommand)); //clears the serverCommand character array for the next use
+}
+
+void frame_receive(uint8_t value){
+  frameBuffer[frameFill++] = value;
+  if(frameFill < 3){
+    return; //still waiting for the length
+  }
+  int length = (frameBuffer[1] << 8) | frameBuffer[2];
+  if((length < 3) || (length > FRAME_MAX_LENGTH)){ //corrupt frame: drop it and wait for the next magic byte
+    frameFill = 0;
+    return;
+  }
+  if(frameFill == 3 + length){
+    uint16_t id = (frameBuffer[4] << 8) | frameBuffer[5];
+    frame_handle(frameBuffer[3], id, &frameBuffer[6], length - 3);
+    frameFill = 0;
+  }
+}
+
+void frame_handle(uint8_t type, uint16_t id, const uint8_t *payload, int length){
+  uint8_t error = 0;
+  switch(type){
+    case MSG_PING:
+      break;
+    case MSG_GET_STATUS:
+      status_send(MSG_STATUS, id);
+      return;
+    case MSG_SET_FAN_PWM:
+      if(length != 1){ error = ERROR_BAD_LENGTH; break; }
+      set_fan_pwm(payload[0]);
+      break;
+    case MSG_SET_FAN_TEMP:
+      if(length != 2){ error = ERROR_BAD_LENGTH; break; }
+      fanOnTemp = (int16_t)((payload[0] << 8) | payload[1]) / 10.0;
+      break;
+    case MSG_SET_POWER:
+      if(length != 2){ error = ERROR_BAD_LENGTH; break; }
+      if(payload[0] == 1){
+        payload[1] ? record_on() : record_off();
+      }
+      else if(payload[0] == 2){
+        payload[1] ? fan_on() : fan_off();
+      }
+      else{
+        error = ERROR_BAD_VALUE;
+      }
+      break;
+    case MSG_GET_SCHEDULE: {
+      uint8_t reply[3 + 3 * SCHEDULE_SIZE];
+      reply[0] = onTimeMin >> 8;
+      reply[1] = onTimeMin & 0xFF;
+      reply[2] = number_of_schedules;
+      for(int i=0; i<number_of_schedules; i++){
+        reply[3 + 3*i] = schedule_times[i].tm_hour;
+        reply[4 + 3*i] = schedule_times[i].tm_min;
+        reply[5 + 3*i] = schedule_times[i].tm_sec;
+      }
+      frame_send(MSG_SCHEDULE, id, reply, 3 + 3 * number_of_schedules);
+      return;
+    }
+    case MSG_SET_SCHEDULE: {
+      if((length < 3) || (payload[2] > SCHEDULE_SIZE) || (length != 3 + 3 * payload[2])){ error = ERROR_BAD_LENGTH; break; }
+      for(int i=0; i<payload[2]; i++){
+        if((payload[3 + 3*i] > 23) || (payload[4 + 3*i] > 59) || (payload[5 + 3*i] > 59)){ error = ERROR_BAD_VALUE; }
+      }
+      if(error){ break; }
+      onTimeMin = (payload[0] << 8) | payload[1];
+      number_of_schedules = payload[2];
+      for(int i=0; i<number_of_schedules; i++){
+        schedule_times[i].tm_hour = payload[3 + 3*i];
+        schedule_times[i].tm_min = payload[4 + 3*i];
+        schedule_times[i].tm_sec = payload[5 + 3*i];
+      }
+      break;
+    }
+    case MSG_SUBSCRIBE:
+      if(length != 2){ error = ERROR_BAD_LENGTH; break; }
+      telemetryPeriodMs = ((payload[0] << 8) | payload[1]) * 1000UL;
+      lastTelemetryMs = millis() - telemetryPeriodMs; //first telemetry frame goes out straight away
+      break;
+    default:
+      error = ERROR_UNKNOWN_TYPE;
+      break;
+  }
+  if(error){
+    frame_send(MSG_ERROR, id, &error, 1);
+  }
+  else{
+    frame_send(MSG_ACK, id, NULL, 0);
+  }
+}
 
+void frame_send(uint8_t type, uint16_t id, const uint8_t *payload, int length){
+  uint8_t frame[6 + FRAME_MAX_LENGTH];
+  int total = length + 3;
+  frame[0] = FRAME_MAGIC;
+  frame[1] = total >> 8;
+  frame[2] = total & 0xFF;
+  frame[3] = type;
+  frame[4] = id >> 8;
+  frame[5] = id & 0xFF;
+  if(length > 0){
+    memcpy(&frame[6], payload, length);
   }
+  client.write(frame, 6 + length); //one write per frame instead of one per value
+}
+
+void status_send(uint8_t type, uint16_t id){
+  uint8_t reply[14];
+  int16_t tempTenths = (int16_t)(temp * 10);
+  int16_t fanOnTenths = (int16_t)(fanOnTemp * 10);
+  uint16_t fanSpeed = analogRead(fanSpeed_input);
+  uint32_t now = (uint32_t) time(NULL);
+  reply[0] = tempTenths >> 8;
+  reply[1] = tempTenths & 0xFF;
+  reply[2] = fanOnTenths >> 8;
+  reply[3] = fanOnTenths & 0xFF;
+  reply[4] = fanSpeed >> 8;
+  reply[5] = fanSpeed & 0xFF;
+  reply[6] = fanPwmValue;
+  reply[7] = (recordOn ? 1 : 0) | (fanOn ? 2 : 0) | (recordFlag ? 4 : 0) | (fanFlag ? 8 : 0);
+  reply[8] = now >> 24;
+  reply[9] = (now >> 16) & 0xFF;
+  reply[10] = (now >> 8) & 0xFF;
+  reply[11] = now & 0xFF;
+  reply[12] = onTimeMin >> 8;
+  reply[13] = onTimeMin & 0xFF;
+  frame_send(type, id, reply, sizeof(reply));
+}
+
+void set_fan_pwm(int value){
+  fanPwmValue = value;
+  analogWrite(fanPWM, value);
+}
 
 void control_menu(char* command){
   bool exitMenu = false;
@@ -450,19 +636,19 @@ void fanSpeedChange(void){ //finished
             Serial.println("Exiting Window");
             break;
           case '1':
-            analogWrite(fanPWM, offSpd);
+            set_fan_pwm(offSpd);
             break;
           case '2':
-            analogWrite(fanPWM, lowSpd);
+            set_fan_pwm(lowSpd);
             break;
           case '3':
-            analogWrite(fanPWM, mediumSpd);
+            set_fan_pwm(mediumSpd);
             break;
           case '4':
-            analogWrite(fanPWM, highSpd);
+            set_fan_pwm(highSpd);
             break;
           case '5':
-            analogWrite(fanPWM, maxSpd);
+            set_fan_pwm(maxSpd);
             break;
           default:
             break;
@@ -0,0 +1,181 @@
+#pragma once
+
+#include <algorithm>
+#include <condition_variable>
+#include <functional>
+#include <future>
+#include <memory>
+#include <mutex>
+#include <queue>
+#include <thread>
+#include <vector>
+#include <ASICamera2.h> //IF YOU WISH TO LOOK AT CAMERA FUNCTIONS AND PROGRAMMING INFORMATION LOOK UP ZWO CAMERA SDK
+#include <opencv2/opencv.hpp>  //this is needed to generate pictures and look at live video
+
+//BayerPipeline lets the camera send raw Bayer data (RAW8 = 1 byte per pixel, RAW16 = 2 bytes per pixel) instead of RGB24 (3 bytes per pixel).
+//The ASI676MC is a colour camera, so RGB24 frames are made by the SDK on the host anyway. Asking for RAW8/RAW16 cuts the USB transfer and
+//every copy after it by up to 3x, and RAW16 keeps the full 12-bit sensor data for photometry. When a colour image is actually needed
+//(live video, colour PNGs) it gets demosaiced here by a small pool of worker threads.
+
+namespace bayer {
+
+	//bytes per pixel for the image types we use. ASIGetVideoData needs the exact buffer size
+	inline int bytesPerPixel(ASI_IMG_TYPE type) {
+		switch (type) {
+		case ASI_IMG_RAW16:
+			return 2;
+		case ASI_IMG_RGB24:
+			return 3;
+		default: //ASI_IMG_RAW8 and ASI_IMG_Y8
+			return 1;
+		}
+	}
+
+	//the opencv Mat type that matches the camera image type
+	inline int matType(ASI_IMG_TYPE type) {
+		switch (type) {
+		case ASI_IMG_RAW16:
+			return CV_16UC1;
+		case ASI_IMG_RGB24:
+			return CV_8UC3;
+		default:
+			return CV_8UC1;
+		}
+	}
+
+	inline bool isRaw(ASI_IMG_TYPE type) {
+		return type == ASI_IMG_RAW8 || type == ASI_IMG_RAW16;
+	}
+
+	//opencv names the Bayer patterns after the second row instead of the first, so the ZWO pattern has to be swapped around.
+	//(ASI_BAYER_RG means the sensor starts with an R G row, which opencv calls BayerBG)
+	inline int demosaicCode(ASI_BAYER_PATTERN pattern) {
+		switch (pattern) {
+		case ASI_BAYER_BG:
+			return cv::COLOR_BayerRG2BGR;
+		case ASI_BAYER_GR:
+			return cv::COLOR_BayerGB2BGR;
+		case ASI_BAYER_GB:
+			return cv::COLOR_BayerGR2BGR;
+		default: //ASI_BAYER_RG
+			return cv::COLOR_BayerBG2BGR;
+		}
+	}
+
+	//bins one 2x2 Bayer cell into one BGR pixel: red and blue as they are and the two greens averaged. redRow and redCol say where red
+	//sits in the cell; blue is in the opposite corner
+	template <typename T>
+	void binCells(const cv::Mat& raw, cv::Mat& colour, int redRow, int redCol) {
+		for (int y = 0; y < colour.rows; y++) {
+			const T* redLine = raw.ptr<T>(2 * y + redRow);
+			const T* blueLine = raw.ptr<T>(2 * y + 1 - redRow);
+			T* out = colour.ptr<T>(y);
+			for (int x = 0; x < colour.cols; x++) {
+				int red = 2 * x + redCol;
+				int blue = 2 * x + 1 - redCol;
+				out[3 * x] = blueLine[blue];
+				out[3 * x + 1] = (T)((redLine[blue] + blueLine[red] + 1) / 2);
+				out[3 * x + 2] = redLine[red];
+			}
+		}
+	}
+
+	//turns a raw frame into a half size colour frame (8-bit input gives CV_8UC3, 16-bit input gives CV_16UC3) without demosaicing.
+	//Used for the live preview, which gets shrunk anyway: it reads every raw pixel once and writes a quarter as many, where
+	//demosaicing would interpolate and write the full frame. colour is reused between calls if it is already the right size
+	inline void binToColour(const cv::Mat& raw, cv::Mat& colour, ASI_BAYER_PATTERN pattern) {
+		colour.create(raw.rows / 2, raw.cols / 2, CV_MAKETYPE(raw.depth(), 3));
+		int redRow = pattern == ASI_BAYER_BG || pattern == ASI_BAYER_GB ? 1 : 0; //ASI_BAYER_RG starts with an R G row
+		int redCol = pattern == ASI_BAYER_BG || pattern == ASI_BAYER_GR ? 1 : 0;
+		if (raw.depth() == CV_16U) {
+			binCells<ushort>(raw, colour, redRow, redCol);
+		} else {
+			binCells<uchar>(raw, colour, redRow, redCol);
+		}
+	}
+
+	//DemosaicPool splits every frame into horizontal stripes and demosaics them on worker threads.
+	//The threads are made once and wait on a condition variable, so no threads are created per frame
+	class DemosaicPool {
+	public:
+		DemosaicPool(ASI_BAYER_PATTERN pattern, int threadCount = (int)std::max(1u, std::thread::hardware_concurrency()))
+			: code(demosaicCode(pattern)), stopping(false) {
+			for (int i = 0; i < threadCount; i++) {
+				workers.emplace_back([this] { workerLoop(); });
+			}
+		}
+
+		~DemosaicPool() {
+			{
+				std::lock_guard<std::mutex> lock(mtx);
+				stopping = true;
+			}
+			wakeSignal.notify_all();
+			for (std::thread& worker : workers) {
+				worker.join();
+			}
+		}
+
+		//demosaics a raw frame into colour (8-bit input gives CV_8UC3, 16-bit input gives CV_16UC3). colour is reused between calls
+		//if it is already the right size. Blocks until all the stripes are done
+		void demosaic(const cv::Mat& raw, cv::Mat& colour) {
+			colour.create(raw.rows, raw.cols, CV_MAKETYPE(raw.depth(), 3));
+
+			int stripes = (int)workers.size();
+			int stripeRows = std::max(2, ((raw.rows / stripes) + 1) & ~1); //stripes start on even rows so every stripe keeps the same Bayer pattern
+			std::vector<std::future<void>> pending;
+			for (int y0 = 0; y0 < raw.rows; y0 += stripeRows) {
+				int y1 = std::min(raw.rows, y0 + stripeRows);
+				pending.push_back(submit([this, &raw, &colour, y0, y1] { demosaicStripe(raw, colour, y0, y1); }));
+			}
+			for (std::future<void>& done : pending) {
+				done.get();
+			}
+		}
+
+	private:
+		//each stripe is demosaiced with 2 extra rows above and below so the interpolation at the edges of the stripe is the same
+		//as it would be for the whole frame. Only the rows that belong to the stripe are copied into the output
+		void demosaicStripe(const cv::Mat& raw, cv::Mat& colour, int y0, int y1) {
+			int padTop = std::min(2, y0);
+			int padBottom = std::min(2, raw.rows - y1);
+			cv::Mat stripe;
+			cv::cvtColor(raw.rowRange(y0 - padTop, y1 + padBottom), stripe, code);
+			stripe.rowRange(padTop, padTop + (y1 - y0)).copyTo(colour.rowRange(y0, y1));
+		}
+
+		std::future<void> submit(std::function<void()> job) {
+			std::shared_ptr<std::packaged_task<void()>> task = std::make_shared<std::packaged_task<void()>>(job);
+			std::future<void> result = task->get_future();
+			{
+				std::lock_guard<std::mutex> lock(mtx);
+				jobs.push([task] { (*task)(); });
+			}
+			wakeSignal.notify_one();
+			return result;
+		}
+
+		void workerLoop() {
+			while (true) {
+				std::function<void()> job;
+				{
+					std::unique_lock<std::mutex> lock(mtx);
+					wakeSignal.wait(lock, [this] { return stopping || !jobs.empty(); });
+					if (stopping && jobs.empty()) {
+						return;
+					}
+					job = std::move(jobs.front());
+					jobs.pop();
+				}
+				job();
+			}
+		}
+
+		int code; //opencv colour conversion code for the camera's Bayer pattern
+		bool stopping;
+		std::vector<std::thread> workers;
+		std::queue<std::function<void()>> jobs;
+		std::mutex mtx;
+		std::condition_variable wakeSignal;
+	};
+}
@@ -0,0 +1,121 @@
+#pragma once
+
+#include <chrono>
+#include <iostream>
+#include <mutex>
+#include <ASICamera2.h> //IF YOU WISH TO LOOK AT CAMERA FUNCTIONS AND PROGRAMMING INFORMATION LOOK UP ZWO CAMERA SDK
+#include "BayerPipeline.h" //for the bytes per pixel of each image type
+
+//CameraModes switches the camera between a fast preview mode for the live video and full resolution for the images that get saved.
+//Live video used to read full 3552x3552 frames and then shrink them down to 1920x1080 with resize. In preview mode the camera bins the
+//pixels in hardware (or, if it can't bin, only reads a 1920x1080 window in the middle of the sensor) so there is a lot less to transfer
+//and the live feed runs at a much higher frame rate. The capture thread switches to full resolution for each scheduled image.
+//Switching needs the video capture to be stopped and started again, so how long that takes is measured and given to the ExposureScheduler.
+
+class CameraModes {
+public:
+	enum Mode { PREVIEW, FULL };
+
+	CameraModes(ASI_CAMERA_INFO* info, ASI_IMG_TYPE type, bool previewEnabled)
+		: cameraID(info->CameraID), imageType(type), previewEnabled(previewEnabled), current(FULL), switchCount(0) {
+		fullWidth = (int)info->MaxWidth;
+		fullHeight = (int)info->MaxHeight;
+
+		//use the biggest hardware bin that still gives at least 1080 lines for the live feed. SupportedBins ends with a 0
+		previewBin = 1;
+		for (int i = 0; i < 16 && info->SupportedBins[i] != 0; i++) {
+			int bin = info->SupportedBins[i];
+			if (bin > previewBin && fullHeight / bin >= 1080) {
+				previewBin = bin;
+			}
+		}
+
+		if (previewBin > 1) {
+			previewWidth = (fullWidth / previewBin) & ~7; //the SDK wants the width to be a multiple of 8 and the height a multiple of 2
+			previewHeight = (fullHeight / previewBin) & ~1;
+			previewStartX = 0;
+			previewStartY = 0;
+		}
+		else { //no binning on this camera, so read a 1920x1080 window from the middle of the sensor instead
+			previewWidth = fullWidth < 1920 ? fullWidth & ~7 : 1920;
+			previewHeight = fullHeight < 1080 ? fullHeight & ~1 : 1080;
+			previewStartX = ((fullWidth - previewWidth) / 2) & ~1; //start on an even pixel so the Bayer pattern stays the same
+			previewStartY = ((fullHeight - previewHeight) / 2) & ~1;
+		}
+	}
+
+	//the live video and the capture thread both use the camera, so they take this lock while they switch modes or read a frame
+	std::mutex& cameraLock() {
+		return cameraMutex;
+	}
+
+	//switches the camera to the given mode. Call this while holding cameraLock(). Does nothing if the camera is already in that mode
+	//or if preview is asked for but the live video is turned off
+	bool switchTo(Mode mode) {
+		if (mode == current || (mode == PREVIEW && !previewEnabled)) {
+			return true;
+		}
+		std::chrono::steady_clock::time_point start = std::chrono::steady_clock::now();
+
+		ASIStopVideoCapture(cameraID); //the ROI can only be changed while video capture is stopped
+		bool ok;
+		if (mode == PREVIEW) {
+			ok = ASISetROIFormat(cameraID, previewWidth, previewHeight, previewBin, imageType) == ASI_SUCCESS
+				&& ASISetStartPos(cameraID, previewStartX, previewStartY) == ASI_SUCCESS;
+		}
+		else {
+			ok = ASISetROIFormat(cameraID, fullWidth, fullHeight, 1, imageType) == ASI_SUCCESS
+				&& ASISetStartPos(cameraID, 0, 0) == ASI_SUCCESS;
+		}
+		ok = ASIStartVideoCapture(cameraID) == ASI_SUCCESS && ok;
+
+		if (ok) {
+			current = mode;
+		}
+		else {
+			std::cout << "Camera Mode Didn't Switch!" << std::endl;
+		}
+
+		//keep a running average of how long a switch takes so the scheduler can plan around it
+		std::chrono::microseconds took = std::chrono::duration_cast<std::chrono::microseconds>(std::chrono::steady_clock::now() - start);
+		switchCount++;
+		averageSwitch = switchCount == 1 ? took : (averageSwitch * 7 + took) / 8;
+		return ok;
+	}
+
+	Mode currentMode() {
+		return current;
+	}
+
+	bool isPreviewEnabled() {
+		return previewEnabled;
+	}
+
+	std::chrono::microseconds averageSwitchCost() {
+		return averageSwitch;
+	}
+
+	//size of the frames the camera is sending right now
+	int width() {
+		return current == PREVIEW ? previewWidth : fullWidth;
+	}
+
+	int height() {
+		return current == PREVIEW ? previewHeight : fullHeight;
+	}
+
+	long bufferSize() {
+		return (long)width() * height() * bayer::bytesPerPixel(imageType);
+	}
+
+private:
+	int cameraID;
+	ASI_IMG_TYPE imageType;
+	bool previewEnabled; //only go into preview mode if the live video is turned on
+	Mode current; //the camera starts at full resolution (that's how main sets up the ROI)
+	int fullWidth, fullHeight;
+	int previewBin, previewWidth, previewHeight, previewStartX, previewStartY;
+	long switchCount;
+	std::chrono::microseconds averageSwitch{ 0 };
+	std::mutex cameraMutex;
+};
@@ -0,0 +1,120 @@
+#pragma once
+
+#include <chrono>
+#include <condition_variable>
+#include <mutex>
+#include <ASICamera2.h> //IF YOU WISH TO LOOK AT CAMERA FUNCTIONS AND PROGRAMMING INFORMATION LOOK UP ZWO CAMERA SDK
+
+//ExposureScheduler keeps the capture thread in step with the camera's auto exposure.
+//ASIGetVideoData needs a timeout in milliseconds that is longer than the exposure that is currently running. The old code passed
+//ASI_EXPOSURE * 2 + 500, but ASI_EXPOSURE is just the enum value of the control (1), so every call timed out after ~502 ms and the
+//program failed as soon as auto exposure went past half a second at night. This class reads the real exposure with ASIGetControlValue,
+//works out the deadline from it and plans the capture slots so the interval between saved images stays accurate.
+
+class ExposureScheduler {
+public:
+	typedef std::chrono::steady_clock clock;
+
+	ExposureScheduler(int cameraID, std::chrono::milliseconds interval)
+		: cameraID(cameraID), interval(interval), exposureUs(0), switchCost(0), skippedSlots(0), stopped(false) {
+		nextSlot = clock::now(); //slots are always counted from here on a fixed grid so sleeping late never adds up into drift
+		refreshExposure();
+	}
+
+	//reads the current exposure (in microseconds) from the camera. With auto exposure on this changes during the night
+	long refreshExposure() {
+		long value = 0;
+		ASI_BOOL isAuto = ASI_FALSE;
+		if (ASIGetControlValue(cameraID, ASI_EXPOSURE, &value, &isAuto) == ASI_SUCCESS) {
+			std::lock_guard<std::mutex> lock(mtx);
+			exposureUs = value;
+		}
+		return currentExposureUs();
+	}
+
+	long currentExposureUs() {
+		std::lock_guard<std::mutex> lock(mtx);
+		return exposureUs;
+	}
+
+	//the timeout for ASIGetVideoData. Two full exposures (the one in progress plus the next one) and 500 ms for the USB transfer
+	int acquisitionTimeoutMs() {
+		return timeoutFor(currentExposureUs());
+	}
+
+	static int timeoutFor(long exposureMicros) {
+		return (int)(exposureMicros / 1000 * 2 + 500);
+	}
+
+	//sleeps (without spinning) until it is time to start waiting for the frame of the next slot.
+	//In video mode ASIGetVideoData hands back the next finished exposure, so we start waiting one exposure (plus the time it takes to
+	//switch the camera to full resolution) before the slot and the frame we get was taken as close to the slot time as possible.
+	//Returns false if stop() was called
+	bool waitForNextSlot() {
+		std::unique_lock<std::mutex> lock(mtx);
+		while (!stopped) {
+			clock::time_point wakeAt = nextSlot - std::chrono::microseconds(exposureUs) - switchCost; //worked out again after every wake up in case the interval was changed
+			if (wakeSignal.wait_until(lock, wakeAt) == std::cv_status::timeout) {
+				break;
+			}
+		}
+		return !stopped;
+	}
+
+	//called after a frame has been acquired. Moves to the next slot on the fixed grid. If the exposure is longer than the
+	//interval (or the save took too long) the slots that can no longer be met are skipped instead of firing back to back
+	void advance() {
+		std::lock_guard<std::mutex> lock(mtx);
+		clock::time_point now = clock::now();
+		nextSlot += interval;
+		while (nextSlot + std::chrono::microseconds(exposureUs) < now) {
+			nextSlot += interval;
+			skippedSlots++;
+		}
+	}
+
+	//records how long it took to get the camera ready for a full resolution image (waiting for the live video and switching modes).
+	//Averaged so one slow switch doesn't move every slot after it
+	void recordSwitchCost(std::chrono::microseconds took) {
+		std::lock_guard<std::mutex> lock(mtx);
+		switchCost = switchCost.count() == 0 ? took : (switchCost * 7 + took) / 8;
+	}
+
+	//after a full resolution image, going back to preview mode only pays off if there's enough time before the next slot to
+	//switch there and back again a few times over. Otherwise the camera stays at full resolution and the live video is resized instead
+	bool worthLeavingFullResolution(std::chrono::microseconds modeSwitchCost) {
+		std::lock_guard<std::mutex> lock(mtx);
+		return nextSlot - clock::now() > modeSwitchCost * 4 + std::chrono::microseconds(exposureUs);
+	}
+
+	//changes the interval and replans from the current slot so the next image is not delayed by the old interval
+	void setInterval(std::chrono::milliseconds newInterval) {
+		std::lock_guard<std::mutex> lock(mtx);
+		nextSlot = nextSlot - interval + newInterval;
+		interval = newInterval;
+		wakeSignal.notify_all();
+	}
+
+	//wakes up the capture thread right away so it can shut down even during a long night exposure
+	void stop() {
+		std::lock_guard<std::mutex> lock(mtx);
+		stopped = true;
+		wakeSignal.notify_all();
+	}
+
+	long getSkippedSlots() {
+		std::lock_guard<std::mutex> lock(mtx);
+		return skippedSlots;
+	}
+
+private:
+	int cameraID;
+	std::chrono::milliseconds interval;
+	long exposureUs; //last exposure read from the camera, in microseconds
+	std::chrono::microseconds switchCost; //average time to get the camera ready for a full resolution image
+	long skippedSlots; //how many slots were missed because the exposure was longer than the interval
+	bool stopped;
+	clock::time_point nextSlot;
+	std::mutex mtx;
+	std::condition_variable wakeSignal;
+};
@@ -6,6 +6,9 @@
 #include <atomic>
 #include <ASICamera2.h> //IF YOU WISH TO LOOK AT CAMERA FUNCTIONS AND PROGRAMMING INFORMATION LOOK UP ZWO CAMERA SDK
 #include <opencv2/opencv.hpp>  //this is needed to generate pictures and look at live video
+#include "ExposureScheduler.h" //plans capture slots around the current exposure so long night exposures don't time out
+#include "BayerPipeline.h" //raw Bayer capture and demosaicing on worker threads
+#include "CameraModes.h" //binned preview mode for the live video and full resolution for saved images
 
 
 //#include <jni.h> //need this for java wrapper
@@ -16,7 +19,10 @@ using namespace cv;
 
 atomic<bool> thread_end = false;
 
-void capture(ASI_CAMERA_INFO*, int); //image capture function
+static ASI_IMG_TYPE imageType = ASI_IMG_RAW16; //ASI_IMG_RAW8 (1 byte per pixel), ASI_IMG_RAW16 (2 bytes per pixel, keeps the full sensor data) or ASI_IMG_RGB24 (3 bytes per pixel, the old format)
+static bool saveColour = false; //false saves the raw Bayer data (best for photometry). true demosaics every saved image into a colour PNG first
+
+void capture(ASI_CAMERA_INFO*, ExposureScheduler*, bayer::DemosaicPool*, CameraModes*); //image capture function
 
 //JNIEXPORT jint JNICALL Java_Main_Capture(JNIEnv *env, jobject obj, jboolean vidFlag, jint capTimer) { //creates this into a native java function that can be used in java
 
@@ -64,7 +70,7 @@ int main(void){
 		return -1;
 	}
 
-	ASISetROIFormat(ZWOCamera->CameraID, width, height, 1, ASI_IMG_RGB24); //sets the camera up with the max image size and in the color mode format
+	ASISetROIFormat(ZWOCamera->CameraID, width, height, 1, imageType); //sets the camera up with the max image size and the image type chosen at the top of the file
 	ASISetStartPos(ZWOCamera->CameraID, 0, 0); //sets the starting position of the camera. 0,0 means the camera capture is set at the center of the camera I think?
 
 
@@ -79,7 +85,7 @@ int main(void){
 	ASI_BOOL* gain_auto = (ASI_BOOL*)malloc(sizeof(ASI_BOOL)); //store the status of if gain is auto-adjusted here
 
 	ASISetControlValue(ZWOCamera->CameraID, ASI_EXPOSURE, exposure, ASI_TRUE); //exposure of camera is initially set at  100000 microseconds. ASI_TRUE means exposure will auto-adjust
-	//NOTE: If exposure becomes too long, the program will fail. I think it's because the code tries to capture an image that hasn't been made yet due to long exposure times. Be careful of this and adjust gain and exposure accordingly
+	//NOTE: exposure can get very long at night with auto exposure on. The ASIGetVideoData timeouts below are worked out from the current exposure (see ExposureScheduler.h) so long exposures don't make the program fail anymore
 	ASISetControlValue(ZWOCamera->CameraID, ASI_GAIN, gain, ASI_FALSE); //gain is initially set at 100. ASI_FALSE means gain won't auto-adjust.
 
 	//cout << exposure << endl;
@@ -110,32 +116,60 @@ int main(void){
 	}
 	ASISetControlValue(ZWOCamera->CameraID, ASI_HIGH_SPEED_MODE, 1, ASI_FALSE); //sets the camera in high speed mode, which I think means the camera will work harder to bring higher performance (faster capture rates)
 	
-	Mat image(width, height, CV_8UC3); //opencv is used for image capture. The images captured by the camera are stored here. CV_8UC3 describes the type of image that the image variable is, which is a 3-channel 8-bit image
+	CameraModes modes(ZWOCamera, imageType, liveVid); //live video uses a binned preview mode, saved images use full resolution
+	modes.switchTo(CameraModes::PREVIEW); //does nothing if live video is off
+	cout << "Live Video Resolution: " << modes.width() << "x" << modes.height() << endl;
+
+	Mat image(modes.height(), modes.width(), bayer::matType(imageType)); //opencv is used for image capture. The images captured by the camera are stored here. For RAW8/RAW16 this is a 1-channel Bayer image, for RGB24 it's a 3-channel 8-bit image
+	Mat colour; //the demosaiced live video frame. Only used when the camera sends raw data
 	Mat window; //for the video feed
-	thread tCap(capture, ZWOCamera, capTime); //starts a thread for the video feed. So images can be captured and a video feed can happen at the same time.
-	while (true) {
+	bayer::DemosaicPool demosaicPool(ZWOCamera->BayerPattern); //worker threads that turn raw frames into colour frames when we need colour
+	ExposureScheduler scheduler(ZWOCamera->CameraID, chrono::seconds(capTime)); //keeps track of the auto exposure and when the next image should be taken
+	thread tCap(capture, ZWOCamera, &scheduler, &demosaicPool, &modes); //starts a thread for the video feed. So images can be captured and a video feed can happen at the same time.
+	if (liveVid == false) { //no live video, so just wait for the capture thread instead of spinning on thread_end
+		tCap.join();
+		cout << "Thread ended!" << endl;
+	}
+	while (liveVid == true) {
 		if (thread_end == true) { //if image capture ends, the thread joins back and the program ends. This needs to be on at all times, so if this ends that means something messed up with the image capture
 			tCap.join();
 			cout << "Thread ended!" << endl;
 			break;
 		}
 		if (liveVid == true) { //if the users wish to have live video enabled, this is if statement will occur and a window will open with the live feed in it
-			if ((ASIGetVideoData(ZWOCamera->CameraID, image.data, width * height * 3, ASI_EXPOSURE * 2 + 500)) == ASI_SUCCESS) { //Captures an image which is stored in the image variable
+			ASI_ERROR_CODE result;
+			{
+				lock_guard<mutex> cameraLock(modes.cameraLock()); //the capture thread may be switching the camera to full resolution
+				image.create(modes.height(), modes.width(), bayer::matType(imageType)); //the frame size depends on the mode the camera is in. create only reallocates if the size changed
+				result = ASIGetVideoData(ZWOCamera->CameraID, image.data, modes.bufferSize(), ExposureScheduler::timeoutFor(*curr_exposure)); //The timeout comes from the last exposure read from the camera
+			}
+			if (result == ASI_SUCCESS) { //Captures an image which is stored in the image variable
 
 				//cout << "Feed Started" << endl;
 
-				resize(image, window, Size(1920, 1080)); //stores data from the image variable in the window variable, and the window variable is set for a 1920 x 1080 monitor
+				if (bayer::isRaw(imageType)) { //the live feed is in colour, so raw frames get demosaiced first
+					demosaicPool.demosaic(image, colour);
+				}
+				else {
+					colour = image;
+				}
+				resize(colour, window, Size(1920, 1080)); //stores data from the colour variable in the window variable, and the window variable is set for a 1920 x 1080 monitor. In preview mode the frame is already close to this size so this is cheap
 				imshow("Live Feed", window); //a 1920 x 1080 window will open up showing the live video feed
 				waitKey(0); //this means the window will continuously update I think
 
+				long last_exposure = *curr_exposure;
+				long last_gain = *curr_gain;
 				ASIGetControlValue(ZWOCamera->CameraID, ASI_EXPOSURE, curr_exposure, exposure_auto); //continuously stores the current exposure and if its on auto adjust
 				ASIGetControlValue(ZWOCamera->CameraID, ASI_GAIN, curr_gain, gain_auto); //continuously stores the current gain and if its on auto adjust
-				cout << *curr_exposure << endl; //shows current exposure
-				cout << *curr_gain << endl; //shows current gain
+				if (*curr_exposure != last_exposure || *curr_gain != last_gain) { //only print when something changed. Printing every frame slowed down the live feed
+					cout << "Exposure: " << *curr_exposure << " Gain: " << *curr_gain << endl;
+				}
 
 			}
 			else {
 				cout << "Didn't Get Video Data!" << endl;
+				scheduler.stop(); //wakes up the capture thread so it can end and be joined
+				tCap.join();
 				break;
 			}
 		}
@@ -162,7 +196,7 @@ int main(void){
 	return 0;
 }
 
-void capture(ASI_CAMERA_INFO* ZWOCamera, int captureTime) { //this function is for capturing the images
+void capture(ASI_CAMERA_INFO* ZWOCamera, ExposureScheduler* scheduler, bayer::DemosaicPool* demosaicPool, CameraModes* modes) { //this function is for capturing the images
 	struct tm date; //all of this is to create a timestamp for the image
 	__time64_t timestamp;
 	string timestring;
@@ -173,9 +207,25 @@ void capture(ASI_CAMERA_INFO* ZWOCamera, int captureTime) { //this function is f
 	int width = ZWOCamera->MaxWidth; //image resolution
 	int height = ZWOCamera->MaxHeight;
 
-	Mat image(width, height, CV_8UC3); //image variable to store camera capture in
-	while (true) {
-		if ((ASIGetVideoData(ZWOCamera->CameraID, image.data, width * height * 3, ASI_EXPOSURE * 2 + 500)) == ASI_SUCCESS) { //gets data from camera and stores it in capture variable
+	long bufferSize = width * height * bayer::bytesPerPixel(imageType); //size of one frame in bytes for the chosen image type
+	Mat image(height, width, bayer::matType(imageType)); //image variable to store camera capture in
+	Mat colour; //demosaiced copy of image, only made if saveColour is on
+	while (scheduler->waitForNextSlot()) { //sleeps until one exposure before the next capture slot. Returns false when the program is shutting down
+		chrono::steady_clock::time_point readyStart = chrono::steady_clock::now();
+		unique_lock<mutex> cameraLock(modes->cameraLock()); //waits for the live video to finish its frame
+		modes->switchTo(CameraModes::FULL); //saved images are always full resolution
+		scheduler->recordSwitchCost(chrono::duration_cast<chrono::microseconds>(chrono::steady_clock::now() - readyStart)); //so the next slot starts early enough to cover the switch
+
+		scheduler->refreshExposure(); //auto exposure may have changed since the last image, so get the deadline from the current value
+		ASI_ERROR_CODE result = ASIGetVideoData(ZWOCamera->CameraID, image.data, bufferSize, scheduler->acquisitionTimeoutMs());
+
+		scheduler->advance(); //moves on to the next capture slot. Slots are on a fixed grid (every capTime seconds) so the time spent exposing and saving doesn't add up into drift
+		if (scheduler->worthLeavingFullResolution(modes->averageSwitchCost())) { //only go back to preview if the next slot isn't too close
+			modes->switchTo(CameraModes::PREVIEW);
+		}
+		cameraLock.unlock(); //the live video can carry on while the image is saved
+
+		if (result == ASI_SUCCESS) { //gets data from camera and stores it in capture variable
 			_time64(&timestamp); //gets the time data
 			_localtime64_s(&date, &timestamp); //configures time data in local time
 			asctime_s(timebuff, 50, &date); //converts time data into a readable format (year, month, day, day of the week, hours, min, seconds)
@@ -184,15 +234,20 @@ void capture(ASI_CAMERA_INFO* ZWOCamera, int captureTime) { //this function is f
 			replace(buffstring.begin(), buffstring.end(), ':', '-'); //imwrite won't create files with colons in it. replaces colons with dashes
 			replace(buffstring.begin(), buffstring.end(), ' ', '-'); //replaces spaces with dashes
 			timestring = buffstring + image_type; //this is the complete name of the image
-			cout << "Video Data Is Captured!" << endl;
 			//cout << timestring << endl;
-			imwrite(timestring, image); //stores the image in a .png file. Need to figure out how to write these images to an absolute file path, but it does store the image locally in the same folder as the coding project
+			//stores the image in a .png file. Need to figure out how to write these images to an absolute file path, but it does store the image locally in the same folder as the coding project
+			if (bayer::isRaw(imageType) && saveColour) { //only demosaic when a colour image was asked for
+				demosaicPool->demosaic(image, colour);
+				imwrite(timestring, colour);
+			}
+			else {
+				imwrite(timestring, image); //RAW16 is saved as a 16-bit PNG so no sensor data is lost
+			}
 		}
 		else {
 				cout << "Didn't Get Video Data!" << endl;
 				thread_end = true;
 				break;
 		}
-		this_thread::sleep_for(chrono::seconds(captureTime)); //this is for capture rates. If the user wants it capture an image every 60 seconds or 60 minutes, you change the captureTime variable
 	}
 }
@@ -6,6 +6,9 @@
 #include <atomic>
 #include <ASICamera2.h> //IF YOU WISH TO LOOK AT CAMERA FUNCTIONS AND PROGRAMMING INFORMATION LOOK UP ZWO CAMERA SDK
 #include <opencv2/opencv.hpp>  //this is needed to generate pictures and look at live video
+#include "ExposureScheduler.h" //plans capture slots around the current exposure so long night exposures don't time out
+#include "BayerPipeline.h" //raw Bayer capture and demosaicing on worker threads
+#include "CameraModes.h" //binned preview mode for the live video and full resolution for saved images
 
 
 #include <jni.h> //need this for java wrapper
@@ -16,7 +19,10 @@ using namespace cv;
 
 atomic<bool> thread_end = false;
 
-void capture(ASI_CAMERA_INFO*, int); //image capture function
+static ASI_IMG_TYPE imageType = ASI_IMG_RAW16; //ASI_IMG_RAW8 (1 byte per pixel), ASI_IMG_RAW16 (2 bytes per pixel, keeps the full sensor data) or ASI_IMG_RGB24 (3 bytes per pixel, the old format)
+static bool saveColour = false; //false saves the raw Bayer data (best for photometry). true demosaics every saved image into a colour PNG first
+
+void capture(ASI_CAMERA_INFO*, ExposureScheduler*, bayer::DemosaicPool*, CameraModes*); //image capture function
 
 JNIEXPORT jint JNICALL Java_Main_Capture(JNIEnv *env, jobject obj, jboolean vidFlag, jint capTimer) { //creates this into a native java function that can be used in java
 
@@ -64,7 +70,7 @@ JNIEXPORT jint JNICALL Java_Main_Capture(JNIEnv *env, jobject obj, jboolean vidF
 		return -1;
 	}
 
-	ASISetROIFormat(ZWOCamera->CameraID, width, height, 1, ASI_IMG_RGB24); //sets the camera up with the max image size and in the color mode format
+	ASISetROIFormat(ZWOCamera->CameraID, width, height, 1, imageType); //sets the camera up with the max image size and the image type chosen at the top of the file
 	ASISetStartPos(ZWOCamera->CameraID, 0, 0); //sets the starting position of the camera. 0,0 means the camera capture is set at the center of the camera I think?
 
 
@@ -79,7 +85,7 @@ JNIEXPORT jint JNICALL Java_Main_Capture(JNIEnv *env, jobject obj, jboolean vidF
 	ASI_BOOL* gain_auto = (ASI_BOOL*)malloc(sizeof(ASI_BOOL)); //store the status of if gain is auto-adjusted here
 
 	ASISetControlValue(ZWOCamera->CameraID, ASI_EXPOSURE, exposure, ASI_TRUE); //exposure of camera is initially set at  100000 microseconds. ASI_TRUE means exposure will auto-adjust
-	//NOTE: If exposure becomes too long, the program will fail. I think it's because the code tries to capture an image that hasn't been made yet due to long exposure times. Be careful of this and adjust gain and exposure accordingly
+	//NOTE: exposure can get very long at night with auto exposure on. The ASIGetVideoData timeouts below are worked out from the current exposure (see ExposureScheduler.h) so long exposures don't make the program fail anymore
 	ASISetControlValue(ZWOCamera->CameraID, ASI_GAIN, gain, ASI_FALSE); //gain is initially set at 100. ASI_FALSE means gain won't auto-adjust.
 
 	//cout << exposure << endl;
@@ -110,32 +116,60 @@ JNIEXPORT jint JNICALL Java_Main_Capture(JNIEnv *env, jobject obj, jboolean vidF
 	}
 	ASISetControlValue(ZWOCamera->CameraID, ASI_HIGH_SPEED_MODE, 1, ASI_FALSE); //sets the camera in high speed mode, which I think means the camera will work harder to bring higher performance (faster capture rates)
 	
-	Mat image(width, height, CV_8UC3); //opencv is used for image capture. The images captured by the camera are stored here. CV_8UC3 describes the type of image that the image variable is, which is a 3-channel 8-bit image
+	CameraModes modes(ZWOCamera, imageType, liveVid); //live video uses a binned preview mode, saved images use full resolution
+	modes.switchTo(CameraModes::PREVIEW); //does nothing if live video is off
+	cout << "Live Video Resolution: " << modes.width() << "x" << modes.height() << endl;
+
+	Mat image(modes.height(), modes.width(), bayer::matType(imageType)); //opencv is used for image capture. The images captured by the camera are stored here. For RAW8/RAW16 this is a 1-channel Bayer image, for RGB24 it's a 3-channel 8-bit image
+	Mat colour; //the demosaiced live video frame. Only used when the camera sends raw data
 	Mat window; //for the video feed
-	thread tCap(capture, ZWOCamera, capTime); //starts a thread for the video feed. So images can be captured and a video feed can happen at the same time.
-	while (true) {
+	bayer::DemosaicPool demosaicPool(ZWOCamera->BayerPattern); //worker threads that turn raw frames into colour frames when we need colour
+	ExposureScheduler scheduler(ZWOCamera->CameraID, chrono::seconds(capTime)); //keeps track of the auto exposure and when the next image should be taken
+	thread tCap(capture, ZWOCamera, &scheduler, &demosaicPool, &modes); //starts a thread for the video feed. So images can be captured and a video feed can happen at the same time.
+	if (liveVid == false) { //no live video, so just wait for the capture thread instead of spinning on thread_end
+		tCap.join();
+		cout << "Thread ended!" << endl;
+	}
+	while (liveVid == true) {
 		if (thread_end == true) { //if image capture ends, the thread joins back and the program ends. This needs to be on at all times, so if this ends that means something messed up with the image capture
 			tCap.join();
 			cout << "Thread ended!" << endl;
 			break;
 		}
 		if (liveVid == true) { //if the users wish to have live video enabled, this is if statement will occur and a window will open with the live feed in it
-			if ((ASIGetVideoData(ZWOCamera->CameraID, image.data, width * height * 3, ASI_EXPOSURE * 2 + 500)) == ASI_SUCCESS) { //Captures an image which is stored in the image variable
+			ASI_ERROR_CODE result;
+			{
+				lock_guard<mutex> cameraLock(modes.cameraLock()); //the capture thread may be switching the camera to full resolution
+				image.create(modes.height(), modes.width(), bayer::matType(imageType)); //the frame size depends on the mode the camera is in. create only reallocates if the size changed
+				result = ASIGetVideoData(ZWOCamera->CameraID, image.data, modes.bufferSize(), ExposureScheduler::timeoutFor(*curr_exposure)); //The timeout comes from the last exposure read from the camera
+			}
+			if (result == ASI_SUCCESS) { //Captures an image which is stored in the image variable
 
 				//cout << "Feed Started" << endl;
 
-				resize(image, window, Size(1920, 1080)); //stores data from the image variable in the window variable, and the window variable is set for a 1920 x 1080 monitor
+				if (bayer::isRaw(imageType)) { //the live feed is in colour, so raw frames get demosaiced first
+					demosaicPool.demosaic(image, colour);
+				}
+				else {
+					colour = image;
+				}
+				resize(colour, window, Size(1920, 1080)); //stores data from the colour variable in the window variable, and the window variable is set for a 1920 x 1080 monitor. In preview mode the frame is already close to this size so this is cheap
 				imshow("Live Feed", window); //a 1920 x 1080 window will open up showing the live video feed
 				waitKey(0); //this means the window will continuously update I think
 
+				long last_exposure = *curr_exposure;
+				long last_gain = *curr_gain;
 				ASIGetControlValue(ZWOCamera->CameraID, ASI_EXPOSURE, curr_exposure, exposure_auto); //continuously stores the current exposure and if its on auto adjust
 				ASIGetControlValue(ZWOCamera->CameraID, ASI_GAIN, curr_gain, gain_auto); //continuously stores the current gain and if its on auto adjust
-				cout << *curr_exposure << endl; //shows current exposure
-				cout << *curr_gain << endl; //shows current gain
+				if (*curr_exposure != last_exposure || *curr_gain != last_gain) { //only print when something changed. Printing every frame slowed down the live feed
+					cout << "Exposure: " << *curr_exposure << " Gain: " << *curr_gain << endl;
+				}
 
 			}
 			else {
 				cout << "Didn't Get Video Data!" << endl;
+				scheduler.stop(); //wakes up the capture thread so it can end and be joined
+				tCap.join();
 				break;
 			}
 		}
@@ -162,7 +196,7 @@ JNIEXPORT jint JNICALL Java_Main_Capture(JNIEnv *env, jobject obj, jboolean vidF
 	return 0;
 }
 
-void capture(ASI_CAMERA_INFO* ZWOCamera, int captureTime) { //this function is for capturing the images
+void capture(ASI_CAMERA_INFO* ZWOCamera, ExposureScheduler* scheduler, bayer::DemosaicPool* demosaicPool, CameraModes* modes) { //this function is for capturing the images
 	struct tm date; //all of this is to create a timestamp for the image
 	__time64_t timestamp;
 	string timestring;
@@ -173,9 +207,25 @@ void capture(ASI_CAMERA_INFO* ZWOCamera, int captureTime) { //this function is f
 	int width = ZWOCamera->MaxWidth; //image resolution
 	int height = ZWOCamera->MaxHeight;
 
-	Mat image(width, height, CV_8UC3); //image variable to store camera capture in
-	while (true) {
-		if ((ASIGetVideoData(ZWOCamera->CameraID, image.data, width * height * 3, ASI_EXPOSURE * 2 + 500)) == ASI_SUCCESS) { //gets data from camera and stores it in capture variable
+	long bufferSize = width * height * bayer::bytesPerPixel(imageType); //size of one frame in bytes for the chosen image type
+	Mat image(height, width, bayer::matType(imageType)); //image variable to store camera capture in
+	Mat colour; //demosaiced copy of image, only made if saveColour is on
+	while (scheduler->waitForNextSlot()) { //sleeps until one exposure before the next capture slot. Returns false when the program is shutting down
+		chrono::steady_clock::time_point readyStart = chrono::steady_clock::now();
+		unique_lock<mutex> cameraLock(modes->cameraLock()); //waits for the live video to finish its frame
+		modes->switchTo(CameraModes::FULL); //saved images are always full resolution
+		scheduler->recordSwitchCost(chrono::duration_cast<chrono::microseconds>(chrono::steady_clock::now() - readyStart)); //so the next slot starts early enough to cover the switch
+
+		scheduler->refreshExposure(); //auto exposure may have changed since the last image, so get the deadline from the current value
+		ASI_ERROR_CODE result = ASIGetVideoData(ZWOCamera->CameraID, image.data, bufferSize, scheduler->acquisitionTimeoutMs());
+
+		scheduler->advance(); //moves on to the next capture slot. Slots are on a fixed grid (every capTime seconds) so the time spent exposing and saving doesn't add up into drift
+		if (scheduler->worthLeavingFullResolution(modes->averageSwitchCost())) { //only go back to preview if the next slot isn't too close
+			modes->switchTo(CameraModes::PREVIEW);
+		}
+		cameraLock.unlock(); //the live video can carry on while the image is saved
+
+		if (result == ASI_SUCCESS) { //gets data from camera and stores it in capture variable
 			_time64(&timestamp); //gets the time data
 			_localtime64_s(&date, &timestamp); //configures time data in local time
 			asctime_s(timebuff, 50, &date); //converts time data into a readable format (year, month, day, day of the week, hours, min, seconds)
@@ -184,15 +234,191 @@ void capture(ASI_CAMERA_INFO* ZWOCamera, int captureTime) { //this function is f
 			replace(buffstring.begin(), buffstring.end(), ':', '-'); //imwrite won't create files with colons in it. replaces colons with dashes
 			replace(buffstring.begin(), buffstring.end(), ' ', '-'); //replaces spaces with dashes
 			timestring = buffstring + image_type; //this is the complete name of the image
-			cout << "Video Data Is Captured!" << endl;
 			//cout << timestring << endl;
-			imwrite(timestring, image); //stores the image in a .png file. Need to figure out how to write these images to an absolute file path, but it does store the image locally in the same folder as the coding project
+			//stores the image in a .png file. Need to figure out how to write these images to an absolute file path, but it does store the image locally in the same folder as the coding project
+			if (bayer::isRaw(imageType) && saveColour) { //only demosaic when a colour image was asked for
+				demosaicPool->demosaic(image, colour);
+				imwrite(timestring, colour);
+			}
+			else {
+				imwrite(timestring, image); //RAW16 is saved as a 16-bit PNG so no sensor data is lost
+			}
 		}
 		else {
 				cout << "Didn't Get Video Data!" << endl;
 				thread_end = true;
 				break;
 		}
-		this_thread::sleep_for(chrono::seconds(captureTime)); //this is for capture rates. If the user wants it capture an image every 60 seconds or 60 minutes, you change the captureTime variable
 	}
 }
+
+//---------------------------------------------------------------------------------------------------------------------------
+//Native binding for com.darksky.utils.ZWOFrameSource. The Java app opens the camera with nativeOpen and then pulls one frame at a
+//time with nativeRead, which writes straight into the memory of the Java Mat (matAddress is Mat.getNativeObjAddr()), so the frame
+//is never copied through a Java array. Only one ZWOFrameSource is used at a time (AutoCapture stops before CameraWindow starts)
+
+static ASI_CAMERA_INFO sourceCamera; //properties of the camera opened by nativeOpen
+static ASI_IMG_TYPE sourceImageType = ASI_IMG_RAW16; //image type the camera sends
+static bayer::DemosaicPool* sourcePool = NULL; //only made if Java asked for colour frames from a raw image type. The preview never uses it, so saved frames stay raw unless colour was asked for
+static CameraModes* sourceModes = NULL; //previews are read in the binned (or windowed) preview format, full frames at the sensor size
+static Mat sourceRaw; //raw frame buffer, reused for every frame when demosaicing
+static Mat sourcePreview; //preview-format frame from the camera, reused for every preview
+static Mat sourceBinned; //colour frame made from the raw preview, only used while making previews
+static jlong previewTimings[3] = { 0, 0, 0 }; //nanoseconds spent on the last preview: acquire (including a mode switch), colour + resize, convert + copy into the Java Mat
+static jlong frameControls[3] = { 0, 0, 0 }; //exposure (microseconds), gain and sensor temperature (tenths of a degree C) of the last frame read, for calibration
+
+static jlong nanosSince(chrono::steady_clock::time_point start) {
+	return (jlong)chrono::duration_cast<chrono::nanoseconds>(chrono::steady_clock::now() - start).count();
+}
+
+extern "C" JNIEXPORT jboolean JNICALL Java_com_darksky_utils_ZWOFrameSource_nativeOpen(JNIEnv* env, jclass cls, jint imgType, jboolean colourOutput) {
+	if (ASIGetNumOfConnectedCameras() < 1) { //no camera plugged in
+		cout << "No Camera Connected!" << endl;
+		return JNI_FALSE;
+	}
+	ASIGetCameraProperty(&sourceCamera, 0); //uses the 1st connected ASI camera
+	sourceImageType = (ASI_IMG_TYPE)imgType;
+
+	if (ASIOpenCamera(sourceCamera.CameraID) != ASI_SUCCESS || ASIInitCamera(sourceCamera.CameraID) != ASI_SUCCESS) {
+		cout << "Camera Didn't Open!" << endl;
+		return JNI_FALSE;
+	}
+
+	ASISetROIFormat(sourceCamera.CameraID, sourceCamera.MaxWidth, sourceCamera.MaxHeight, 1, sourceImageType); //full resolution in the chosen image type
+	ASISetStartPos(sourceCamera.CameraID, 0, 0);
+	ASISetControlValue(sourceCamera.CameraID, ASI_EXPOSURE, 100000, ASI_TRUE); //same starting exposure and gain as the capture program
+	ASISetControlValue(sourceCamera.CameraID, ASI_GAIN, 250, ASI_FALSE);
+
+	if (ASISetCameraMode(sourceCamera.CameraID, ASI_MODE_NORMAL) != ASI_SUCCESS || ASIStartVideoCapture(sourceCamera.CameraID) != ASI_SUCCESS) {
+		cout << "Camera Video Didn't Start!" << endl;
+		ASICloseCamera(sourceCamera.CameraID);
+		return JNI_FALSE;
+	}
+	ASISetControlValue(sourceCamera.CameraID, ASI_HIGH_SPEED_MODE, 1, ASI_FALSE);
+
+	if (colourOutput && bayer::isRaw(sourceImageType)) { //only start demosaic threads if colour is actually needed
+		sourcePool = new bayer::DemosaicPool(sourceCamera.BayerPattern);
+	}
+	sourceModes = new CameraModes(&sourceCamera, sourceImageType, true); //the camera starts at full resolution, the first preview switches it over
+	return JNI_TRUE;
+}
+
+extern "C" JNIEXPORT jboolean JNICALL Java_com_darksky_utils_ZWOFrameSource_nativeRead(JNIEnv* env, jclass cls, jlong matAddress) {
+	Mat& frame = *(Mat*)matAddress; //the Mat owned by the Java side
+	Mat& target = sourcePool != NULL ? sourceRaw : frame; //read into the raw buffer if it needs demosaicing, otherwise straight into the Java Mat
+
+	long exposure = 0;
+	ASI_BOOL exposureAuto;
+	ASIGetControlValue(sourceCamera.CameraID, ASI_EXPOSURE, &exposure, &exposureAuto); //the timeout has to cover the current (auto) exposure
+
+	{
+		lock_guard<mutex> cameraLock(sourceModes->cameraLock());
+		if (!sourceModes->switchTo(CameraModes::FULL)) { //saved frames are always full resolution
+			return JNI_FALSE;
+		}
+		target.create(sourceCamera.MaxHeight, sourceCamera.MaxWidth, bayer::matType(sourceImageType)); //only reallocates if the size or type changed
+		if (ASIGetVideoData(sourceCamera.CameraID, target.data, (long)(target.total() * target.elemSize()), ExposureScheduler::timeoutFor(exposure)) != ASI_SUCCESS) {
+			return JNI_FALSE;
+		}
+	}
+
+	long gain = 0, temperature = 0;
+	ASI_BOOL gainAuto, temperatureAuto;
+	ASIGetControlValue(sourceCamera.CameraID, ASI_GAIN, &gain, &gainAuto);
+	ASIGetControlValue(sourceCamera.CameraID, ASI_TEMPERATURE, &temperature, &temperatureAuto); //the SDK gives tenths of a degree
+	frameControls[0] = exposure; //read before the frame, which is the exposure it was taken with
+	frameControls[1] = gain;
+	frameControls[2] = temperature;
+
+	if (sourcePool != NULL) {
+		sourcePool->demosaic(sourceRaw, frame);
+		if (frame.depth() == CV_16U) { //colour frames for the live feed are 8-bit
+			frame.convertTo(frame, CV_8U, 1.0 / 256);
+		}
+	}
+	return JNI_TRUE;
+}
+
+//reads a frame for the live video and shrinks it here in C++ before it goes back to Java. The camera is put in the CameraModes preview
+//format first, so it bins in hardware (or only sends a window of the sensor) and far fewer pixels are transferred. Only what is left
+//is done in software: raw frames are made colour (by binning the 2x2 cells if that is still big enough, otherwise by demosaicing) and
+//then resized to width x height. The frame stays in native buffers that are reused every frame, and only width x height pixels end up
+//in the Java Mat. colourCode is an opencv cvtColor code (like COLOR_BGR2RGB) or -1 to leave the colours alone
+extern "C" JNIEXPORT jboolean JNICALL Java_com_darksky_utils_ZWOFrameSource_nativeReadPreview(JNIEnv* env, jclass cls, jlong matAddress, jint width, jint height, jint colourCode) {
+	Mat& frame = *(Mat*)matAddress; //the small preview Mat owned by the Java side
+
+	chrono::steady_clock::time_point start = chrono::steady_clock::now();
+	long exposure = 0;
+	ASI_BOOL exposureAuto;
+	ASIGetControlValue(sourceCamera.CameraID, ASI_EXPOSURE, &exposure, &exposureAuto);
+	{
+		lock_guard<mutex> cameraLock(sourceModes->cameraLock());
+		if (!sourceModes->switchTo(CameraModes::PREVIEW)) { //only switches after a full frame was read, so a steady live feed doesn't pay for it
+			return JNI_FALSE;
+		}
+		sourcePreview.create(sourceModes->height(), sourceModes->width(), bayer::matType(sourceImageType)); //only reallocates if the mode changed
+		if (ASIGetVideoData(sourceCamera.CameraID, sourcePreview.data, sourceModes->bufferSize(), ExposureScheduler::timeoutFor(exposure)) != ASI_SUCCESS) {
+			return JNI_FALSE;
+		}
+	}
+	previewTimings[0] = nanosSince(start);
+
+	start = chrono::steady_clock::now();
+	Mat* small = &sourcePreview;
+	if (bayer::isRaw(sourceImageType)) { //the preview is always in colour. The camera bins same-colour pixels, so the preview frame is still a Bayer mosaic
+		if (sourcePreview.cols / 2 >= width && sourcePreview.rows / 2 >= height) { //binning the 2x2 cells is cheaper than demosaicing a frame that then gets shrunk
+			bayer::binToColour(sourcePreview, sourceBinned, sourceCamera.BayerPattern);
+		}
+		else { //half size would be smaller than the preview, so demosaic to keep the detail
+			cvtColor(sourcePreview, sourceBinned, bayer::demosaicCode(sourceCamera.BayerPattern));
+		}
+		small = &sourceBinned;
+	}
+	if (small->cols == width && small->rows == height) {
+		small->copyTo(frame);
+	}
+	else {
+		resize(*small, frame, Size(width, height), 0, 0, INTER_AREA); //INTER_AREA averages the pixels, which looks best when shrinking
+	}
+	previewTimings[1] = nanosSince(start);
+
+	start = chrono::steady_clock::now();
+	if (frame.depth() == CV_16U) { //Swing can only show 8-bit images
+		frame.convertTo(frame, CV_8U, 1.0 / 256);
+	}
+	if (colourCode >= 0) {
+		cvtColor(frame, frame, colourCode);
+	}
+	previewTimings[2] = nanosSince(start);
+	return JNI_TRUE;
+}
+
+//copies the timings of the last preview into a long[3] from Java
+extern "C" JNIEXPORT void JNICALL Java_com_darksky_utils_ZWOFrameSource_nativePreviewTimings(JNIEnv* env, jclass cls, jlongArray timings) {
+	env->SetLongArrayRegion(timings, 0, 3, previewTimings);
+}
+
+//copies the exposure, gain and temperature of the last frame read into a long[3] from Java
+extern "C" JNIEXPORT void JNICALL Java_com_darksky_utils_ZWOFrameSource_nativeControls(JNIEnv* env, jclass cls, jlongArray controls) {
+	env->SetLongArrayRegion(controls, 0, 3, frameControls);
+}
+
+extern "C" JNIEXPORT jint JNICALL Java_com_darksky_utils_ZWOFrameSource_nativeWidth(JNIEnv* env, jclass cls) {
+	return (jint)sourceCamera.MaxWidth;
+}
+
+extern "C" JNIEXPORT jint JNICALL Java_com_darksky_utils_ZWOFrameSource_nativeHeight(JNIEnv* env, jclass cls) {
+	return (jint)sourceCamera.MaxHeight;
+}
+
+extern "C" JNIEXPORT void JNICALL Java_com_darksky_utils_ZWOFrameSource_nativeClose(JNIEnv* env, jclass cls) {
+	ASIStopVideoCapture(sourceCamera.CameraID);
+	ASICloseCamera(sourceCamera.CameraID);
+	delete sourcePool; //stops the demosaic threads
+	sourcePool = NULL;
+	delete sourceModes;
+	sourceModes = NULL;
+	sourceRaw.release();
+	sourcePreview.release();
+	sourceBinned.release();
+}